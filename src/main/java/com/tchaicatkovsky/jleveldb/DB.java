@@ -25,6 +25,7 @@
 package com.tchaicatkovsky.jleveldb;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.Object0;
@@ -105,6 +106,59 @@ public interface DB {
 	 */
 	Status get(ReadOptions options, Slice key, ByteBuf value);
 
+	/**
+	 * Lookup several keys at once. On return values and statuses have one entry
+	 * per key: statuses.get(i) is what get would return for keys.get(i), and
+	 * values.get(i) holds its value if that status is OK.</br>
+	 * </br>
+	 *
+	 * All keys are read from the same snapshot (options.snapshot, or the current
+	 * state if it is null). The lookups are batched: each level is searched once
+	 * for all keys and keys that fall into the same data block share its read.
+	 *
+	 * @param options
+	 * @param keys
+	 * @param values
+	 *            [OUTPUT]
+	 * @param statuses
+	 *            [OUTPUT]
+	 */
+	void multiGet(ReadOptions options, List<Slice> keys, List<ByteBuf> values, List<Status> statuses);
+
+	/**
+	 * Asynchronous version of get. The memtables are searched on the calling thread,
+	 * a lookup that has to go to the tables runs on options.readExecutor instead of
+	 * blocking the caller on disk reads. value must not be used before the returned
+	 * future completes, with the status get would return.</br>
+	 * </br>
+	 *
+	 * The read is pinned to the snapshot taken when getAsync is called. Outstanding
+	 * futures should be waited for before the DB is closed.
+	 *
+	 * @param options
+	 * @param key
+	 * @param value
+	 *            [OUTPUT]
+	 * @return
+	 */
+	CompletableFuture<Status> getAsync(ReadOptions options, Slice key, ByteBuf value);
+
+	/**
+	 * Asynchronous version of multiGet. The keys that miss the memtables are split
+	 * into up to options.asyncReadThreads ranges of sorted keys, which are looked up
+	 * in parallel on options.readExecutor, so the block reads of different ranges
+	 * overlap. values and statuses are filled in when the returned future completes.
+	 *
+	 * @param options
+	 * @param keys
+	 * @param values
+	 *            [OUTPUT]
+	 * @param statuses
+	 *            [OUTPUT]
+	 * @return
+	 */
+	CompletableFuture<Void> multiGetAsync(ReadOptions options, List<Slice> keys, List<ByteBuf> values, List<Status> statuses);
+
 	/**
 	 * Return a heap-allocated iterator over the contents of the database. The result of NewIterator() is initially invalid (caller must call one of the Seek methods on the iterator before using
 	 * it).</br>
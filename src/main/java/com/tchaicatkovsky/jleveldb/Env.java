@@ -51,6 +51,17 @@ public interface Env {
 	 */
 	Status newRandomAccessFile(String fname, Object0<RandomAccessFile0> result);
 
+	/**
+	 * Like {@link #newRandomAccessFile(String, Object0)}, but if allowMmap is true the
+	 * implementation may return a file that serves reads from a memory mapping.
+	 * 
+	 * @param fname
+	 * @param allowMmap
+	 * @param result
+	 * @return
+	 */
+	Status newRandomAccessFile(String fname, boolean allowMmap, Object0<RandomAccessFile0> result);
+
 	/**
 	 * The returned file will only be accessed by one thread at a time.
 	 * 
@@ -176,6 +187,33 @@ public interface Env {
 	 */
 	void schedule(Runnable r);
 
+	/**
+	 * Background work priorities. Each priority has its own thread pool, so that
+	 * short high priority jobs (memtable flushes) never wait behind long low
+	 * priority ones (compactions).
+	 */
+	public enum Priority {
+		Low, High
+	}
+
+	/**
+	 * Arrange to run r once in a background thread of the pool for pri.</br>
+	 * schedule(r) is equivalent to schedule(r, Priority.Low).
+	 * 
+	 * @param r
+	 * @param pri
+	 */
+	void schedule(Runnable r, Priority pri);
+
+	/**
+	 * Make sure the pool for pri has at least number threads. A pool
+	 * starts with a single thread and never shrinks.
+	 * 
+	 * @param number
+	 * @param pri
+	 */
+	void setBackgroundThreads(int number, Priority pri);
+
 	/**
 	 * Start a new thread.
 	 * 
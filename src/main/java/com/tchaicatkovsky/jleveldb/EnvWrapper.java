@@ -64,6 +64,15 @@ public class EnvWrapper implements Env {
 		return target.newRandomAccessFile(fname, result);
 	}
 
+	@Override
+	public Status newRandomAccessFile(String fname, boolean allowMmap, Object0<RandomAccessFile0> result) {
+		// Route plain requests through newRandomAccessFile(fname, result) so that
+		// subclasses overriding only that method still see every file.
+		if (!allowMmap)
+			return newRandomAccessFile(fname, result);
+		return target.newRandomAccessFile(fname, allowMmap, result);
+	}
+
 	@Override
 	public Status newWritableFile(String fname, Object0<WritableFile> result) {
 		return target.newWritableFile(fname, result);
@@ -124,6 +133,16 @@ public class EnvWrapper implements Env {
 		target.schedule(r);
 	}
 
+	@Override
+	public void schedule(Runnable r, Priority pri) {
+		target.schedule(r, pri);
+	}
+
+	@Override
+	public void setBackgroundThreads(int number, Priority pri) {
+		target.setBackgroundThreads(number, pri);
+	}
+
 	@Override
 	public void startThread(Runnable runnable) {
 		target.startThread(runnable);
@@ -24,8 +24,10 @@
 
 package com.tchaicatkovsky.jleveldb;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import com.tchaicatkovsky.jleveldb.util.BlockedBloomFilterPolicy;
 import com.tchaicatkovsky.jleveldb.util.BloomFilterPolicy;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.Slice;
@@ -60,6 +62,38 @@ public abstract class FilterPolicy {
 	 */
 	public abstract boolean keyMayMatch(Slice key, Slice filter);
 
+	/**
+	 * Same as createFilter(keys, dst), but the filter also summarizes the key prefixes 
+	 * in prefixes (see Options.prefixExtractor), which prefixMayMatch() checks. The
+	 * default adds the prefixes as if they were keys.
+	 * 
+	 * @param keys
+	 * @param prefixes
+	 * @param dst
+	 */
+	public void createFilter(List<Slice> keys, List<Slice> prefixes, ByteBuf dst) {
+		if (prefixes.isEmpty()) {
+			createFilter(keys, dst);
+			return;
+		}
+		ArrayList<Slice> all = new ArrayList<>(keys.size() + prefixes.size());
+		all.addAll(keys);
+		all.addAll(prefixes);
+		createFilter(all, dst);
+	}
+
+	/**
+	 * Return true if prefix may have been in the prefixes passed to createFilter() when 
+	 * "filter" was built. The default treats it as a key.
+	 * 
+	 * @param prefix
+	 * @param filter
+	 * @return
+	 */
+	public boolean prefixMayMatch(Slice prefix, Slice filter) {
+		return keyMayMatch(prefix, filter);
+	}
+
 	/**
 	 * Return a new filter policy that uses a bloom filter with approximately the specified number of bits per key. A good value for bits_per_key is 10, which yields a filter with ~ 1% false positive
 	 * rate.</br>
@@ -79,5 +113,19 @@ public abstract class FilterPolicy {
 		return new BloomFilterPolicy(bitsPerKey);
 	}
 
+	/**
+	 * Return a new filter policy that uses a cache-line-blocked bloom filter with approximately the specified number of bits per key. All probes for a key fall into a single 64-byte block, so a
+	 * lookup touches one cache line. At 10 bits per key the false positive rate is slightly above that of newBloomFilterPolicy().</br>
+	 * </br>
+	 * 
+	 * The filters are not compatible with those of newBloomFilterPolicy(). Tables written with the other policy still open, their filters are just not consulted.
+	 * 
+	 * @param bitsPerKey
+	 * @return
+	 */
+	public static FilterPolicy newBlockedBloomFilterPolicy(int bitsPerKey) {
+		return new BlockedBloomFilterPolicy(bitsPerKey);
+	}
+
 	public abstract void delete();
 }
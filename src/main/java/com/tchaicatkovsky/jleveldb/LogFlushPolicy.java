@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb;
+
+/**
+ * When the log writer hands buffered log data to the file.
+ */
+public enum LogFlushPolicy {
+	/**
+	 * Flush after every physical record (fragment) of a log record.
+	 */
+	kFlushPerFragment,
+	
+	/**
+	 * Write each log record, i.e. each write group, with a single file write and flush it.
+	 */
+	kFlushPerRecord,
+	
+	/**
+	 * Only write out the buffer when it fills up, on sync writes and when the log is
+	 * closed. Non-sync writes acknowledged since the last flush are lost if the
+	 * process dies, not only if the machine does.
+	 */
+	kFlushOnSync
+}
@@ -24,9 +24,12 @@
 
 package com.tchaicatkovsky.jleveldb;
 
+import java.util.concurrent.Executor;
+
 import com.tchaicatkovsky.jleveldb.util.BytewiseComparatorImpl;
 import com.tchaicatkovsky.jleveldb.util.Cache;
 import com.tchaicatkovsky.jleveldb.util.Comparator0;
+import com.tchaicatkovsky.jleveldb.util.SecondaryCache;
 
 public class Options {
 
@@ -115,12 +118,25 @@ public class Options {
 	 * </br>
 	 *
 	 * If {@code non-null}, use the specified cache for blocks.</br>
-	 * If {@code null}, jleveldb will automatically create and use an 8MB internal cache.</br>
+	 * If {@code null}, jleveldb will automatically create and use an 8MB internal {@link Cache#newClockCache(int) CLOCK cache}.</br>
 	 * </br>
 	 * 
 	 * Default: {@code null}
 	 */
 	public Cache blockCache;
+	
+	/**
+	 * If {@code non-null}, blocks read from table files are also kept in this 
+	 * cache, in their stored (compressed) form, and a block that misses 
+	 * {@link #blockCache} is looked up there before it is read from the file. 
+	 * {@link SecondaryCache#newOffHeapCache(long)} keeps them outside of the heap, 
+	 * which allows a much larger cache than blockCache without adding to garbage 
+	 * collection pauses.</br>
+	 * </br>
+	 * 
+	 * Default: {@code null}
+	 */
+	public SecondaryCache secondaryBlockCache;
 
 	/**
 	 * Approximate size of user data packed per block.</br>
@@ -139,6 +155,37 @@ public class Options {
 	 * Default: 16
 	 */
 	public int blockRestartInterval;
+	
+	/**
+	 * If true, every data block gets a hash index that maps the lookup key of each
+	 * entry (the user key, see {@link Comparator0#lookupKeyLength}) to its restart 
+	 * interval. Point lookups use it to go straight to the interval holding the key 
+	 * instead of binary searching the restart array, and skip the block without a 
+	 * scan if the key is not in it. Range seeks still use the binary search.</br>
+	 * </br>
+	 * 
+	 * The index costs about 1/{@link #dataBlockHashTableUtilRatio} bytes per key.
+	 * Blocks with more than 253 restart points are written without it. It is only
+	 * correct for comparators under which equal keys have equal bytes.</br>
+	 * </br>
+	 * 
+	 * Tables written with this option can not be read by versions that do not know
+	 * the hash index.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean dataBlockHashIndex;
+	
+	/**
+	 * Number of keys per bucket of the data block hash index, see
+	 * {@link #dataBlockHashIndex}. Lower values mean fewer collisions, which fall
+	 * back to the binary search, for more space.</br>
+	 * </br>
+	 * 
+	 * Default: 0.75
+	 */
+	public double dataBlockHashTableUtilRatio;
 
 	/**
 	 * jleveldb will write up to this amount of bytes to a file before switching to a new one.</br>
@@ -187,6 +234,198 @@ public class Options {
 	 */
 	public FilterPolicy filterPolicy;
 
+	/**
+	 * If non-null, the prefixes of the user keys extracted by it are added to the table
+	 * filters along with the keys, so filterPolicy must be set as well. An iterator
+	 * created with ReadOptions.prefixSameAsStart then only returns the keys that share
+	 * the prefix of its seek target, and skips the data blocks and files whose filter
+	 * has no key with that prefix. Tables built with another extractor, or none, are
+	 * read as usual.</br>
+	 * </br>
+	 *
+	 * Default: null
+	 */
+	public SliceTransform prefixExtractor;
+
+	/**
+	 * If true, table files may be read through a memory mapping instead of positional
+	 * {@code FileChannel} reads.</br>
+	 * </br>
+	 * 
+	 * Positional reads never share any per-file state, so concurrent gets on the same table do not serialize.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean allowMmapReads;
+	
+	/**
+	 * If true, memtables keep their skiplist nodes as int records in a few large arrays
+	 * next to the entry bytes, instead of several heap objects per entry.</br>
+	 * </br>
+	 * 
+	 * This reduces GC pressure on write heavy workloads, since dropping a flushed memtable
+	 * releases a handful of arrays instead of millions of small objects.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean arenaMemTable;
+	
+	/**
+	 * Size of the blocks the memtable arena allocates entry memory from.</br>
+	 * </br>
+	 * 
+	 * Larger blocks, e.g. the 2MB huge page size, mean fewer and larger allocations per memtable.
+	 * The value is clipped to [1KB, writeBufferSize/2], since a memtable whose first block
+	 * already exceeds writeBufferSize would be full forever.</br>
+	 * </br>
+	 * 
+	 * Default: 4KB
+	 */
+	public int arenaBlockSize;
+	
+	/**
+	 * Maximum number of compactions that may run at the same time on the low priority
+	 * background pool of env. Memtable flushes run on the high priority pool and are
+	 * not counted.</br>
+	 * </br>
+	 * 
+	 * Concurrent compactions never share an input file, and at most one of them
+	 * compacts level-0 at any time.</br>
+	 * </br>
+	 * 
+	 * Default: 1
+	 */
+	public int maxBackgroundCompactions;
+	
+	/**
+	 * Maximum number of threads a single compaction is split across. The key range
+	 * of a compaction is partitioned at input file boundaries, and each part is merged
+	 * into its own output files by its own thread.</br>
+	 * </br>
+	 * 
+	 * Default: 1
+	 */
+	public int maxSubcompactions;
+	
+	/**
+	 * If true, compactions only run when requested through compactRange(), and 
+	 * writes are not slowed down or stopped by the number of level-0 files. 
+	 * Memtables are still flushed. Meant for bulk loads and for benchmarks that 
+	 * need many level-0 files.</br>
+	 * </br>
+	 * 
+	 * Default: false
+	 */
+	public boolean disableAutoCompactions;
+	
+	/**
+	 * If true, a write group leader hands the log over to the next group as soon as
+	 * its own group is logged, and applies its group to the memtable while the next
+	 * group is being logged. Groups still reach the memtable, and become visible to
+	 * readers, in log order.</br>
+	 * </br>
+	 * 
+	 * This improves throughput with many concurrent writers.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean enablePipelinedWrite;
+	
+	/**
+	 * When log records are handed to the log file. The log writer always collects
+	 * the physical records of a write in its own buffer and writes them with as few
+	 * file writes as possible.</br>
+	 * </br>
+	 * 
+	 * With {@link LogFlushPolicy#kFlushOnSync} non-sync writes only reach the file when the
+	 * buffer fills up, so they may be lost if the process crashes.</br>
+	 * </br>
+	 * 
+	 * Default: {@link LogFlushPolicy#kFlushPerRecord}
+	 */
+	public LogFlushPolicy logFlushPolicy;
+	
+	/**
+	 * If true, sstables split their index block, and their filter if a filterPolicy is
+	 * set, into partitions of about {@link #metadataBlockSize} bytes that are stored as
+	 * ordinary blocks. Only a small top-level index stays on the heap while a table is
+	 * open; partitions are read on demand through the block cache, so index and filter
+	 * memory follows the working set instead of the total data size.</br>
+	 * </br>
+	 * 
+	 * Tables written with this option can not be read by versions that do not know
+	 * the partitioned format.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean partitionIndexAndFilters;
+	
+	/**
+	 * Approximate size of an index partition when {@link #partitionIndexAndFilters}
+	 * is set. The matching filter partition covers the same data blocks.</br>
+	 * </br>
+	 * 
+	 * Default: 4K
+	 */
+	public int metadataBlockSize;
+	
+	/**
+	 * If true, index and filter blocks are kept in {@link #blockCache}, charged at
+	 * their size, instead of on the heap for as long as a table is open. They are
+	 * inserted with {@link Cache.Priority#High} so the cache evicts data blocks first,
+	 * and are read again if they get evicted anyway. The block cache capacity then
+	 * bounds all table memory.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean cacheIndexAndFilterBlocks;
+	
+	/**
+	 * If true and {@link #cacheIndexAndFilterBlocks} is set, the index and filter
+	 * blocks of level-0 tables stay referenced in the block cache while the table
+	 * is open, so they are never evicted. Level-0 files are checked on most reads,
+	 * and there are only a few of them.</br>
+	 * </br>
+	 * 
+	 * Default: {@code false}
+	 */
+	public boolean pinL0FilterAndIndexBlocksInCache;
+	
+	/**
+	 * Executor that runs the table lookups of {@link DB#getAsync} and
+	 * {@link DB#multiGetAsync}. If null, the DB starts its own pool of
+	 * {@link #asyncReadThreads} threads on the first asynchronous read and
+	 * stops it on close.</br>
+	 * </br>
+	 * 
+	 * Default: null
+	 */
+	public Executor readExecutor;
+	
+	/**
+	 * Size of the read pool created when {@link #readExecutor} is null, and the
+	 * number of parts multiGetAsync splits a large batch into.</br>
+	 * </br>
+	 * 
+	 * Default: 4
+	 */
+	public int asyncReadThreads;
+	
+	/**
+	 * Readahead size of the table iterators that read compaction inputs. A
+	 * compaction reads all of its input files sequentially, so it reads ahead in
+	 * large chunks from the start, see {@link ReadOptions#readaheadSize}.</br>
+	 * </br>
+	 * 
+	 * Default: 2MB
+	 */
+	public int compactionReadaheadSize;
+
 	public Options(Comparator0 comparator) {
 		this();
 		this.comparator = comparator;
@@ -203,13 +442,32 @@ public class Options {
 		writeBufferSize = 4 * 1024 * 1024;
 		maxOpenFiles = 1000;
 		blockCache = null;
+		secondaryBlockCache = null;
 		blockSize = 4 * 1024;
 		blockRestartInterval = 16;
+		dataBlockHashIndex = false;
+		dataBlockHashTableUtilRatio = 0.75;
 		maxFileSize = 2 * 1024 * 1024;
 		compression = CompressionType.kSnappyCompression;
 
 		reuseLogs = false;
 		filterPolicy = null;
+		prefixExtractor = null;
+		allowMmapReads = false;
+		arenaMemTable = false;
+		arenaBlockSize = 4 * 1024;
+		maxBackgroundCompactions = 1;
+		maxSubcompactions = 1;
+		disableAutoCompactions = false;
+		enablePipelinedWrite = false;
+		logFlushPolicy = LogFlushPolicy.kFlushPerRecord;
+		partitionIndexAndFilters = false;
+		metadataBlockSize = 4 * 1024;
+		cacheIndexAndFilterBlocks = false;
+		pinL0FilterAndIndexBlocksInCache = false;
+		readExecutor = null;
+		asyncReadThreads = 4;
+		compactionReadaheadSize = 2 * 1024 * 1024;
 	}
 
 	public Options cloneOptions() {
@@ -224,13 +482,32 @@ public class Options {
 		ret.writeBufferSize = writeBufferSize;
 		ret.maxOpenFiles = maxOpenFiles;
 		ret.blockCache = blockCache;
+		ret.secondaryBlockCache = secondaryBlockCache;
 		ret.blockSize = blockSize;
 		ret.blockRestartInterval = blockRestartInterval;
+		ret.dataBlockHashIndex = dataBlockHashIndex;
+		ret.dataBlockHashTableUtilRatio = dataBlockHashTableUtilRatio;
 		ret.maxFileSize = maxFileSize;
 		ret.compression = compression;
 
 		ret.reuseLogs = reuseLogs;
 		ret.filterPolicy = filterPolicy;
+		ret.prefixExtractor = prefixExtractor;
+		ret.allowMmapReads = allowMmapReads;
+		ret.arenaMemTable = arenaMemTable;
+		ret.arenaBlockSize = arenaBlockSize;
+		ret.maxBackgroundCompactions = maxBackgroundCompactions;
+		ret.maxSubcompactions = maxSubcompactions;
+		ret.disableAutoCompactions = disableAutoCompactions;
+		ret.enablePipelinedWrite = enablePipelinedWrite;
+		ret.logFlushPolicy = logFlushPolicy;
+		ret.partitionIndexAndFilters = partitionIndexAndFilters;
+		ret.metadataBlockSize = metadataBlockSize;
+		ret.cacheIndexAndFilterBlocks = cacheIndexAndFilterBlocks;
+		ret.pinL0FilterAndIndexBlocksInCache = pinL0FilterAndIndexBlocksInCache;
+		ret.readExecutor = readExecutor;
+		ret.asyncReadThreads = asyncReadThreads;
+		ret.compactionReadaheadSize = compactionReadaheadSize;
 
 		return ret;
 	}
@@ -24,6 +24,8 @@
 
 package com.tchaicatkovsky.jleveldb;
 
+import com.tchaicatkovsky.jleveldb.util.Slice;
+
 public class ReadOptions {
 	/**
 	 * If true, all data read from underlying storage will be verified against corresponding checksums. Default: false
@@ -41,10 +43,62 @@ public class ReadOptions {
 	 */
 	public Snapshot snapshot;
 
+	/**
+	 * Readahead of table iterators. If positive, every read of a data block that is
+	 * not buffered fetches at least this many bytes of the following blocks too. If 0,
+	 * readahead starts after a few sequential block reads of an iterator in one file,
+	 * growing from 8KB up to 256KB. A negative value disables readahead. Point lookups
+	 * never read ahead. Default: 0
+	 */
+	public int readaheadSize;
+
+	/**
+	 * If true, iterators run in scan mode for bulk reads such as full exports: blocks
+	 * found in the block cache are used, but blocks read from disk are not inserted
+	 * into it, and are decoded into a few buffers that each table iterator reuses
+	 * instead of allocating every block anew. The key and value of an iterator are
+	 * then only valid until it is moved. Point lookups are not affected. Default: false
+	 */
+	public boolean scanMode;
+
+	/**
+	 * If true and the DB has an Options.prefixExtractor, an iterator only returns the
+	 * keys whose prefix is that of the target of its last seek, it becomes invalid at
+	 * the first key with another prefix. Data blocks and files that hold no key with
+	 * the prefix, according to their filters, are skipped without being read. Only
+	 * seek and next may be used: seekToFirst, seekToLast and prev leave the iterator
+	 * invalid with a not supported status. A seek target out of the domain of the 
+	 * extractor is not bounded. Default: false
+	 */
+	public boolean prefixSameAsStart;
+
+	/**
+	 * If non-null, an iterator only returns user keys >= iterateLowerBound: seekToFirst
+	 * and seeks to smaller targets position it at the bound, and it becomes invalid when
+	 * moving backward past it. Files and data blocks that lie wholly before the bound
+	 * are not read. Default: null
+	 */
+	public Slice iterateLowerBound;
+
+	/**
+	 * If non-null, an iterator only returns user keys < iterateUpperBound: it becomes
+	 * invalid at the first key at or past the bound, without reading through the 
+	 * deleted keys that follow, and seekToLast positions it at the last key before the
+	 * bound. Files and data blocks that lie wholly past the bound are not read.</br>
+	 * The bounds are not copied, they must stay unchanged while an iterator created 
+	 * with them is live. Default: null
+	 */
+	public Slice iterateUpperBound;
+
 	public ReadOptions() {
 		verifyChecksums = false;
 		fillCache = true;
 		snapshot = null;
+		readaheadSize = 0;
+		scanMode = false;
+		prefixSameAsStart = false;
+		iterateLowerBound = null;
+		iterateUpperBound = null;
 	}
 
 	@Override
@@ -53,6 +107,11 @@ public class ReadOptions {
 		ro.verifyChecksums = verifyChecksums;
 		ro.fillCache = fillCache;
 		ro.snapshot = snapshot;
+		ro.readaheadSize = readaheadSize;
+		ro.scanMode = scanMode;
+		ro.prefixSameAsStart = prefixSameAsStart;
+		ro.iterateLowerBound = iterateLowerBound;
+		ro.iterateUpperBound = iterateUpperBound;
 		return ro;
 	}
 }
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb;
+
+import com.tchaicatkovsky.jleveldb.util.CappedPrefixTransform;
+import com.tchaicatkovsky.jleveldb.util.Comparator0;
+import com.tchaicatkovsky.jleveldb.util.FixedPrefixTransform;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+
+/**
+ * Extracts the prefix of a user key, see Options.prefixExtractor.</br>
+ * </br>
+ * 
+ * The user keys that share a prefix must be contiguous in the order of the comparator,
+ * which holds for the bytewise comparator and the transforms returned below.
+ */
+public abstract class SliceTransform {
+	/**
+	 * Return the name of this transform. It is recorded in the tables built with it, 
+	 * their prefix filters are only consulted while the name stays the same, so the 
+	 * name must change if the transform does.
+	 * 
+	 * @return
+	 */
+	public abstract String name();
+
+	/**
+	 * Return the prefix of key. The result may refer to the bytes of key.</br>
+	 * REQUIRES: inDomain(key)
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public abstract Slice transform(Slice key);
+
+	/**
+	 * Return true if key has a prefix. Keys out of the domain are not added to the
+	 * prefix filters and prefix-bounded iteration does not apply to them.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public abstract boolean inDomain(Slice key);
+
+	/**
+	 * Return the prefix of the lookup key of key (see Comparator0.lookupKeyLength), 
+	 * which for an internal key is its user key, or null if it is out of the domain.
+	 * 
+	 * @param key
+	 * @param comparator
+	 * @return
+	 */
+	public final Slice lookupKeyPrefix(Slice key, Comparator0 comparator) {
+		Slice k = SliceFactory.newUnpooled(key.data(), key.offset(), 
+				comparator.lookupKeyLength(key.data(), key.offset(), key.size()));
+		return inDomain(k) ? transform(k) : null;
+	}
+
+	/**
+	 * Return a transform whose prefix is the first prefixLength bytes of a key. Shorter
+	 * keys are out of its domain.
+	 * 
+	 * @param prefixLength
+	 * @return
+	 */
+	public static SliceTransform newFixedPrefixTransform(int prefixLength) {
+		return new FixedPrefixTransform(prefixLength);
+	}
+
+	/**
+	 * Return a transform whose prefix is the first capLength bytes of a key, or the 
+	 * whole key if it is shorter.
+	 * 
+	 * @param capLength
+	 * @return
+	 */
+	public static SliceTransform newCappedPrefixTransform(int capLength) {
+		return new CappedPrefixTransform(capLength);
+	}
+}
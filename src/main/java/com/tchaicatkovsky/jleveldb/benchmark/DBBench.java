@@ -38,6 +38,7 @@ import com.tchaicatkovsky.jleveldb.Iterator0;
 import com.tchaicatkovsky.jleveldb.LevelDB;
 import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.ReadOptions;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.WritableFile;
 import com.tchaicatkovsky.jleveldb.WriteBatch;
@@ -52,6 +53,7 @@ import com.tchaicatkovsky.jleveldb.util.Histogram;
 import com.tchaicatkovsky.jleveldb.util.Mutex;
 import com.tchaicatkovsky.jleveldb.util.Object0;
 import com.tchaicatkovsky.jleveldb.util.Random0;
+import com.tchaicatkovsky.jleveldb.util.SecondaryCache;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 import com.tchaicatkovsky.jleveldb.util.Snappy;
@@ -98,16 +100,41 @@ public class DBBench {
 	// (initialized to default value by "main")
 	static int FLAGS_block_size = 0;
 
+	// Add a hash index to data blocks for point lookups.
+	static boolean FLAGS_data_block_hash_index = false;
+
+	// If positive, the first prefix_size bytes of a key are its prefix: they are added
+	// to the filters, and seekrandom iterates within the prefix of its target.
+	static int FLAGS_prefix_size = 0;
+
+	// If true, compactions never run, so every memtable flush of a random load 
+	// adds a level-0 file, e.g. to measure readseq/readreverse over a deep level 0.
+	static boolean FLAGS_disable_auto_compactions = false;
+
 	// Number of bytes to use as a cache of uncompressed data.
 	// Negative means use default settings.
 	static int FLAGS_cache_size = -1;
 
+	// Use the LRU block cache instead of the CLOCK one.
+	static boolean FLAGS_lru_cache = false;
+
+	// Number of bytes to use as an off-heap cache of compressed blocks.
+	// Negative means no such cache.
+	static long FLAGS_secondary_cache_size = -1;
+
+	// If set, the secondary cache is kept in files in this directory instead of
+	// off-heap memory.
+	static String FLAGS_secondary_cache_dir = null;
+
 	// Maximum number of files to keep open at the same time (use default if == 0)
 	static int FLAGS_open_files = 0;
 
 	// Bloom filter bits per key.
 	// Negative means use default settings.
 	static int FLAGS_bloom_bits = -1;
+	
+	// Use the cache-line-blocked bloom filter instead of the standard one
+	static boolean FLAGS_blocked_bloom = false;
 
 	// If true, do not destroy the existing database. If you set this
 	// flag and also specify a benchmark that wants a fresh database, that
@@ -117,6 +144,10 @@ public class DBBench {
 	// If true, reuse existing log/MANIFEST files when re-opening a database.
 	static boolean FLAGS_reuse_logs = false;
 
+	// If true, overlap the log write of a write group with the memtable
+	// insert of the previous one.
+	static boolean FLAGS_enable_pipelined_write = false;
+
 	// Use the db with the following name.
 	static String FLAGS_db = null;
 
@@ -389,6 +420,7 @@ public class DBBench {
 
 	static class Benchmark {
 		Cache cache;
+		SecondaryCache secondaryCache;
 		FilterPolicy filter_policy;
 		DB db;
 		int num;
@@ -426,9 +458,25 @@ public class DBBench {
 		}
 
 		public Benchmark() {
-			cache = (FLAGS_cache_size >= 0 ? Cache.newLRUCache(FLAGS_cache_size) : null);
+			cache = (FLAGS_cache_size >= 0 ? (FLAGS_lru_cache ? Cache.newLRUCache(FLAGS_cache_size) : Cache.newClockCache(FLAGS_cache_size)) : null);
+			secondaryCache = null;
+			if (FLAGS_secondary_cache_size >= 0) {
+				if (FLAGS_secondary_cache_dir != null) {
+					Object0<SecondaryCache> secondaryCache0 = new Object0<>();
+					Status s = SecondaryCache.newPersistentCache(LevelDB.defaultEnv(), FLAGS_secondary_cache_dir, 
+							FLAGS_secondary_cache_size, secondaryCache0);
+					if (!s.ok()) {
+						System.err.printf("open secondary cache error: %s\n", s);
+						System.exit(1);
+					}
+					secondaryCache = secondaryCache0.getValue();
+				} else {
+					secondaryCache = SecondaryCache.newOffHeapCache(FLAGS_secondary_cache_size);
+				}
+			}
 
-			filter_policy = (FLAGS_bloom_bits >= 0 ? BloomFilterPolicy.newBloomFilterPolicy(FLAGS_bloom_bits) : null);
+			filter_policy = (FLAGS_bloom_bits >= 0 ? (FLAGS_blocked_bloom ? FilterPolicy.newBlockedBloomFilterPolicy(FLAGS_bloom_bits) : 
+				BloomFilterPolicy.newBloomFilterPolicy(FLAGS_bloom_bits)) : null);
 			db = null;
 			num = FLAGS_num;
 			value_size = FLAGS_value_size;
@@ -461,6 +509,10 @@ public class DBBench {
 				cache.delete();
 				cache = null;
 			}
+			if (secondaryCache != null) {
+				secondaryCache.delete();
+				secondaryCache = null;
+			}
 			if (filter_policy != null) {
 				filter_policy.delete();
 				filter_policy = null;
@@ -578,6 +630,15 @@ public class DBBench {
 					};
 				}
 					break;
+				case "multireadrandom": {
+					entries_per_batch = 100;
+					method = new BenchmarkMethod() {
+						public void run(ThreadState t) {
+							multiReadRandom(t);
+						}
+					};
+				}
+					break;
 				case "readmissing": {
 					method = new BenchmarkMethod() {
 						public void run(ThreadState t) {
@@ -797,12 +858,45 @@ public class DBBench {
 		}
 
 		void snappyCompress(ThreadState thread) {
-			// TODO
+			RandomGenerator gen = new RandomGenerator();
+			Slice input = gen.generate(new Options().blockSize);
+			long bytes = 0;
+			long produced = 0;
+			boolean ok = true;
+			ByteBuf compressed = ByteBufFactory.newUnpooled();
+			while (ok && bytes < 1024 * 1048576L) { // Compress 1G
+				ok = Snappy.compress(input.data(), input.offset(), input.size(), compressed);
+				produced += compressed.size();
+				bytes += input.size();
+				thread.stats.finishedSingleOp();
+			}
 
+			if (!ok) {
+				thread.stats.addMessage(SliceFactory.newUnpooled("(snappy failure)"));
+			} else {
+				thread.stats.addMessage(SliceFactory.newUnpooled(String.format("(output: %.1f%%)", (produced * 100.0) / bytes)));
+				thread.stats.addBytes(bytes);
+			}
 		}
 
 		void snappyUncompress(ThreadState thread) {
-			// TODO
+			RandomGenerator gen = new RandomGenerator();
+			Slice input = gen.generate(new Options().blockSize);
+			ByteBuf compressed = ByteBufFactory.newUnpooled();
+			boolean ok = Snappy.compress(input.data(), input.offset(), input.size(), compressed);
+			long bytes = 0;
+			byte[] uncompressed = new byte[input.size()];
+			while (ok && bytes < 1024 * 1048576L) { // Uncompress 1G
+				ok = Snappy.uncompress(compressed.data(), compressed.offset(), compressed.size(), uncompressed);
+				bytes += input.size();
+				thread.stats.finishedSingleOp();
+			}
+
+			if (!ok) {
+				thread.stats.addMessage(SliceFactory.newUnpooled("(snappy failure)"));
+			} else {
+				thread.stats.addBytes(bytes);
+			}
 		}
 
 		void open() {
@@ -811,12 +905,18 @@ public class DBBench {
 			options.env = g_env;
 			options.createIfMissing = !FLAGS_use_existing_db;
 			options.blockCache = cache;
+			options.secondaryBlockCache = secondaryCache;
 			options.writeBufferSize = FLAGS_write_buffer_size;
 			options.maxFileSize = FLAGS_max_file_size;
 			options.blockSize = FLAGS_block_size;
+			options.dataBlockHashIndex = FLAGS_data_block_hash_index;
+			if (FLAGS_prefix_size > 0)
+				options.prefixExtractor = SliceTransform.newFixedPrefixTransform(FLAGS_prefix_size);
 			options.maxOpenFiles = FLAGS_open_files;
+			options.disableAutoCompactions = FLAGS_disable_auto_compactions;
 			options.filterPolicy = filter_policy;
 			options.reuseLogs = FLAGS_reuse_logs;
+			options.enablePipelinedWrite = FLAGS_enable_pipelined_write;
 			Object0<DB> db0 = new Object0<>();
 
 			Status s;
@@ -829,6 +929,7 @@ public class DBBench {
 				System.err.printf("open error: %s\n", s);
 				System.exit(1);
 			}
+			db = db0.getValue();
 		}
 
 		void openBench(ThreadState thread) {
@@ -930,6 +1031,35 @@ public class DBBench {
 			thread.stats.addMessage(SliceFactory.newUnpooled(msg));
 		}
 
+		void multiReadRandom(ThreadState thread) {
+			ReadOptions options = new ReadOptions();
+			ArrayList<Slice> keys = new ArrayList<>();
+			ArrayList<ByteBuf> values = new ArrayList<>();
+			ArrayList<Status> statuses = new ArrayList<>();
+			int found = 0;
+			for (int i = 0; i < reads; i += entries_per_batch) {
+				keys.clear();
+				for (int j = 0; j < entries_per_batch; j++) {
+					int k = (int) (thread.rand.next() % FLAGS_num);
+					keys.add(SliceFactory.newUnpooled(String.format("%016d", k)));
+				}
+				try {
+					db.multiGet(options, keys, values, statuses);
+				} catch (Exception e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				for (int j = 0; j < entries_per_batch; j++) {
+					if (statuses.get(j).ok())
+						found++;
+					thread.stats.finishedSingleOp();
+				}
+			}
+
+			String msg = String.format("(%d of %d found)", found, num);
+			thread.stats.addMessage(SliceFactory.newUnpooled(msg));
+		}
+
 		void readMissing(ThreadState thread) {
 			ReadOptions options = new ReadOptions();
 			ByteBuf value = ByteBufFactory.newUnpooled();
@@ -965,6 +1095,7 @@ public class DBBench {
 
 		void seekRandom(ThreadState thread) {
 			ReadOptions options = new ReadOptions();
+			options.prefixSameAsStart = FLAGS_prefix_size > 0;
 			int found = 0;
 			for (int i = 0; i < reads; i++) {
 				Iterator0 iter = db.newIterator(options);
@@ -1103,6 +1234,7 @@ public class DBBench {
 	// readseq -- read N times sequentially
 	// readreverse -- read N times in reverse order
 	// readrandom -- read N times in random order
+	// multireadrandom -- read N times in random order, in batches of 100 keys
 	// readmissing -- read N missing keys in random order
 	// readhot -- read N times in random order from 1% section of DB
 	// seekrandom -- N random seeks
@@ -1136,6 +1268,7 @@ public class DBBench {
 													"readseq -- read N times sequentially\n"+
 													"readreverse -- read N times in reverse order\n"+
 													"readrandom -- read N times in random order\n"+
+													"multireadrandom -- read N times in random order, in batches of 100 keys\n"+
 													"readmissing -- read N missing keys in random order\n"+
 													"readhot -- read N times in random order from 1% section of DB\n"+
 													"seekrandom -- N random seeks\n"+
@@ -1152,6 +1285,7 @@ public class DBBench {
 		options.addOption(null, "histogram", true, "boolean value (true/false)");
 		options.addOption(null, "use_existing_db", true, "boolean value (true/false)");
 		options.addOption(null, "reuse_logs", true, "boolean value (true/false)");
+		options.addOption(null, "enable_pipelined_write", true, "boolean value (true/false)");
 		options.addOption("N", "num", true, "");
 		options.addOption(null, "reads", true, "");
 		options.addOption(null, "threads", true, "");
@@ -1159,8 +1293,15 @@ public class DBBench {
 		options.addOption(null, "write_buffer_size", true, "");
 		options.addOption(null, "max_file_size", true, "");
 		options.addOption(null, "block_size", true, "");
+		options.addOption(null, "data_block_hash_index", true, "boolean value (true/false)");
+		options.addOption(null, "prefix_size", true, "int value");
+		options.addOption(null, "disable_auto_compactions", true, "boolean value (true/false)");
 		options.addOption(null, "cache_size", true, "");
+		options.addOption(null, "lru_cache", true, "boolean value (true/false)");
+		options.addOption(null, "secondary_cache_size", true, "");
+		options.addOption(null, "secondary_cache_dir", true, "");
 		options.addOption(null, "bloom_bits", true, "");
+		options.addOption(null, "blocked_bloom", true, "boolean value (true/false)");
 		options.addOption(null, "open_files", true, "");
 		options.addOption(null, "db", true, "");
 		options.addOption("h", "help", false, "Print usage message");
@@ -1192,6 +1333,9 @@ public class DBBench {
 		if (commandLine.hasOption("reuse_logs")) {
 			FLAGS_reuse_logs = Boolean.parseBoolean(commandLine.getOptionValue("reuse_logs"));
 		}
+		if (commandLine.hasOption("enable_pipelined_write")) {
+			FLAGS_enable_pipelined_write = Boolean.parseBoolean(commandLine.getOptionValue("enable_pipelined_write"));
+		}
 		if (commandLine.hasOption("num")) {
 			FLAGS_num = Integer.parseInt(commandLine.getOptionValue("num"));
 		}
@@ -1213,12 +1357,33 @@ public class DBBench {
 		if (commandLine.hasOption("block_size")) {
 			FLAGS_block_size = Integer.parseInt(commandLine.getOptionValue("block_size"));
 		}
+		if (commandLine.hasOption("data_block_hash_index")) {
+			FLAGS_data_block_hash_index = Boolean.parseBoolean(commandLine.getOptionValue("data_block_hash_index"));
+		}
+		if (commandLine.hasOption("prefix_size")) {
+			FLAGS_prefix_size = Integer.parseInt(commandLine.getOptionValue("prefix_size"));
+		}
+		if (commandLine.hasOption("disable_auto_compactions")) {
+			FLAGS_disable_auto_compactions = Boolean.parseBoolean(commandLine.getOptionValue("disable_auto_compactions"));
+		}
 		if (commandLine.hasOption("cache_size")) {
 			FLAGS_cache_size = Integer.parseInt(commandLine.getOptionValue("cache_size"));
 		}
+		if (commandLine.hasOption("lru_cache")) {
+			FLAGS_lru_cache = Boolean.parseBoolean(commandLine.getOptionValue("lru_cache"));
+		}
+		if (commandLine.hasOption("secondary_cache_size")) {
+			FLAGS_secondary_cache_size = Long.parseLong(commandLine.getOptionValue("secondary_cache_size"));
+		}
+		if (commandLine.hasOption("secondary_cache_dir")) {
+			FLAGS_secondary_cache_dir = commandLine.getOptionValue("secondary_cache_dir");
+		}
 		if (commandLine.hasOption("bloom_bits")) {
 			FLAGS_bloom_bits = Integer.parseInt(commandLine.getOptionValue("bloom_bits"));
 		}
+		if (commandLine.hasOption("blocked_bloom")) {
+			FLAGS_blocked_bloom = Boolean.parseBoolean(commandLine.getOptionValue("blocked_bloom"));
+		}
 		if (commandLine.hasOption("open_files")) {
 			FLAGS_open_files = Integer.parseInt(commandLine.getOptionValue("open_files"));
 		}
@@ -1237,5 +1402,8 @@ public class DBBench {
 
 		Benchmark benchmark = new Benchmark();
 		benchmark.run();
+		benchmark.delete();
+		// The env background threads never exit on their own
+		System.exit(0);
 	}
 }
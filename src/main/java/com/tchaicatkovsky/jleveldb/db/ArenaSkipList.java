@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.db;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.tchaicatkovsky.jleveldb.util.Coding;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+import com.tchaicatkovsky.jleveldb.util.Utils;
+
+/**
+ * A skiplist over memtable entries that does not allocate any object per entry.</br>
+ * </br>
+ * 
+ * Entries are encoded into the blocks of a {@link MemTableArena}. Nodes are
+ * records of ints inside a few large {@code AtomicIntegerArray} chunks, and a
+ * node is referred to by its position in the chunks:
+ * <pre>
+ * {height, arena block index, internal key offset, internal key size, next[0], ..., next[height-1]}
+ * </pre>
+ * The head node is stored at position 0, so a link of 0 means null.
+ * Dropping the list releases the chunks and arena blocks instead of millions
+ * of small objects.</br>
+ * </br>
+ * 
+ * Thread safety: like {@link SkipListMap}, writes require external synchronization
+ * and reads may run concurrently with one writer. A node is fully written before a
+ * volatile store links it into level 0..height-1 of its predecessors.
+ */
+public class ArenaSkipList {
+	static final int kMaxHeight = 12;
+	static final int kBranching = 4;
+	
+	static final int kChunkBits = 12;
+	static final int kChunkSize = 1 << kChunkBits;
+	static final int kChunkMask = kChunkSize - 1;
+	
+	static final int kHeight = 0;
+	static final int kBlock = 1;
+	static final int kKeyOffset = 2;
+	static final int kKeySize = 3;
+	static final int kNext = 4;
+	
+	static final int kHead = 0;
+	
+	final Comparator<Slice> comparator;
+	final MemTableArena arena;
+	final Random rnd = new Random(Utils.randomSeed());
+	
+	// Node chunks, republished through the volatile field when a chunk is added
+	volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[4];
+	int numChunks = 0;
+	int chunkUsed = 0;
+	
+	volatile int maxHeight = 1;
+	volatile int size = 0;
+	
+	// Scratch state of insert(), reused since writes are externally synchronized
+	final int[] prev = new int[kMaxHeight];
+	final Slice insertKey = SliceFactory.newUnpooled();
+	final Slice insertScratch = SliceFactory.newUnpooled();
+	
+	public ArenaSkipList(Comparator<Slice> comparator, MemTableArena arena) {
+		this.comparator = comparator;
+		this.arena = arena;
+		int head = allocateNode(kMaxHeight);
+		assert(head == kHead);
+	}
+	
+	public void delete() {
+		chunks = null;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Bytes used by the node chunks.
+	 * @return
+	 */
+	public long memoryUsage() {
+		return (long) numChunks * kChunkSize * 4;
+	}
+	
+	int allocateNode(int height) {
+		int n = kNext + height;
+		if (numChunks == 0 || chunkUsed + n > kChunkSize) {
+			AtomicIntegerArray[] c = chunks;
+			if (numChunks == c.length)
+				c = Arrays.copyOf(c, c.length * 2);
+			c[numChunks++] = new AtomicIntegerArray(kChunkSize);
+			chunks = c;
+			chunkUsed = 0;
+		}
+		int node = ((numChunks - 1) << kChunkBits) | chunkUsed;
+		chunkUsed += n;
+		chunks[numChunks - 1].lazySet(chunkUsed - n + kHeight, height);
+		return node;
+	}
+	
+	final AtomicIntegerArray chunk(int node) {
+		return chunks[node >>> kChunkBits];
+	}
+	
+	final int next(int node, int level) {
+		return chunk(node).get((node & kChunkMask) + kNext + level);
+	}
+	
+	final void setNext(int node, int level, int x) {
+		chunk(node).set((node & kChunkMask) + kNext + level, x);
+	}
+	
+	final void noBarrierSetNext(int node, int level, int x) {
+		chunk(node).lazySet((node & kChunkMask) + kNext + level, x);
+	}
+	
+	/**
+	 * Point key at the internal key of node.
+	 */
+	final void nodeKey(int node, Slice key) {
+		AtomicIntegerArray c = chunk(node);
+		int base = node & kChunkMask;
+		key.init(arena.block(c.get(base + kBlock)), c.get(base + kKeyOffset), c.get(base + kKeySize));
+	}
+	
+	/**
+	 * Point value at the value of node, stored as a varint32 length prefixed
+	 * string right after the internal key.
+	 */
+	final void nodeValue(int node, Slice value) {
+		AtomicIntegerArray c = chunk(node);
+		int base = node & kChunkMask;
+		byte[] data = arena.block(c.get(base + kBlock));
+		value.init(data, c.get(base + kKeyOffset) + c.get(base + kKeySize), 5);
+		int len = Coding.popVarNat32(value);  // +5: we assume the entry is not corrupted
+		value.init(data, value.offset(), len);
+	}
+	
+	final int randomHeight() {
+		int height = 1;
+		while (height < kMaxHeight && (rnd.nextInt() % kBranching == 0))
+			height++;
+		return height;
+	}
+	
+	/**
+	 * Return the first node at or after key, or 0 if there is none.</br>
+	 * If prev is not null, fill prev[level] with the last node before key at every level.
+	 */
+	int findGreaterOrEqual(Slice key, int[] prev, Slice scratch) {
+		int x = kHead;
+		int level = maxHeight - 1;
+		while (true) {
+			int next = next(x, level);
+			boolean keyIsAfterNode = false;
+			if (next != 0) {
+				nodeKey(next, scratch);
+				keyIsAfterNode = comparator.compare(scratch, key) < 0;
+			}
+			if (keyIsAfterNode) {
+				// Keep searching in this list
+				x = next;
+			} else {
+				if (prev != null) 
+					prev[level] = x;
+				if (level == 0)
+					return next;
+				level--;
+			}
+		}
+	}
+	
+	/**
+	 * Return the last node before key, or kHead if there is none.
+	 */
+	int findLessThan(Slice key, Slice scratch) {
+		int x = kHead;
+		int level = maxHeight - 1;
+		while (true) {
+			int next = next(x, level);
+			boolean less = false;
+			if (next != 0) {
+				nodeKey(next, scratch);
+				less = comparator.compare(scratch, key) < 0;
+			}
+			if (less) {
+				x = next;
+			} else {
+				if (level == 0)
+					return x;
+				level--;
+			}
+		}
+	}
+	
+	/**
+	 * Return the last node in the list, or kHead if the list is empty.
+	 */
+	int findLast() {
+		int x = kHead;
+		int level = maxHeight - 1;
+		while (true) {
+			int next = next(x, level);
+			if (next != 0) {
+				x = next;
+			} else {
+				if (level == 0)
+					return x;
+				level--;
+			}
+		}
+	}
+	
+	/**
+	 * Insert the entry whose internal key lives at arena block blockIndex,
+	 * [keyOffset, keyOffset+keySize).</br>
+	 * REQUIRES: nothing that compares equal to the key is currently in the list.
+	 */
+	public void insert(int blockIndex, int keyOffset, int keySize) {
+		insertKey.init(arena.block(blockIndex), keyOffset, keySize);
+		findGreaterOrEqual(insertKey, prev, insertScratch);
+		
+		int height = randomHeight();
+		if (height > maxHeight) {
+			for (int i = maxHeight; i < height; i++)
+				prev[i] = kHead;
+			// It is ok to publish maxHeight before the node is linked in. A
+			// concurrent reader that sees the new value finds null links from
+			// head at the new levels and immediately drops to the next level.
+			maxHeight = height;
+		}
+		
+		int x = allocateNode(height);
+		AtomicIntegerArray c = chunk(x);
+		int base = x & kChunkMask;
+		c.lazySet(base + kBlock, blockIndex);
+		c.lazySet(base + kKeyOffset, keyOffset);
+		c.lazySet(base + kKeySize, keySize);
+		for (int i = 0; i < height; i++) {
+			// noBarrierSetNext suffices since we will add a barrier when
+			// we publish a pointer to x in prev[i].
+			noBarrierSetNext(x, i, next(prev[i], i));
+			setNext(prev[i], i, x);
+		}
+		size++;
+	}
+	
+	/**
+	 * Iteration over the contents of the list. The slices returned by key() and
+	 * value() point into the arena and stay valid while the list is live.
+	 */
+	public class Iterator {
+		int node = 0;
+		final Slice scratch = SliceFactory.newUnpooled();
+		
+		public boolean valid() {
+			return node != 0;
+		}
+		
+		public Slice key() {
+			assert(valid());
+			Slice key = SliceFactory.newUnpooled();
+			nodeKey(node, key);
+			return key;
+		}
+		
+		public Slice value() {
+			assert(valid());
+			Slice value = SliceFactory.newUnpooled();
+			nodeValue(node, value);
+			return value;
+		}
+		
+		public void next() {
+			assert(valid());
+			node = ArenaSkipList.this.next(node, 0);
+		}
+		
+		public void prev() {
+			// Instead of using explicit "prev" links, we just search for the
+			// last node that falls before key.
+			assert(valid());
+			Slice key = SliceFactory.newUnpooled();
+			nodeKey(node, key);
+			node = findLessThan(key, scratch);
+		}
+		
+		public void seek(Slice target) {
+			node = findGreaterOrEqual(target, null, scratch);
+		}
+		
+		public void seekToFirst() {
+			node = ArenaSkipList.this.next(kHead, 0);
+		}
+		
+		public void seekToLast() {
+			node = findLast();
+		}
+	}
+	
+	public Iterator iterator() {
+		return new Iterator();
+	}
+}
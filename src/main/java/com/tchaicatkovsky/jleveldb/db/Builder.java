@@ -104,7 +104,8 @@ public class Builder {
 			
 			if (s.ok()) {
 				// Verify that the table is usable
-				Iterator0 it = tableCache.newIterator(new ReadOptions(), meta.number, meta.fileSize);
+				// New tables start out in level 0
+				Iterator0 it = tableCache.newIterator(new ReadOptions(), meta.number, meta.fileSize, 0);
 				s = it.status();
 				it.delete();
 			}
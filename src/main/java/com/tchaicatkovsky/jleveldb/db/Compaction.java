@@ -100,11 +100,33 @@ public class Compaction {
 		}
 	}
 	
+	Compaction(Compaction c) {
+		level = c.level;
+		maxOutputFileSize = c.maxOutputFileSize;
+		inputVersion = c.inputVersion;
+		edit = c.edit;
+		inputs = c.inputs;
+		grandparents = c.grandparents;
+		grandparentIndex = 0;
+		seenKey = false;
+		overlappedBytes = 0;
+	}
+	
 	public void delete() {
 		if (inputVersion != null)
 			inputVersion.unref();
 	}
 	
+	/**
+	 * Return a view of this compaction with its own state for shouldStopBefore()
+	 * and isBaseLevelForKey(), so that subcompactions can use it concurrently.</br>
+	 * The view does not hold a reference to the input version, it must not 
+	 * outlive this compaction and must not be deleted.
+	 */
+	public Compaction subcompaction() {
+		return new Compaction(this);
+	}
+	
 	/**
 	 *  Return the level that is being compacted.  Inputs from "level"
 	 *  and "level+1" will be merged to produce a set of "level+1" files.
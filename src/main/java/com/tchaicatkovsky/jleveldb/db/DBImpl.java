@@ -26,12 +26,24 @@ package com.tchaicatkovsky.jleveldb.db;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 import com.tchaicatkovsky.jleveldb.DB;
 import com.tchaicatkovsky.jleveldb.Env;
@@ -80,6 +92,15 @@ public class DBImpl implements DB {
 	Options options;
 	boolean ownsInfoLog;
 	boolean ownsCache;
+	
+	/**
+	 * Runs the table lookups of asynchronous reads, see {@link #readExecutor()}.
+	 * ownedReadPool is set if the DB started the pool itself. readsClosed is set
+	 * by close(), asynchronous reads are rejected from then on.
+	 */
+	volatile Executor readExecutor;
+	ExecutorService ownedReadPool;
+	boolean readsClosed;
 	String dbname;
 
 	/**
@@ -103,7 +124,11 @@ public class DBImpl implements DB {
 	 * Memtable being compacted
 	 */
 	MemTable immtable = null;
-	AtomicReference<Object> hasImm = new AtomicReference<Object>(); // So bg thread can detect non-null imm
+	/**
+	 * memtable, immtable and versions.current() as seen by lock-free reads.
+	 * Replaced under mutex whenever any of them changes.
+	 */
+	AtomicReference<SuperVersion> superVersion = new AtomicReference<SuperVersion>();
 	WritableFile logFile = null;
 	long logFileNumber = 0;
 	LogWriter logWriter = null;
@@ -112,6 +137,27 @@ public class DBImpl implements DB {
 	// Queue of writers.
 	Deque<Writer> writers = new LinkedList<>();
 	WriteBatch tmpBatch = new WriteBatch();
+	
+	/**
+	 * A batch group that has been written to the log and waits for its turn to be
+	 * applied to the memtable. Only used by pipelined writes.
+	 */
+	static class MemTableGroup {
+		final WriteBatch updates;
+		final long lastSequence;
+		
+		MemTableGroup(WriteBatch updates, long lastSequence) {
+			this.updates = updates;
+			this.lastSequence = lastSequence;
+		}
+	}
+	
+	/**
+	 * Logged groups in sequence order, the head is being applied to the memtable.
+	 * The memtable is not switched while this is non-empty.
+	 */
+	Deque<MemTableGroup> memtableGroups = new LinkedList<>();
+	CondVar memtableCv;
 
 	SnapshotList snapshots = new SnapshotList();
 
@@ -122,9 +168,20 @@ public class DBImpl implements DB {
 	TreeSet<Long> pendingOutputs = new TreeSet<>();
 
 	/**
-	 * Has a background compaction been scheduled or is running?
+	 * Number of background compactions that have been scheduled or are running
+	 */
+	int bgCompactionScheduled;
+	
+	/**
+	 * Has a memtable flush been scheduled or is running?
+	 */
+	boolean bgFlushScheduled;
+	
+	/**
+	 * Set when a compaction was needed but every candidate conflicted with a running
+	 * compaction. No more compactions are scheduled until one of them finishes.
 	 */
-	boolean bgCompactionScheduled;
+	boolean compactionPickBlocked;
 
 	class ManualCompaction {
 		public int level;
@@ -218,6 +275,12 @@ public class DBImpl implements DB {
 		TableBuilder builder;
 
 		long totalBytes;
+		
+		/**
+		 * User key range [start, end) of a subcompaction, null means unbounded
+		 */
+		Slice start;
+		Slice end;
 
 		public Output currentOutput() {
 			return outputs.get(outputs.size() - 1);
@@ -254,6 +317,9 @@ public class DBImpl implements DB {
 		result.writeBufferSize = clipToRange(result.writeBufferSize, 64 << 10, 1 << 30);
 		result.maxFileSize = clipToRange(result.maxFileSize, 1 << 20, 1 << 30);
 		result.blockSize = clipToRange(result.blockSize, 1 << 10, 4 << 20);
+		result.arenaBlockSize = clipToRange(result.arenaBlockSize, 1 << 10, result.writeBufferSize / 2);
+		result.maxBackgroundCompactions = clipToRange(result.maxBackgroundCompactions, 1, 64);
+		result.maxSubcompactions = clipToRange(result.maxSubcompactions, 1, 64);
 
 		Object0<Logger0> log0 = new Object0<>();
 		if (result.infoLog == null) {
@@ -269,7 +335,7 @@ public class DBImpl implements DB {
 			result.infoLog = log0.getValue();
 
 			if (result.blockCache == null) {
-				result.blockCache = Cache.newLRUCache(8 << 20);
+				result.blockCache = Cache.newClockCache(8 << 20);
 			}
 		}
 
@@ -288,18 +354,19 @@ public class DBImpl implements DB {
 		shuttingDown = null;
 		mutex = new Mutex();
 		bgCv = mutex.newCondVar();
+		memtableCv = mutex.newCondVar();
 		memtable = null;
 		immtable = null;
 		logFile = null;
 		logFileNumber = 0;
 		logWriter = null;
 		seed = 0;
-		bgCompactionScheduled = false;
+		bgCompactionScheduled = 0;
+		bgFlushScheduled = false;
+		compactionPickBlocked = false;
 		manualCompaction = null;
 		shuttingDown = new AtomicReference<Object>();
 
-		hasImm.set(null);
-
 		/**
 		 * Reserve ten files or so for other uses and give the rest to TableCache.
 		 */
@@ -311,6 +378,8 @@ public class DBImpl implements DB {
 
 		for (int i = 0; i < DBFormat.kNumLevels; i++)
 			stats[i] = new CompactionStats();
+		
+		env.setBackgroundThreads(options.maxBackgroundCompactions, Env.Priority.Low);
 	}
 
 	@Override
@@ -334,8 +403,8 @@ public class DBImpl implements DB {
 					edit.setLogNumber(newLogNumber);
 					logFile = result.getValue();
 					logFileNumber = newLogNumber;
-					logWriter = new LogWriter(logFile);
-					memtable = new MemTable(this.internalComparator);
+					logWriter = new LogWriter(logFile, 0, options.logFlushPolicy);
+					memtable = new MemTable(this.internalComparator, options);
 					memtable.ref();
 				}
 			}
@@ -347,6 +416,7 @@ public class DBImpl implements DB {
 			}
 
 			if (s.ok()) {
+				installSuperVersion();
 				deleteObsoleteFiles();
 				maybeScheduleCompaction();
 			}
@@ -362,13 +432,33 @@ public class DBImpl implements DB {
 
 	@Override
 	public void close() {
+		// Let outstanding asynchronous reads finish before their tables go away
+		ExecutorService readPool;
+		synchronized (this) {
+			readPool = ownedReadPool;
+			ownedReadPool = null;
+			readExecutor = null;
+			readsClosed = true;
+		}
+		if (readPool != null) {
+			readPool.shutdown();
+			try {
+				readPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		
 		// Wait for background work to finish
 		mutex.lock();
 		try {
 			shuttingDown.set(this); // Any non-NULL value is ok
-			while (bgCompactionScheduled) {
+			while (bgCompactionScheduled > 0 || bgFlushScheduled) {
 				bgCv.await();
 			}
+			SuperVersion sv = superVersion.getAndSet(null);
+			if (sv != null && sv.unref())
+				sv.cleanup();
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -428,6 +518,9 @@ public class DBImpl implements DB {
 
 	@Override
 	public Status write(WriteOptions options, WriteBatch batch) {
+		if (this.options.enablePipelinedWrite)
+			return pipelinedWrite(options, batch);
+		
 		Writer w = new Writer(mutex, batch, options.isSync(), false);
 
 		mutex.lock();
@@ -447,7 +540,7 @@ public class DBImpl implements DB {
 			lastWriter.setValue(w);
 			if (status.ok() && batch != null) {
 				// null batch is for compactions
-				WriteBatch updates = buildBatchGroup(lastWriter);
+				WriteBatch updates = buildBatchGroup(lastWriter, tmpBatch);
 				WriteBatchInternal.setSequence(updates, lastSequence + 1);
 				lastSequence += WriteBatchInternal.count(updates);
 
@@ -461,7 +554,7 @@ public class DBImpl implements DB {
 
 					boolean syncError = false;
 					if (status.ok() && options.sync) {
-						status = logFile.sync();
+						status = logWriter.sync();
 						if (!status.ok())
 							syncError = true;
 					}
@@ -509,13 +602,121 @@ public class DBImpl implements DB {
 		}
 	}
 
+	/**
+	 * Like write(), but the leader hands the log to the next batch group as soon as
+	 * its own group is logged, so the log write of one group overlaps the memtable
+	 * insert of the previous one. Groups are applied to the memtable, and their
+	 * sequence numbers published, in log order.
+	 * 
+	 * @param options
+	 * @param batch
+	 * @return
+	 */
+	Status pipelinedWrite(WriteOptions options, WriteBatch batch) {
+		Writer w = new Writer(mutex, batch, options.isSync(), false);
+
+		mutex.lock();
+		try {
+			writers.add(w);
+			while (!w.done && w != writers.peekFirst()) {
+				w.cv.await();
+			}
+
+			if (w.done)
+				return w.status;
+
+			Status status = makeRoomForWrite(batch == null);
+
+			Object0<Writer> lastWriter = new Object0<Writer>();
+			lastWriter.setValue(w);
+			MemTableGroup group = null;
+			if (status.ok() && batch != null) {
+				// Sequence numbers of logged groups are published after their memtable insert
+				long lastSequence = memtableGroups.isEmpty() ? versions.lastSequence() : memtableGroups.peekLast().lastSequence;
+				
+				// The group may still be in use while the next leader builds its own
+				WriteBatch updates = buildBatchGroup(lastWriter, new WriteBatch());
+				WriteBatchInternal.setSequence(updates, lastSequence + 1);
+				lastSequence += WriteBatchInternal.count(updates);
+
+				{
+					mutex.unlock();
+					status = logWriter.addRecord(WriteBatchInternal.contents(updates));
+
+					boolean syncError = false;
+					if (status.ok() && options.sync) {
+						status = logWriter.sync();
+						if (!status.ok())
+							syncError = true;
+					}
+
+					mutex.lock();
+					
+					if (syncError) {
+						// The state of the log file is indeterminate: the log record we
+						// just added may or may not show up when the DB is re-opened.
+						// So we force the DB into a mode where all future writes fail.
+						recordBackgroundError(status);
+					}
+				}
+				
+				if (status.ok()) {
+					group = new MemTableGroup(updates, lastSequence);
+					memtableGroups.add(group);
+				}
+			}
+
+			// Leave the log to the next group
+			ArrayList<Writer> followers = new ArrayList<Writer>();
+			while (true) {
+				Writer ready = writers.pollFirst();
+				if (ready != w)
+					followers.add(ready);
+				if (ready == lastWriter.getValue())
+					break;
+			}
+			if (!writers.isEmpty()) {
+				writers.peekFirst().cv.signal();
+			}
+
+			if (group != null) {
+				while (memtableGroups.peekFirst() != group) {
+					memtableCv.await();
+				}
+				
+				// memtable cannot be switched before memtableGroups drains
+				MemTable mem = memtable;
+				mutex.unlock();
+				status = WriteBatchInternal.insertInto(group.updates, mem);
+				mutex.lock();
+				
+				versions.setLastSequence(group.lastSequence);
+				memtableGroups.pollFirst();
+				memtableCv.signalAll();
+			}
+
+			for (Writer ready : followers) {
+				ready.status = status;
+				ready.done = true;
+				ready.cv.signal();
+			}
+			return status;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Status.otherError("" + e);
+		} finally {
+			mutex.tryUnlock();
+		}
+	}
+
 	@Override
 	public Status get(ReadOptions options, Slice key, ByteBuf value) {
 		value.clear();
 		Object0<Status> s = new Object0<Status>();
 		s.setValue(Status.ok0());
-		mutex.lock();
 		try {
+			// Read the sequence before pinning the SuperVersion, so that every
+			// entry up to snapshotSeqNumber is reachable from it.
 			long snapshotSeqNumber = 0;
 			if (options.snapshot != null) {
 				snapshotSeqNumber = options.snapshot.number;
@@ -523,49 +724,359 @@ public class DBImpl implements DB {
 				snapshotSeqNumber = versions.lastSequence();
 			}
 
-			MemTable mem = memtable;
-			MemTable imm = immtable;
-			Version current = versions.current();
-			mem.ref();
-			if (imm != null)
-				imm.ref();
-			current.ref();
-
-			boolean haveStatUpdate = false;
-			Version.GetStats stats = new Version.GetStats();
-			{
-				mutex.unlock();
+			SuperVersion sv = acquireSuperVersion();
+			try {
+				Version.GetStats stats = new Version.GetStats();
+				boolean haveStatUpdate = false;
+				
 				// First look in the memtable, then in the immutable memtable (if any).
 				LookupKey lkey = new LookupKey(key, snapshotSeqNumber);
-
-				if (mem.get(lkey, value, s)) {
+				if (sv.mem.get(lkey, value, s)) {
 					// Done
-				} else if (imm != null && imm.get(lkey, value, s)) {
+				} else if (sv.imm != null && sv.imm.get(lkey, value, s)) {
 					// Done
 				} else {
-					s.setValue(current.get(options, lkey, value, stats));
+					s.setValue(sv.current.get(options, lkey, value, stats));
 					haveStatUpdate = true;
 				}
-				mutex.lock();
+				
+				if (haveStatUpdate && stats.seekFile != null) {
+					mutex.lock();
+					try {
+						if (sv.current.updateStats(stats))
+							maybeScheduleCompaction();
+					} finally {
+						mutex.unlock();
+					}
+				}
+			} finally {
+				releaseSuperVersion(sv);
 			}
 
-			if (haveStatUpdate && current.updateStats(stats)) {
-				maybeScheduleCompaction();
+			return s.getValue();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Status.otherError("" + e);
+		}
+	}
+
+	@Override
+	public void multiGet(ReadOptions options, List<Slice> keys, List<ByteBuf> values, List<Status> statuses) {
+		try {
+			long snapshotSeqNumber = snapshotSequence(options);
+			SuperVersion sv = acquireSuperVersion();
+			try {
+				MultiGetBatch batch = memTableMultiGet(options, snapshotSeqNumber, sv, keys, values, statuses);
+				if (!batch.isEmpty()) {
+					Version.GetStats stats = batch.lookup(sv.current, 0, batch.size());
+					batch.publish();
+					recordReadStats(sv.current, stats);
+				}
+			} finally {
+				releaseSuperVersion(sv);
 			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			Status s = Status.otherError("" + e);
+			for (int i = 0; i < statuses.size(); i++)
+				statuses.set(i, s);
+		}
+	}
 
-			mem.unref();
-			mem = null;
-			if (imm != null)
-				imm.unref();
-			imm = null;
-			current.unref();
+	@Override
+	public CompletableFuture<Status> getAsync(final ReadOptions options, Slice key, final ByteBuf value) {
+		value.clear();
+		final SuperVersion sv;
+		final LookupKey lkey;
+		try {
+			long snapshotSeqNumber = snapshotSequence(options);
+			lkey = new LookupKey(key, snapshotSeqNumber);
+			sv = acquireSuperVersion();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return CompletableFuture.completedFuture(Status.otherError("" + e));
+		}
 
-			return s.getValue();
+		try {
+			Object0<Status> s = new Object0<Status>();
+			s.setValue(Status.ok0());
+			if (sv.mem.get(lkey, value, s) || (sv.imm != null && sv.imm.get(lkey, value, s))) {
+				releaseSuperVersion(sv);
+				return CompletableFuture.completedFuture(s.getValue());
+			}
+
+			// The tables may have to be read from disk, do it on the read executor.
+			// Once submitted, the task releases sv.
+			return CompletableFuture.supplyAsync(new Supplier<Status>() {
+				public Status get() {
+					try {
+						Version.GetStats stats = new Version.GetStats();
+						Status s = sv.current.get(options, lkey, value, stats);
+						recordReadStats(sv.current, stats);
+						return s;
+					} catch (Exception e) {
+						e.printStackTrace();
+						return Status.otherError("" + e);
+					} finally {
+						releaseSuperVersion(sv);
+					}
+				}
+			}, readExecutor());
+		} catch (Exception e) {
+			// Includes a RejectedExecutionException of the read executor
+			releaseSuperVersion(sv);
+			return CompletableFuture.completedFuture(Status.otherError("" + e));
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> multiGetAsync(ReadOptions options, final List<Slice> keys, List<ByteBuf> values, 
+			final List<Status> statuses) {
+		final SuperVersion sv;
+		final MultiGetBatch batch;
+		try {
+			long snapshotSeqNumber = snapshotSequence(options);
+			sv = acquireSuperVersion();
+			try {
+				batch = memTableMultiGet(options, snapshotSeqNumber, sv, keys, values, statuses);
+			} catch (Exception e) {
+				releaseSuperVersion(sv);
+				throw e;
+			}
+			if (batch.isEmpty()) {
+				releaseSuperVersion(sv);
+				return CompletableFuture.completedFuture(null);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
-			return Status.otherError("" + e);
+			Status s = Status.otherError("" + e);
+			for (int i = 0; i < statuses.size(); i++)
+				statuses.set(i, s);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		// Split the sorted keys into contiguous ranges looked up in parallel. Each
+		// range still shares block reads among its own keys.
+		int parts = Math.max(1, Math.min(this.options.asyncReadThreads, batch.size() / kMinAsyncMultiGetKeys));
+		final List<CompletableFuture<Version.GetStats>> futures = new ArrayList<>(parts);
+		for (int i = 0; i < parts; i++) {
+			final int from = (int) ((long) batch.size() * i / parts);
+			final int to = (int) ((long) batch.size() * (i + 1) / parts);
+			try {
+				futures.add(CompletableFuture.supplyAsync(new Supplier<Version.GetStats>() {
+					public Version.GetStats get() {
+						return batch.lookup(sv.current, from, to);
+					}
+				}, readExecutor()));
+			} catch (Exception e) {
+				// Submission was rejected. The parts already submitted still have to
+				// finish before sv is released, the batch fails with this error.
+				CompletableFuture<Version.GetStats> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				futures.add(failed);
+				break;
+			}
+		}
+
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle(new BiFunction<Void, Throwable, Void>() {
+			public Void apply(Void v, Throwable t) {
+				try {
+					if (t != null) {
+						// Keys answered by the memtables keep their results
+						Status s = Status.otherError("" + t);
+						for (int i : batch.order)
+							statuses.set(i, s);
+						return null;
+					}
+					batch.publish();
+					for (CompletableFuture<Version.GetStats> f : futures)
+						recordReadStats(sv.current, f.join());
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					releaseSuperVersion(sv);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * A multiGet range is not split any further for parallel lookups once its
+	 * parts would get smaller than this.
+	 */
+	static final int kMinAsyncMultiGetKeys = 16;
+
+	/**
+	 * The keys of a multiGet that missed both memtables, sorted by user key so that
+	 * the table lookups can be batched per file and per block.
+	 */
+	static class MultiGetBatch {
+		ReadOptions options;
+		List<Status> statuses;
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		ArrayList<LookupKey> keys = new ArrayList<LookupKey>();
+		ArrayList<ByteBuf> values = new ArrayList<ByteBuf>();
+		ArrayList<Status> sortedStatuses = new ArrayList<Status>();
+
+		boolean isEmpty() {
+			return order.isEmpty();
+		}
+
+		int size() {
+			return order.size();
+		}
+
+		/**
+		 * Lookup the sorted keys [from, to) in version v.
+		 */
+		Version.GetStats lookup(Version v, int from, int to) {
+			Version.GetStats stats = new Version.GetStats();
+			v.multiGet(options, keys.subList(from, to), values.subList(from, to), sortedStatuses.subList(from, to), stats);
+			return stats;
+		}
+
+		/**
+		 * Copy the statuses of the sorted keys back to the caller's order.
+		 */
+		void publish() {
+			for (int j = 0; j < order.size(); j++)
+				statuses.set(order.get(j), sortedStatuses.get(j));
+		}
+	}
+
+	/**
+	 * Returns the sequence a read sees. It must be taken before the read pins its
+	 * SuperVersion, so that every entry up to it is reachable from the SuperVersion.
+	 */
+	long snapshotSequence(ReadOptions options) {
+		return (options.snapshot != null) ? options.snapshot.number : versions.lastSequence();
+	}
+
+	/**
+	 * Fill values and statuses with one entry per key and lookup the keys in the
+	 * memtables of sv. Returns the keys left for the version of sv.
+	 */
+	MultiGetBatch memTableMultiGet(ReadOptions options, long snapshotSeqNumber, SuperVersion sv, final List<Slice> keys, 
+			List<ByteBuf> values, List<Status> statuses) {
+		values.clear();
+		statuses.clear();
+		for (int i = 0; i < keys.size(); i++) {
+			values.add(ByteBufFactory.newUnpooled());
+			statuses.add(Status.notFound());
+		}
+
+		MultiGetBatch batch = new MultiGetBatch();
+		batch.options = options;
+		batch.statuses = statuses;
+		ArrayList<LookupKey> lkeys = new ArrayList<LookupKey>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			LookupKey lkey = new LookupKey(keys.get(i), snapshotSeqNumber);
+			lkeys.add(lkey);
+			Object0<Status> s = new Object0<Status>();
+			s.setValue(Status.ok0());
+			if (sv.mem.get(lkey, values.get(i), s) || (sv.imm != null && sv.imm.get(lkey, values.get(i), s)))
+				statuses.set(i, s.getValue());
+			else
+				batch.order.add(i);
+		}
+
+		final Comparator0 ucmp = userComparator();
+		Collections.sort(batch.order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return ucmp.compare(keys.get(a), keys.get(b));
+			}
+		});
+		for (int i : batch.order) {
+			batch.keys.add(lkeys.get(i));
+			batch.values.add(values.get(i));
+			batch.sortedStatuses.add(null);
+		}
+		return batch;
+	}
+
+	/**
+	 * Charge the seek recorded by a read, which may trigger a compaction.
+	 */
+	void recordReadStats(Version v, Version.GetStats stats) {
+		if (stats.seekFile == null)
+			return;
+		mutex.lock();
+		try {
+			if (v.updateStats(stats))
+				maybeScheduleCompaction();
 		} finally {
-			mutex.tryUnlock();
+			mutex.unlock();
+		}
+	}
+
+	/**
+	 * Returns the executor for the table lookups of asynchronous reads, starting
+	 * the DB's own read pool on first use if options.readExecutor is not set.
+	 * Throws RejectedExecutionException once the DB is closed.
+	 */
+	Executor readExecutor() {
+		Executor executor = readExecutor;
+		if (executor != null)
+			return executor;
+		synchronized (this) {
+			if (readsClosed)
+				throw new RejectedExecutionException("DB is closed");
+			if (readExecutor == null) {
+				if (options.readExecutor != null) {
+					readExecutor = options.readExecutor;
+				} else {
+					final AtomicInteger threadCount = new AtomicInteger();
+					ownedReadPool = Executors.newFixedThreadPool(Math.max(1, options.asyncReadThreads), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "jleveldb-read-" + threadCount.getAndIncrement());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					readExecutor = ownedReadPool;
+				}
+			}
+			return readExecutor;
+		}
+	}
+
+	/**
+	 * Publish a new SuperVersion for the current memtable, immtable and version,
+	 * and drop the DB's reference to the previous one.</br>
+	 * </br>
+	 * 
+	 * EXCLUSIVE_LOCKS_REQUIRED(mutex)
+	 */
+	void installSuperVersion() {
+		mutex.assertHeld();
+		SuperVersion sv = new SuperVersion(memtable, immtable, versions.current());
+		SuperVersion old = superVersion.getAndSet(sv);
+		if (old != null && old.unref())
+			old.cleanup();
+	}
+	
+	/**
+	 * Pin the latest SuperVersion without taking the mutex. The caller must
+	 * pass the result to releaseSuperVersion.
+	 */
+	SuperVersion acquireSuperVersion() {
+		while (true) {
+			SuperVersion sv = superVersion.get();
+			// Only fails if sv was replaced and released in the meantime, retry.
+			if (sv.tryRef())
+				return sv;
+		}
+	}
+	
+	void releaseSuperVersion(SuperVersion sv) {
+		if (sv.unref()) {
+			mutex.lock();
+			try {
+				sv.cleanup();
+			} finally {
+				mutex.unlock();
+			}
 		}
 	}
 
@@ -837,14 +1348,21 @@ public class DBImpl implements DB {
 		if (s.ok()) {
 			edit.setPrevLogNumber(0);
 			edit.setLogNumber(logFileNumber); // Earlier logs no longer needed
+			
+			// A compaction thread may delete obsolete files while logAndApply() writes
+			// the MANIFEST, keep the new table alive until it is part of a version.
+			for (int i = 0; i < edit.newFiles.size(); i++)
+				pendingOutputs.add(edit.newFiles.get(i).obj.number);
 			s = versions.logAndApply(edit, mutex);
+			for (int i = 0; i < edit.newFiles.size(); i++)
+				pendingOutputs.remove(edit.newFiles.get(i).obj.number);
 		}
 
 		if (s.ok()) {
 			// Commit to the new state
 			immtable.unref();
 			immtable = null;
-			hasImm.set(null);
+			installSuperVersion();
 			deleteObsoleteFiles();
 		} else {
 			recordBackgroundError(s);
@@ -920,7 +1438,7 @@ public class DBImpl implements DB {
 			WriteBatchInternal.setContents(batch, record);
 
 			if (mem == null) {
-				mem = new MemTable(internalComparator);
+				mem = new MemTable(internalComparator, options);
 				mem.ref();
 			}
 
@@ -967,14 +1485,14 @@ public class DBImpl implements DB {
 			if (b1.ok() && b2.ok()) {
 				logFile = logFile0.getValue();
 				Logger0.log0(options.infoLog, "Reusing old log {} \n", fname);
-				logWriter = new LogWriter(logFile, lfileSize.getValue());
+				logWriter = new LogWriter(logFile, lfileSize.getValue(), options.logFlushPolicy);
 				logFileNumber = logNumber;
 				if (mem != null) {
 					memtable = mem;
 					mem = null;
 				} else {
 					// mem can be null if lognum exists but was empty.
-					memtable = new MemTable(internalComparator);
+					memtable = new MemTable(internalComparator, options);
 					memtable.ref();
 				}
 			}
@@ -1033,8 +1551,10 @@ public class DBImpl implements DB {
 		if (s.ok() && meta.fileSize > 0) {
 			Slice minUserKey = meta.smallest.userKey();
 			Slice maxUserKey = meta.largest.userKey();
-			if (base != null)
-				level = base.pickLevelForMemTableOutput(minUserKey, maxUserKey);
+			// Outputs of running compactions are not part of any version yet, so only
+			// push the table past level-0 while no compaction is scheduled.
+			if (base != null && bgCompactionScheduled == 0)
+				level = versions.current().pickLevelForMemTableOutput(minUserKey, maxUserKey);
 			
 			edit.addFile(level, meta.number, meta.fileSize, meta.smallest, meta.largest, meta.numEntries);
 		}
@@ -1067,7 +1587,8 @@ public class DBImpl implements DB {
 					// Yield previous error
 					s = bgError.clone();
 					break;
-				} else if (allowDelay && versions.numLevelFiles(0) >= DBFormat.kL0_SlowdownWritesTrigger) {
+				} else if (allowDelay && !options.disableAutoCompactions && 
+						versions.numLevelFiles(0) >= DBFormat.kL0_SlowdownWritesTrigger) {
 					// We are getting close to hitting a hard limit on the number of
 					// L0 files. Rather than delaying a single write by several
 					// seconds when we hit the hard limit, start delaying each
@@ -1092,10 +1613,13 @@ public class DBImpl implements DB {
 					// one is still being compacted, so we wait.
 					Logger0.log0(options.infoLog, "Current memtable full; waiting...\n");
 					bgCv.await();
-				} else if (versions.numLevelFiles(0) >= DBFormat.kL0_StopWritesTrigger) {
+				} else if (!options.disableAutoCompactions && versions.numLevelFiles(0) >= DBFormat.kL0_StopWritesTrigger) {
 					// There are too many level-0 files.
 					Logger0.log0(options.infoLog, "Too many L0 files; waiting...\n");
 					bgCv.await();
+				} else if (!memtableGroups.isEmpty()) {
+					// Pipelined writes are still applying logged groups to the current memtable
+					memtableCv.await();
 				} else {
 					// Attempt to switch to a new memtable and trigger compaction of old
 					assert (versions.prevLogNumber() == 0);
@@ -1114,11 +1638,11 @@ public class DBImpl implements DB {
 
 					logFile = lfile.getValue();
 					logFileNumber = newLogNumber;
-					logWriter = new LogWriter(lfile.getValue());
+					logWriter = new LogWriter(lfile.getValue(), 0, options.logFlushPolicy);
 					immtable = memtable;
-					hasImm.set(immtable);
-					memtable = new MemTable(internalComparator);
+					memtable = new MemTable(internalComparator, options);
 					memtable.ref();
+					installSuperVersion();
 					force = false; // Do not force another compaction if have room
 					maybeScheduleCompaction();
 				}
@@ -1130,7 +1654,7 @@ public class DBImpl implements DB {
 		}
 	}
 
-	WriteBatch buildBatchGroup(Object0<Writer> lastWriterOut) {
+	WriteBatch buildBatchGroup(Object0<Writer> lastWriterOut, WriteBatch scratch) {
 		assert (!writers.isEmpty());
 		Writer first = writers.peekFirst();
 		WriteBatch result = first.batch;
@@ -1165,7 +1689,7 @@ public class DBImpl implements DB {
 				// Append to result
 				if (result == first.batch) {
 					// Switch to temporary batch instead of disturbing caller's batch
-					result = tmpBatch;
+					result = scratch;
 					assert (WriteBatchInternal.count(result) == 0);
 					WriteBatchInternal.append(result, first.batch);
 				}
@@ -1185,21 +1709,35 @@ public class DBImpl implements DB {
 	}
 
 	/**
+	 * Schedule a memtable flush on the high priority pool, and as many compactions
+	 * as options.maxBackgroundCompactions allows on the low priority pool.</br>
+	 * </br>
+	 * 
 	 * EXCLUSIVE_LOCKS_REQUIRED(mutex)
 	 */
 	void maybeScheduleCompaction() {
 		mutex.assertHeld();
-		if (bgCompactionScheduled) {
-			// Already scheduled
-		} else if (shuttingDown.get() != null) {
+		if (shuttingDown.get() != null) {
 			// DB is being deleted; no more background compactions
 		} else if (!bgError.ok()) {
 			// Already got an error; no more changes
-		} else if (immtable == null && manualCompaction == null && !versions.needsCompaction()) {
-			// No work to be done
 		} else {
-			bgCompactionScheduled = true;
-			env.schedule(new BgWorkRunnable());
+			if (immtable != null && !bgFlushScheduled) {
+				bgFlushScheduled = true;
+				env.schedule(new BgFlushRunnable(), Env.Priority.High);
+			}
+
+			if (manualCompaction != null) {
+				// A manual compaction runs alone
+				if (bgCompactionScheduled == 0) {
+					bgCompactionScheduled++;
+					env.schedule(new BgWorkRunnable(), Env.Priority.Low);
+				}
+			} else if (!options.disableAutoCompactions && bgCompactionScheduled < options.maxBackgroundCompactions && 
+					!compactionPickBlocked && versions.needsCompaction()) {
+				bgCompactionScheduled++;
+				env.schedule(new BgWorkRunnable(), Env.Priority.Low);
+			}
 		}
 	}
 
@@ -1208,11 +1746,43 @@ public class DBImpl implements DB {
 			backgroundCall();
 		}
 	}
+	
+	public class BgFlushRunnable implements Runnable {
+		public void run() {
+			backgroundFlushCall();
+		}
+	}
+	
+	void backgroundFlushCall() {
+		mutex.lock();
+		try {
+			assert (bgFlushScheduled);
+			if (shuttingDown.get() != null) {
+				// No more background work when shutting down.
+			} else if (!bgError.ok()) {
+				// No more background work after a background error.
+			} else if (immtable != null) {
+				compactMemTable();
+			}
+
+			bgFlushScheduled = false;
+			
+			// The new level-0 file may need a compaction.
+			compactionPickBlocked = false;
+			maybeScheduleCompaction();
+
+			bgCv.signalAll();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			mutex.tryUnlock();
+		}
+	}
 
 	void backgroundCall() {
 		mutex.lock();
 		try {
-			assert (bgCompactionScheduled);
+			assert (bgCompactionScheduled > 0);
 			if (shuttingDown.get() != null) {
 				// No more background work when shutting down.
 			} else if (!bgError.ok()) {
@@ -1221,7 +1791,7 @@ public class DBImpl implements DB {
 				backgroundCompaction();
 			}
 
-			bgCompactionScheduled = false;
+			bgCompactionScheduled--;
 
 			// Previous compaction may have produced too many files in a level,
 			// so reschedule another compaction if needed.
@@ -1242,15 +1812,15 @@ public class DBImpl implements DB {
 	void backgroundCompaction() {
 		mutex.assertHeld();
 
-		if (immtable != null) {
-			compactMemTable();
-			return;
-		}
-
 		Compaction c;
 		boolean isManual = (manualCompaction != null);
 		InternalKey manualEnd = new InternalKey();
 		if (isManual) {
+			if (bgCompactionScheduled > 1) {
+				// Wait for the automatic compactions to drain, the last one
+				// schedules the manual compaction.
+				return;
+			}
 			ManualCompaction m = manualCompaction;
 			c = versions.compactRange(m.level, m.begin, m.end);
 			m.done = (c == null);
@@ -1264,6 +1834,19 @@ public class DBImpl implements DB {
 			c = versions.pickCompaction();
 		}
 
+		if (c == null) {
+			// Every candidate may conflict with a running compaction, wait for one of
+			// them to finish before trying again.
+			if (!isManual)
+				compactionPickBlocked = true;
+		} else {
+			versions.markBeingCompacted(c, true);
+			
+			// Let another thread pick a compaction while this one runs.
+			if (!isManual)
+				maybeScheduleCompaction();
+		}
+
 		Status status = Status.ok0();
 		if (c == null) {
 			// Nothing to do
@@ -1274,7 +1857,9 @@ public class DBImpl implements DB {
 			c.edit().deleteFile(c.level(), f.number);
 			c.edit().addFile(c.level() + 1, f.number, f.fileSize, f.smallest, f.largest, f.numEntries);
 			status = versions.logAndApply(c.edit(), mutex);
-			if (!status.ok())
+			if (status.ok())
+				installSuperVersion();
+			else
 				recordBackgroundError(status);
 
 			Logger0.log0(options.infoLog, "Moved #{} to level-{} {} bytes {}: {}\n", f.number, c.level() + 1, f.fileSize, status, versions.levelSummary());
@@ -1290,9 +1875,11 @@ public class DBImpl implements DB {
 			deleteObsoleteFiles();
 		}
 
-
-		if (c != null)
+		if (c != null) {
+			versions.markBeingCompacted(c, false);
+			compactionPickBlocked = false;
 			c.delete();
+		}
 		c = null;
 
 		if (status.ok()) {
@@ -1445,7 +2032,10 @@ public class DBImpl implements DB {
 			compact.compaction.edit().addFile(level + 1, out.number, out.fileSize, out.smallest, out.largest, out.numEntries);
 		}
 
-		return versions.logAndApply(compact.compaction.edit(), mutex);
+		Status s = versions.logAndApply(compact.compaction.edit(), mutex);
+		if (s.ok())
+			installSuperVersion();
+		return s;
 	}
 
 	/**
@@ -1453,7 +2043,6 @@ public class DBImpl implements DB {
 	 */
 	Status doCompactionWork(CompactionState compact) {
 		long startMillis = env.nowMillis();
-		long immMillis = 0; // millis spent doing imm compactions
 
 		Logger0.log0(options.infoLog, "Compacting {}@{} + {}@{} files", compact.compaction.numInputFiles(0), compact.compaction.level(), compact.compaction.numInputFiles(1),
 				compact.compaction.level() + 1);
@@ -1467,116 +2056,19 @@ public class DBImpl implements DB {
 			compact.smallestSnapshot = snapshots.oldest().number;
 		}
 
+		List<Slice> boundaries = subcompactionBoundaries(compact.compaction);
 		Status status = Status.ok0();
 		CompactionStats stat = new CompactionStats();
 		
 		// Release mutex while we're actually doing the compaction work
 		mutex.unlock();
 		try {
+			if (boundaries.isEmpty())
+				status = doSubcompactionWork(compact);
+			else
+				status = runSubcompactions(compact, boundaries);
 			
-			ParsedInternalKey ikey = new ParsedInternalKey();
-			ByteBuf currentUserKey = ByteBufFactory.newUnpooled();
-			boolean hasCurrentUserKey = false;
-			long lastSequenceForKey = DBFormat.kMaxSequenceNumber;
-
-			Iterator0 input = versions.makeInputIterator(compact.compaction);
-			input.seekToFirst();
-			for (; input.valid() && shuttingDown.get() == null;) {
-
-				// Prioritize immutable compaction work
-				if (hasImm.get() != null) { // has_imm_.NoBarrier_Load() != NULL
-					long immStart = env.nowMillis();
-					mutex.lock();
-					if (immtable != null) {
-						compactMemTable();
-						bgCv.signalAll();
-					}
-					mutex.unlock();
-					immMillis += (env.nowMillis() - immStart);
-				}
-
-				Slice key = input.key();
-				if (compact.compaction.shouldStopBefore(key) && compact.builder != null) {
-					status = finishCompactionOutputFile(compact, input);
-					if (!status.ok())
-						break;
-				}
-
-				// Handle key/value, add to state, etc.
-				boolean drop = false;
-				if (!ikey.parse(key)) {
-					// Do not hide error keys
-					currentUserKey.clear();
-					hasCurrentUserKey = false;
-					lastSequenceForKey = DBFormat.kMaxSequenceNumber;
-				} else {
-					if (!hasCurrentUserKey || userComparator().compare(ikey.userKey, currentUserKey) != 0) {
-						// First occurrence of this user key
-						currentUserKey.assign(ikey.userKey.data(), ikey.userKey.offset(), ikey.userKey.size());
-						hasCurrentUserKey = true;
-						lastSequenceForKey = DBFormat.kMaxSequenceNumber;
-					}
-
-					if (lastSequenceForKey <= compact.smallestSnapshot) {
-						// Hidden by an newer entry for same user key
-						drop = true;
-					} else if (ikey.type == ValueType.Deletion && ikey.sequence <= compact.smallestSnapshot && compact.compaction.isBaseLevelForKey(ikey.userKey)) {
-						// For this user key:
-						// (1) there is no data in higher levels
-						// (2) data in lower levels will have larger sequence numbers
-						// (3) data in layers that are being compacted here and have
-						// smaller sequence numbers will be dropped in the next
-						// few iterations of this loop (by rule (A) above).
-						// Therefore this deletion marker is obsolete and can be dropped.
-						drop = true;
-					}
-
-					lastSequenceForKey = ikey.sequence;
-				}
-
-				if (!drop) {
-					// Open output file if necessary
-					if (compact.builder == null) {
-						status = this.openCompactionOutputFile(compact);
-						if (!status.ok())
-							break;
-					}
-
-					if (compact.builder.numEntries() == 0) {
-						compact.currentOutput().smallest.decodeFrom(key);
-						compact.currentOutput().numEntries = 0;
-					}
-					compact.currentOutput().largest.decodeFrom(key);
-
-					compact.builder.add(key, input.value());
-
-					compact.currentOutput().numEntries++;
-
-					// Close output file if it is big enough
-					if (compact.builder.fileSize() >= compact.compaction.maxOutputFileSize()) {
-						status = finishCompactionOutputFile(compact, input);
-						if (!status.ok())
-							break;
-					}
-				}
-
-				input.next();
-			}
-
-			if (status.ok() && shuttingDown.get() != null)
-				status = new Status(Status.Code.IOError, "Deleting DB during compaction");
-
-			if (status.ok() && compact.builder != null)
-				status = finishCompactionOutputFile(compact, input);
-			
-			if (status.ok())
-				status = input.status();
-
-			input.delete();
-			input = null;
-
-			
-			stat.millis = env.nowMillis() - startMillis - immMillis;
+			stat.millis = env.nowMillis() - startMillis;
 			for (int which = 0; which < 2; which++) {
 				for (int i = 0; i < compact.compaction.numInputFiles(which); i++) {
 					stat.bytesRead += compact.compaction.input(which, i).fileSize;
@@ -1606,6 +2098,224 @@ public class DBImpl implements DB {
 		return status;
 	}
 
+	/**
+	 * Merge the inputs of compact.compaction in [compact.start, compact.end) into
+	 * new output files. Called without holding mutex.
+	 * 
+	 * @param compact
+	 * @return
+	 */
+	Status doSubcompactionWork(CompactionState compact) {
+		Status status = Status.ok0();
+		ParsedInternalKey ikey = new ParsedInternalKey();
+		ByteBuf currentUserKey = ByteBufFactory.newUnpooled();
+		boolean hasCurrentUserKey = false;
+		long lastSequenceForKey = DBFormat.kMaxSequenceNumber;
+
+		Iterator0 input = versions.makeInputIterator(compact.compaction);
+		if (compact.start != null)
+			input.seek(new InternalKey(compact.start, DBFormat.kMaxSequenceNumber, DBFormat.kValueTypeForSeek).encode());
+		else
+			input.seekToFirst();
+		for (; input.valid() && shuttingDown.get() == null;) {
+
+			Slice key = input.key();
+			if (compact.end != null && userComparator().compare(DBFormat.extractUserKey(key), compact.end) >= 0)
+				break;
+			
+			if (compact.compaction.shouldStopBefore(key) && compact.builder != null) {
+				status = finishCompactionOutputFile(compact, input);
+				if (!status.ok())
+					break;
+			}
+
+			// Handle key/value, add to state, etc.
+			boolean drop = false;
+			if (!ikey.parse(key)) {
+				// Do not hide error keys
+				currentUserKey.clear();
+				hasCurrentUserKey = false;
+				lastSequenceForKey = DBFormat.kMaxSequenceNumber;
+			} else {
+				if (!hasCurrentUserKey || userComparator().compare(ikey.userKey, currentUserKey) != 0) {
+					// First occurrence of this user key
+					currentUserKey.assign(ikey.userKey.data(), ikey.userKey.offset(), ikey.userKey.size());
+					hasCurrentUserKey = true;
+					lastSequenceForKey = DBFormat.kMaxSequenceNumber;
+				}
+
+				if (lastSequenceForKey <= compact.smallestSnapshot) {
+					// Hidden by an newer entry for same user key
+					drop = true;
+				} else if (ikey.type == ValueType.Deletion && ikey.sequence <= compact.smallestSnapshot && compact.compaction.isBaseLevelForKey(ikey.userKey)) {
+					// For this user key:
+					// (1) there is no data in higher levels
+					// (2) data in lower levels will have larger sequence numbers
+					// (3) data in layers that are being compacted here and have
+					// smaller sequence numbers will be dropped in the next
+					// few iterations of this loop (by rule (A) above).
+					// Therefore this deletion marker is obsolete and can be dropped.
+					drop = true;
+				}
+
+				lastSequenceForKey = ikey.sequence;
+			}
+
+			if (!drop) {
+				// Open output file if necessary
+				if (compact.builder == null) {
+					status = this.openCompactionOutputFile(compact);
+					if (!status.ok())
+						break;
+				}
+
+				if (compact.builder.numEntries() == 0) {
+					compact.currentOutput().smallest.decodeFrom(key);
+					compact.currentOutput().numEntries = 0;
+				}
+				compact.currentOutput().largest.decodeFrom(key);
+
+				compact.builder.add(key, input.value());
+
+				compact.currentOutput().numEntries++;
+
+				// Close output file if it is big enough
+				if (compact.builder.fileSize() >= compact.compaction.maxOutputFileSize()) {
+					status = finishCompactionOutputFile(compact, input);
+					if (!status.ok())
+						break;
+				}
+			}
+
+			input.next();
+		}
+
+		if (status.ok() && shuttingDown.get() != null)
+			status = new Status(Status.Code.IOError, "Deleting DB during compaction");
+
+		if (status.ok() && compact.builder != null)
+			status = finishCompactionOutputFile(compact, input);
+		
+		if (status.ok())
+			status = input.status();
+
+		input.delete();
+		input = null;
+
+		return status;
+	}
+	
+	/**
+	 * Split compact at boundaries and merge the parts in parallel, the first one on
+	 * the calling thread. The outputs of all parts are collected into compact, so that
+	 * installCompactionResults() applies them in a single edit.
+	 * 
+	 * @param compact
+	 * @param boundaries
+	 * @return
+	 * @throws InterruptedException
+	 */
+	Status runSubcompactions(CompactionState compact, List<Slice> boundaries) throws InterruptedException {
+		final int n = boundaries.size() + 1;
+		final ArrayList<CompactionState> parts = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			CompactionState sub = new CompactionState(compact.compaction.subcompaction());
+			sub.smallestSnapshot = compact.smallestSnapshot;
+			sub.start = (i == 0 ? null : boundaries.get(i - 1));
+			sub.end = (i == n - 1 ? null : boundaries.get(i));
+			parts.add(sub);
+		}
+		
+		final Status[] results = new Status[n];
+		final CountDownLatch done = new CountDownLatch(n - 1);
+		for (int i = 1; i < n; i++) {
+			final int idx = i;
+			env.startThread(new Runnable() {
+				public void run() {
+					try {
+						results[idx] = doSubcompactionWork(parts.get(idx));
+					} catch (Throwable t) {
+						t.printStackTrace();
+						results[idx] = Status.otherError("subcompaction, e=" + t);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		try {
+			results[0] = doSubcompactionWork(parts.get(0));
+		} finally {
+			done.await();
+		}
+		
+		Status status = Status.ok0();
+		for (int i = 0; i < n; i++) {
+			CompactionState sub = parts.get(i);
+			if (status.ok() && !results[i].ok())
+				status = results[i];
+			if (sub.builder != null) {
+				sub.builder.abandon();
+				sub.builder.delete();
+				sub.builder = null;
+			}
+			if (sub.outFile != null) {
+				sub.outFile.delete();
+				sub.outFile = null;
+			}
+			compact.outputs.addAll(sub.outputs);
+			compact.totalBytes += sub.totalBytes;
+		}
+		Logger0.log0(options.infoLog, "Compaction split into {} subcompactions", n);
+		return status;
+	}
+	
+	/**
+	 * Pick up to options.maxSubcompactions-1 user keys that split the inputs of c into
+	 * ranges of about the same size. Only input file boundaries are used, so this does
+	 * not read any table.
+	 * 
+	 * @param c
+	 * @return empty if c should not be split
+	 */
+	List<Slice> subcompactionBoundaries(Compaction c) {
+		ArrayList<Slice> boundaries = new ArrayList<>();
+		if (options.maxSubcompactions <= 1)
+			return boundaries;
+		
+		ArrayList<FileMetaData> files = new ArrayList<>();
+		files.addAll(c.input(0));
+		files.addAll(c.input(1));
+		if (files.size() < 2)
+			return boundaries;
+		
+		final Comparator0 ucmp = userComparator();
+		Collections.sort(files, new Comparator<FileMetaData>() {
+			public int compare(FileMetaData f1, FileMetaData f2) {
+				return ucmp.compare(f1.smallest.userKey(), f2.smallest.userKey());
+			}
+		});
+		
+		long totalBytes = 0;
+		for (FileMetaData f : files)
+			totalBytes += f.fileSize;
+		
+		final int n = Math.min(options.maxSubcompactions, files.size());
+		long accumulated = 0;
+		Slice last = files.get(0).smallest.userKey();
+		for (FileMetaData f : files) {
+			if (boundaries.size() == n - 1)
+				break;
+			Slice key = f.smallest.userKey();
+			if (accumulated * n >= totalBytes * (boundaries.size() + 1) && ucmp.compare(key, last) > 0) {
+				last = key.clone();
+				boundaries.add(last);
+			}
+			accumulated += f.fileSize;
+		}
+		return boundaries;
+	}
+
 	public Comparator0 userComparator() {
 		return internalComparator.userComparator();
 	}
@@ -1665,7 +2375,8 @@ public class DBImpl implements DB {
 		Long0 latestSnapshot = new Long0();
 		Integer0 seed0 = new Integer0();
 		Iterator0 iter = newInternalIterator(options, latestSnapshot, seed0);
-		return DBIter.newDBIterator(this, userComparator(), iter, (options.snapshot != null ? ((Snapshot) (options.snapshot)).number : latestSnapshot.getValue()), seed0.getValue());
+		return DBIter.newDBIterator(this, userComparator(), iter, (options.snapshot != null ? ((Snapshot) (options.snapshot)).number : latestSnapshot.getValue()), seed0.getValue(),
+				options.prefixSameAsStart ? this.options.prefixExtractor : null, options);
 	}
 
 	public boolean getProperty(String property, Object0<String> value) {
@@ -27,12 +27,15 @@ package com.tchaicatkovsky.jleveldb.db;
 import java.util.Random;
 
 import com.tchaicatkovsky.jleveldb.Iterator0;
+import com.tchaicatkovsky.jleveldb.ReadOptions;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.db.format.DBFormat;
 import com.tchaicatkovsky.jleveldb.db.format.ParsedInternalKey;
 import com.tchaicatkovsky.jleveldb.db.format.ValueType;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.ByteUtils;
 import com.tchaicatkovsky.jleveldb.util.Comparator0;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
@@ -69,7 +72,29 @@ public class DBIter extends Iterator0 {
 	Random rnd;
 	long bytesCounter;
 	
+	/**
+	 * Non-null if iteration is bounded to the prefix of the seek target, see
+	 * ReadOptions.prefixSameAsStart
+	 */
+	SliceTransform prefixExtractor;
+	/**
+	 * Prefix of the last seek target, valid if hasPrefix
+	 */
+	ByteBuf prefix = ByteBufFactory.newUnpooled();
+	boolean hasPrefix;
+	
+	/**
+	 * ReadOptions.iterateLowerBound and iterateUpperBound, may be null
+	 */
+	Slice lowerBound;
+	Slice upperBound;
+	
 	public DBIter(DBImpl db, Comparator0 cmp, Iterator0 iter, long seq,  int seed) {
+		this(db, cmp, iter, seq, seed, null, null, null);
+	}
+	
+	public DBIter(DBImpl db, Comparator0 cmp, Iterator0 iter, long seq,  int seed, SliceTransform prefixExtractor,
+			Slice lowerBound, Slice upperBound) {
 		this.db = db;
 		this.userComparator = cmp;
 		this.iter = iter;
@@ -81,6 +106,9 @@ public class DBIter extends Iterator0 {
 		rnd.setSeed(seed);
 		
 		bytesCounter = randomPeriod();
+		this.prefixExtractor = prefixExtractor;
+		this.lowerBound = lowerBound;
+		this.upperBound = upperBound;
 	}
 	
 	@Override
@@ -130,7 +158,16 @@ public class DBIter extends Iterator0 {
 		assert(direction == Direction.kForward);
 		ParsedInternalKey ikey = new ParsedInternalKey();
 		do {
-		    if (parseKey(ikey) && ikey.sequence <= sequence) {
+		    boolean parsed = parseKey(ikey);
+		    if (parsed && hasPrefix && !prefixMatches(ikey.userKey)) {
+		    	// Past the keys with the prefix of the seek target
+		    	break;
+		    }
+		    if (parsed && upperBound != null && userComparator.compare(ikey.userKey, upperBound) >= 0) {
+		    	// Do not read through the deleted keys past the bound
+		    	break;
+		    }
+		    if (parsed && ikey.sequence <= sequence) {
 		    	switch (ikey.type) {
 		        case Deletion:
 		        	// Arrange to skip all upcoming entries for this key since
@@ -155,6 +192,31 @@ public class DBIter extends Iterator0 {
 		valid = false;
 	}
 	
+	boolean prefixMatches(Slice userKey) {
+		if (!prefixExtractor.inDomain(userKey))
+			return false;
+		Slice p = prefixExtractor.transform(userKey);
+		return p.size() == prefix.size() && 
+				ByteUtils.memcmp(p.data(), p.offset(), prefix.data(), prefix.offset(), p.size()) == 0;
+	}
+	
+	/**
+	 * A prefix-bounded iterator only moves forward from a seek.
+	 * 
+	 * @return true if the iterator was made invalid
+	 */
+	boolean rejectUnboundedMove(String op) {
+		if (prefixExtractor == null)
+			return false;
+		valid = false;
+		hasPrefix = false;
+		savedKey.clear();
+		clearSavedValue();
+		if (status.ok())
+			status = Status.notSupported(op + " is not supported with ReadOptions.prefixSameAsStart");
+		return true;
+	}
+	
 	void findPrevUserEntry() {
 		assert(direction == Direction.kReverse);
 
@@ -162,7 +224,12 @@ public class DBIter extends Iterator0 {
 		if (iter.valid()) {
 			do {
 				ParsedInternalKey ikey = new ParsedInternalKey();
-				if (parseKey(ikey) && ikey.sequence <= sequence) {
+				boolean parsed = parseKey(ikey);
+				if (parsed && lowerBound != null && userComparator.compare(ikey.userKey, lowerBound) < 0) {
+					// Before the lower bound
+					break;
+				}
+				if (parsed && ikey.sequence <= sequence) {
 					if ((valueType != ValueType.Deletion) &&
 							userComparator.compare(ikey.userKey, savedKey) < 0) {
 						// We encountered a non-deleted value in entries for previous keys,
@@ -213,6 +280,12 @@ public class DBIter extends Iterator0 {
 
 	@Override
 	public void seekToFirst() {
+		if (rejectUnboundedMove("seekToFirst"))
+			return;
+		if (lowerBound != null) {
+			seek(lowerBound);
+			return;
+		}
 		direction = Direction.kForward;
 		clearSavedValue();
 		iter.seekToFirst();
@@ -225,16 +298,37 @@ public class DBIter extends Iterator0 {
 
 	@Override
 	public void seekToLast() {
+		if (rejectUnboundedMove("seekToLast"))
+			return;
 		direction = Direction.kReverse;
 		clearSavedValue();
-		iter.seekToLast();
+		if (upperBound != null) {
+			// Move to the last entry before the first one of the bound
+			savedKey.clear();
+			DBFormat.appendInternalKey(savedKey, new ParsedInternalKey(upperBound, DBFormat.kMaxSequenceNumber, DBFormat.kValueTypeForSeek));
+			iter.seek(SliceFactory.newUnpooled(savedKey));
+			savedKey.clear();
+			if (iter.valid())
+				iter.prev();
+			else
+				iter.seekToLast();
+		} else {
+			iter.seekToLast();
+		}
 		findPrevUserEntry();
 	}
 
 	@Override
 	public void seek(Slice target) {
+		if (lowerBound != null && userComparator.compare(target, lowerBound) < 0)
+			target = lowerBound;
 		direction = Direction.kForward;
 		clearSavedValue();
+		hasPrefix = prefixExtractor != null && prefixExtractor.inDomain(target);
+		if (hasPrefix) {
+			Slice p = prefixExtractor.transform(target);
+			prefix.assign(p.data(), p.offset(), p.size());
+		}
 		savedKey.clear();
 		DBFormat.appendInternalKey(savedKey, new ParsedInternalKey(target, sequence, DBFormat.kValueTypeForSeek));
 		iter.seek(SliceFactory.newUnpooled(savedKey));
@@ -276,6 +370,8 @@ public class DBIter extends Iterator0 {
 	@Override
 	public void prev() {
 		assert(valid);
+		if (rejectUnboundedMove("prev"))
+			return;
 
 		if (direction == Direction.kForward) {
 		    // iter is pointing at the current entry.  Scan backwards until
@@ -345,5 +441,32 @@ public class DBIter extends Iterator0 {
 						long sequence,
 						int seed) {
 		return new DBIter(db, userKeyComparator, internalIter, sequence, seed);
-	} 
+	}
+	
+	/**
+	 * Same as newDBIterator(db, userKeyComparator, internalIter, sequence, seed), but 
+	 * the iterator is bounded by options.iterateLowerBound and iterateUpperBound, and
+	 * if prefixExtractor is non-null to the prefix of its seek target, see 
+	 * ReadOptions.prefixSameAsStart.
+	 * 
+	 * @param db
+	 * @param userKeyComparator
+	 * @param internalIter
+	 * @param sequence
+	 * @param seed
+	 * @param prefixExtractor
+	 * @param options
+	 * @return
+	 */
+	public static Iterator0 newDBIterator(
+						DBImpl db,
+						Comparator0 userKeyComparator,
+						Iterator0 internalIter,
+						long sequence,
+						int seed,
+						SliceTransform prefixExtractor,
+						ReadOptions options) {
+		return new DBIter(db, userKeyComparator, internalIter, sequence, seed, prefixExtractor, 
+				options.iterateLowerBound, options.iterateUpperBound);
+	}
 }
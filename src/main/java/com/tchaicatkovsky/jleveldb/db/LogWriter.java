@@ -24,6 +24,7 @@
 
 package com.tchaicatkovsky.jleveldb.db;
 
+import com.tchaicatkovsky.jleveldb.LogFlushPolicy;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.WritableFile;
 import com.tchaicatkovsky.jleveldb.db.LogFormat.RecordType;
@@ -40,6 +41,16 @@ public class LogWriter {
 	 * Current offset in block
 	 */
 	int blockOffset;
+	
+	LogFlushPolicy flushPolicy;
+	
+	/**
+	 * Physical records not handed to dest yet. One block is enough since a
+	 * physical record never crosses a block boundary.
+	 */
+	byte[] buffer = new byte[LogFormat.kBlockSize];
+	int bufferSize;
+	final Slice bufferSlice = SliceFactory.newUnpooled(buffer, 0, 0);
 
 	/**
 	 * crc32c values for all supported record types.  These are
@@ -64,9 +75,7 @@ public class LogWriter {
 	 * @param dest
 	 */
 	public LogWriter(WritableFile dest) {
-		this.dest = dest;
-		blockOffset = 0;
-		initTypeCrc(typeCrc);
+		this(dest, 0, LogFlushPolicy.kFlushPerRecord);
 	}
 	
 	/**
@@ -78,8 +87,22 @@ public class LogWriter {
 	 * @param destLength
 	 */
 	public LogWriter(WritableFile dest, long destLength) {
+		this(dest, destLength, LogFlushPolicy.kFlushPerRecord);
+	}
+	
+	/**
+	 * Create a writer that will append data to "dest", which has initial
+	 * length "destLength", and hands data to "dest" as "flushPolicy" says.
+	 * 
+	 * @param dest
+	 * @param destLength
+	 * @param flushPolicy
+	 */
+	public LogWriter(WritableFile dest, long destLength, LogFlushPolicy flushPolicy) {
 		this.dest = dest;
+		this.flushPolicy = flushPolicy;
 		blockOffset = (int)(destLength % LogFormat.kBlockSize);
+		bufferSize = 0;
 		initTypeCrc(typeCrc);
 	}
 	
@@ -102,7 +125,11 @@ public class LogWriter {
 		    	// Switch to a new block
 		    	if (leftover > 0) {
 		    		// Fill the trailer (literal below relies on kHeaderSize being 7)
-		    		dest.append(SliceFactory.newUnpooled(fillzero, 0, leftover));
+		    		s = reserve(leftover);
+		    		if (!s.ok())
+		    			return s;
+		    		System.arraycopy(fillzero, 0, buffer, bufferSize, leftover);
+		    		bufferSize += leftover;
 		    	}
 		    	blockOffset = 0;
 		    }
@@ -130,37 +157,87 @@ public class LogWriter {
 		    left -= fragmentLength;
 		    begin = false;
 		} while (s.ok() && left > 0);
+		
+		if (s.ok() && flushPolicy != LogFlushPolicy.kFlushOnSync)
+			s = flush();
+		return s;
+	}
+	
+	/**
+	 * Hand all buffered records to dest and flush it.
+	 * 
+	 * @return
+	 */
+	public Status flush() {
+		Status s = writeBuffer();
+		if (s.ok())
+			s = dest.flush();
+		return s;
+	}
+	
+	/**
+	 * Flush all buffered records and sync dest.
+	 * 
+	 * @return
+	 */
+	public Status sync() {
+		Status s = flush();
+		if (s.ok())
+			s = dest.sync();
 		return s;
 	}
 	
+	Status writeBuffer() {
+		if (bufferSize == 0)
+			return Status.ok0();
+		bufferSlice.init(buffer, 0, bufferSize);
+		bufferSize = 0;
+		return dest.append(bufferSlice);
+	}
+	
+	/**
+	 * Make room for n more bytes in buffer.
+	 */
+	Status reserve(int n) {
+		if (bufferSize + n > buffer.length)
+			return writeBuffer();
+		return Status.ok0();
+	}
+	
 	Status emitPhysicalRecord(RecordType t, byte[] ptr, int offset, int n) {
 		assert(n <= 0xffff);  // Must fit in two bytes
 		assert(blockOffset + LogFormat.kHeaderSize + n <= LogFormat.kBlockSize);
 
-		// Format the header
-		byte buf[] = new byte[LogFormat.kHeaderSize];
-		buf[4] = (byte)(n & 0xff);
-		buf[5] = (byte)((n >> 8) & 0xff);
-		buf[6] = (byte)(t.getType() & 0xff);
+		Status s = reserve(LogFormat.kHeaderSize + n);
+		if (!s.ok())
+			return s;
+		
+		// Format the header in place
+		int h = bufferSize;
+		buffer[h + 4] = (byte)(n & 0xff);
+		buffer[h + 5] = (byte)((n >> 8) & 0xff);
+		buffer[h + 6] = (byte)(t.getType() & 0xff);
 
 		// Compute the crc of the record type and the payload.
 		long crc = Crc32C.extend(typeCrc[t.getType()], ptr, offset, n);
 		crc = Crc32C.mask(crc);                 // Adjust for storage
-		Coding.encodeFixedNat32Long(buf, 0, crc);
+		Coding.encodeFixedNat32Long(buffer, h, crc);
 
-		// Write the header and the payload
-		Status s = dest.append(SliceFactory.newUnpooled(buf, 0, LogFormat.kHeaderSize));
-		if (s.ok()) {
-			s = dest.append(SliceFactory.newUnpooled(ptr, offset, n));
-			if (s.ok()) {
-				s = dest.flush();
-			}
-		}
+		// Copy the payload behind the header
+		System.arraycopy(ptr, offset, buffer, h + LogFormat.kHeaderSize, n);
+		bufferSize += LogFormat.kHeaderSize + n;
 		blockOffset += (LogFormat.kHeaderSize + n);
+		
+		if (flushPolicy == LogFlushPolicy.kFlushPerFragment)
+			s = flush();
 		return s;
 	}
 	
+	/**
+	 * Flush the buffered records, dest is left open.
+	 */
 	public void delete() {
-		
+		if (bufferSize > 0)
+			flush();
 	}
 }
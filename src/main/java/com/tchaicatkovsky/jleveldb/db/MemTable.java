@@ -28,6 +28,7 @@ import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.tchaicatkovsky.jleveldb.Iterator0;
+import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.db.format.DBFormat;
 import com.tchaicatkovsky.jleveldb.db.format.InternalKeyComparator;
@@ -128,22 +129,100 @@ public class MemTable implements ReferenceCounted {
 		}
 	}
 	
+	static class ArenaMemTableIterator extends Iterator0 {
+		
+		ArenaSkipList.Iterator iter;
+		
+		public ArenaMemTableIterator(ArenaSkipList table) {
+			iter = table.iterator();
+		}
+		
+		public void delete() {
+			super.delete();
+			iter = null;
+		}
+		
+		public boolean valid() {
+			return iter.valid();
+		}
+		
+		public void seekToFirst() {
+			iter.seekToFirst();
+		}
+		
+		public void seekToLast() {
+			iter.seekToLast();
+		}
+		
+		public void seek(Slice target0) {
+			iter.seek(target0);
+		}
+		
+		public void next() {
+			iter.next();
+		}
+		
+		public void prev() {
+			iter.prev();
+		}
+		
+		public Slice key() {
+			return iter.key();
+		}
+		
+		public Slice value() {
+			return iter.value();
+		}
+		
+		public Status status() {
+			return Status.ok0();
+		}
+	}
+	
 	TableKeyComparator comparator;
 	int refs;
+	/**
+	 * Index used when the memtable is not arena based, one Node and KeyValueSlice per entry
+	 */
 	SkipListMap<Slice,KeyValueSlice> table;
+	/**
+	 * Index used when Options.arenaMemTable is set
+	 */
+	ArenaSkipList arenaTable;
 	AtomicLong approximateMemory = new AtomicLong(0);
 	MemTableArena arena;
 	
+	/**
+	 * Estimated heap bytes of the KeyValueSlice and key Slice that the SkipListMap index
+	 * keeps per entry, on a 64-bit JVM with compressed references.
+	 */
+	static final int kEntryObjectBytes = 56;
+	
 	public MemTable(InternalKeyComparator c) {
+		this(c, false, MemTableArena.kBlockSize);
+	}
+	
+	public MemTable(InternalKeyComparator c, Options options) {
+		this(c, options.arenaMemTable, options.arenaBlockSize);
+	}
+	
+	MemTable(InternalKeyComparator c, boolean arenaIndex, int arenaBlockSize) {
 		comparator = new TableKeyComparator(c);
 		refs = 0;
-		table = new SkipListMap<Slice,KeyValueSlice>(12, 4, comparator);
-		arena = new MemTableArena();
+		arena = new MemTableArena(arenaBlockSize);
+		if (arenaIndex)
+			arenaTable = new ArenaSkipList(comparator, arena);
+		else
+			table = new SkipListMap<Slice,KeyValueSlice>(12, 4, comparator);
 	}
 	
 	public void delete() {
 		assert(refs == 0);
 		table = null;
+		if (arenaTable != null) {
+			arenaTable.delete();
+			arenaTable = null;
+		}
 		arena.delete();
 	}
 	
@@ -166,15 +245,23 @@ public class MemTable implements ReferenceCounted {
 	}
 
 	/**
-	 * Returns an estimate of the number of bytes of data in use by this data structure. </br>
+	 * Returns an estimate of the number of bytes of data in use by this data structure,
+	 * including the index over the entries. </br>
 	 * It is safe to call when MemTable is being modified.</br>
 	 */
 	public long approximateMemoryUsage() {
-		return arena.memoryUsage();
+		long usage = arena.memoryUsage();
+		ArenaSkipList t = arenaTable;
+		SkipListMap<Slice,KeyValueSlice> m = table;
+		if (t != null)
+			usage += t.memoryUsage();
+		else if (m != null)
+			usage += m.memoryUsage() + (long) m.size() * kEntryObjectBytes;
+		return usage;
 	}
 	
 	public int entrySize() {
-		return table.size();
+		return arenaTable != null ? arenaTable.size() : table.size();
 	}
 	
 	/**
@@ -186,6 +273,8 @@ public class MemTable implements ReferenceCounted {
 	 * db/format.{h,cc} module.</br></br>
 	 */
 	public Iterator0 newIterator() {
+		if (arenaTable != null)
+			return new ArenaMemTableIterator(arenaTable);
 		return new MemTableIterator(table);
 	}
 	
@@ -227,6 +316,10 @@ public class MemTable implements ReferenceCounted {
 		s.incrOffset(value.size());
 		assert(s.offset() - initialOffset == encodedLen);
 		
+		if (arenaTable != null) {
+			arenaTable.insert(arena.lastBlockIndex(), keyOffset, internalKeySize);
+			return;
+		}
 		
 		KeyValueSlice kvs = new KeyValueSlice(data, keyOffset, internalKeySize, valueOffset, valueSize);
 		Slice keySlice = SliceFactory.newUnpooled(data, keyOffset, internalKeySize);
@@ -248,7 +341,7 @@ public class MemTable implements ReferenceCounted {
 		if (value != null)
 			value.clear();
 		Slice memkey = key.internalKey();
-		SkipListMap<Slice,KeyValueSlice>.Iterator1 iter = table.iterator1();
+		Iterator0 iter = newIterator();
 		iter.seek(memkey);
 		if (iter.valid()) {
 			Slice ikey = iter.key();
@@ -260,7 +353,7 @@ public class MemTable implements ReferenceCounted {
 		    	if (vtype != null) {
 			    	switch (vtype) {
 			        case Value: {
-			        	Slice v = iter.value().value();
+			        	Slice v = iter.value();
 			        	value.assign(v.data(), v.offset(), v.size());
 			        	return true;
 			        }
@@ -25,6 +25,7 @@
 package com.tchaicatkovsky.jleveldb.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.tchaicatkovsky.jleveldb.util.Slice;
@@ -39,17 +40,35 @@ public class MemTableArena {
 
 	// Array of new[] allocated memory blocks
 	ArrayList<byte[]> blocks;
+	
+	// Copy of blocks that is safe to read from other threads, see block(int)
+	volatile byte[][] publishedBlocks = new byte[16][];
+	int allocPtrIndex = -1;
+	int lastBlockIndex = -1;
 
 	// Total memory usage of the arena.
 	AtomicLong memoryUsage;
+	
+	final int blockSize;
 	  
 	public MemTableArena() {
+		this(kBlockSize);
+	}
+	
+	/**
+	 * @param blockSize size of the blocks that small allocations are carved from,
+	 * e.g. a huge page size. Allocations larger than a quarter of it get a block of their own.
+	 */
+	public MemTableArena(int blockSize) {
+		assert(blockSize > 0);
+		this.blockSize = blockSize;
 		blocks = new ArrayList<byte[]>();
 		memoryUsage = new AtomicLong(0);
 	}
 	
 	public void delete() {
 		blocks.clear();
+		publishedBlocks = null;
 	}
 	
 	/**
@@ -69,42 +88,75 @@ public class MemTableArena {
 		    int oldAllocPtrOffset = allocPtrOffset;
 		    allocPtrOffset += bytes;
 		    allocBytesRemaining -= bytes;
+		    lastBlockIndex = allocPtrIndex;
 		    return SliceFactory.newUnpooled(result, oldAllocPtrOffset, bytes);
 		}
 		
 		return allocateFallback(bytes);
 	}
 	
+	/**
+	 * Index of the block that holds the memory returned by the last call to allocate().
+	 * @return
+	 */
+	public int lastBlockIndex() {
+		return lastBlockIndex;
+	}
+	
+	/**
+	 * Return the block with the given index.</br>
+	 * Safe to call from any thread for an index that was published to it after 
+	 * the allocation, e.g. through a volatile store.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public byte[] block(int index) {
+		return publishedBlocks[index];
+	}
+	
 	
 	public long memoryUsage() {
 		return memoryUsage.get();
 	}
 	
-	static final int kBlockSize = 4096;
+	/**
+	 * Default block size
+	 */
+	public static final int kBlockSize = 4096;
 	
 	Slice allocateFallback(int bytes) {
-		if (bytes > kBlockSize / 4) {
+		if (bytes > blockSize / 4) {
 		    // Object is more than a quarter of our block size.  Allocate it separately
 		    // to avoid wasting too much space in leftover bytes.
 		    byte[] result = allocateNewBlock(bytes);
+		    lastBlockIndex = blocks.size() - 1;
 		    return SliceFactory.newUnpooled(result, 0, bytes);
 		}
 
 		// We waste the remaining space in the current block.
-		allocPtr = allocateNewBlock(kBlockSize);
+		allocPtr = allocateNewBlock(blockSize);
+		allocPtrIndex = blocks.size() - 1;
+		lastBlockIndex = allocPtrIndex;
 		allocPtrOffset = 0;
-		allocBytesRemaining = kBlockSize;
+		allocBytesRemaining = blockSize;
 
 		int oldAllocPtrOffset = allocPtrOffset;
 		allocPtrOffset += bytes;
 		allocBytesRemaining -= bytes;
 		
-		return SliceFactory.newUnpooled(allocPtr, oldAllocPtrOffset, allocBytesRemaining);
+		return SliceFactory.newUnpooled(allocPtr, oldAllocPtrOffset, bytes);
 	}
 	
 	byte[] allocateNewBlock(int blockBytes) {
 		byte[] result = new byte[blockBytes];
 		blocks.add(result);
+		
+		byte[][] published = publishedBlocks;
+		if (blocks.size() > published.length)
+			published = Arrays.copyOf(published, published.length * 2);
+		published[blocks.size() - 1] = result;
+		publishedBlocks = published; // volatile store publishes the new entry
 		memoryUsage.set(memoryUsage() + blockBytes + 8); //TODO: 32bit: 4, 64bit: 8
 		return result;
 	}
@@ -195,7 +195,7 @@ public class Repairer {
 		ByteBuf scratch = ByteBufFactory.newUnpooled();
 		Slice record = SliceFactory.newUnpooled();
 		WriteBatch batch = new WriteBatch();
-		MemTable mem = new MemTable(icmp);
+		MemTable mem = new MemTable(icmp, options);
 		mem.ref();
 		int counter = 0;
 		while (reader.readRecord(record, scratch)) {
@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import com.tchaicatkovsky.jleveldb.util.Utils;
 
@@ -33,6 +34,13 @@ import com.tchaicatkovsky.jleveldb.util.Utils;
 //import org.slf4j.LoggerFactory;
 
 /**
+ * Thread safety: writes require external synchronization, most likely a mutex.
+ * Reads (get, find, Iterator1) may run concurrently with a single writer
+ * calling put. Links are stored in an AtomicReferenceArray and a new node is
+ * fully initialized before it is published with a volatile store into its
+ * predecessor, matching the Release/Acquire protocol of LevelDB's SkipList.
+ * remove is not safe against concurrent readers.</br>
+ * 
  * @author Teng Huang ht201509@163.com
  */
 public class SkipListMap<K, V> {
@@ -43,20 +51,31 @@ public class SkipListMap<K, V> {
 	Comparator<K> comp;
 	final int maxLevel;
 	final Node<K,V> head;
-	Node<K,V> tail;
+	volatile Node<K,V> tail;
 	
-	int size;
+	volatile int size;
 	int branching = 4;
 	
+	/**
+	 * Estimated heap bytes of a Node with its link arrays, excluding key and value,
+	 * assuming a 64-bit JVM with compressed references: the Node itself (~32 bytes),
+	 * its AtomicReferenceArray (~16) and the backing Object[] header (~16), plus
+	 * kLinkBytes per level for the next and prev references.
+	 */
+	public static final int kNodeBytes = 64;
+	public static final int kLinkBytes = 8;
+	
+	volatile long memoryUsage;
+	
 	public static class Node<K1,V1> implements Map.Entry<K1, V1>{
 		K1 key;
 		V1 value;
 		int level;
-		Object[] link;
+		AtomicReferenceArray<Object> link;
 		
 		public Node(int level) {
 			this.level = level;
-			link = new Object[level*2]; //[0 - level/2] is next link, [level/2+1,level*2-1] is prev link.
+			link = new AtomicReferenceArray<Object>(level*2); //[0 - level/2] is next link, [level/2+1,level*2-1] is prev link.
 		}
 		
 		public Node(int level, K1 k, V1 v) {
@@ -105,20 +124,20 @@ public class SkipListMap<K, V> {
 		
 		@SuppressWarnings("unchecked")
 		final public Node<K1,V1> prev(int l) {
-			return l < level ? (Node<K1,V1>)link[l+level] : null;
+			return l < level ? (Node<K1,V1>)link.get(l+level) : null;
 		}
 		
 		final public void setPrev(int l, Node<K1,V1> n) {
-			link[l+level] = n;
+			link.set(l+level, n);
 		}
 		
 		@SuppressWarnings("unchecked")
 		final public Node<K1,V1> next(int l) {
-			return l < level ? (Node<K1,V1>)link[l] : null;
+			return l < level ? (Node<K1,V1>)link.get(l) : null;
 		}
 		
 		final public void setNext(int l, Node<K1,V1> n) {
-			link[l] = n;
+			link.set(l, n);
 		}
 		
 		public void addNext(Node<K1,V1> nextNode) {
@@ -136,11 +155,14 @@ public class SkipListMap<K, V> {
 					continue;
 				}
 
+				// Fill in nextNode's own links before publishing it, so that a
+				// concurrent reader that finds nextNode through prev.next
+				// always sees valid next and prev links.
 				nextNode.setNext(l, prev.next(l)); // nextNode.next := prev.next
+				nextNode.setPrev(l, prev); //nextNode.prev := prev;
 				prev.setNext(l, nextNode); 	       // prev.next := nextNode
 				if (nextNode.next(l) != null)
 					nextNode.next(l).setPrev(l, nextNode); //nextNode.next.prev := nextNode;
-				nextNode.setPrev(l, prev); //nextNode.prev := prev;
 				
 				l++;
 			}
@@ -247,6 +269,7 @@ public class SkipListMap<K, V> {
 			Node<K,V> node = new Node<K,V>(randomLevel(), k, v);
 			result.prev.addNext(node);
 			size++;
+			memoryUsage += kNodeBytes + node.level * kLinkBytes;
 			if (node.next(0) == null)
 				tail = node;
 			return null;
@@ -264,6 +287,7 @@ public class SkipListMap<K, V> {
 		if (result.node == null) {
 			result.prev.addNext(node);
 			size++;
+			memoryUsage += kNodeBytes + node.level * kLinkBytes;
 			if (node.next(0) == null)
 				tail = node;
 			return null;
@@ -279,6 +303,7 @@ public class SkipListMap<K, V> {
 		if (result.node != null) {
 			result.node.remove();
 			size--;
+			memoryUsage -= kNodeBytes + result.node.level * kLinkBytes;
 			if (result.node.next(0) == null) {
 				tail = result.node.prev(0);
 			}
@@ -403,6 +428,14 @@ public class SkipListMap<K, V> {
 		return new DefaultIterator();
 	}
 
+	/**
+	 * Estimated heap bytes used by the nodes added with put, see kNodeBytes.
+	 * @return
+	 */
+	public long memoryUsage() {
+		return memoryUsage;
+	}
+	
 	public int size() {
 		return size;
 	}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable bundle of the memtable, the immutable memtable and the current
+ * Version, published by DBImpl through an AtomicReference so that reads can
+ * pin a consistent view without taking the DB mutex.</br>
+ * </br>
+ * 
+ * The SuperVersion holds one reference on each of its members. Its own
+ * reference count is atomic, but the members are released in cleanup(),
+ * which must run under the DB mutex because MemTable and Version reference
+ * counts are protected by it.
+ */
+public class SuperVersion {
+	final MemTable mem;
+	final MemTable imm;
+	final Version current;
+	final AtomicInteger refs = new AtomicInteger(1);
+	
+	/**
+	 * REQUIRES: DB mutex held
+	 */
+	SuperVersion(MemTable mem, MemTable imm, Version current) {
+		this.mem = mem;
+		this.imm = imm;
+		this.current = current;
+		mem.ref();
+		if (imm != null)
+			imm.ref();
+		current.ref();
+	}
+	
+	/**
+	 * Take a reference unless the SuperVersion has already been released.
+	 * @return false if the reference count had dropped to zero
+	 */
+	boolean tryRef() {
+		while (true) {
+			int r = refs.get();
+			if (r <= 0)
+				return false;
+			if (refs.compareAndSet(r, r + 1))
+				return true;
+		}
+	}
+	
+	/**
+	 * Drop a reference.
+	 * @return true if this was the last reference, the caller must then call cleanup()
+	 */
+	boolean unref() {
+		int r = refs.decrementAndGet();
+		assert(r >= 0);
+		return r == 0;
+	}
+	
+	/**
+	 * Release the members.</br>
+	 * REQUIRES: DB mutex held, reference count is zero
+	 */
+	void cleanup() {
+		mem.unref();
+		if (imm != null)
+			imm.unref();
+		current.unref();
+	}
+}
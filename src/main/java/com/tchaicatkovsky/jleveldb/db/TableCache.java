@@ -24,6 +24,8 @@
 
 package com.tchaicatkovsky.jleveldb.db;
 
+import java.util.List;
+
 import com.tchaicatkovsky.jleveldb.Env;
 import com.tchaicatkovsky.jleveldb.FileName;
 import com.tchaicatkovsky.jleveldb.Iterator0;
@@ -96,7 +98,7 @@ public class TableCache {
 		env = options.env;
 		this.dbname = dbname;
 		this.options = options.cloneOptions();
-		cache = Cache.newLRUCache(entries);
+		cache = Cache.newClockCache(entries);
 	}
 
 	public void delete() {
@@ -114,15 +116,16 @@ public class TableCache {
 	 * @param options
 	 * @param fileNumber
 	 * @param fileSize
+	 * @param level level of the file, or -1 if unknown
 	 * @param table0
 	 * @return
 	 */
-	public Iterator0 newIterator(ReadOptions options, long fileNumber, long fileSize, Object0<Table> table0) {
+	public Iterator0 newIterator(ReadOptions options, long fileNumber, long fileSize, int level, Object0<Table> table0) {
 		if (table0 != null)
 			table0.setValue(null);
 
 		Object0<Cache.Handle> handle0 = new Object0<>();
-		Status s = findTable(fileNumber, fileSize, handle0);
+		Status s = findTable(fileNumber, fileSize, level, handle0);
 		
 		if (!s.ok())
 			return Iterator0.newErrorIterator(s);
@@ -140,8 +143,16 @@ public class TableCache {
 		return result;
 	}
 
+	public Iterator0 newIterator(ReadOptions options, long fileNumber, long fileSize, Object0<Table> table0) {
+		return newIterator(options, fileNumber, fileSize, -1, table0);
+	}
+	
+	public Iterator0 newIterator(ReadOptions options, long fileNumber, long fileSize, int level) {
+		return newIterator(options, fileNumber, fileSize, level, null);
+	}
+
 	public Iterator0 newIterator(ReadOptions options, long fileNumber, long fileSize) {
-		return newIterator(options, fileNumber, fileSize, null);
+		return newIterator(options, fileNumber, fileSize, -1, null);
 	}
 
 	/**
@@ -151,15 +162,16 @@ public class TableCache {
 	 * @param options
 	 * @param fileNumber
 	 * @param fileSize
+	 * @param level level of the file, or -1 if unknown
 	 * @param k
 	 * @param arg
 	 * @param saver
 	 * @return
 	 */
-	public Status get(ReadOptions options, long fileNumber, long fileSize, Slice k, Object arg, Table.HandleResult saver) {
+	public Status get(ReadOptions options, long fileNumber, long fileSize, int level, Slice k, Object arg, Table.HandleResult saver) {
 
 		Object0<Cache.Handle> handle0 = new Object0<Cache.Handle>();
-		Status s = findTable(fileNumber, fileSize, handle0);
+		Status s = findTable(fileNumber, fileSize, level, handle0);
 
 		if (s.ok()) {
 			Cache.Handle handle = handle0.getValue();
@@ -170,6 +182,33 @@ public class TableCache {
 		return s;
 	}
 
+	/**
+	 * Batched version of get: the table is looked up once and saver.run(args.get(i),
+	 * foundKey, foundValue) is called for every ks.get(i) that finds an entry.
+	 * ks must be sorted by the internal key order.
+	 *
+	 * @param options
+	 * @param fileNumber
+	 * @param fileSize
+	 * @param level level of the file, or -1 if unknown
+	 * @param ks
+	 * @param args
+	 * @param saver
+	 * @return
+	 */
+	public Status multiGet(ReadOptions options, long fileNumber, long fileSize, int level, List<Slice> ks,
+			List<Object> args, Table.HandleResult saver) {
+		Object0<Cache.Handle> handle0 = new Object0<Cache.Handle>();
+		Status s = findTable(fileNumber, fileSize, level, handle0);
+
+		if (s.ok()) {
+			Cache.Handle handle = handle0.getValue();
+			Table t = ((TableAndFile) cache.value(handle)).table;
+			s = t.multiGet(options, ks, args, saver);
+			cache.release(handle);
+		}
+		return s;
+	}
 
 	/**
 	 *  Evict any entry for the specified file number
@@ -182,7 +221,18 @@ public class TableCache {
 	}
 
 
-	Status findTable(long fileNumber, long fileSize, Object0<Cache.Handle> handle) {
+	/**
+	 * Find the table in the cache, opening it on a miss. The index and filter 
+	 * blocks of a table opened as part of level 0 stay pinned in the block cache 
+	 * if options.pinL0FilterAndIndexBlocksInCache is set.
+	 * 
+	 * @param fileNumber
+	 * @param fileSize
+	 * @param level
+	 * @param handle
+	 * @return
+	 */
+	Status findTable(long fileNumber, long fileSize, int level, Object0<Cache.Handle> handle) {
 		Status s = Status.ok0();
 		byte buf[] = new byte[kUint64Size];
 		Coding.encodeFixedNat64(buf, 0, fileNumber);
@@ -195,17 +245,18 @@ public class TableCache {
 			String fname = FileName.getTableFileName(dbname, fileNumber);
 			Object0<RandomAccessFile0> file0 = new Object0<RandomAccessFile0>();
 
-			s = env.newRandomAccessFile(fname, file0);
+			s = env.newRandomAccessFile(fname, options.allowMmapReads, file0);
 			if (!s.ok()) {
 				String oldFname = FileName.getSSTTableFileName(dbname, fileNumber);
-				if (env.newRandomAccessFile(oldFname, file0).ok()) {
+				if (env.newRandomAccessFile(oldFname, options.allowMmapReads, file0).ok()) {
 					s = Status.ok0();
 				}
 			}
 
 			Object0<Table> table0 = new Object0<Table>();
 			if (s.ok())
-				s = Table.open(options, file0.getValue(), fileSize, table0);
+				s = Table.open(options, file0.getValue(), fileSize, 
+						level == 0 && options.pinL0FilterAndIndexBlocksInCache, table0);
 
 			if (!s.ok()) {
 				assert (table0.getValue() == null);
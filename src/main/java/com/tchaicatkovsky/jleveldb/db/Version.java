@@ -136,25 +136,67 @@ public class Version implements ReferenceCounted {
 	}
 
 	public void addIterators(ReadOptions options, List<Iterator0> iters) {
-		// Merge all level zero files together since they may overlap
-		for (int i = 0; i < levelFiles(0).size(); i++)
-			iters.add(vset.tableCache.newIterator(options, levelFiles(0).get(i).number, levelFiles(0).get(i).fileSize));
+		// Merge all level zero files together since they may overlap. Files
+		// wholly outside the iterate bounds are left out.
+		Comparator0 ucmp = vset.icmp.userComparator();
+		for (int i = 0; i < levelFiles(0).size(); i++) {
+			FileMetaData f = levelFiles(0).get(i);
+			if (!VersionSetGlobal.afterFile(ucmp, options.iterateLowerBound, f) && 
+					(options.iterateUpperBound == null || ucmp.compare(f.smallest.userKey(), options.iterateUpperBound) < 0))
+				iters.add(vset.tableCache.newIterator(options, f.number, f.fileSize, 0));
+		}
 
 		// For levels > 0, we can use a concatenating iterator that sequentially
 		// walks through the non-overlapping files in the level, opening them
 		// lazily.
 		for (int level = 1; level < DBFormat.kNumLevels; level++) {
-			if (!levelFiles(level).isEmpty())
-				iters.add(newConcatenatingIterator(options, level));
+			ArrayList<FileMetaData> files = filesInBounds(options, level);
+			if (!files.isEmpty())
+				iters.add(newConcatenatingIterator(options, level, files));
+		}
+	}
+	
+	/**
+	 * Return the files of level > 0 that overlap the user key range 
+	 * [options.iterateLowerBound, options.iterateUpperBound).
+	 * 
+	 * @param options
+	 * @param level
+	 * @return
+	 */
+	ArrayList<FileMetaData> filesInBounds(ReadOptions options, int level) {
+		ArrayList<FileMetaData> files = levelFiles(level);
+		if (options.iterateLowerBound == null && options.iterateUpperBound == null)
+			return files;
+		
+		int begin = 0;
+		if (options.iterateLowerBound != null) {
+			InternalKey small = new InternalKey(options.iterateLowerBound, DBFormat.kMaxSequenceNumber, DBFormat.kValueTypeForSeek);
+			begin = VersionSetGlobal.findFile(vset.icmp, files, small.encode());
 		}
+		int end = begin;
+		Comparator0 ucmp = vset.icmp.userComparator();
+		while (end < files.size() && (options.iterateUpperBound == null || 
+				ucmp.compare(files.get(end).smallest.userKey(), options.iterateUpperBound) < 0))
+			end++;
+		return new ArrayList<>(files.subList(begin, end));
 	}
 
 	public Iterator0 newConcatenatingIterator(ReadOptions options, int level) {
+		return newConcatenatingIterator(options, level, levelFiles(level));
+	}
+	
+	Iterator0 newConcatenatingIterator(ReadOptions options, int level, ArrayList<FileMetaData> files) {
+		// With a prefix bound the files past the prefix of the seek target are not opened
+		TwoLevelIterator.PrefixBound prefixBound = (options.prefixSameAsStart && vset.options.prefixExtractor != null) ?
+				new TwoLevelIterator.PrefixBound(vset.options.prefixExtractor, vset.icmp) : null;
 		return TwoLevelIterator.newTwoLevelIterator(
-				new LevelFileNumIterator(vset.icmp, level, levelFiles(level)), 
+				new LevelFileNumIterator(vset.icmp, level, files), 
 				VersionSetGlobal.getFileIterator, 
 				vset.tableCache, 
-				options);
+				options,
+				vset.icmp,
+				prefixBound);
 	}
 
 	static Comparator<FileMetaData> newestFirst = new Comparator<FileMetaData>() {
@@ -257,7 +299,7 @@ public class Version implements ReferenceCounted {
 				lastFileReadLevel = level;
 
 				Saver saver = new Saver(SaverState.kNotFound, ucmp, userKey, value);
-				s = vset.tableCache.get(options, f.number, f.fileSize, ikey, saver, valueSaver);
+				s = vset.tableCache.get(options, f.number, f.fileSize, level, ikey, saver, valueSaver);
 				if (!s.ok()) {
 					return s;
 				}
@@ -280,6 +322,170 @@ public class Version implements ReferenceCounted {
 		return Status.notFound();
 	}
 
+	/**
+	 * Lookup a batch of keys. For every i, statuses.get(i) is set the way get
+	 * would return it for lkeys.get(i) and values.get(i) receives the value if
+	 * found.</br>
+	 * </br>
+	 *
+	 * lkeys must be sorted by user key. Each level is probed once for the whole
+	 * batch: the keys that fall into the same file are looked up together, so the
+	 * file's table is found once and keys sharing a data block read it once.</br>
+	 * </br>
+	 *
+	 * <b>REQUIRES: lock is not held</b>
+	 *
+	 * @param options
+	 * @param lkeys
+	 * @param values
+	 *            [OUTPUT]
+	 * @param statuses
+	 *            [OUTPUT]
+	 * @param stats
+	 *            [OUTPUT]
+	 */
+	public void multiGet(ReadOptions options, List<LookupKey> lkeys, List<ByteBuf> values, List<Status> statuses, GetStats stats) {
+		MultiGetState state = new MultiGetState(options, lkeys, values, statuses, stats);
+		InternalKeyComparator icmp = vset.icmp;
+		Comparator0 ucmp = icmp.userComparator();
+
+		// Keys not resolved yet, in sorted order
+		ArrayList<Integer> pending = new ArrayList<Integer>(lkeys.size());
+		for (int i = 0; i < lkeys.size(); i++) {
+			statuses.set(i, Status.notFound());
+			pending.add(i);
+		}
+
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int level = 0; level < DBFormat.kNumLevels && !pending.isEmpty(); level++) {
+			ArrayList<FileMetaData> files = levelFiles(level);
+			if (files.isEmpty())
+				continue;
+
+			if (level == 0) {
+				// Level-0 files may overlap each other, search them from newest to oldest
+				// with the keys that are still unresolved.
+				ArrayList<FileMetaData> tmp = new ArrayList<FileMetaData>(files);
+				Collections.sort(tmp, newestFirst);
+				for (FileMetaData f : tmp) {
+					batch.clear();
+					for (int idx : pending) {
+						Slice userKey = lkeys.get(idx).userKey();
+						if (!state.done[idx] && ucmp.compare(userKey, f.smallest.userKey()) >= 0 &&
+								ucmp.compare(userKey, f.largest.userKey()) <= 0)
+							batch.add(idx);
+					}
+					if (!batch.isEmpty())
+						state.lookup(f, level, batch);
+				}
+			} else {
+				// Files are sorted and disjoint, walk them together with the sorted keys.
+				int i = 0;
+				while (i < pending.size()) {
+					int index = VersionSetGlobal.findFile(icmp, files, lkeys.get(pending.get(i)).internalKey());
+					if (index >= files.size())
+						break; // The remaining keys are past the last file
+					FileMetaData f = files.get(index);
+					batch.clear();
+					for (; i < pending.size(); i++) {
+						LookupKey lkey = lkeys.get(pending.get(i));
+						if (icmp.compare(lkey.internalKey(), f.largest.encode()) > 0)
+							break;
+						if (ucmp.compare(lkey.userKey(), f.smallest.userKey()) >= 0)
+							batch.add(pending.get(i));
+					}
+					if (!batch.isEmpty())
+						state.lookup(f, level, batch);
+				}
+			}
+
+			int n = 0;
+			for (int idx : pending) {
+				if (!state.done[idx])
+					pending.set(n++, idx);
+			}
+			pending.subList(n, pending.size()).clear();
+		}
+	}
+
+	/**
+	 * Per-key bookkeeping of a multiGet.
+	 */
+	class MultiGetState {
+		ReadOptions options;
+		List<LookupKey> lkeys;
+		List<ByteBuf> values;
+		List<Status> statuses;
+		GetStats stats;
+		boolean[] done;
+		FileMetaData[] lastFileRead;
+		int[] lastFileReadLevel;
+		ArrayList<Slice> keys = new ArrayList<Slice>();
+		ArrayList<Object> savers = new ArrayList<Object>();
+
+		MultiGetState(ReadOptions options, List<LookupKey> lkeys, List<ByteBuf> values, List<Status> statuses, GetStats stats) {
+			this.options = options;
+			this.lkeys = lkeys;
+			this.values = values;
+			this.statuses = statuses;
+			this.stats = stats;
+			done = new boolean[lkeys.size()];
+			lastFileRead = new FileMetaData[lkeys.size()];
+			lastFileReadLevel = new int[lkeys.size()];
+			stats.seekFile = null;
+			stats.seekFileLevel = -1;
+		}
+
+		/**
+		 * Search file f for the keys at the indexes in batch, resolving those
+		 * that find an entry.
+		 */
+		void lookup(FileMetaData f, int level, List<Integer> batch) {
+			Comparator0 ucmp = vset.icmp.userComparator();
+			keys.clear();
+			savers.clear();
+			for (int idx : batch) {
+				if (lastFileRead[idx] != null && stats.seekFile == null) {
+					// We have had more than one seek for this key. Charge the 1st file.
+					stats.seekFile = lastFileRead[idx];
+					stats.seekFileLevel = lastFileReadLevel[idx];
+				}
+				lastFileRead[idx] = f;
+				lastFileReadLevel[idx] = level;
+
+				LookupKey lkey = lkeys.get(idx);
+				keys.add(lkey.internalKey());
+				savers.add(new Saver(SaverState.kNotFound, ucmp, lkey.userKey(), values.get(idx)));
+			}
+
+			Status s = vset.tableCache.multiGet(options, f.number, f.fileSize, level, keys, savers, valueSaver);
+			for (int j = 0; j < batch.size(); j++) {
+				int idx = batch.get(j);
+				if (!s.ok()) {
+					statuses.set(idx, s);
+					done[idx] = true;
+					continue;
+				}
+				Saver saver = (Saver) savers.get(j);
+				switch (saver.state) {
+				case kNotFound:
+					break; // Keep searching in other files
+				case kFound:
+					statuses.set(idx, Status.ok0());
+					done[idx] = true;
+					break;
+				case kDeleted:
+					done[idx] = true;
+					break;
+				case kCorrupt:
+					statuses.set(idx, Status.corruption("corrupted key for " + saver.userKey.encodeToString()));
+					done[idx] = true;
+					break;
+				}
+			}
+		}
+	}
+
 	enum SaverState {
 		kNotFound, kFound, kDeleted, kCorrupt
 	};
@@ -50,6 +50,7 @@ import com.tchaicatkovsky.jleveldb.table.TwoLevelIterator;
 import com.tchaicatkovsky.jleveldb.util.Boolean0;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.CondVar;
 import com.tchaicatkovsky.jleveldb.util.IntLongPair;
 import com.tchaicatkovsky.jleveldb.util.ListUtils;
 import com.tchaicatkovsky.jleveldb.util.Long0;
@@ -79,7 +80,7 @@ public class VersionSet {
 	InternalKeyComparator icmp;
 	long nextFileNumber;
 	long manifestFileNumber;
-	long lastSequence;
+	volatile long lastSequence;
 	long logNumber;
 	long prevLogNumber;  // 0 or backing store for memtable being compacted
 	
@@ -101,6 +102,17 @@ public class VersionSet {
 	 */
 	ByteBuf[] compactPointer = new ByteBuf[DBFormat.kNumLevels];
 	
+	/**
+	 * Numbers of the input files of the running compactions
+	 */
+	TreeSet<Long> filesBeingCompacted = new TreeSet<>();
+	
+	/**
+	 * Set while a logAndApply() call has released mu to write the MANIFEST
+	 */
+	boolean manifestWriting;
+	CondVar manifestCv;
+	
 	public VersionSet(String dbname, Options options, TableCache tableCache, InternalKeyComparator cmp) {
 		env = options.env;
 	    this.dbname = dbname;
@@ -341,13 +353,41 @@ public class VersionSet {
 	 * </br></br>
 	 * 
 	 * REQUIRES: mu is held on entry.</br>
-	 * REQUIRES: no other thread concurrently calls logAndApply()
+	 * Concurrent callers (a memtable flush and several compactions) are applied one
+	 * at a time, so each edit is applied to the version installed by the previous one.
 	 * 
 	 * @param edit
 	 * @param mu
 	 * @return
 	 */
 	public Status logAndApply(VersionEdit edit, Mutex mu) {
+		if (manifestCv == null)
+			manifestCv = mu.newCondVar();
+		awaitManifestWrite();
+		manifestWriting = true;
+		try {
+			return logAndApply0(edit, mu);
+		} finally {
+			manifestWriting = false;
+			manifestCv.signalAll();
+		}
+	}
+	
+	/**
+	 * Wait until no logAndApply() call is writing the MANIFEST.</br>
+	 * REQUIRES: mu is held.
+	 */
+	void awaitManifestWrite() {
+		while (manifestWriting) {
+			try {
+				manifestCv.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	Status logAndApply0(VersionEdit edit, Mutex mu) {
 		if (edit.hasLogNumber) {
 			assert(edit.logNumber >= logNumber);
 			assert(edit.logNumber < nextFileNumber);
@@ -672,45 +712,86 @@ public class VersionSet {
 	
 
 	/**
-	 * Pick level and inputs for a new compaction.
+	 * Pick level and inputs for a new compaction. Files that are inputs of a running
+	 * compaction are never picked again, so with several background threads this may
+	 * be called while other compactions are still in progress.
 	 * 
 	 * @return Returns null if there is no compaction to be done.
 	 */
 	public Compaction pickCompaction() {
-		Compaction c;
-		int level;
+		// Build on top of any version that is being installed right now
+		awaitManifestWrite();
+
+		Compaction c = null;
 
 		// We prefer compactions triggered by too much data in a level over
 		// the compactions triggered by seeks.
 		final boolean sizeCompaction = (current.compactionScore >= 1.0);
 		final boolean seekCompaction = (current.fileToCompact != null);
 		if (sizeCompaction) {
-		    level = current.compactionLevel;
-		    assert(level >= 0);
-		    assert(level+1 < DBFormat.kNumLevels);
-		    c = new Compaction(options, level);
-
-		    // Pick the first file that comes after compactPointer[level]
-		    for (int i = 0; i < current.levelFiles(level).size(); i++) {
-		    	FileMetaData f = current.levelFiles(level).get(i);
-		    	if (compactPointer[level].empty() ||
-		    			icmp.compare(f.largest.encode(), compactPointer[level]) > 0) {
-		    		c.input(0).add(f);
-		    		break;
-		    	}
-		    }
-		    if (c.input(0).isEmpty()) {
-		    	// Wrap-around to the beginning of the key space
-		    	c.input(0).add(current.levelFiles(level).get(0));
-		    }
-		} else if (seekCompaction) {
-		    level = current.fileToCompactLevel;
-		    c = new Compaction(options, level);
+			assert(current.compactionLevel >= 0);
+			assert(current.compactionLevel+1 < DBFormat.kNumLevels);
+			c = pickSizeCompaction(current.compactionLevel);
+			
+			// The best level may be busy, try the other levels that need a compaction
+			for (int level = 0; c == null && level < DBFormat.kNumLevels-1; level++) {
+				if (level != current.compactionLevel && levelScore(current, level) >= 1.0)
+					c = pickSizeCompaction(level);
+			}
+		}
+		if (c == null && seekCompaction && !beingCompacted(current.fileToCompact)) {
+		    c = new Compaction(options, current.fileToCompactLevel);
 		    c.input(0).add(current.fileToCompact);
-		} else {
-		    return null;
+		    c = setupInputs(c);
 		}
 
+		return c;
+	}
+	
+	/**
+	 * Pick the first file that comes after compactPointer[level] and is not being
+	 * compacted yet, wrapping around to the beginning of the key space.
+	 * 
+	 * @param level
+	 * @return null if every candidate conflicts with a running compaction
+	 */
+	Compaction pickSizeCompaction(int level) {
+		ArrayList<FileMetaData> files = current.levelFiles(level);
+		if (files.isEmpty() || (level == 0 && levelBeingCompacted(0)))
+			return null;
+		
+		int start = 0;
+		for (; start < files.size(); start++) {
+			FileMetaData f = files.get(start);
+			if (compactPointer[level].empty() ||
+					icmp.compare(f.largest.encode(), compactPointer[level]) > 0)
+				break;
+		}
+		
+		for (int n = 0; n < files.size(); n++) {
+			FileMetaData f = files.get((start + n) % files.size());
+			if (beingCompacted(f))
+				continue;
+			
+			Compaction c = new Compaction(options, level);
+			c.input(0).add(f);
+			c = setupInputs(c);
+			if (c != null || level == 0) {
+				// All level-0 candidates expand to overlapping sets, one try is enough
+				return c;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Complete the inputs of a compaction that holds its first input file.
+	 * 
+	 * @param c
+	 * @return c, or null (and c is deleted) if any of the inputs is already being compacted
+	 */
+	Compaction setupInputs(Compaction c) {
+		int level = c.level();
 		c.inputVersion = current;
 		c.inputVersion.ref();
 
@@ -727,10 +808,60 @@ public class VersionSet {
 		}
 
 		setupOtherInputs(c);
+		
+		if ((level == 0 && levelBeingCompacted(0)) || inputsBeingCompacted(c)) {
+			c.delete();
+			return null;
+		}
 
 		return c;
 	}
 	
+	boolean beingCompacted(FileMetaData f) {
+		return filesBeingCompacted.contains(f.number);
+	}
+	
+	boolean levelBeingCompacted(int level) {
+		if (filesBeingCompacted.isEmpty())
+			return false;
+		for (FileMetaData f : current.levelFiles(level)) {
+			if (beingCompacted(f))
+				return true;
+		}
+		return false;
+	}
+	
+	boolean inputsBeingCompacted(Compaction c) {
+		if (filesBeingCompacted.isEmpty())
+			return false;
+		for (int which = 0; which < 2; which++) {
+			for (int i = 0; i < c.numInputFiles(which); i++) {
+				if (beingCompacted(c.input(which, i)))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Record whether the input files of c belong to a running compaction. 
+	 * pickCompaction() skips such files.
+	 * 
+	 * @param c
+	 * @param b
+	 */
+	public void markBeingCompacted(Compaction c, boolean b) {
+		for (int which = 0; which < 2; which++) {
+			for (int i = 0; i < c.numInputFiles(which); i++) {
+				long number = c.input(which, i).number;
+				if (b)
+					filesBeingCompacted.add(number);
+				else
+					filesBeingCompacted.remove(number);
+			}
+		}
+	}
+	
 	/**
 	 * Return a compaction object for compacting the range [begin,end] in
 	 * the specified level. Caller should delete
@@ -759,6 +890,8 @@ public class VersionSet {
 		}
 	}
 	public Compaction compactRange(int level, InternalKey begin, InternalKey end) {
+		awaitManifestWrite();
+		
 		ArrayList<FileMetaData> inputs = new ArrayList<FileMetaData>();
 		current.getOverlappingInputs(level, begin, end, inputs);
 		if (inputs.isEmpty()) {
@@ -821,6 +954,7 @@ public class VersionSet {
 		ReadOptions opt = new ReadOptions();
 		opt.verifyChecksums = options.paranoidChecks;
 		opt.fillCache = false;
+		opt.readaheadSize = options.compactionReadaheadSize;
 
 		// Level-0 files have to be merged together.  For other levels,
 		// we will make a concatenating iterator per level.
@@ -833,7 +967,7 @@ public class VersionSet {
 		    	if (c.level() + which == 0) {
 		    		final ArrayList<FileMetaData> files = c.input(which);
 		    		for (int i = 0; i < files.size(); i++) {
-		    			list.add( tableCache.newIterator(opt, files.get(i).number, files.get(i).fileSize) );
+		    			list.add( tableCache.newIterator(opt, files.get(i).number, files.get(i).fileSize, 0) );
 		    		}
 		    	} else {
 		    		// Create concatenating iterator for the files from this level
@@ -964,27 +1098,7 @@ public class VersionSet {
 		double bestScore = -1.0;
 
 		for (int level = 0; level < DBFormat.kNumLevels-1; level++) {
-		    double score;
-		    if (level == 0) {
-		      // We treat level-0 specially by bounding the number of files
-		      // instead of number of bytes for two reasons:
-		      //
-		      // (1) With larger write-buffer sizes, it is nice not to do too
-		      // many level-0 compactions.
-		      //
-		      // (2) The files in level-0 are merged on every read and
-		      // therefore we wish to avoid too many files when the individual
-		      // file size is small (perhaps because of a small write-buffer
-		      // setting, or very high compression ratios, or lots of
-		      // overwrites/deletions).
-		      score = v.levelFiles(level).size() /
-		          (double)(DBFormat.kL0_CompactionTrigger);
-		    } else {
-		    	// Compute the ratio of current size to size limit.
-		    	long levelBytes = VersionSetGlobal.totalFileSize(v.levelFiles(level));
-		    	score = (double)(levelBytes) / VersionSetGlobal.maxBytesForLevel(options, level);
-		    }
-
+		    double score = levelScore(v, level);
 		    if (score > bestScore) {
 		    	bestLevel = level;
 		    	bestScore = score;
@@ -995,6 +1109,31 @@ public class VersionSet {
 		v.compactionScore = bestScore;
 	}
 	
+	double levelScore(Version v, int level) {
+		double score;
+		if (level == 0) {
+			// We treat level-0 specially by bounding the number of files
+			// instead of number of bytes for two reasons:
+			//
+			// (1) With larger write-buffer sizes, it is nice not to do too
+			// many level-0 compactions.
+			//
+			// (2) The files in level-0 are merged on every read and
+			// therefore we wish to avoid too many files when the individual
+			// file size is small (perhaps because of a small write-buffer
+			// setting, or very high compression ratios, or lots of
+			// overwrites/deletions).
+			score = v.levelFiles(level).size() /
+			    (double)(DBFormat.kL0_CompactionTrigger);
+		} else {
+			// Compute the ratio of current size to size limit.
+			long levelBytes = VersionSetGlobal.totalFileSize(v.levelFiles(level));
+			score = (double)(levelBytes) / VersionSetGlobal.maxBytesForLevel(options, level);
+		}
+
+		return score;
+	}
+	
 	void getRange(ArrayList<FileMetaData> inputs,
             InternalKey smallest,
             InternalKey largest) {
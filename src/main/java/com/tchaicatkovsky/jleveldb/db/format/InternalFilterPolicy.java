@@ -56,10 +56,22 @@ public class InternalFilterPolicy extends FilterPolicy {
 		userPolicy.createFilter(keys, dst);
 	}
 	
+	public void createFilter(List<Slice> keys, List<Slice> prefixes, ByteBuf dst) {
+		// Prefixes are taken from user keys already
+		int n = keys.size();
+		for (int i = 0; i < n; i++)
+			keys.set(i, DBFormat.extractUserKey(keys.get(i)));
+		userPolicy.createFilter(keys, prefixes, dst);
+	}
+	
 	public boolean keyMayMatch(Slice key, Slice f) {
 		return userPolicy.keyMayMatch(DBFormat.extractUserKey(key), f);
 	}
 	
+	public boolean prefixMayMatch(Slice prefix, Slice f) {
+		return userPolicy.prefixMayMatch(prefix, f);
+	}
+	
 	public void delete() {
 		if (userPolicy != null)
 			userPolicy.delete();
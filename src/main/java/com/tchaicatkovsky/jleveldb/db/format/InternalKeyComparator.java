@@ -108,6 +108,19 @@ public class InternalKeyComparator extends Comparator0 {
 		}
 	}
 
+	/**
+	 * Lookups match on the user key, whatever the sequence number and type.
+	 */
+	@Override
+	public int lookupKeyLength(byte[] data, int offset, int size) {
+		return size >= 8 ? size - 8 : size;
+	}
+	
+	public int compareLookupKey(Slice key, Slice userKey) {
+		return userComparator.compare(key.data(), key.offset(), key.size() - 8, 
+				userKey.data(), userKey.offset(), userKey.size());
+	}
+
 	public Comparator0 userComparator() {
 		return userComparator;
 	}
@@ -29,16 +29,34 @@ import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.table.TableFormat.BlockContents;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.ByteUtils;
 import com.tchaicatkovsky.jleveldb.util.Coding;
 import com.tchaicatkovsky.jleveldb.util.Comparator0;
-import com.tchaicatkovsky.jleveldb.util.Integer0;
+import com.tchaicatkovsky.jleveldb.util.Hash;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 
 public class Block {
+	/**
+	 * Data blocks may carry a hash index between the restart array and the footer:</br>
+	 *   buckets: uint8[numBuckets], the restart index of the keys hashing into a 
+	 *   bucket, kNoEntry or kCollision</br>
+	 *   numBuckets: fixed16</br>
+	 * kHashIndexFlag is then set in the fixed32 footer that holds the number of restarts.
+	 */
+	static final long kHashIndexFlag = 1L << 31;
+	static final int kNoEntry = 255;
+	static final int kCollision = 254;
+	static final int kMaxRestartSupportedByHashIndex = 253;
+	static final int kMaxNumBuckets = 0xffff;
+	static final long kHashIndexSeed = 0x2f9a5c1bL;
+	
 	Slice data;
 	int size;
 	int restartOffset;
+	int numRestarts;
+	int hashIndexOffset;
+	int numBuckets; // 0 if the block has no hash index
 	boolean owned;
 	
 	public Block(BlockContents contents) {
@@ -48,12 +66,29 @@ public class Block {
 		if (data.size() < 4) {
 			size = 0; //Error marker
 		} else {
-			int maxRestartsAllowed = (size - 4) / 4;
-			if (numRestarts() > maxRestartsAllowed) {
+			byte[] d = data.data();
+			int offset = data.offset();
+			long footer = Coding.decodeFixedNat32Long(d, offset + size - 4);
+			numRestarts = (int) (footer & (kHashIndexFlag - 1));
+			int end = size - 4; // End of the restart array
+			if ((footer & kHashIndexFlag) != 0) {
+				if (end >= 2) {
+					numBuckets = (d[offset + end - 2] & 0xff) | ((d[offset + end - 1] & 0xff) << 8);
+					end -= 2 + numBuckets;
+				}
+				if (end < 0 || numBuckets == 0) {
+					numBuckets = 0;
+					size = 0;
+					return;
+				}
+				hashIndexOffset = offset + end;
+			}
+			int maxRestartsAllowed = end / 4;
+			if (numRestarts > maxRestartsAllowed) {
 				// The size is too small for NumRestarts()
 				size = 0;
 			} else {
-			    restartOffset = data.offset() + size - (1 + numRestarts()) * 4;
+			    restartOffset = offset + end - numRestarts * 4;
 		    }
 		}
 	}
@@ -70,19 +105,68 @@ public class Block {
 		if (size < 4) {
 		    return Iterator0.newErrorIterator(Status.corruption("bad block contents"));
 		}
-		int numRestarts = numRestarts();
 		if (numRestarts == 0) {
 			return Iterator0.newEmptyIterator();
 		} else {
-		    return new Iter(comparator, data.data(), data.offset(), restartOffset, numRestarts);
+		    return new Iter(comparator, data.data(), data.offset(), restartOffset, numRestarts, 
+		    		hashIndexOffset, numBuckets);
 		}
 	}
 	
+	/**
+	 * Point iter at the entries of this block, as newIterator() would, so that point 
+	 * lookups can reuse one iterator instead of allocating a new one per block.
+	 * 
+	 * @param iter
+	 * @param comparator
+	 * @return false, leaving iter untouched, if newIterator() would not return an 
+	 * Iter because the block is corrupted or empty
+	 */
+	boolean resetIterator(Iter iter, Comparator0 comparator) {
+		if (size < 4 || numRestarts == 0)
+			return false;
+		iter.reset(comparator, data.data(), data.offset(), restartOffset, numRestarts, 
+				hashIndexOffset, numBuckets);
+		return true;
+	}
+	
 	int numRestarts() {
 		assert(size >= 4);
-		return Coding.decodeFixedNat32(data.data(), data.offset() + size - 4);
+		return numRestarts;
+	}
+	
+	/**
+	 * True if the block carries a hash index for point lookups.
+	 */
+	public boolean hasHashIndex() {
+		return numBuckets > 0;
+	}
+	
+	static long hashIndexKey(byte[] data, int offset, int size) {
+		return Hash.hash0(data, offset, size, kHashIndexSeed);
+	}
+	
+	/**
+	 * Position iter for a point lookup of target: same as iter.seek(target), except 
+	 * that iter may be left invalid if the block has no entry with the lookup key of 
+	 * target, see {@link Iter#seekForGet}.
+	 * 
+	 * @param iter
+	 * @param target
+	 */
+	static void seekForGet(Iterator0 iter, Slice target) {
+		if (iter instanceof Iter)
+			((Iter) iter).seekForGet(target);
+		else
+			iter.seek(target);
 	}
 	
+	/**
+	 * Iterator over the entries of a block. Positioning the iterator and reading 
+	 * key() and value() do not allocate: entries are decoded into primitive fields, 
+	 * and key() and value() return views that are reused by the iterator, so they 
+	 * are only valid until the iterator is moved.
+	 */
 	static class Iter extends Iterator0 {
 		
 		Comparator0 comparator;
@@ -95,35 +179,82 @@ public class Block {
 		int current;
 		int restartIndex;  // Index of restart block in which current falls
 		ByteBuf key;
+		Slice keyView;     // View of key returned by key()
 		Slice value;
+		Slice midKey;      // Restart point key during the binary search of seek()
 		Status status;
 		
+		int hashIndexOffset;    // Offset of the hash index buckets
+		int numBuckets;         // 0 if the block has no hash index
+		
+		// Header of the entry last decoded by decodeEntry()
+		int shared;
+		int nonShared;
+		int valueLength;
+		
+		/**
+		 * An iterator that is not over any block yet, see {@link Block#resetIterator}.
+		 */
+		Iter() {
+			key = ByteBufFactory.newUnpooled();
+			keyView = SliceFactory.newUnpooled();
+			value = SliceFactory.newUnpooled();
+			midKey = SliceFactory.newUnpooled();
+			status = Status.ok0();
+		}
+		
 		public Iter(Comparator0 comparator,
 			       byte[] data,
 			       int dataOffset,
 			       int restartsOffset,
-			       int numRestarts) {
+			       int numRestarts,
+			       int hashIndexOffset,
+			       int numBuckets) {
+			this();
+			reset(comparator, data, dataOffset, restartsOffset, numRestarts, hashIndexOffset, numBuckets);
+		}
+		
+		/**
+		 * Start over on the given block contents, the iterator is left invalid.
+		 */
+		void reset(Comparator0 comparator, byte[] data, int dataOffset, int restartsOffset,
+				int numRestarts, int hashIndexOffset, int numBuckets) {
 			this.comparator = comparator;
 			this.data = data;
 			this.dataOffset = dataOffset;
 			this.restartsOffset = restartsOffset;
 			this.numRestarts = numRestarts;
+			this.hashIndexOffset = hashIndexOffset;
+			this.numBuckets = numBuckets;
 			
 			this.current = restartsOffset;
 			this.restartIndex = numRestarts;
-			key = ByteBufFactory.newUnpooled();
-			value = SliceFactory.newUnpooled(data, dataOffset, 0);
+			key.clear();
+			value.init(data, dataOffset, 0);
 			assert(this.numRestarts > 0);
 			this.status = Status.ok0();
 		}
 		
+		/**
+		 * Drop the references to the block contents, so that a reused iterator does 
+		 * not keep a block alive after it was released.
+		 */
+		void detach() {
+			data = null;
+			keyView.clear();
+			value.clear();
+			midKey.clear();
+		}
+		
 		
 		public void delete() {
 			super.delete();
 			comparator = null;
 			data = null;
 			key = null;
+			keyView = null;
 			value = null;
+			midKey = null;
 		}
 		
 		final int compare(Slice a, Slice b) {
@@ -155,7 +286,49 @@ public class Block {
 
 		    // parseNextKey() starts at the end of value, so set value accordingly
 		    int offset = getRestartPoint(index);
-		    value = SliceFactory.newUnpooled(data, offset, 0);
+		    value.init(data, offset, 0);
+		}
+		
+		/**
+		 * Decode the header of the entry at data[p, limit) into shared, nonShared 
+		 * and valueLength.
+		 * 
+		 * @param p
+		 * @param limit
+		 * @return the offset of the key delta of the entry, or -1 if the entry is corrupted
+		 */
+		final int decodeEntry(int p, int limit) {
+			if (limit - p < 3)
+				return -1;
+			
+			shared = data[p] & 0x0ff;
+			nonShared = data[p+1] & 0x0ff;
+			valueLength = data[p+2] & 0x0ff;
+			
+			if ((shared | nonShared | valueLength) < 128) {
+				// Fast path: all three values are encoded in one byte each
+				p += 3;
+			} else {
+				long r = Coding.decodeVarNat32(data, p, limit);
+				if (r < 0)
+					return -1;
+				shared = (int) r;
+				r = Coding.decodeVarNat32(data, (int) (r >>> 32), limit);
+				if (r < 0)
+					return -1;
+				nonShared = (int) r;
+				r = Coding.decodeVarNat32(data, (int) (r >>> 32), limit);
+				if (r < 0)
+					return -1;
+				valueLength = (int) r;
+				p = (int) (r >>> 32);
+			}
+			
+			if (shared < 0 || nonShared < 0 || valueLength < 0 || 
+					limit - p < (long) nonShared + valueLength) {
+				return -1;
+			}
+			return p;
 		}
 		
 		public boolean valid() {
@@ -180,27 +353,17 @@ public class Block {
 			
 		    int left = 0;
 		    int right = numRestarts - 1;
-		    Integer0 shared = new Integer0();
-		    Integer0 nonShared = new Integer0();
-		    Integer0 valueLength = new Integer0();
-		    Slice slice = SliceFactory.newUnpooled();
-		    Slice midKey = SliceFactory.newUnpooled();
 		    while (left < right) {
 		    	int mid = (left + right + 1) / 2;
 		    	int regionOffset = getRestartPoint(mid);
 		    	
-		    	shared.setValue(0);
-		    	nonShared.setValue(0);
-		    	valueLength.setValue(0);
-		    	slice.init(data, regionOffset, restartsOffset - regionOffset);
-		    	boolean ret = decodeEntry(slice, shared, nonShared, valueLength);
-		    	if (!ret || shared.getValue() != 0) {
+		    	int keyOffset = decodeEntry(regionOffset, restartsOffset);
+		    	if (keyOffset < 0 || shared != 0) {
 		    		corruptionError();
 		    		return;
 		    	}
 		    	
-		    	//Slice mid_key(key_ptr, non_shared);
-		    	midKey.init(slice.data(), slice.offset(), nonShared.getValue());
+		    	midKey.init(data, keyOffset, nonShared);
 		    	if (compare(midKey, target) < 0) {
 		            // Key at "mid" is smaller than "target".  Therefore all
 		            // blocks before "mid" are uninteresting.
@@ -225,6 +388,74 @@ public class Block {
 		    }
 		}
 		
+		/**
+		 * Seek for a point lookup of target. The iterator ends up where seek(target)
+		 * would put it if the block has an entry with the lookup key of target (see 
+		 * {@link Comparator0#lookupKeyLength}), and may be left invalid otherwise.</br>
+		 * </br>
+		 * 
+		 * With a hash index the restart interval holding the lookup key is found 
+		 * without the binary search, and a missing key usually without decoding any
+		 * entry. Collisions and blocks without a hash index use seek().
+		 * 
+		 * @param target
+		 */
+		public void seekForGet(Slice target) {
+			if (numBuckets == 0) {
+				seek(target);
+				return;
+			}
+			
+			byte[] t = target.data();
+			int toff = target.offset();
+			int n = comparator.lookupKeyLength(t, toff, target.size());
+			int bucket = (int) (Block.hashIndexKey(t, toff, n) % numBuckets);
+			int entry = data[hashIndexOffset + bucket] & 0xff;
+			if (entry == kCollision) {
+				seek(target);
+				return;
+			}
+			if (entry == kNoEntry) {
+				// The lookup key is not in this block
+				invalidate();
+				return;
+			}
+			if (entry >= numRestarts) {
+				corruptionError();
+				return;
+			}
+			
+			// Every entry with the lookup key is in this restart interval, and 
+			// the entries before it are smaller than target
+			seekToRestartPoint(entry);
+			int limit = entry + 1 < numRestarts ? getRestartPoint(entry + 1) : restartsOffset;
+			while (true) {
+				if (nextEntryOffset() >= limit) {
+					// Past the entries with the lookup key, if there are any
+					invalidate();
+					return;
+				}
+				if (!parseNextKey())
+					return;
+				if (compare(key, target) >= 0)
+					break;
+			}
+			
+			// On a hash false positive the interval belongs to other keys, and the 
+			// entry found is not necessarily the one seek() would find
+			byte[] k = key.data();
+			int koff = key.offset();
+			if (comparator.lookupKeyLength(k, koff, key.size()) != n || 
+					ByteUtils.memcmp(k, koff, t, toff, n) != 0) {
+				invalidate();
+			}
+		}
+		
+		void invalidate() {
+			current = restartsOffset;
+			restartIndex = numRestarts;
+		}
+		
 		public void next() {
 			assert(valid());
 		    parseNextKey();
@@ -253,7 +484,8 @@ public class Block {
 		
 		public Slice key() {
 			assert(valid());
-		    return SliceFactory.newUnpooled(key);
+			keyView.init(key.data(), key.offset(), key.size());
+		    return keyView;
 		}
 		
 		public Slice value() {
@@ -283,22 +515,16 @@ public class Block {
 		    	return false;
 		    }
 		    
-		    Slice slice = SliceFactory.newUnpooled(data, current, restartsOffset - current);
-		    
 		    // Decode next entry
-		    Integer0 shared = new Integer0();
-		    Integer0 nonShared = new Integer0();
-		    Integer0 valueLength = new Integer0();
-		    
-		    boolean ret = decodeEntry(slice, shared, nonShared, valueLength);
+		    int keyOffset = decodeEntry(current, restartsOffset);
 		    
-		    if (!ret || key.size() < shared.getValue()) {
+		    if (keyOffset < 0 || key.size() < shared) {
 		    	corruptionError();
 		    	return false;
 		    } else {
-		    	key.resize(shared.getValue());
-		    	key.append(slice.data(), slice.offset(), nonShared.getValue());
-		    	value = SliceFactory.newUnpooled(slice.data(), slice.offset()+nonShared.getValue(), valueLength.getValue());
+		    	key.resize(shared);
+		    	key.append(data, keyOffset, nonShared);
+		    	value.init(data, keyOffset + nonShared, valueLength);
 
 		    	while (restartIndex + 1 < numRestarts &&
 		                getRestartPoint(restartIndex + 1) < current) {
@@ -308,36 +534,4 @@ public class Block {
 		    }
 		}
 	}
-	
-	public static boolean decodeEntry(Slice slice, 
-			Integer0 shared, 
-			Integer0 nonShared,
-			Integer0 valueLength) {
-		
-		if (slice.size() < 3) 
-			return false;
-		
-		shared.setValue(slice.data()[slice.offset()] & 0x0ff);
-		nonShared.setValue(slice.data()[slice.offset()+1] & 0x0ff);
-		valueLength.setValue(slice.data()[slice.offset()+2] & 0x0ff);
-		
-		 if ((shared.getValue() | nonShared.getValue() | valueLength.getValue()) < 128) {
-			 // Fast path: all three values are encoded in one byte each
-			 slice.incrOffset(+3);
-		 } else {
-			 try {
-				 shared.setValue(Coding.popVarNat32(slice));
-				 nonShared.setValue(Coding.popVarNat32(slice));
-				 valueLength.setValue(Coding.popVarNat32(slice));
-			 } catch (Exception e) {
-				 return false;
-			 }
-		 }
-		 
-		 if (slice.size() < nonShared.getValue() - valueLength.getValue()) {
-			 return false;
-		 }
-		 
-		 return true;
-	}
 }
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.table;
+
+import java.util.ArrayList;
+
+/**
+ * A few byte arrays that the blocks read by one scan-mode iterator are decoded
+ * into. A block's array goes back to the pool when the iterator moves past the
+ * block, so a scan allocates buffers only until the pool has warmed up.</br>
+ * </br>
+ * 
+ * Buffers are rounded up to a power of two, so that blocks of slightly different 
+ * sizes fit the same buffers. Not thread-safe, a pool belongs to one iterator.
+ */
+class BlockBufferPool {
+	/**
+	 * A two-level iterator reads the next block before it releases the current one,
+	 * and a compressed block needs its raw and uncompressed contents at once.
+	 */
+	static final int kMaxFreeBuffers = 4;
+	
+	final ArrayList<byte[]> free = new ArrayList<byte[]>(kMaxFreeBuffers);
+	final ArrayList<byte[]> outstanding = new ArrayList<byte[]>(kMaxFreeBuffers);
+	
+	byte[] acquire(int size) {
+		byte[] b = null;
+		for (int i = 0; i < free.size(); i++) {
+			if (free.get(i).length >= size) {
+				b = free.remove(i);
+				break;
+			}
+		}
+		if (b == null)
+			b = new byte[Math.max(size, Integer.highestOneBit(Math.max(size - 1, 1)) << 1)];
+		outstanding.add(b);
+		return b;
+	}
+	
+	/**
+	 * Return b to the pool, if it came from the pool.
+	 * 
+	 * @param b
+	 */
+	void release(byte[] b) {
+		for (int i = 0; i < outstanding.size(); i++) {
+			if (outstanding.get(i) == b) {
+				outstanding.remove(i);
+				if (free.size() < kMaxFreeBuffers)
+					free.add(b);
+				return;
+			}
+		}
+	}
+}
@@ -25,6 +25,7 @@
 package com.tchaicatkovsky.jleveldb.table;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
@@ -39,8 +40,19 @@ public class BlockBuilder {
 	int counter; // Number of entries emitted since restart
 	boolean finished; // Has Finish() been called?
 	ByteBuf lastKey;
+	boolean hashIndex; // Append a hash index to the block?
+	ArrayList<Long> hashEntries; // (hash of lookup key << 8) | restart index, for the hash index
 
 	public BlockBuilder(Options options) {
+		this(options, false);
+	}
+	
+	/**
+	 * @param options
+	 * @param dataBlock true if the builder writes data blocks, which get a hash index 
+	 * 		if options.dataBlockHashIndex is set
+	 */
+	public BlockBuilder(Options options, boolean dataBlock) {
 		assert (options.blockRestartInterval >= 1);
 		this.options = options.cloneOptions();
 		counter = 0;
@@ -49,6 +61,8 @@ public class BlockBuilder {
 		restarts.add(0);
 		buffer = ByteBufFactory.newUnpooled();
 		lastKey = ByteBufFactory.newUnpooled();
+		hashIndex = dataBlock && options.dataBlockHashIndex;
+		hashEntries = new ArrayList<Long>();
 	}
 
 	public void reset() {
@@ -58,20 +72,50 @@ public class BlockBuilder {
 		counter = 0;
 		finished = false;
 		lastKey.clear();
+		hashEntries.clear();
 	}
 	
 	public int currentSizeEstimate() {
 		return (buffer.size() + 		// Raw data buffer
 				restarts.size() * 4 + 	// Restart array
+				(hashIndex ? numBuckets() + 2 : 0) + // Hash index
 				4); 					// Restart array length
 	}
 	
+	int numBuckets() {
+		int n = (int) (hashEntries.size() / options.dataBlockHashTableUtilRatio) | 1;
+		return Integer.min(n, Block.kMaxNumBuckets);
+	}
+	
 	public Slice finish() {
 		// Append restart array
 		for (int i = 0; i < restarts.size(); i++) {
 			buffer.addFixedNat32(restarts.get(i));
 		}
-		buffer.addFixedNat32(restarts.size());
+		long footer = restarts.size();
+		
+		if (hashIndex && !hashEntries.isEmpty() && restarts.size() <= Block.kMaxRestartSupportedByHashIndex) {
+			// Append the buckets, each holding the restart index of the keys that hash
+			// into it, kNoEntry or kCollision, followed by the fixed16 bucket count
+			int numBuckets = numBuckets();
+			byte[] buckets = new byte[numBuckets];
+			Arrays.fill(buckets, (byte) Block.kNoEntry);
+			for (int i = 0; i < hashEntries.size(); i++) {
+				long e = hashEntries.get(i);
+				int bucket = (int) ((e >>> 8) % numBuckets);
+				int restartIndex = (int) (e & 0xff);
+				int old = buckets[bucket] & 0xff;
+				if (old == Block.kNoEntry)
+					buckets[bucket] = (byte) restartIndex;
+				else if (old != restartIndex)
+					buckets[bucket] = (byte) Block.kCollision;
+			}
+			buffer.append(buckets, 0, numBuckets);
+			buffer.addByte((byte) (numBuckets & 0xff));
+			buffer.addByte((byte) (numBuckets >>> 8));
+			footer |= Block.kHashIndexFlag;
+		}
+		buffer.addFixedNat32Long(footer);
 
 		finished = true;
 		return SliceFactory.newUnpooled(buffer);
@@ -109,6 +153,13 @@ public class BlockBuilder {
 
 		lastKey.resize(shared);
 		lastKey.append(key.data(), key.offset() + shared, nonShared);
+		
+		if (hashIndex && restarts.size() <= Block.kMaxRestartSupportedByHashIndex) {
+			int n = options.comparator.lookupKeyLength(key.data(), key.offset(), key.size());
+			long e = (Block.hashIndexKey(key.data(), key.offset(), n) << 8) | (restarts.size() - 1);
+			if (hashEntries.isEmpty() || hashEntries.get(hashEntries.size() - 1) != e)
+				hashEntries.add(e);
+		}
 
 		counter++;
 	}
@@ -27,8 +27,11 @@ package com.tchaicatkovsky.jleveldb.table;
 import java.util.ArrayList;
 
 import com.tchaicatkovsky.jleveldb.FilterPolicy;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.ByteUtils;
+import com.tchaicatkovsky.jleveldb.util.Comparator0;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 
@@ -47,10 +50,34 @@ public class FilterBlockBuilder {
 	ArrayList<Slice> tmpKeys = new ArrayList<>(); // policy.createFilter() argument
 	
 	ArrayList<Integer> filterOffsets = new ArrayList<>();
+	
+	SliceTransform prefixExtractor; // May be null
+	
+	Comparator0 comparator;
+	
+	ByteBuf prefixes = ByteBufFactory.newUnpooled(); // Flattened prefix contents
+	
+	ArrayList<Integer> prefixStart = new ArrayList<>(); // Starting index in prefixes of each prefix
+	
+	ArrayList<Slice> tmpPrefixes = new ArrayList<>(); // policy.createFilter() argument
 
 	
 	public FilterBlockBuilder(FilterPolicy policy) {
+		this(policy, null, null);
+	}
+	
+	/**
+	 * If prefixExtractor is non-null, the filters also summarize the prefixes of the
+	 * keys, taken from the lookup keys given by comparator.
+	 * 
+	 * @param policy
+	 * @param prefixExtractor
+	 * @param comparator
+	 */
+	public FilterBlockBuilder(FilterPolicy policy, SliceTransform prefixExtractor, Comparator0 comparator) {
 		this.policy = policy;
+		this.prefixExtractor = prefixExtractor;
+		this.comparator = comparator;
 	}
 
 	public void delete() {
@@ -68,6 +95,41 @@ public class FilterBlockBuilder {
 	public void addKey(Slice key) {
 		start.add(keys.size());
 		keys.append(key.data(), key.offset(), key.size());
+		if (prefixExtractor != null)
+			addPrefix(prefixExtractor.lookupKeyPrefix(key, comparator), prefixes, prefixStart);
+	}
+	
+	/**
+	 * Append prefix to the flattened prefixes unless it is null or the same as the
+	 * last one, keys arrive sorted so a prefix is seen in one run.
+	 * 
+	 * @param prefix
+	 * @param prefixes
+	 * @param prefixStart
+	 */
+	static void addPrefix(Slice prefix, ByteBuf prefixes, ArrayList<Integer> prefixStart) {
+		if (prefix == null)
+			return;
+		if (!prefixStart.isEmpty()) {
+			int last = prefixStart.get(prefixStart.size() - 1);
+			if (prefixes.size() - last == prefix.size() &&
+					ByteUtils.memcmp(prefixes.data(), last, prefix.data(), prefix.offset(), prefix.size()) == 0)
+				return;
+		}
+		prefixStart.add(prefixes.size());
+		prefixes.append(prefix.data(), prefix.offset(), prefix.size());
+	}
+	
+	/**
+	 * Fill list with the slices of the flattened prefixes, and clear them.
+	 */
+	static void takePrefixes(ByteBuf prefixes, ArrayList<Integer> prefixStart, ArrayList<Slice> list) {
+		list.clear();
+		int n = prefixStart.size();
+		prefixStart.add(prefixes.size()); // Simplify length computation
+		for (int i = 0; i < n; i++)
+			list.add(SliceFactory.newUnpooled(prefixes.data(), prefixStart.get(i), prefixStart.get(i + 1) - prefixStart.get(i)));
+		prefixStart.clear();
 	}
 
 	public Slice finish() {
@@ -107,7 +169,14 @@ public class FilterBlockBuilder {
 
 		// Generate filter for current set of keys and append to result.
 		filterOffsets.add(result.size());
-		policy.createFilter(tmpKeys, result);
+		if (prefixExtractor != null) {
+			takePrefixes(prefixes, prefixStart, tmpPrefixes);
+			policy.createFilter(tmpKeys, tmpPrefixes, result);
+			tmpPrefixes.clear();
+			prefixes.clear();
+		} else {
+			policy.createFilter(tmpKeys, result);
+		}
 
 		tmpKeys.clear();
 		keys.clear();
@@ -85,7 +85,29 @@ public class FilterBlockReader {
 	}
 	
 	public boolean keyMayMatch(long blockOffset, Slice key) {
-		
+		return mayMatch(blockOffset, key, false, SliceFactory.newUnpooled());
+	}
+	
+	/**
+	 * Same as above, pointing filterView at the filter instead of allocating a view.
+	 */
+	boolean keyMayMatch(long blockOffset, Slice key, Slice filterView) {
+		return mayMatch(blockOffset, key, false, filterView);
+	}
+	
+	/**
+	 * Check a key prefix against the filter of the data block at blockOffset, see 
+	 * Options.prefixExtractor.
+	 * 
+	 * @param blockOffset
+	 * @param prefix
+	 * @return false if no key of the block has prefix
+	 */
+	public boolean prefixMayMatch(long blockOffset, Slice prefix) {
+		return mayMatch(blockOffset, prefix, true, SliceFactory.newUnpooled());
+	}
+	
+	boolean mayMatch(long blockOffset, Slice key, boolean prefix, Slice filter) {
 		long index = blockOffset >> baseLg;
 		
 		if (index < num) {
@@ -93,9 +115,9 @@ public class FilterBlockReader {
 		    int limit = Coding.decodeFixedNat32(data, (int)(end + index * 4 + 4));
 		    		    
 		    if (start <= limit && limit <= (end - begin)) {
-		    	Slice filter = SliceFactory.newUnpooled(data, begin + start, limit - start);
+		    	filter.init(data, begin + start, limit - start);
 		    	
-		    	return policy.keyMayMatch(key, filter);
+		    	return prefix ? policy.prefixMayMatch(key, filter) : policy.keyMayMatch(key, filter);
 		    } else if (start == limit) {
 		    	// Empty filters do not match any keys
 		    	return false;
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.table;
+
+import java.util.ArrayList;
+
+import com.tchaicatkovsky.jleveldb.FilterPolicy;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
+import com.tchaicatkovsky.jleveldb.util.ByteBuf;
+import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.Comparator0;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+
+/**
+ * Builds one filter over every key added since the last finish(), used for the
+ * filter partitions of a partitioned table. Unlike {@link FilterBlockBuilder} the
+ * result is the plain output of the policy, without a per-block offset array.
+ */
+public class FullFilterBlockBuilder {
+	FilterPolicy policy;
+	
+	ByteBuf keys = ByteBufFactory.newUnpooled(); // Flattened key contents
+	
+	ArrayList<Integer> start = new ArrayList<>(); // Starting index in keys of each key
+	
+	ByteBuf result = ByteBufFactory.newUnpooled(); // Filter data of the last finish()
+	
+	ArrayList<Slice> tmpKeys = new ArrayList<>(); // policy.createFilter() argument
+	
+	SliceTransform prefixExtractor; // May be null
+	
+	Comparator0 comparator;
+	
+	ByteBuf prefixes = ByteBufFactory.newUnpooled(); // Flattened prefix contents
+	
+	ArrayList<Integer> prefixStart = new ArrayList<>(); // Starting index in prefixes of each prefix
+	
+	ArrayList<Slice> tmpPrefixes = new ArrayList<>(); // policy.createFilter() argument
+	
+	public FullFilterBlockBuilder(FilterPolicy policy) {
+		this(policy, null, null);
+	}
+	
+	/**
+	 * See {@link FilterBlockBuilder#FilterBlockBuilder(FilterPolicy, SliceTransform, Comparator0)}.
+	 * 
+	 * @param policy
+	 * @param prefixExtractor
+	 * @param comparator
+	 */
+	public FullFilterBlockBuilder(FilterPolicy policy, SliceTransform prefixExtractor, Comparator0 comparator) {
+		this.policy = policy;
+		this.prefixExtractor = prefixExtractor;
+		this.comparator = comparator;
+	}
+	
+	public void addKey(Slice key) {
+		start.add(keys.size());
+		keys.append(key.data(), key.offset(), key.size());
+		if (prefixExtractor != null)
+			FilterBlockBuilder.addPrefix(prefixExtractor.lookupKeyPrefix(key, comparator), prefixes, prefixStart);
+	}
+	
+	public boolean empty() {
+		return start.isEmpty();
+	}
+	
+	/**
+	 * Return the filter of the keys added so far and start a new one. The result
+	 * is valid until the next call.
+	 * 
+	 * @return
+	 */
+	public Slice finish() {
+		int numKeys = start.size();
+		start.add(keys.size()); // Simplify length computation
+		tmpKeys.clear();
+		for (int i = 0; i < numKeys; i++)
+			tmpKeys.add(SliceFactory.newUnpooled(keys.data(), start.get(i), start.get(i + 1) - start.get(i)));
+		
+		result.clear();
+		if (prefixExtractor != null) {
+			FilterBlockBuilder.takePrefixes(prefixes, prefixStart, tmpPrefixes);
+			policy.createFilter(tmpKeys, tmpPrefixes, result);
+			tmpPrefixes.clear();
+			prefixes.clear();
+		} else {
+			policy.createFilter(tmpKeys, result);
+		}
+		
+		tmpKeys.clear();
+		keys.clear();
+		start.clear();
+		return SliceFactory.newUnpooled(result);
+	}
+}
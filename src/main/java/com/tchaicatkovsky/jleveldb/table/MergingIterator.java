@@ -31,14 +31,32 @@ import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.util.Comparator0;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 
+/**
+ * Merges the sorted children into one sorted sequence. With more than 
+ * kMaxLinearChildren children, the valid children are kept in a binary heap 
+ * ordered by their current key, a min-heap while moving forward and a max-heap 
+ * while moving in reverse, so a step costs O(log n) comparisons instead of a 
+ * scan over all n children. The heap is rebuilt from scratch, in O(n), after a 
+ * seek and when the direction changes. A few children are simply scanned, 
+ * which is cheaper than maintaining the heap.</br></br>
+ * 
+ * Children with equal keys are ordered by their position in the list, the 
+ * first one coming first when moving forward and last in reverse.
+ */
 public class MergingIterator extends Iterator0 {
-	// We might want to use a heap in case there are lots of children.
-	// For now we use a simple array since we expect a very small number
-	// of children in leveldb.
+	final static int kMaxLinearChildren = 6;
+	
 	Comparator0 comparator;
 	Iterator0Wrapper[] children;
 	int n;
 	Iterator0Wrapper current;
+	
+	/**
+	 * Indices of the valid children. heap[0] is current. null if the children are
+	 * scanned instead.
+	 */
+	int[] heap;
+	int heapSize;
 
 	// Which direction is the iterator moving?
 	enum Direction {
@@ -51,6 +69,8 @@ public class MergingIterator extends Iterator0 {
 		this.comparator = comparator;
 		n = children0.size();
 		children = new Iterator0Wrapper[n];
+		heap = (n > kMaxLinearChildren) ? new int[n] : null;
+		heapSize = 0;
 		current = null;
 		direction = Direction.kForward;
 		for (int i = 0; i < n; i++) {
@@ -75,25 +95,24 @@ public class MergingIterator extends Iterator0 {
 			children[i].seekToFirst();
 		}
 		
-		findSmallest();
-		
 		direction = Direction.kForward;
+		buildHeap();
 	}
 
 	public void seekToLast() {
 		for (int i = 0; i < n; i++)
 			children[i].seekToLast();
 
-		findLargest();
 		direction = Direction.kReverse;
+		buildHeap();
 	}
 
 	public void seek(Slice target) {
 		for (int i = 0; i < n; i++)
 			children[i].seek(target);
 
-		findSmallest();
 		direction = Direction.kForward;
+		buildHeap();
 	}
 
 	public void next() {
@@ -114,10 +133,13 @@ public class MergingIterator extends Iterator0 {
 				}
 			}
 			direction = Direction.kForward;
+			current.next();
+			buildHeap();
+			return;
 		}
 
 		current.next();
-		findSmallest();
+		currentMoved();
 	}
 
 	public void prev() {
@@ -143,10 +165,13 @@ public class MergingIterator extends Iterator0 {
 				}
 			}
 			direction = Direction.kReverse;
+			current.prev();
+			buildHeap();
+			return;
 		}
 
 		current.prev();
-		findLargest();
+		currentMoved();
 	}
 
 	public Slice key() {
@@ -169,8 +194,66 @@ public class MergingIterator extends Iterator0 {
 		}
 		return status;
 	}
-
-	public void findSmallest() {
+	
+	/**
+	 * Whether child a goes before child b in the current direction.
+	 */
+	boolean before(int a, int b) {
+		int r = comparator.compare(children[a].key(), children[b].key());
+		if (direction == Direction.kForward)
+			return r < 0 || (r == 0 && a < b);
+		else
+			return r > 0 || (r == 0 && a > b);
+	}
+	
+	/**
+	 * Put the valid children into the heap for the current direction.
+	 */
+	void buildHeap() {
+		if (heap == null) {
+			findCurrent();
+			return;
+		}
+		
+		heapSize = 0;
+		for (int i = 0; i < n; i++) {
+			if (children[i].valid())
+				heap[heapSize++] = i;
+		}
+		for (int i = heapSize / 2 - 1; i >= 0; i--)
+			siftDown(i);
+		current = (heapSize > 0) ? children[heap[0]] : null;
+	}
+	
+	/**
+	 * Restore the heap after the top child, current, moved one step in the 
+	 * current direction.
+	 */
+	void currentMoved() {
+		if (heap == null) {
+			findCurrent();
+			return;
+		}
+		
+		if (!current.valid()) {
+			heap[0] = heap[--heapSize];
+		}
+		if (heapSize > 0) {
+			siftDown(0);
+			current = children[heap[0]];
+		} else {
+			current = null;
+		}
+	}
+	
+	void findCurrent() {
+		if (direction == Direction.kForward)
+			findSmallest();
+		else
+			findLargest();
+	}
+	
+	void findSmallest() {
 		Iterator0Wrapper smallest = null;
 		for (int i = 0; i < n; i++) {
 			Iterator0Wrapper child = children[i];
@@ -186,7 +269,7 @@ public class MergingIterator extends Iterator0 {
 		current = smallest;
 	}
 
-	public void findLargest() {
+	void findLargest() {
 		Iterator0Wrapper largest = null;
 		for (int i = n - 1; i >= 0; i--) {
 			Iterator0Wrapper child = children[i];
@@ -201,6 +284,22 @@ public class MergingIterator extends Iterator0 {
 		current = largest;
 	}
 	
+	void siftDown(int i) {
+		int child = heap[i];
+		while (true) {
+			int l = 2 * i + 1;
+			if (l >= heapSize)
+				break;
+			int r = l + 1;
+			int c = (r < heapSize && before(heap[r], heap[l])) ? r : l;
+			if (!before(heap[c], child))
+				break;
+			heap[i] = heap[c];
+			i = c;
+		}
+		heap[i] = child;
+	}
+	
 	public static Iterator0 newMergingIterator(Comparator0 comparator, List<Iterator0> children) {
 		int n = children.size();
 		assert(n >= 0);
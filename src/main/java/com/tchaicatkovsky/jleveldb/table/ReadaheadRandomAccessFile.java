@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.table;
+
+import com.tchaicatkovsky.jleveldb.RandomAccessFile0;
+import com.tchaicatkovsky.jleveldb.Status;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+
+/**
+ * Wraps the file of a table for one iterator, turning sequential block reads into 
+ * larger contiguous reads.</br>
+ * </br>
+ * 
+ * With a fixed readahead size every read that misses the buffer fetches at least
+ * that many bytes. In automatic mode (readahead size 0) reads are passed through 
+ * until kAutoReadaheadTrigger reads in a row each started where the previous one 
+ * ended. Readahead then starts at kInitialAutoReadaheadSize and doubles with every 
+ * refill up to kMaxAutoReadaheadSize, and a non-sequential read starts over.</br>
+ * </br>
+ * 
+ * Data is copied out of the readahead buffer into the caller's scratch, so blocks 
+ * never keep the buffer alive. Unlike other files this one is not safe for 
+ * concurrent use, and deleting it leaves the wrapped file open.
+ */
+class ReadaheadRandomAccessFile implements RandomAccessFile0 {
+	static final int kAutoReadaheadTrigger = 2;
+	static final int kInitialAutoReadaheadSize = 8 * 1024;
+	static final int kMaxAutoReadaheadSize = 256 * 1024;
+	
+	final RandomAccessFile0 file;
+	final boolean auto;
+	int readaheadSize;
+	
+	byte[] buffer;
+	Slice buffered = SliceFactory.newUnpooled();
+	long bufferOffset;
+	
+	long prevEnd = -1;
+	int sequentialReads;
+	
+	/**
+	 * @param file
+	 * @param readaheadSize bytes to read ahead, or 0 for automatic readahead
+	 */
+	ReadaheadRandomAccessFile(RandomAccessFile0 file, int readaheadSize) {
+		this.file = file;
+		this.auto = (readaheadSize <= 0);
+		this.readaheadSize = auto ? 0 : readaheadSize;
+	}
+
+	@Override
+	public String name() {
+		return file.name();
+	}
+
+	@Override
+	public void delete() {
+		buffer = null;
+		buffered = null;
+	}
+
+	@Override
+	public Status read(long offset, int n, Slice result, byte[] scratch) {
+		if (offset == prevEnd) {
+			sequentialReads++;
+		} else {
+			sequentialReads = 0;
+			if (auto)
+				readaheadSize = 0;
+		}
+		prevEnd = offset + n;
+		
+		if (tryReadFromBuffer(offset, n, result, scratch))
+			return Status.ok0();
+		
+		if (auto && readaheadSize == 0) {
+			if (sequentialReads < kAutoReadaheadTrigger)
+				return file.read(offset, n, result, scratch);
+			readaheadSize = kInitialAutoReadaheadSize;
+		}
+		
+		int size = Math.max(n, readaheadSize);
+		if (buffer == null || buffer.length < size)
+			buffer = new byte[size];
+		Status s = file.read(offset, size, buffered, buffer);
+		if (!s.ok()) {
+			buffered.clear();
+			return s;
+		}
+		bufferOffset = offset;
+		if (auto)
+			readaheadSize = Math.min(readaheadSize * 2, kMaxAutoReadaheadSize);
+		
+		// A short read means the end of the file, return what there is
+		int available = Math.min(n, buffered.size());
+		System.arraycopy(buffered.data(), buffered.offset(), scratch, 0, available);
+		result.init(scratch, 0, available);
+		return s;
+	}
+	
+	boolean tryReadFromBuffer(long offset, int n, Slice result, byte[] scratch) {
+		if (buffered == null || buffered.size() == 0 || offset < bufferOffset || 
+				offset + n > bufferOffset + buffered.size())
+			return false;
+		System.arraycopy(buffered.data(), buffered.offset() + (int) (offset - bufferOffset), scratch, 0, n);
+		result.init(scratch, 0, n);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		// The wrapped file belongs to the table
+	}
+}
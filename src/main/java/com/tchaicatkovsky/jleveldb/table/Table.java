@@ -24,6 +24,8 @@
 
 package com.tchaicatkovsky.jleveldb.table;
 
+import java.util.List;
+
 import com.tchaicatkovsky.jleveldb.Iterator0;
 import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.RandomAccessFile0;
@@ -33,10 +35,14 @@ import com.tchaicatkovsky.jleveldb.table.TableFormat.BlockContents;
 import com.tchaicatkovsky.jleveldb.table.TableFormat.BlockHandle;
 import com.tchaicatkovsky.jleveldb.table.TableFormat.Footer;
 import com.tchaicatkovsky.jleveldb.table.TwoLevelIterator.BlockFunction;
+import com.tchaicatkovsky.jleveldb.util.ByteBuf;
+import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
 import com.tchaicatkovsky.jleveldb.util.BytewiseComparatorImpl;
 import com.tchaicatkovsky.jleveldb.util.Cache;
 import com.tchaicatkovsky.jleveldb.util.Coding;
+import com.tchaicatkovsky.jleveldb.util.Comparator0;
 import com.tchaicatkovsky.jleveldb.util.Object0;
+import com.tchaicatkovsky.jleveldb.util.SecondaryCache;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 
@@ -44,21 +50,35 @@ public class Table {
 
 	static class Rep {
 		public void delete() {
-			if (filter != null) {
-				filter.delete();
-				filter = null;
-			}
-			filterData = null;
-			if (indexBlock != null) {
+			// Pinned metadata belongs to the block cache, only drop our reference
+			Cache blockCache = options.blockCache;
+			if (indexCacheHandle != null) {
+				blockCache.release(indexCacheHandle);
+				indexCacheHandle = null;
+			} else if (indexBlock != null) {
 				indexBlock.delete();
-				indexBlock = null;
 			}
+			indexBlock = null;
+			
+			if (filterCacheHandle != null) {
+				blockCache.release(filterCacheHandle);
+				filterCacheHandle = null;
+			} else {
+				if (filter != null)
+					filter.delete();
+				if (filterIndexBlock != null)
+					filterIndexBlock.delete();
+			}
+			filter = null;
+			filterData = null;
+			filterIndexBlock = null;
 		}
 
 		Options options;
 		Status status;
 		RandomAccessFile0 file;
 		long cacheId;
+		long secondaryCacheId;
 		FilterBlockReader filter;
 		byte[] filterData;
 
@@ -67,6 +87,39 @@ public class Table {
 		 */
 		BlockHandle metaindexHandle = new BlockHandle();
 		Block indexBlock;
+		
+		/**
+		 * True if indexBlock is a top-level index whose values point to index
+		 * partitions instead of data blocks.
+		 */
+		boolean partitionedIndex;
+		
+		/**
+		 * Top-level index over the filter partitions of a partitioned table, the
+		 * partitions themselves are read through the block cache.
+		 */
+		Block filterIndexBlock;
+		
+		/**
+		 * Set if options.cacheIndexAndFilterBlocks is true and there is a block cache.
+		 * The index and filter blocks (filterHandle points to the filter block, or to 
+		 * the top-level filter index if partitionedFilter) are then looked up in the 
+		 * block cache on every access, unless they are pinned: indexBlock, filter and 
+		 * filterIndexBlock are only set for pinned blocks, whose cache handles are
+		 * held until the table is deleted.
+		 */
+		boolean cacheMetadata;
+		boolean pinMetadata;
+		BlockHandle indexHandle;
+		BlockHandle filterHandle;
+		boolean partitionedFilter;
+		
+		/**
+		 * True if the filters also hold the key prefixes given by options.prefixExtractor.
+		 */
+		boolean prefixFiltered;
+		Cache.Handle indexCacheHandle;
+		Cache.Handle filterCacheHandle;
 	};
 
 	Rep rep;
@@ -88,77 +141,268 @@ public class Table {
 	 * @return
 	 */
 	static Iterator0 blockReader(Object arg, ReadOptions options, Slice indexValue) {
-		Table table = (Table) (arg);
-		Cache blockCache = table.rep.options.blockCache;
-		Block block = null;
-		Cache.Handle cacheHandle = null;
-
+		return blockReader(arg, options, indexValue, false);
+	}
+	
+	static Iterator0 blockReader(Object arg, ReadOptions options, Slice indexValue, boolean metadata) {
+		return blockReader(arg, options, indexValue, metadata, ((Table) arg).rep.file, null);
+	}
+	
+	/**
+	 * Same as above, reading the block from file if it is not cached, and decoding 
+	 * it into buffers of pool if pool is non-null.
+	 */
+	static Iterator0 blockReader(Object arg, ReadOptions options, Slice indexValue, boolean metadata, 
+			RandomAccessFile0 file, BlockBufferPool pool) {
 		BlockHandle handle = new BlockHandle();
-		Status s = handle.decodeFrom(indexValue.clone());
+		if (handle.decodeFrom(indexValue.data(), indexValue.offset(), indexValue.limit()) < 0)
+			return Iterator0.newErrorIterator(Status.corruption("bad block handle"));
 
 		// TODO(design) We intentionally allow extra stuff in indexValue so that
 		// we can add more features in the future.
 
-		if (s.ok()) {
-			BlockContents contents = new BlockContents();
-			if (blockCache != null) {
-				byte[] cacheKeyBuffer = new byte[16];
-				Coding.encodeFixedNat64(cacheKeyBuffer, 0, table.rep.cacheId);
-				Coding.encodeFixedNat64(cacheKeyBuffer, 8, handle.offset());
-				Slice key = SliceFactory.newUnpooled(cacheKeyBuffer, 0, 16);
-				cacheHandle = blockCache.lookup(key);
-				if (cacheHandle != null) {
-					block = (Block) (blockCache.value(cacheHandle));
-				} else {
-					s = TableFormat.readBlock(table.rep.file, options, handle, contents);
-					if (s.ok()) {
-						block = new Block(contents);
-						if (contents.cachable && options.fillCache) {
-							// Add into block cache
-							cacheHandle = blockCache.insert(key, block, (int) block.size(), deleteCachedBlock);
-						}
-					}
-				}
-			} else {
-				s = TableFormat.readBlock(table.rep.file, options, handle, contents);
-				if (s.ok()) {
-					block = new Block(contents);
-				}
+		return ((Table) arg).blockReader(options, handle, metadata, file, pool);
+	}
+	
+	/**
+	 * Same as above for a block handle that the caller already decoded.
+	 */
+	Iterator0 blockReader(ReadOptions options, BlockHandle handle, boolean metadata, 
+			RandomAccessFile0 file, BlockBufferPool pool) {
+		Object0<Object> block = new Object0<>();
+		Object0<Cache.Handle> cacheHandle = new Object0<>();
+		Status s = readBlock(file, pool, options, handle, metadata, BlockFormat.Parsed, block, cacheHandle, null);
+		
+		if (!s.ok())
+			return Iterator0.newErrorIterator(s);
+		return newBlockIterator((Block) block.getValue(), cacheHandle.getValue(), pool);
+	}
+	
+	Iterator0 newBlockIterator(Block block, Cache.Handle cacheHandle) {
+		return newBlockIterator(block, cacheHandle, null);
+	}
+	
+	Iterator0 newBlockIterator(Block block, Cache.Handle cacheHandle, BlockBufferPool pool) {
+		Iterator0 iter = block.newIterator(rep.options.comparator);
+		if (cacheHandle == null) {
+			iter.registerCleanup(new DeleteBlock(block, pool));
+		} else {
+			iter.registerCleanup(new ReleaseBlock(rep.options.blockCache, cacheHandle));
+		}
+		return iter;
+	}
+	
+	/**
+	 * Reusable state of a point lookup: the decoded block handle, the block cache 
+	 * key, the results of readBlock(), a filter view and the index and data block 
+	 * iterators. Each
+	 * thread has one, a lookup nested in another on the same thread gets a new one.
+	 */
+	static final class LookupContext {
+		final BlockHandle handle = new BlockHandle();
+		final Slice cacheKey = SliceFactory.newUnpooled(new byte[16], 0, 16);
+		final Object0<Object> value = new Object0<>();
+		final Object0<Cache.Handle> cacheHandle = new Object0<>();
+		final Slice filterView = SliceFactory.newUnpooled();
+		final Block.Iter indexIter = new Block.Iter();
+		final Block.Iter blockIter = new Block.Iter();
+		boolean inUse;
+		
+		static final ThreadLocal<LookupContext> perThread = new ThreadLocal<LookupContext>() {
+			protected LookupContext initialValue() {
+				return new LookupContext();
 			}
+		};
+		
+		static LookupContext acquire() {
+			LookupContext ctx = perThread.get();
+			if (ctx.inUse)
+				return new LookupContext();
+			ctx.inUse = true;
+			return ctx;
 		}
-
-		Iterator0 iter = null;
-		if (block != null) {
-			iter = block.newIterator(table.rep.options.comparator);
-
-			if (cacheHandle == null) {
-				iter.registerCleanup(new DeleteBlock(block));
+		
+		void release() {
+			indexIter.detach();
+			blockIter.detach();
+			filterView.clear();
+			value.setValue(null);
+			cacheHandle.setValue(null);
+			inUse = false;
+		}
+	}
+	
+	/**
+	 * The value of a block read by {@link #readBlock}, and kept in the block cache.
+	 */
+	enum BlockFormat {
+		/** A {@link Block} */
+		Parsed,
+		/** The block contents, a {@link Slice}, as for filter partitions */
+		Raw,
+		/** A {@link FilterBlockReader}, parsed once instead of on every lookup */
+		Filter
+	}
+	
+	/**
+	 * Read the block at handle through the block cache. Data blocks are inserted
+	 * with low priority and only if options.fillCache is set. Index and filter blocks 
+	 * are always inserted, with high priority, since every read of the table needs
+	 * them.
+	 * 
+	 * @param options
+	 * @param handle
+	 * @param metadata true for index and filter blocks
+	 * @param format what value is set to
+	 * @param value
+	 * @param cacheHandle set to the handle to release, or null if the caller owns value
+	 * @return
+	 */
+	Status readBlock(ReadOptions options, BlockHandle handle, boolean metadata, BlockFormat format, 
+			Object0<Object> value, Object0<Cache.Handle> cacheHandle) {
+		return readBlock(rep.file, null, options, handle, metadata, format, value, cacheHandle, null);
+	}
+	
+	/**
+	 * Same as above for a point lookup, value and cacheHandle are those of ctx and 
+	 * the block cache is probed with the key buffer of ctx.
+	 */
+	Status readBlock(LookupContext ctx, ReadOptions options, BlockHandle handle, boolean metadata, BlockFormat format) {
+		return readBlock(rep.file, null, options, handle, metadata, format, ctx.value, ctx.cacheHandle, ctx.cacheKey);
+	}
+	
+	/**
+	 * Same as above, reading a block that is not in the cache from file, which is
+	 * rep.file or a readahead wrapper of it. If pool is non-null, such a block is 
+	 * decoded into buffers of the pool and never inserted into the cache. If 
+	 * lookupKey is non-null, it is a 16 byte slice that is overwritten with the 
+	 * cache key instead of allocating one for the lookup.
+	 */
+	Status readBlock(RandomAccessFile0 file, BlockBufferPool pool, ReadOptions options, BlockHandle handle, 
+			boolean metadata, BlockFormat format, Object0<Object> value, Object0<Cache.Handle> cacheHandle,
+			Slice lookupKey) {
+		Cache blockCache = rep.options.blockCache;
+		Slice key = null;
+		cacheHandle.setValue(null);
+		if (blockCache != null) {
+			if (lookupKey != null) {
+				encodeCacheKey(lookupKey.data(), lookupKey.offset(), rep.cacheId, handle.offset());
+				key = lookupKey;
 			} else {
-				iter.registerCleanup(new ReleaseBlock(blockCache, cacheHandle));
+				key = blockCacheKey(handle.offset());
 			}
+			Cache.Handle h = blockCache.lookup(key);
+			if (h != null) {
+				cacheHandle.setValue(h);
+				value.setValue(blockCache.value(h));
+				return Status.ok0();
+			}
+		}
+		
+		BlockContents contents = new BlockContents();
+		SecondaryCache secondaryCache = (pool == null) ? rep.options.secondaryBlockCache : null;
+		Status s;
+		if (secondaryCache != null)
+			s = readBlock(secondaryCache, file, options, handle, metadata || options.fillCache, contents);
+		else
+			s = TableFormat.readBlock(file, options, handle, contents, pool);
+		if (!s.ok())
+			return s;
+		
+		Object v;
+		int charge;
+		if (format == BlockFormat.Parsed) {
+			Block block = new Block(contents);
+			v = block;
+			charge = (int) block.size();
 		} else {
-			iter = Iterator0.newErrorIterator(s);
+			v = (format == BlockFormat.Raw) ? contents.data : new FilterBlockReader(rep.options.filterPolicy, contents.data);
+			charge = contents.data.size();
 		}
-		return iter;
+		value.setValue(v);
+		
+		if (blockCache != null && contents.cachable && (metadata || options.fillCache)) {
+			// Add into block cache, which keeps the key, so it must not be the reused one
+			if (key == lookupKey)
+				key = blockCacheKey(handle.offset());
+			cacheHandle.setValue(blockCache.insert(key, v, charge, format == BlockFormat.Parsed ? deleteCachedBlock : deleteCachedFilter, 
+					metadata ? Cache.Priority.High : Cache.Priority.Low));
+		}
+		return s;
+	}
+
+	/**
+	 * Read a block that missed the block cache from the secondary cache, or else
+	 * from file, and then add it to the secondary cache if fill is set.
+	 */
+	Status readBlock(SecondaryCache secondaryCache, RandomAccessFile0 file, ReadOptions options, BlockHandle handle, 
+			boolean fill, BlockContents contents) {
+		Slice key = cacheKey(rep.secondaryCacheId, handle.offset());
+		int n = (int)handle.size() + TableFormat.kBlockTrailerSize;
+		Slice stored = secondaryCache.lookup(key);
+		if (stored != null) {
+			if (stored.size() == n && TableFormat.decodeBlock(stored, stored.data(), options, contents, null).ok())
+				return Status.ok0();
+			// Not what the table expects, fall back to the file
+			secondaryCache.erase(key);
+		}
+		
+		byte[] buf = new byte[n];
+		Slice raw = SliceFactory.newUnpooled();
+		Status s = TableFormat.readRawBlock(file, handle, raw, buf);
+		if (s.ok())
+			s = TableFormat.decodeBlock(raw, buf, options, contents, null);
+		if (s.ok() && fill)
+			secondaryCache.insert(key, raw.data(), raw.offset(), raw.size());
+		return s;
+	}
+
+	Slice blockCacheKey(long offset) {
+		return cacheKey(rep.cacheId, offset);
+	}
+	
+	static Slice cacheKey(long cacheId, long offset) {
+		byte[] cacheKeyBuffer = new byte[16];
+		encodeCacheKey(cacheKeyBuffer, 0, cacheId, offset);
+		return SliceFactory.newUnpooled(cacheKeyBuffer, 0, 16);
+	}
+	
+	static void encodeCacheKey(byte[] dst, int offset, long cacheId, long blockOffset) {
+		Coding.encodeFixedNat64(dst, offset, cacheId);
+		Coding.encodeFixedNat64(dst, offset + 8, blockOffset);
 	}
 
 	static BlockFunction blockReaderCallback = new BlockFunction() {
 		public Iterator0 run(Object arg, ReadOptions options, Slice indexValue) {
-			return blockReader(arg, options, indexValue);
+			return blockReader(arg, options, indexValue, false);
+		}
+	};
+	
+	static BlockFunction indexPartitionReaderCallback = new BlockFunction() {
+		public Iterator0 run(Object arg, ReadOptions options, Slice indexValue) {
+			return blockReader(arg, options, indexValue, true);
 		}
 	};
 
 	static class DeleteBlock implements Runnable {
 		Block block;
+		BlockBufferPool pool;
 
 		public DeleteBlock(Block block) {
+			this(block, null);
+		}
+		
+		public DeleteBlock(Block block, BlockBufferPool pool) {
 			this.block = block;
+			this.pool = pool;
 		}
 
 		@Override
 		public void run() {
 			if (block == null)
 				return;
+			if (pool != null && block.data != null)
+				pool.release(block.data.data());
 			block.delete();
 			block = null;
 		}
@@ -192,18 +436,114 @@ public class Table {
 			block = null;
 		}
 	};
+	
+	static Cache.Deleter deleteCachedFilter = new Cache.Deleter() {
+		public void run(Slice key, Object value) {
+			// Filters and filter partitions only reference byte arrays
+		}
+	};
+	
+	/**
+	 * Returns an iterator over the whole index, mapping each data block's 
+	 * separator key to its handle. For a partitioned table, index partitions
+	 * are loaded through the block cache as the iterator reaches them.
+	 * 
+	 * @param options
+	 * @return
+	 */
+	Iterator0 newIndexIterator(ReadOptions options) {
+		Iterator0 iter;
+		if (rep.indexBlock != null) {
+			iter = rep.indexBlock.newIterator(rep.options.comparator);
+		} else {
+			Object0<Object> block = new Object0<>();
+			Object0<Cache.Handle> cacheHandle = new Object0<>();
+			Status s = readBlock(options, rep.indexHandle, true, BlockFormat.Parsed, block, cacheHandle);
+			if (!s.ok())
+				return Iterator0.newErrorIterator(s);
+			iter = newBlockIterator((Block) block.getValue(), cacheHandle.getValue());
+		}
+		if (rep.partitionedIndex)
+			iter = TwoLevelIterator.newTwoLevelIterator(iter, indexPartitionReaderCallback, this, options);
+		return iter;
+	}
 
 	/**
 	 * Returns a new iterator over the table contents.</br>
-	 * The result of newIterator() is initially invalid (caller must call one of the seek methods on the iterator before using it).
+	 * The result of newIterator() is initially invalid (caller must call one of the seek methods on the iterator before using it).</br>
+	 * The iterator does not read the data blocks past options.iterateUpperBound, or before options.iterateLowerBound when
+	 * moving backward, but may still return keys out of the bounds from the blocks it reads.
 	 * 
 	 * @param options
 	 * @return
 	 */
 	public Iterator0 newIterator(ReadOptions options) {
-		Iterator0 idxIter = rep.indexBlock.newIterator(rep.options.comparator);
-		return TwoLevelIterator.newTwoLevelIterator(idxIter, 
-				blockReaderCallback, this, options);
+		Iterator0 idxIter = newIndexIterator(options);
+		
+		// Data blocks that miss the cache are read through the iterator's own
+		// readahead buffer, index partitions are not. Reads of mapped files are
+		// memory copies without a system call, batching them gains nothing.
+		final RandomAccessFile0 file = (options.readaheadSize < 0 || rep.options.allowMmapReads) ?
+				rep.file : new ReadaheadRandomAccessFile(rep.file, options.readaheadSize);
+		final BlockBufferPool pool = options.scanMode ? new BlockBufferPool() : null;
+		TwoLevelIterator.PrefixBound prefixBound = (options.prefixSameAsStart && rep.options.prefixExtractor != null) ?
+				new TablePrefixBound(options) : null;
+		if (file == rep.file && pool == null) {
+			return TwoLevelIterator.newTwoLevelIterator(idxIter, 
+					blockReaderCallback, this, options, rep.options.comparator, prefixBound);
+		}
+		
+		return TwoLevelIterator.newTwoLevelIterator(idxIter, new BlockFunction() {
+			public Iterator0 run(Object arg, ReadOptions options, Slice indexValue) {
+				return blockReader(arg, options, indexValue, false, file, pool);
+			}
+		}, this, options, rep.options.comparator, prefixBound);
+	}
+	
+	/**
+	 * Prefix bound of a table iterator, which checks the prefix against the filters 
+	 * of the data blocks if the table was built with the same prefix extractor.
+	 */
+	class TablePrefixBound extends TwoLevelIterator.PrefixBound {
+		ReadOptions options;
+		BlockHandle handle = new BlockHandle();
+		FilterPartitionCursor filterCursor;
+		ByteBuf lastIndexKey = ByteBufFactory.newUnpooled();
+		
+		TablePrefixBound(ReadOptions options) {
+			super(rep.options.prefixExtractor, rep.options.comparator);
+			this.options = options;
+		}
+		
+		@Override
+		public boolean blockMayMatch(Slice indexKey, Slice indexValue, Slice prefix) {
+			if (!rep.prefixFiltered)
+				return true;
+			
+			if (rep.partitionedFilter) {
+				// The filter partitions are cut where the index partitions are, the one 
+				// that covers the block is found by its index key
+				if (filterCursor == null) {
+					filterCursor = new FilterPartitionCursor(options);
+				} else if (rep.options.comparator.compare(indexKey, lastIndexKey) < 0) {
+					filterCursor.releasePartition(); // Seeked backward
+				}
+				lastIndexKey.assign(indexKey.data(), indexKey.offset(), indexKey.size());
+				return filterCursor.mayMatch(indexKey, prefix);
+			}
+			
+			if (handle.decodeFrom(indexValue.data(), indexValue.offset(), indexValue.limit()) < 0)
+				return true; // Errors are treated as potential matches
+			return filterMayMatch(options, handle.offset(), prefix, true);
+		}
+		
+		@Override
+		public void delete() {
+			if (filterCursor != null) {
+				filterCursor.delete();
+				filterCursor = null;
+			}
+		}
 	}
 
 	/**
@@ -215,7 +555,7 @@ public class Table {
 	 * @return
 	 */
 	public long approximateOffsetOf(Slice key) {
-		Iterator0 indexIter = rep.indexBlock.newIterator(rep.options.comparator);
+		Iterator0 indexIter = newIndexIterator(new ReadOptions());
 		indexIter.seek(key);
 		long result;
 		if (indexIter.valid()) {
@@ -249,20 +589,48 @@ public class Table {
 		return SliceFactory.newUnpooled(ikey.data(), ikey.offset(), ikey.size() - 8);
 	}
 
+	/**
+	 * Seek to ikey and call handleResult.run(arg, k, v) with the entry found. An 
+	 * entry whose lookup key (see {@link Comparator0#lookupKeyLength}) differs from 
+	 * that of ikey may not be reported, which lets data blocks with a hash index 
+	 * answer a miss without a scan.
+	 * 
+	 * @param options
+	 * @param ikey
+	 * @param arg
+	 * @param handleResult
+	 * @return
+	 */
 	public Status internalGet(ReadOptions options, Slice ikey, Object arg, HandleResult handleResult) {
 		Status s = Status.ok0();
-		Iterator0 iiter = rep.indexBlock.newIterator(rep.options.comparator);
+		if (rep.partitionedFilter && !partitionedFilterMayMatch(options, ikey)) {
+			// Not found, and no index partition was loaded
+			return s;
+		}
+		
+		if (!rep.partitionedIndex) {
+			LookupContext ctx = LookupContext.acquire();
+			try {
+				return internalGet(ctx, options, ikey, arg, handleResult);
+			} finally {
+				ctx.release();
+			}
+		}
+		
+		Iterator0 iiter = newIndexIterator(options);
 
 		iiter.seek(ikey);
 		if (iiter.valid()) {
-			FilterBlockReader filter = rep.filter;
+			// The handle is decoded once, in place, and shared by the filter check and the block read
 			BlockHandle handle = new BlockHandle();
-			if (filter != null && handle.decodeFrom(iiter.value().clone()).ok() && 
-					!filter.keyMayMatch(handle.offset(), ikey)) {
+			Slice indexValue = iiter.value();
+			if (handle.decodeFrom(indexValue.data(), indexValue.offset(), indexValue.limit()) < 0) {
+				s = Status.corruption("bad block handle");
+			} else if (!rep.partitionedFilter && !filterMayMatch(options, handle.offset(), ikey)) {
 				// Not found
 			} else {
-				Iterator0 blockIter = blockReader(this, options, iiter.value());
-				blockIter.seek(ikey);
+				Iterator0 blockIter = blockReader(options, handle, false, rep.file, null);
+				Block.seekForGet(blockIter, ikey);
 				if (blockIter.valid()) {
 					handleResult.run(arg, blockIter.key(), blockIter.value());
 				}
@@ -278,37 +646,378 @@ public class Table {
 
 		return s;
 	}
+	
+	/**
+	 * internalGet() for a table whose index is a single block. The index and data 
+	 * blocks are searched with the iterators of ctx, so a lookup whose blocks are 
+	 * cached does not allocate.
+	 */
+	Status internalGet(LookupContext ctx, ReadOptions options, Slice ikey, Object arg, HandleResult handleResult) {
+		Block indexBlock = rep.indexBlock;
+		Cache.Handle indexCacheHandle = null;
+		if (indexBlock == null) {
+			Status s = readBlock(ctx, options, rep.indexHandle, true, BlockFormat.Parsed);
+			if (!s.ok())
+				return s;
+			indexBlock = (Block) ctx.value.getValue();
+			indexCacheHandle = ctx.cacheHandle.getValue();
+		}
+		
+		try {
+			Block.Iter iiter = ctx.indexIter;
+			if (!indexBlock.resetIterator(iiter, rep.options.comparator))
+				return emptyBlockStatus(indexBlock);
+			iiter.seek(ikey);
+			if (!iiter.valid())
+				return iiter.status();
+			
+			BlockHandle handle = ctx.handle;
+			Slice indexValue = iiter.value();
+			if (handle.decodeFrom(indexValue.data(), indexValue.offset(), indexValue.limit()) < 0)
+				return Status.corruption("bad block handle");
+			if (!rep.partitionedFilter && !filterMayMatch(ctx, options, handle.offset(), ikey, false))
+				return Status.ok0(); // Not found
+			
+			Status s = readBlock(ctx, options, handle, false, BlockFormat.Parsed);
+			if (!s.ok())
+				return s;
+			Block block = (Block) ctx.value.getValue();
+			Cache.Handle cacheHandle = ctx.cacheHandle.getValue();
+			try {
+				Block.Iter blockIter = ctx.blockIter;
+				if (!block.resetIterator(blockIter, rep.options.comparator))
+					return emptyBlockStatus(block);
+				blockIter.seekForGet(ikey);
+				if (blockIter.valid())
+					handleResult.run(arg, blockIter.key(), blockIter.value());
+				return blockIter.status();
+			} finally {
+				releaseBlock(block, cacheHandle);
+			}
+		} finally {
+			if (indexBlock != rep.indexBlock)
+				releaseBlock(indexBlock, indexCacheHandle);
+		}
+	}
+	
+	/**
+	 * Status of a lookup in a block that {@link Block#resetIterator} rejected: ok
+	 * for an empty block, else the corruption newIterator() reports.
+	 */
+	static Status emptyBlockStatus(Block block) {
+		Iterator0 iter = block.newIterator(BytewiseComparatorImpl.getInstance());
+		Status s = iter.status();
+		iter.delete();
+		return s;
+	}
+	
+	/**
+	 * Release a block returned by readBlock() without a pool.
+	 */
+	void releaseBlock(Block block, Cache.Handle cacheHandle) {
+		if (cacheHandle != null)
+			rep.options.blockCache.release(cacheHandle);
+		else
+			block.delete();
+	}
+	
+	/**
+	 * Look up a batch of keys, calling handleResult.run(args.get(i), k, v) for every
+	 * keys.get(i) whose seek finds an entry, as internalGet does.</br>
+	 * </br>
+	 *
+	 * keys must be sorted in the table's order. Keys that fall into the same data
+	 * block share one index seek and one read of the block, and blocks that the
+	 * filter rules out for every key are not read at all.
+	 *
+	 * @param options
+	 * @param keys
+	 * @param args
+	 * @param handleResult
+	 * @return the first error encountered, keys after it are not looked up
+	 */
+	public Status multiGet(ReadOptions options, List<Slice> keys, List<Object> args, HandleResult handleResult) {
+		Status s = Status.ok0();
+		Comparator0 cmp = rep.options.comparator;
+		Iterator0 iiter = null;
+		Slice separator = null; // Index key of the current data block, valid while iiter does not move
+		BlockHandle handle = new BlockHandle();
+		Iterator0 blockIter = null;
+		FilterPartitionCursor filterCursor = rep.partitionedFilter ? new FilterPartitionCursor(options) : null;
 
-	protected void readMeta(Footer footer) {
-		if (rep.options.filterPolicy == null) {
-			return; // Do not need any metadata
+		for (int i = 0; i < keys.size() && s.ok(); i++) {
+			Slice ikey = keys.get(i);
+			if (filterCursor != null && !filterCursor.keyMayMatch(ikey))
+				continue;
+
+			if (separator == null || cmp.compare(ikey, separator) > 0) {
+				// ikey is past the current data block, move the index forward
+				if (iiter == null)
+					iiter = newIndexIterator(options);
+				iiter.seek(ikey);
+				if (blockIter != null) {
+					blockIter.delete();
+					blockIter = null;
+				}
+				if (!iiter.valid()) {
+					// Every remaining key is past the last block
+					s = iiter.status();
+					break;
+				}
+				separator = iiter.key();
+				Slice indexValue = iiter.value();
+				if (handle.decodeFrom(indexValue.data(), indexValue.offset(), indexValue.limit()) < 0) {
+					s = Status.corruption("bad block handle");
+					break;
+				}
+			}
+
+			if (!rep.partitionedFilter && !filterMayMatch(options, handle.offset(), ikey))
+				continue;
+
+			if (blockIter == null)
+				blockIter = blockReader(options, handle, false, rep.file, null);
+			Block.seekForGet(blockIter, ikey);
+			if (blockIter.valid())
+				handleResult.run(args.get(i), blockIter.key(), blockIter.value());
+			s = blockIter.status();
 		}
 
-		// TODO(sanjay): Skip this if footer.metaindexHandle() size indicates it is an empty block.
+		if (filterCursor != null)
+			filterCursor.delete();
+		if (blockIter != null)
+			blockIter.delete();
+		if (iiter != null) {
+			if (s.ok())
+				s = iiter.status();
+			iiter.delete();
+		}
+		return s;
+	}
+
+	/**
+	 * Check the filter of the data block at blockOffset.
+	 * 
+	 * @param options
+	 * @param blockOffset
+	 * @param ikey
+	 * @return false if ikey is definitely not in the table
+	 */
+	boolean filterMayMatch(ReadOptions options, long blockOffset, Slice ikey) {
+		return filterMayMatch(options, blockOffset, ikey, false);
+	}
+	
+	/**
+	 * Check the filter of the data block at blockOffset for ikey, or for a key prefix
+	 * if prefix is true.
+	 * 
+	 * @param options
+	 * @param blockOffset
+	 * @param key
+	 * @param prefix
+	 * @return false if no key of the block matches
+	 */
+	boolean filterMayMatch(ReadOptions options, long blockOffset, Slice key, boolean prefix) {
+		return filterMayMatch(null, options, blockOffset, key, prefix);
+	}
+	
+	/**
+	 * Same as above, reading a cached filter through ctx if it is non-null.
+	 */
+	boolean filterMayMatch(LookupContext ctx, ReadOptions options, long blockOffset, Slice key, boolean prefix) {
+		if (rep.filter != null)
+			return filterMayMatch(ctx, rep.filter, blockOffset, key, prefix);
+		if (rep.filterHandle == null)
+			return true;
+		
+		Object0<Object> data = (ctx != null) ? ctx.value : new Object0<Object>();
+		Object0<Cache.Handle> cacheHandle = (ctx != null) ? ctx.cacheHandle : new Object0<Cache.Handle>();
+		if (!readBlock(rep.file, null, options, rep.filterHandle, true, BlockFormat.Filter, data, cacheHandle, 
+				ctx != null ? ctx.cacheKey : null).ok())
+			return true; // Errors are treated as potential matches
+		FilterBlockReader filter = (FilterBlockReader) data.getValue();
+		boolean result = filterMayMatch(ctx, filter, blockOffset, key, prefix);
+		if (cacheHandle.getValue() != null)
+			rep.options.blockCache.release(cacheHandle.getValue());
+		return result;
+	}
+	
+	/**
+	 * Check filter, through the filter view of ctx if it is non-null.
+	 */
+	static boolean filterMayMatch(LookupContext ctx, FilterBlockReader filter, long blockOffset, Slice key, boolean prefix) {
+		if (prefix)
+			return filter.prefixMayMatch(blockOffset, key);
+		return (ctx != null) ? filter.keyMayMatch(blockOffset, key, ctx.filterView) : filter.keyMayMatch(blockOffset, key);
+	}
+
+	/**
+	 * Check the filter partition that covers ikey.
+	 * 
+	 * @param options
+	 * @param ikey
+	 * @return false if ikey is definitely not in the table
+	 */
+	boolean partitionedFilterMayMatch(ReadOptions options, Slice ikey) {
+		FilterPartitionCursor cursor = new FilterPartitionCursor(options);
+		boolean result = cursor.keyMayMatch(ikey);
+		cursor.delete();
+		return result;
+	}
+	
+	/**
+	 * Returns an iterator over the top-level filter index of a partitioned table.
+	 * 
+	 * @param options
+	 * @return
+	 */
+	Iterator0 newFilterIndexIterator(ReadOptions options) {
+		if (rep.filterIndexBlock != null)
+			return rep.filterIndexBlock.newIterator(rep.options.comparator);
+		
+		Object0<Object> block = new Object0<>();
+		Object0<Cache.Handle> cacheHandle = new Object0<>();
+		Status s = readBlock(options, rep.filterHandle, true, BlockFormat.Parsed, block, cacheHandle);
+		if (!s.ok())
+			return Iterator0.newErrorIterator(s);
+		return newBlockIterator((Block) block.getValue(), cacheHandle.getValue());
+	}
+	
+	/**
+	 * Checks keys against the filter partitions of a partitioned table. Keys must
+	 * be passed in sorted order, the current partition is kept until a key falls
+	 * past it. Errors are treated as potential matches.
+	 */
+	class FilterPartitionCursor {
+		ReadOptions options;
+		Iterator0 indexIter;
+		Slice separator; // Index key of the current partition
+		Slice data;
+		Cache.Handle cacheHandle;
+		
+		FilterPartitionCursor(ReadOptions options) {
+			this.options = options;
+		}
+		
+		boolean keyMayMatch(Slice ikey) {
+			return mayMatch(ikey, null);
+		}
+		
+		/**
+		 * Check the partition that covers ikey for ikey itself, or for prefix if it is
+		 * non-null.
+		 * 
+		 * @param ikey
+		 * @param prefix
+		 * @return
+		 */
+		boolean mayMatch(Slice ikey, Slice prefix) {
+			if (separator == null || rep.options.comparator.compare(ikey, separator) > 0) {
+				releasePartition();
+				if (indexIter == null)
+					indexIter = newFilterIndexIterator(options);
+				indexIter.seek(ikey);
+				if (!indexIter.valid())
+					return true;
+				separator = indexIter.key();
+				
+				BlockHandle handle = new BlockHandle();
+				Slice indexValue = indexIter.value();
+				if (handle.decodeFrom(indexValue.data(), indexValue.offset(), indexValue.limit()) >= 0) {
+					Object0<Object> value = new Object0<>();
+					Object0<Cache.Handle> h = new Object0<>();
+					if (readBlock(options, handle, true, BlockFormat.Raw, value, h).ok()) {
+						data = (Slice) value.getValue();
+						cacheHandle = h.getValue();
+					}
+				}
+			}
+			if (data == null)
+				return true;
+			return prefix != null ? rep.options.filterPolicy.prefixMayMatch(prefix, data) : 
+				rep.options.filterPolicy.keyMayMatch(ikey, data);
+		}
+		
+		void releasePartition() {
+			if (cacheHandle != null)
+				rep.options.blockCache.release(cacheHandle);
+			cacheHandle = null;
+			data = null;
+			separator = null;
+		}
+		
+		void delete() {
+			releasePartition();
+			if (indexIter != null) {
+				indexIter.delete();
+				indexIter = null;
+			}
+		}
+	}
+	
+	ReadOptions metaReadOptions() {
 		ReadOptions opt = new ReadOptions();
 		if (rep.options.paranoidChecks) {
 			opt.verifyChecksums = true;
 		}
+		return opt;
+	}
+
+	protected Status readMeta(Footer footer) {
+		// An empty metaindex block only holds its restart array
+		if (footer.metaindexHandle().size() <= 8) {
+			return Status.ok0();
+		}
+		
+		ReadOptions opt = metaReadOptions();
 		BlockContents contents = new BlockContents();
 
-		if (!TableFormat.readBlock(rep.file, opt, footer.metaindexHandle(), contents).ok()) {
-			// Do not propagate errors since meta info is not needed for operation
-			return;
+		Status s = TableFormat.readBlock(rep.file, opt, footer.metaindexHandle(), contents);
+		if (!s.ok()) {
+			// Filters are optional, but the table can not be read without knowing
+			// whether its index is partitioned.
+			return s;
 		}
 		Block meta = new Block(contents);
 
 		Iterator0 iter = meta.newIterator(BytewiseComparatorImpl.getInstance());
-		String key = "filter.";
-		key += (rep.options.filterPolicy.name());
-		iter.seek(SliceFactory.newUnpooled(key));
-		if (iter.valid() && iter.key().equals(SliceFactory.newUnpooled(key))) {
-			readFilter(iter.value());
+		String filterKey = null;
+		String partitionedFilterKey = null;
+		if (rep.options.filterPolicy != null) {
+			filterKey = "filter." + rep.options.filterPolicy.name();
+			partitionedFilterKey = TableFormat.kPartitionedFilterPrefix + rep.options.filterPolicy.name();
 		}
+		String prefixKey = null;
+		if (rep.options.prefixExtractor != null)
+			prefixKey = TableFormat.kPrefixExtractorPrefix + rep.options.prefixExtractor.name();
+		for (iter.seekToFirst(); iter.valid(); iter.next()) {
+			String key = new String(iter.key().data(), iter.key().offset(), iter.key().size());
+			if (key.equals(filterKey)) {
+				readFilter(iter.value(), false);
+			} else if (key.equals(partitionedFilterKey)) {
+				readFilter(iter.value(), true);
+			} else if (key.equals(TableFormat.kPartitionedIndexKey)) {
+				rep.partitionedIndex = true;
+			} else if (key.equals(prefixKey)) {
+				rep.prefixFiltered = true;
+			}
+		}
+		// Prefix filters are only of use along with the filter
+		rep.prefixFiltered = rep.prefixFiltered && rep.filterHandle != null;
+		s = iter.status();
 		iter.delete(); // delete iter;
 		meta.delete(); // delete meta;
+		return s;
 	}
 
-	protected void readFilter(Slice filterHandleValue) {
+	/**
+	 * Load the filter block, or the top-level index over the filter partitions if 
+	 * partitioned. Filters are optional, so errors are ignored.
+	 * 
+	 * @param filterHandleValue
+	 * @param partitioned
+	 */
+	protected void readFilter(Slice filterHandleValue, boolean partitioned) {
 		Slice v = filterHandleValue.clone();
 		BlockHandle filterHandle = new BlockHandle();
 		if (!filterHandle.decodeFrom(v).ok()) {
@@ -317,22 +1026,79 @@ public class Table {
 
 		// We might want to unify with readBlock() if we start
 		// requiring checksum verification in Table.open.
-		ReadOptions opt = new ReadOptions();
-		if (rep.options.paranoidChecks) {
-			opt.verifyChecksums = true;
+		ReadOptions opt = metaReadOptions();
+		
+		if (rep.cacheMetadata) {
+			// Warm the cache, and keep the handle if pinned
+			Object0<Object> value = new Object0<>();
+			Object0<Cache.Handle> cacheHandle = new Object0<>();
+			if (!readBlock(opt, filterHandle, true, partitioned ? BlockFormat.Parsed : BlockFormat.Filter, value, cacheHandle).ok()) {
+				return;
+			}
+			rep.filterHandle = filterHandle;
+			rep.partitionedFilter = partitioned;
+			Cache.Handle h = cacheHandle.getValue();
+			if (h != null && !rep.pinMetadata) {
+				rep.options.blockCache.release(h);
+				return;
+			}
+			// Pinned, or not cachable and thus kept on the heap
+			rep.filterCacheHandle = h;
+			if (partitioned)
+				rep.filterIndexBlock = (Block) value.getValue();
+			else
+				rep.filter = (FilterBlockReader) value.getValue();
+			return;
 		}
+		
 		BlockContents block = new BlockContents();
 
 		if (!TableFormat.readBlock(rep.file, opt, filterHandle, block).ok()) {
 			return;
 		}
+		rep.filterHandle = filterHandle;
+		rep.partitionedFilter = partitioned;
+		if (partitioned) {
+			rep.filterIndexBlock = new Block(block);
+			return;
+		}
 		if (block.heapAllocated) {
 			rep.filterData = block.data.data(); // Will need to delete later
 		}
 		rep.filter = new FilterBlockReader(rep.options.filterPolicy, block.data);
 	}
 
+	/**
+	 * Append the trailer, type and crc, of the block at handle to dst.
+	 */
+	static Status readBlockTrailer(RandomAccessFile0 file, BlockHandle handle, ByteBuf dst) {
+		byte[] space = new byte[TableFormat.kBlockTrailerSize];
+		Slice trailer = SliceFactory.newUnpooled();
+		Status s = file.read(handle.offset() + handle.size(), TableFormat.kBlockTrailerSize, trailer, space);
+		if (!s.ok())
+			return s;
+		if (trailer.size() != TableFormat.kBlockTrailerSize)
+			return Status.corruption("truncated block read");
+		dst.append(trailer);
+		return s;
+	}
+
 	public static Status open(Options options, RandomAccessFile0 file, long size, Object0<Table> table) {
+		return open(options, file, size, false, table);
+	}
+	
+	/**
+	 * Open the table stored in bytes [0..size) of file.
+	 * 
+	 * @param options
+	 * @param file
+	 * @param size
+	 * @param pinMetadata if options.cacheIndexAndFilterBlocks is set, keep the index and
+	 * filter blocks referenced in the block cache until the table is deleted
+	 * @param table
+	 * @return
+	 */
+	public static Status open(Options options, RandomAccessFile0 file, long size, boolean pinMetadata, Object0<Table> table) {
 
 		table.setValue(null);
 		if (size < Footer.kEncodedLength)
@@ -344,41 +1110,71 @@ public class Table {
 		if (!s.ok())
 			return s;
 
+		Slice footerContents = footerInput.clone();
 		Footer footer = new Footer();
 		s = footer.decodeFrom(footerInput);
 		if (!s.ok())
 			return s;
 
+		Rep rep = new Rep();
+		rep.options = options.cloneOptions();
+		rep.file = file;
+		rep.metaindexHandle = footer.metaindexHandle();
+		rep.indexHandle = footer.indexHandle();
+		rep.cacheId = (options.blockCache != null ? options.blockCache.newId() : 0);
+		if (options.secondaryBlockCache != null) {
+			// The trailers hold the crcs of the metaindex and index contents, which
+			// tell the table apart from an earlier one with the same name and size
+			ByteBuf tail = ByteBufFactory.newUnpooled();
+			s = readBlockTrailer(file, footer.metaindexHandle(), tail);
+			if (s.ok())
+				s = readBlockTrailer(file, footer.indexHandle(), tail);
+			if (!s.ok())
+				return s;
+			tail.append(footerContents);
+			rep.secondaryCacheId = options.secondaryBlockCache.newId(file.name(), size, 
+					SliceFactory.newUnpooled(tail.data(), tail.offset(), tail.size()));
+		}
+		rep.cacheMetadata = (options.cacheIndexAndFilterBlocks && options.blockCache != null);
+		rep.pinMetadata = pinMetadata;
+		rep.filterData = null;
+		rep.filter = null;
+		Table t = new Table(rep);
+		
 		// Read the index block
-		BlockContents contents = new BlockContents();
-		Block indexBlock = null;
-		if (s.ok()) {
-			ReadOptions opt = new ReadOptions();
-			if (options.paranoidChecks) {
-				opt.verifyChecksums = true;
-			}
+		ReadOptions opt = t.metaReadOptions();
+		if (!rep.cacheMetadata) {
+			BlockContents contents = new BlockContents();
 			s = TableFormat.readBlock(file, opt, footer.indexHandle(), contents);
 			if (s.ok())
-				indexBlock = new Block(contents);
+				rep.indexBlock = new Block(contents);
+		} else {
+			// Warm the cache, and keep the handle if pinned
+			Object0<Object> indexBlock = new Object0<>();
+			Object0<Cache.Handle> cacheHandle = new Object0<>();
+			s = t.readBlock(opt, footer.indexHandle(), true, BlockFormat.Parsed, indexBlock, cacheHandle);
+			if (s.ok()) {
+				Cache.Handle h = cacheHandle.getValue();
+				if (h != null && !pinMetadata) {
+					options.blockCache.release(h);
+				} else {
+					// Pinned, or not cachable and thus kept on the heap
+					rep.indexBlock = (Block) indexBlock.getValue();
+					rep.indexCacheHandle = h;
+				}
+			}
 		}
-
+		
 		if (s.ok()) {
 			// We've successfully read the footer and the index block: we're ready to serve requests.
-			Rep rep = new Rep();
-			rep.options = options.cloneOptions();
-			rep.file = file;
-			rep.metaindexHandle = footer.metaindexHandle();
-			rep.indexBlock = indexBlock;
-			rep.cacheId = (options.blockCache != null ? options.blockCache.newId() : 0);
-			rep.filterData = null;
-			rep.filter = null;
-			table.setValue(new Table(rep));
-			table.getValue().readMeta(footer);
+			s = t.readMeta(footer);
+		}
+		
+		if (s.ok()) {
+			table.setValue(t);
 		} else {
-			indexBlock.delete();
-			indexBlock = null;
+			t.delete();
 		}
-
 		return s;
 	}
 }
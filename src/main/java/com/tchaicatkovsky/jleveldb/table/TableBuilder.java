@@ -24,6 +24,8 @@
 
 package com.tchaicatkovsky.jleveldb.table;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import com.tchaicatkovsky.jleveldb.CompressionType;
 import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.Status;
@@ -32,6 +34,7 @@ import com.tchaicatkovsky.jleveldb.table.TableFormat.BlockHandle;
 import com.tchaicatkovsky.jleveldb.table.TableFormat.Footer;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.BytewiseComparatorImpl;
 import com.tchaicatkovsky.jleveldb.util.Coding;
 import com.tchaicatkovsky.jleveldb.util.Crc32C;
 import com.tchaicatkovsky.jleveldb.util.Slice;
@@ -67,21 +70,41 @@ public class TableBuilder {
 		BlockHandle pendingHandle = new BlockHandle(); // Handle to add to index block
 
 		ByteBuf compressedOutput = ByteBufFactory.newUnpooled();
+		
+		/**
+		 * Only set if options.partitionIndexAndFilters is true. indexBlockBuilder then
+		 * collects the current index partition, and the top-level builders map the
+		 * last separator of every written partition to the handle of that index
+		 * partition and of its filter partition.
+		 */
+		BlockBuilder topLevelIndexBuilder;
+		FullFilterBlockBuilder filterPartitionBuilder;
+		BlockBuilder topLevelFilterIndexBuilder;
 
 		public Rep(Options opt, WritableFile f) {
 			options = opt.cloneOptions();
 			this.file = f;
 			indexBlockBuilderOptions = opt.cloneOptions();
 			offset = 0;
-			dataBlockBuilder = new BlockBuilder(options);
+			dataBlockBuilder = new BlockBuilder(options, true);
 			indexBlockBuilder = new BlockBuilder(indexBlockBuilderOptions);
 			lastKey = ByteBufFactory.newUnpooled();
 			numEntries = 0;
 			closed = false;
-			filterBlockBuilder = opt.filterPolicy == null ? null : new FilterBlockBuilder(opt.filterPolicy);
+			filterBlockBuilder = opt.filterPolicy == null ? null : 
+				new FilterBlockBuilder(opt.filterPolicy, opt.prefixExtractor, opt.comparator);
 
 			pendingIndexEntry = false;
 			indexBlockBuilderOptions.blockRestartInterval = 1;
+			
+			if (opt.partitionIndexAndFilters) {
+				topLevelIndexBuilder = new BlockBuilder(indexBlockBuilderOptions);
+				if (filterBlockBuilder != null) {
+					filterBlockBuilder = null;
+					filterPartitionBuilder = new FullFilterBlockBuilder(opt.filterPolicy, opt.prefixExtractor, opt.comparator);
+					topLevelFilterIndexBuilder = new BlockBuilder(indexBlockBuilderOptions);
+				}
+			}
 		}
 
 		public void delete() {
@@ -115,6 +138,12 @@ public class TableBuilder {
 		if (options.comparator != rep.options.comparator) {
 			return Status.invalidArgument("changing comparator while building table");
 		}
+		if (options.partitionIndexAndFilters != rep.options.partitionIndexAndFilters) {
+			return Status.invalidArgument("changing index partitioning while building table");
+		}
+		if (options.prefixExtractor != rep.options.prefixExtractor) {
+			return Status.invalidArgument("changing prefix extractor while building table");
+		}
 
 		// Note that any live BlockBuilders point to rep_->options and therefore
 		// will automatically pick up the updated options.
@@ -142,11 +171,22 @@ public class TableBuilder {
 			r.pendingHandle.encodeTo(handleEncoding);
 			r.indexBlockBuilder.add(SliceFactory.newUnpooled(r.lastKey), SliceFactory.newUnpooled(handleEncoding)); // TODO: new DefaultSlice(r.lastKey)->r.lastKey
 			r.pendingIndexEntry = false;
+			
+			// Partitions end at data block boundaries, so the separator just added
+			// is >= every key of the partition and < every key that follows.
+			if (r.topLevelIndexBuilder != null && 
+					r.indexBlockBuilder.currentSizeEstimate() >= r.options.metadataBlockSize) {
+				writeIndexPartition(SliceFactory.newUnpooled(r.lastKey));
+				if (!ok())
+					return;
+			}
 		}
 		
 
 		if (r.filterBlockBuilder != null) {
 			r.filterBlockBuilder.addKey(key);
+		} else if (r.filterPartitionBuilder != null) {
+			r.filterPartitionBuilder.addKey(key);
 		}
 		
 
@@ -199,10 +239,22 @@ public class TableBuilder {
 		if (ok() && r.filterBlockBuilder != null) {
 			writeRawBlock(r.filterBlockBuilder.finish(), CompressionType.kNoCompression, filterBlockHandle);
 		}
+		
+		// Write the last index partition, its filter and the top-level filter index
+		if (ok() && r.topLevelIndexBuilder != null) {
+			addLastIndexEntry();
+			if (!r.indexBlockBuilder.empty())
+				writeIndexPartition(SliceFactory.newUnpooled(r.lastKey));
+			if (ok() && r.topLevelFilterIndexBuilder != null)
+				writeBlock(r.topLevelFilterIndexBuilder, filterBlockHandle);
+		}
 
 		// Write metaindex block
 		if (ok()) {
-			BlockBuilder metaIndexBlockBuilder = new BlockBuilder(r.options);
+			// Meta block names are ordered bytewise, whatever the table's comparator
+			Options metaIndexOptions = r.options.cloneOptions();
+			metaIndexOptions.comparator = BytewiseComparatorImpl.getInstance();
+			BlockBuilder metaIndexBlockBuilder = new BlockBuilder(metaIndexOptions);
 			if (r.filterBlockBuilder != null) {
 				// Add mapping from "filter.Name" to location of filter data
 				String key = "filter." + r.options.filterPolicy.name();
@@ -211,6 +263,24 @@ public class TableBuilder {
 				filterBlockHandle.encodeTo(handleEncoding);
 				metaIndexBlockBuilder.add(SliceFactory.newUnpooled(key), SliceFactory.newUnpooled(handleEncoding));
 			}
+			ByteBuf tableId = ByteBufFactory.newUnpooled();
+			tableId.addFixedNat64(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+			metaIndexBlockBuilder.add(SliceFactory.newUnpooled(TableFormat.kTableIdKey), SliceFactory.newUnpooled(tableId));
+			if (r.topLevelIndexBuilder != null) {
+				// Keys are added in bytewise order
+				if (r.topLevelFilterIndexBuilder != null) {
+					String key = TableFormat.kPartitionedFilterPrefix + r.options.filterPolicy.name();
+					ByteBuf handleEncoding = ByteBufFactory.newUnpooled();
+					filterBlockHandle.encodeTo(handleEncoding);
+					metaIndexBlockBuilder.add(SliceFactory.newUnpooled(key), SliceFactory.newUnpooled(handleEncoding));
+				}
+				metaIndexBlockBuilder.add(SliceFactory.newUnpooled(TableFormat.kPartitionedIndexKey), SliceFactory.newUnpooled());
+			}
+			if (r.options.prefixExtractor != null && (r.filterBlockBuilder != null || r.topLevelFilterIndexBuilder != null)) {
+				// Record which prefixes the filters hold, sorts after the keys above
+				String key = TableFormat.kPrefixExtractorPrefix + r.options.prefixExtractor.name();
+				metaIndexBlockBuilder.add(SliceFactory.newUnpooled(key), SliceFactory.newUnpooled());
+			}
 
 			// TODO(postrelease): Add stats and other meta blocks
 			writeBlock(metaIndexBlockBuilder, metaindexBlockHandle);
@@ -218,15 +288,12 @@ public class TableBuilder {
 
 		// Write index block
 		if (ok()) {
-			if (r.pendingIndexEntry) {
-				assert (r.dataBlockBuilder.empty());
-				r.options.comparator.findShortSuccessor(r.lastKey);
-				ByteBuf handleEncoding = ByteBufFactory.newUnpooled();
-				r.pendingHandle.encodeTo(handleEncoding);
-				r.indexBlockBuilder.add(SliceFactory.newUnpooled(r.lastKey), SliceFactory.newUnpooled(handleEncoding)); // TODO
-				r.pendingIndexEntry = false;
+			if (r.topLevelIndexBuilder != null) {
+				writeBlock(r.topLevelIndexBuilder, indexBlockHandle);
+			} else {
+				addLastIndexEntry();
+				writeBlock(r.indexBlockBuilder, indexBlockHandle);
 			}
-			writeBlock(r.indexBlockBuilder, indexBlockHandle);
 		}
 
 		// Write footer
@@ -244,6 +311,45 @@ public class TableBuilder {
 		return r.status;
 	}
 
+	void addLastIndexEntry() {
+		Rep r = rep;
+		if (r.pendingIndexEntry) {
+			assert (r.dataBlockBuilder.empty());
+			r.options.comparator.findShortSuccessor(r.lastKey);
+			ByteBuf handleEncoding = ByteBufFactory.newUnpooled();
+			r.pendingHandle.encodeTo(handleEncoding);
+			r.indexBlockBuilder.add(SliceFactory.newUnpooled(r.lastKey), SliceFactory.newUnpooled(handleEncoding)); // TODO
+			r.pendingIndexEntry = false;
+		}
+	}
+	
+	/**
+	 * Write the current index partition and the filter of the keys it covers, 
+	 * and add them to the top-level indexes under lastSeparator.
+	 * 
+	 * @param lastSeparator
+	 */
+	void writeIndexPartition(Slice lastSeparator) {
+		Rep r = rep;
+		if (r.filterPartitionBuilder != null) {
+			BlockHandle filterHandle = new BlockHandle();
+			writeRawBlock(r.filterPartitionBuilder.finish(), CompressionType.kNoCompression, filterHandle);
+			if (!ok())
+				return;
+			ByteBuf handleEncoding = ByteBufFactory.newUnpooled();
+			filterHandle.encodeTo(handleEncoding);
+			r.topLevelFilterIndexBuilder.add(lastSeparator, SliceFactory.newUnpooled(handleEncoding));
+		}
+		
+		BlockHandle handle = new BlockHandle();
+		writeBlock(r.indexBlockBuilder, handle);
+		if (ok()) {
+			ByteBuf handleEncoding = ByteBufFactory.newUnpooled();
+			handle.encodeTo(handleEncoding);
+			r.topLevelIndexBuilder.add(lastSeparator, SliceFactory.newUnpooled(handleEncoding));
+		}
+	}
+
 	public Status status() {
 		return rep.status;
 	}
@@ -285,7 +391,7 @@ public class TableBuilder {
 				break;
 	
 			case kSnappyCompression: {
-				if (Snappy.compress(raw.data(), 0, raw.size(), r.compressedOutput) && r.compressedOutput.size() < raw.size() - (raw.size() / 8)) {
+				if (Snappy.compress(raw.data(), raw.offset(), raw.size(), r.compressedOutput) && r.compressedOutput.size() < raw.size() - (raw.size() / 8)) {
 					blockContents.init(r.compressedOutput);
 				} else {
 					// Snappy not supported, or compressed less than 12.5%, so just
@@ -72,10 +72,40 @@ public class TableFormat {
 		}
 		
 		public Status decodeFrom(Slice input) {
-			offset = Coding.popVarNat64(input);
-			size = Coding.popVarNat64(input);
+			int end = decodeFrom(input.data(), input.offset(), input.limit());
+			if (end < 0)
+				return Status.corruption("bad block handle");
+			input.setOffset(end);
 			return Status.ok0();
 		}
+		
+		/**
+		 * Decode from data[offset, limit) without consuming a Slice, so that one 
+		 * handle can be reused for any number of decodes.
+		 * 
+		 * @param data
+		 * @param offset
+		 * @param limit
+		 * @return the offset just past the handle, or -1 if the input is malformed
+		 */
+		public int decodeFrom(byte[] data, int offset, int limit) {
+			for (int field = 0; field < 2; field++) {
+				long result = 0;
+				for (int shift = 0; ; shift += 7) {
+					if (offset >= limit || shift > 63)
+						return -1;
+					long b = data[offset++];
+					result |= ((b & 127) << shift);
+					if ((b & 128) == 0)
+						break;
+				}
+				if (field == 0)
+					this.offset = result;
+				else
+					this.size = result;
+			}
+			return offset;
+		}
 
 		/**
 		 *  Maximum encoding length of a BlockHandle
@@ -160,6 +190,32 @@ public class TableFormat {
 	 */
 	public static final long kTableMagicNumber = 0xdb4775248b80fb57L;
 	
+	/**
+	 * Metaindex key present in tables whose index block is a top-level index over
+	 * index partitions, see {@link com.tchaicatkovsky.jleveldb.Options#partitionIndexAndFilters}.
+	 */
+	public static final String kPartitionedIndexKey = "jleveldb.partitioned.index";
+	
+	/**
+	 * Metaindex key prefix, followed by the filter policy name, of the top-level 
+	 * index over the filter partitions of a partitioned table.
+	 */
+	public static final String kPartitionedFilterPrefix = "jleveldb.partitioned.filter.";
+	
+	/**
+	 * Metaindex key whose value is a random non-negative fixed64 picked when the table is built. 
+	 * It makes the crc of the metaindex block differ between tables that otherwise
+	 * have the same name, size and layout, see 
+	 * {@link com.tchaicatkovsky.jleveldb.util.SecondaryCache#newId(String, long, com.tchaicatkovsky.jleveldb.util.Slice)}.
+	 */
+	public static final String kTableIdKey = "jleveldb.id";
+	
+	/**
+	 * Metaindex key prefix, followed by the extractor name, present in tables whose
+	 * filters also hold the key prefixes, see {@link com.tchaicatkovsky.jleveldb.Options#prefixExtractor}.
+	 */
+	public static final String kPrefixExtractorPrefix = "jleveldb.prefix.";
+	
 	/**
 	 * 1-byte type + 32-bit crc
 	 */
@@ -185,24 +241,61 @@ public class TableFormat {
             ReadOptions options,
             BlockHandle handle,
             BlockContents result) {
-		result.data = SliceFactory.newUnpooled();
-		result.cachable = false;
-		result.heapAllocated = false;
-		
+		return readBlock(file, options, handle, result, null);
+	}
+	
+	/**
+	 * Same as above, but if pool is non-null the block is read and decoded into 
+	 * buffers taken from it. result.data.data() then belongs to the pool and must 
+	 * be released to it once the block is no longer used, so result is not cachable.
+	 */
+	static Status readBlock(RandomAccessFile0 file,
+            ReadOptions options,
+            BlockHandle handle,
+            BlockContents result,
+            BlockBufferPool pool) {
 		// Read the block contents as well as the type/crc footer.
 		// See table_builder.cc for the code that built this structure.
 		int n = (int)handle.size();
-		byte[] buf = new byte[n + kBlockTrailerSize];
+		byte[] buf = (pool != null) ? pool.acquire(n + kBlockTrailerSize) : new byte[n + kBlockTrailerSize];
 		Slice contents = SliceFactory.newUnpooled();
-		Status s = file.read(handle.offset(), n + kBlockTrailerSize, contents, buf);
+		Status s = readRawBlock(file, handle, contents, buf);
 		if (!s.ok()) {
-		    buf = null;
-		    return s;
+			result.data = SliceFactory.newUnpooled();
+			result.cachable = false;
+			result.heapAllocated = false;
+			releaseBuffer(pool, buf);
+			return s;
 		}
-		if (contents.size() != n + kBlockTrailerSize) {
-		    buf = null;
+		return decodeBlock(contents, buf, options, result, pool);
+	}
+	
+	/**
+	 * Read the block identified by handle together with its trailer, as it is
+	 * stored in the file, into buf. contents is set to the bytes read, which are 
+	 * in buf unless the file implementation returned a pointer to its own data.
+	 */
+	static Status readRawBlock(RandomAccessFile0 file, BlockHandle handle, Slice contents, byte[] buf) {
+		int n = (int)handle.size();
+		Status s = file.read(handle.offset(), n + kBlockTrailerSize, contents, buf);
+		if (!s.ok())
+		    return s;
+		if (contents.size() != n + kBlockTrailerSize)
 		    return Status.corruption("truncated block read");
-		}
+		return s;
+	}
+	
+	/**
+	 * Check and uncompress a block read by readRawBlock into buf, taken from 
+	 * pool if pool is non-null.
+	 */
+	static Status decodeBlock(Slice contents, byte[] buf, ReadOptions options, BlockContents result, BlockBufferPool pool) {
+		result.data = SliceFactory.newUnpooled();
+		result.cachable = false;
+		result.heapAllocated = false;
+		
+		int n = contents.size() - kBlockTrailerSize;
+		Status s;
 		
 		// Check the crc of the type and the block contents
 		byte[] data = contents.data();    // Pointer to where Read put the data
@@ -211,48 +304,53 @@ public class TableFormat {
 			long crc = Crc32C.unmask(Coding.decodeFixedNat32Long(data, offset + n + 1));
 		    long actual = Crc32C.value(data, offset, n + 1);
 		    if (actual != crc) {
-		    	buf = null;
+		    	releaseBuffer(pool, buf);
 		    	s = Status.corruption("block checksum mismatch");
 		    	return s;
 		    }
 		}
 		
-	    if (data[n] == CompressionType.kNoCompression.getType()) {
+	    if (data[offset + n] == CompressionType.kNoCompression.getType()) {
 	    	if (data != buf) {
     			// File implementation gave us pointer to some other data.
     			// Use it directly under the assumption that it will be live
     			// while the file is open.
-    			buf = null;
+    			releaseBuffer(pool, buf);
     			result.data = SliceFactory.newUnpooled(data, offset, n);
     			result.heapAllocated = false;
     			result.cachable = false;  // Do not double-cache
     		} else {
-    			result.data = SliceFactory.newUnpooled(buf, 0, n);
+    			result.data = SliceFactory.newUnpooled(buf, offset, n);
     			result.heapAllocated = true;
-    			result.cachable = true;
+    			result.cachable = (pool == null);
     		}
-    	} else if (data[n] == CompressionType.kSnappyCompression.getType()) {
+    	} else if (data[offset + n] == CompressionType.kSnappyCompression.getType()) {
     		Integer0 ulength0 = new Integer0();
-	    	if (!Snappy.getUncompressedLength(data, 0, n, ulength0)) {
-	    		buf = null;
+	    	if (!Snappy.getUncompressedLength(data, offset, n, ulength0)) {
+	    		releaseBuffer(pool, buf);
 	    		return Status.corruption("corrupted compressed block contents");
 	    	}
 	    	int ulength = ulength0.getValue();
-	    	byte[] ubuf = new byte[ulength];
-	    	if (!Snappy.uncompress(data, 0, n, ubuf)) {
-	    		buf = null;
-	    		ubuf = null;
+	    	byte[] ubuf = (pool != null) ? pool.acquire(ulength) : new byte[ulength];
+	    	boolean ok = Snappy.uncompress(data, offset, n, ubuf);
+	    	releaseBuffer(pool, buf);
+	    	if (!ok) {
+	    		releaseBuffer(pool, ubuf);
 	    		return Status.corruption("corrupted compressed block contents");
 	    	}
-	    	buf = null;
 	    	result.data = SliceFactory.newUnpooled(ubuf, 0, ulength);
 	    	result.heapAllocated = true;
-	    	result.cachable = true;
+	    	result.cachable = (pool == null);
 		} else {
-    		buf = null;
-    		return Status.corruption("bad compress type "+data[n]);
+			releaseBuffer(pool, buf);
+    		return Status.corruption("bad compress type "+data[offset + n]);
 	    }
 
 		return Status.ok0();
 	}
+	
+	static void releaseBuffer(BlockBufferPool pool, byte[] buf) {
+		if (pool != null)
+			pool.release(buf);
+	}
 }
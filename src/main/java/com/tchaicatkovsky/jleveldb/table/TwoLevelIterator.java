@@ -26,10 +26,14 @@ package com.tchaicatkovsky.jleveldb.table;
 
 import com.tchaicatkovsky.jleveldb.Iterator0;
 import com.tchaicatkovsky.jleveldb.ReadOptions;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.ByteUtils;
+import com.tchaicatkovsky.jleveldb.util.Comparator0;
 import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 
 public class TwoLevelIterator extends Iterator0 {
 	
@@ -58,6 +62,83 @@ public class TwoLevelIterator extends Iterator0 {
 		return new TwoLevelIterator(indexIter, blockFunction, arg, options);
 	}
 	
+	/**
+	 * Same as newTwoLevelIterator(indexIter, blockFunction, arg, options), but blocks
+	 * past options.iterateUpperBound, or before options.iterateLowerBound when moving
+	 * backward, are not loaded. comparator orders the index keys, its lookup keys are
+	 * checked against the bounds. If prefixBound is non-null, after a seek to a target
+	 * with a prefix the iterator only moves forward through blocks that may hold keys 
+	 * with that prefix, see {@link PrefixBound}. Takes ownership of "prefixBound" too.
+	 * 
+	 * @param indexIter
+	 * @param blockFunction
+	 * @param arg
+	 * @param options
+	 * @param comparator
+	 * @param prefixBound
+	 * @return
+	 */
+	public static Iterator0 newTwoLevelIterator(Iterator0 indexIter, BlockFunction blockFunction, Object arg, 
+			ReadOptions options, Comparator0 comparator, PrefixBound prefixBound) {
+		TwoLevelIterator iter = new TwoLevelIterator(indexIter, blockFunction, arg, options);
+		iter.comparator = comparator;
+		iter.prefixBound = prefixBound;
+		return iter;
+	}
+	
+	/**
+	 * Prefix-bounded iteration, see ReadOptions.prefixSameAsStart. The keys with a
+	 * prefix are contiguous, so once the index key of a block (which is >= every key of
+	 * the block) is past the seek target and has another prefix, no later block holds 
+	 * the prefix either and the iterator stops there. Blocks for which blockMayMatch
+	 * returns false are skipped, and the block entered after them is positioned with
+	 * a seek to the target rather than at its first key.
+	 */
+	public static class PrefixBound {
+		final SliceTransform prefixExtractor;
+		final Comparator0 comparator;
+		
+		/**
+		 * @param prefixExtractor
+		 * @param comparator comparator of the keys, its lookup keys hold the prefixes
+		 */
+		public PrefixBound(SliceTransform prefixExtractor, Comparator0 comparator) {
+			this.prefixExtractor = prefixExtractor;
+			this.comparator = comparator;
+		}
+		
+		/**
+		 * @param key
+		 * @return the prefix of key, or null if it has none
+		 */
+		public Slice prefixOf(Slice key) {
+			return prefixExtractor.lookupKeyPrefix(key, comparator);
+		}
+		
+		public boolean hasPrefix(Slice key, Slice prefix) {
+			Slice p = prefixOf(key);
+			return p != null && p.size() == prefix.size() && 
+					ByteUtils.memcmp(p.data(), p.offset(), prefix.data(), prefix.offset(), prefix.size()) == 0;
+		}
+		
+		/**
+		 * Return false if the block of the index entry indexKey/indexValue holds no key 
+		 * with prefix. The default does not know.
+		 * 
+		 * @param indexKey
+		 * @param indexValue
+		 * @param prefix
+		 * @return
+		 */
+		public boolean blockMayMatch(Slice indexKey, Slice indexValue, Slice prefix) {
+			return true;
+		}
+		
+		public void delete() {
+			
+		}
+	}
+	
 	BlockFunction blockFunction;
 	Object arg;
 	ReadOptions options;
@@ -70,6 +151,16 @@ public class TwoLevelIterator extends Iterator0 {
 	 */
 	ByteBuf dataBlockHandle = ByteBufFactory.newUnpooled();
 	
+	Comparator0 comparator; // Null if the iterate bounds of options are not checked
+	PrefixBound prefixBound; // May be null
+	/**
+	 * Prefix of the last seek target, or null if iteration is not bounded. If set,
+	 * it is stored in prefixBuf and seekTarget holds the target.
+	 */
+	Slice prefix;
+	ByteBuf prefixBuf = ByteBufFactory.newUnpooled();
+	ByteBuf seekTarget = ByteBufFactory.newUnpooled();
+	
 	public TwoLevelIterator(Iterator0 indexIter0, BlockFunction blockFunction, Object arg, ReadOptions options) {
 		this.indexIter.set(indexIter0);
 		this.blockFunction = blockFunction;
@@ -98,6 +189,10 @@ public class TwoLevelIterator extends Iterator0 {
 		if (options != null) {
 			options = null;
 		}
+		if (prefixBound != null) {
+			prefixBound.delete();
+			prefixBound = null;
+		}
 	}
 
 	public boolean valid() {
@@ -105,6 +200,7 @@ public class TwoLevelIterator extends Iterator0 {
 	}
 	
 	public void seekToFirst() {
+		prefix = null;
 		indexIter.seekToFirst();
 		initDataBlock();
 		if (dataIter.iter() != null) {
@@ -114,6 +210,7 @@ public class TwoLevelIterator extends Iterator0 {
 	}
 	
 	public void seekToLast() {
+		prefix = null;
 		indexIter.seekToLast();
 		initDataBlock();
 		if (dataIter.iter() != null) 
@@ -122,7 +219,21 @@ public class TwoLevelIterator extends Iterator0 {
 	}
 	
 	public void seek(Slice target) {
+		prefix = null;
+		if (prefixBound != null) {
+			Slice p = prefixBound.prefixOf(target);
+			if (p != null) {
+				// Both may refer to the bytes of the caller's target
+				prefixBuf.assign(p.data(), p.offset(), p.size());
+				prefix = SliceFactory.newUnpooled(prefixBuf);
+				seekTarget.assign(target.data(), target.offset(), target.size());
+			}
+		}
 		indexIter.seek(target);
+		if (prefix != null && !skipBlocksWithoutPrefix()) {
+			setDataIterator(null);
+			return;
+		}
 		initDataBlock();
 		if (dataIter.iter() != null) 
 			dataIter.seek(target);
@@ -137,6 +248,7 @@ public class TwoLevelIterator extends Iterator0 {
 	
 	public void prev() {
 		assert(valid());
+		prefix = null;
 		dataIter.prev();
 		skipEmptyDataBlocksBackward();
 	}
@@ -173,6 +285,27 @@ public class TwoLevelIterator extends Iterator0 {
 				setDataIterator(null);
 			    return;
 			}
+			if (pastUpperBound(indexIter.key())) {
+				// The keys of the next block are greater than this index key
+				setDataIterator(null);
+				return;
+			}
+			if (prefix != null) {
+				if (!prefixBound.hasPrefix(indexIter.key(), prefix)) {
+					// The keys that follow are past the prefix too
+					setDataIterator(null);
+					return;
+				}
+				indexIter.next();
+				if (!skipBlocksWithoutPrefix()) {
+					setDataIterator(null);
+					return;
+				}
+				initDataBlock();
+				if (dataIter.iter() != null)
+					dataIter.seek(SliceFactory.newUnpooled(seekTarget));
+				continue;
+			}
 			indexIter.next();
 			initDataBlock();
 			if (dataIter.iter() != null) 
@@ -180,6 +313,30 @@ public class TwoLevelIterator extends Iterator0 {
 		}
 	}
 	
+	boolean pastUpperBound(Slice indexKey) {
+		return comparator != null && options.iterateUpperBound != null && 
+				comparator.compareLookupKey(indexKey, options.iterateUpperBound) >= 0;
+	}
+	
+	boolean beforeLowerBound(Slice indexKey) {
+		return comparator != null && options.iterateLowerBound != null && 
+				comparator.compareLookupKey(indexKey, options.iterateLowerBound) < 0;
+	}
+	
+	/**
+	 * Move indexIter forward past the blocks that hold no key with prefix.
+	 * 
+	 * @return false if no block left may hold a key with prefix
+	 */
+	boolean skipBlocksWithoutPrefix() {
+		while (indexIter.valid() && !prefixBound.blockMayMatch(indexIter.key(), indexIter.value(), prefix)) {
+			if (!prefixBound.hasPrefix(indexIter.key(), prefix) || pastUpperBound(indexIter.key()))
+				return false;
+			indexIter.next();
+		}
+		return true;
+	}
+	
 	void skipEmptyDataBlocksBackward() {
 		while (dataIter.iter() == null || !dataIter.valid()) {
 			// Move to next block
@@ -188,6 +345,11 @@ public class TwoLevelIterator extends Iterator0 {
 				return;
 			}
 			indexIter.prev();
+			if (indexIter.valid() && beforeLowerBound(indexIter.key())) {
+				// So is every key of the block
+				setDataIterator(null);
+				return;
+			}
 			initDataBlock();
 			if (dataIter.iter() != null) 
 				dataIter.seekToLast();
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.util;
+
+import java.util.List;
+
+import com.tchaicatkovsky.jleveldb.FilterPolicy;
+
+/**
+ * A bloom filter whose probes for a given key all land in the same 64-byte
+ * block, so that a lookup touches a single cache line no matter how many
+ * probes are made.</br>
+ * </br>
+ * 
+ * Keys are hashed with the 64-bit {@link Hash#hash64}. The lower 32 bits
+ * select the block with a multiply-shift range reduction and the upper 32
+ * bits generate the probe positions inside the block, so neither building
+ * nor querying the filter needs a division.</br>
+ * </br>
+ * 
+ * The filter is laid out as a sequence of 64-byte blocks followed by a single
+ * byte holding the number of probes. The format is not compatible with
+ * {@link BloomFilterPolicy}, hence the different name.
+ */
+public class BlockedBloomFilterPolicy extends FilterPolicy {
+	
+	final static int kBlockBytes = 64;
+	final static int kBlockBitsLog = 9; // 512 bits per block
+	final static int kMaxProbes = 24;
+	
+	int bitsPerKey;
+	int k;
+	
+	final public static long bloomHash64(Slice key) {
+		return Hash.hash64(key.data(), key.offset(), key.size(), 0xbc9f1d34L);
+	}
+	
+	public BlockedBloomFilterPolicy(int bitsPerKey) {
+		this.bitsPerKey = bitsPerKey;
+		k = chooseNumProbes(bitsPerKey * 1000);
+	}
+	
+	/**
+	 * Keeping all probes in one block makes the filter a little less accurate
+	 * than a standard bloom filter of the same size, which shifts the optimal
+	 * number of probes. The thresholds were found empirically.
+	 * 
+	 * @param millibitsPerKey
+	 * @return
+	 */
+	static int chooseNumProbes(int millibitsPerKey) {
+		if (millibitsPerKey <= 2080) {
+			return 1;
+		} else if (millibitsPerKey <= 3580) {
+			return 2;
+		} else if (millibitsPerKey <= 5100) {
+			return 3;
+		} else if (millibitsPerKey <= 6640) {
+			return 4;
+		} else if (millibitsPerKey <= 8300) {
+			return 5;
+		} else if (millibitsPerKey <= 10070) {
+			return 6;
+		} else if (millibitsPerKey <= 11720) {
+			return 7;
+		} else if (millibitsPerKey <= 14001) {
+			return 8;
+		} else if (millibitsPerKey <= 16050) {
+			return 9;
+		} else if (millibitsPerKey <= 18300) {
+			return 10;
+		} else if (millibitsPerKey <= 22001) {
+			return 11;
+		} else if (millibitsPerKey <= 25501) {
+			return 12;
+		} else if (millibitsPerKey > 50000) {
+			return kMaxProbes;
+		} else {
+			return Math.min((millibitsPerKey - 1) / 2000 - 1, kMaxProbes);
+		}
+	}
+	
+	/**
+	 * Map a uniformly distributed 32-bit value onto [0, n) without a division.
+	 */
+	static int fastRange(long h32, int n) {
+		return (int)(((h32 & 0xffffffffL) * n) >>> 32);
+	}
+	
+	@Override
+	public void delete() {
+		
+	}
+	
+	@Override
+	public String name() {
+		return "jleveldb.BlockedBloomFilter";
+	}
+
+	@Override
+	public void createFilter(List<Slice> keys, ByteBuf dst) {
+		// Round the filter up to whole blocks, at least one.
+		int n = keys.size();
+		long bytes = ((long)n * bitsPerKey + 7) / 8;
+		int numBlocks = (int)((bytes + kBlockBytes - 1) / kBlockBytes);
+		if (numBlocks < 1) numBlocks = 1;
+		
+		final int initSize = dst.size();
+		dst.resize(initSize + numBlocks * kBlockBytes, (byte)0);
+		dst.addByte((byte)k);  // Remember # of probes in filter
+		byte[] array = dst.data();
+		int offset = dst.offset() + initSize;
+		for (int i = 0; i < n; i++) {
+			long h = bloomHash64(keys.get(i));
+			int block = offset + fastRange(h, numBlocks) * kBlockBytes;
+			int h2 = (int)(h >>> 32);
+			for (int j = 0; j < k; j++) {
+				// Top bits of a multiplicative sequence are well mixed
+				int bitpos = h2 >>> (32 - kBlockBitsLog);
+				array[block + (bitpos >>> 3)] |= (byte)(1 << (bitpos & 7));
+				h2 *= 0x9e3779b9;
+			}
+		}
+	}
+
+	@Override
+	public boolean keyMayMatch(Slice key, Slice bloomFilter) {
+		final int len = bloomFilter.size();
+		if (len < 2) return false;
+		
+		if ((len - 1) % kBlockBytes != 0) {
+			// Not a filter built by this policy. Consider it a match.
+			return true;
+		}
+		
+		byte[] array = bloomFilter.data();
+		int offset = bloomFilter.offset();
+		final int numBlocks = (len - 1) / kBlockBytes;
+		
+		// Use the encoded k so that we can read filters generated by
+		// filters created using different parameters.
+		final int k = (array[offset + len - 1] & 0xff);
+		if (k > kMaxProbes) {
+			// Reserved for potentially new encodings. Consider it a match.
+			return true;
+		}
+		
+		long h = bloomHash64(key);
+		int block = offset + fastRange(h, numBlocks) * kBlockBytes;
+		int h2 = (int)(h >>> 32);
+		for (int j = 0; j < k; j++) {
+			int bitpos = h2 >>> (32 - kBlockBitsLog);
+			if ((array[block + (bitpos >>> 3)] & (1 << (bitpos & 7))) == 0)
+				return false;
+			h2 *= 0x9e3779b9;
+		}
+		return true;
+	}
+}
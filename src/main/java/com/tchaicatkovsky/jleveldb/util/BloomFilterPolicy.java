@@ -74,7 +74,7 @@ public class BloomFilterPolicy extends FilterPolicy {
 	    dst.resize(initSize + bytes, (byte)0);
 	    dst.addByte((byte)k);  // Remember # of probes in filter
 	    byte[] array = dst.data();
-	    int offset = initSize;
+	    int offset = dst.offset() + initSize;
 	    for (int i = 0; i < n; i++) {
 	    	// Use double-hashing to generate a sequence of hash values.
 	    	// See analysis in [Kirsch,Mitzenmacher 2006].
@@ -95,18 +95,18 @@ public class BloomFilterPolicy extends FilterPolicy {
 	    if (len < 2) return false;
 	    
 	    byte[] array = bloomFilter.data();
+	    int offset = bloomFilter.offset();
 	    final int bits = (len - 1) * 8;
 	    
 	    // Use the encoded k so that we can read filters generated by
 	    // bloom filters created using different parameters.
-	    final int k = (array[len-1] & 0xff);
+	    final int k = (array[offset + len - 1] & 0xff);
 	    if (k > 30) {
 	    	// Reserved for potentially new encodings for short bloom filters.
 	    	// Consider it a match.
 	    	return true;
 	    }
 		
-	    int offset = bloomFilter.offset();
 		long h = bloomHash(key);
 	    final long delta = (((h >> 17) | (h << 15)) & kUint32Mask);  // Rotate right 17 bits
 	    for (int j = 0; j < k; j++) {
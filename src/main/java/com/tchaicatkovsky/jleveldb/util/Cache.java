@@ -33,6 +33,15 @@ public abstract class Cache {
 		void run(Slice key, Object value);
 	}
 	
+	/**
+	 * Eviction priority of an entry. Unreferenced High entries are evicted only 
+	 * after all unreferenced Low entries, as long as they fit in the cache's
+	 * high-priority pool.
+	 */
+	public enum Priority {
+		Low, High
+	}
+	
 	public abstract void delete();
 
 	/**
@@ -53,6 +62,21 @@ public abstract class Cache {
 	 */
 	public abstract Handle insert(Slice key, Object value, int charge, Deleter deleter);
 	
+	/**
+	 * Like {@link #insert(Slice, Object, int, Deleter)}, with an eviction priority. 
+	 * The default implementation ignores the priority.
+	 * 
+	 * @param key
+	 * @param value
+	 * @param charge
+	 * @param deleter
+	 * @param priority
+	 * @return
+	 */
+	public Handle insert(Slice key, Object value, int charge, Deleter deleter, Priority priority) {
+		return insert(key, value, charge, deleter);
+	}
+	
 	/**
 	 * If the cache has no mapping for "key", returns null.</br></br>
 	 * 
@@ -131,5 +155,45 @@ public abstract class Cache {
 		return new ShardedLRUCache(capacity);
 	}
 	
+	/**
+	 * Create a new LRU cache that reserves up to highPriPoolRatio of its capacity 
+	 * for {@link Priority#High} entries and for entries that were looked up again
+	 * after their insertion. Those are evicted only after every unreferenced low 
+	 * priority entry, until the pool is full, at which point the least recently 
+	 * used ones drop back to low priority. Entries used just once, like the blocks
+	 * of a scan, therefore can not push out the frequently used ones.
+	 * 
+	 * @param capacity
+	 * @param highPriPoolRatio between 0 and 1, 0 disables the pool
+	 * @return
+	 */
+	public static Cache newLRUCache(int capacity, double highPriPoolRatio) {
+		return new ShardedLRUCache(capacity, highPriPoolRatio);
+	}
+	
+	/**
+	 * Create a new cache with a fixed size capacity that uses a CLOCK eviction 
+	 * policy. Its lookups and releases take no lock, so it scales better than 
+	 * the LRU cache when many threads hit it at once. The number of shards 
+	 * grows with the number of processors.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public static Cache newClockCache(int capacity) {
+		return new ClockCache(capacity);
+	}
+	
+	/**
+	 * Like {@link #newClockCache(int)}, with 2^numShardBits shards.
+	 * 
+	 * @param capacity
+	 * @param numShardBits
+	 * @return
+	 */
+	public static Cache newClockCache(int capacity, int numShardBits) {
+		return new ClockCache(capacity, numShardBits, ShardedLRUCache.kDefaultHighPriPoolRatio);
+	}
+	
 	public abstract void debugPrint();
 }
@@ -0,0 +1,488 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.util;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sharded CLOCK cache.</br></br>
+ * 
+ * Unlike {@link ShardedLRUCache}, a hit does not take any lock and does not allocate: 
+ * the hash table of a shard is read without locking, the entry is referenced with 
+ * a CAS on its reference count, and instead of moving the entry to the head of a 
+ * list the lookup only sets the entry's clock counter. release() just drops the 
+ * reference. The shard mutex is taken by insert(), erase() and prune() only.</br></br>
+ * 
+ * Every shard keeps its entries on a ring.  New entries are put just behind the 
+ * clock hand and evicting an entry moves the hand over the ring: an entry that 
+ * is referenced by clients is skipped, an entry whose counter is not zero gets 
+ * its counter decremented, the first other one is evicted.  Entries that are 
+ * never looked up after insertion, like the blocks of a scan, are evicted at 
+ * the first pass of the hand, entries that were hit survive a few passes.  
+ * {@link Cache.Priority#High} entries are skipped by the hand as long as they fit 
+ * in the shard's high priority pool.</br></br>
+ * 
+ * The hash table of a shard is resized under the shard mutex.  Readers detect a 
+ * concurrent resize with a version number that is odd while it is in progress, 
+ * and retry a lookup that missed.
+ */
+public class ClockCache extends Cache {
+	
+	static class ClockHandle extends Cache.Handle {
+		final Slice key;
+		final Object value;
+		final Deleter deleter;
+		final int charge;
+		final int hash;
+		final boolean highPri;
+		volatile ClockHandle nextHash;
+		volatile int refs;			// References, including cache reference, if present.
+		volatile boolean inCache;	// Whether entry is in the cache.
+		int clock;					// Set by lookups, counted down by the clock hand. Updated racily.
+		
+		// Clock ring of the shard, protected by the shard mutex
+		ClockHandle next;
+		ClockHandle prev;
+		
+		ClockHandle(Slice key, int hash, Object value, int charge, Deleter deleter, boolean highPri) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+			this.charge = charge;
+			this.deleter = deleter;
+			this.highPri = highPri;
+		}
+	}
+	
+	final static AtomicIntegerFieldUpdater<ClockHandle> refsUpdater = 
+			AtomicIntegerFieldUpdater.newUpdater(ClockHandle.class, "refs");
+	
+	/**
+	 * Clock counter of an entry that was looked up: it survives that many passes of
+	 * the hand without being used again.
+	 */
+	final static int kHitClock = 2;
+	
+	final static int kMaxNumShardBits = 6;
+	
+	/**
+	 * Shards are not made smaller than this, so that small caches like the table 
+	 * cache still hold a useful number of entries per shard.
+	 */
+	final static int kMinShardCapacity = 32;
+	
+	final static int kInitialTableLength = 16;
+	
+	static void unref(ClockHandle e) {
+		int refs = refsUpdater.decrementAndGet(e);
+		assert(refs >= 0);
+		if (refs == 0) {
+			assert(!e.inCache);
+			e.deleter.run(e.key, e.value);
+		}
+	}
+	
+	/**
+	 * Take a reference on e unless it is already being deleted.
+	 * @param e
+	 * @return
+	 */
+	static boolean tryRef(ClockHandle e) {
+		while (true) {
+			int refs = e.refs;
+			if (refs == 0)
+				return false;
+			if (refsUpdater.compareAndSet(e, refs, refs + 1))
+				return true;
+		}
+	}
+	
+	static class Shard {
+		final Mutex mutex = new Mutex();
+		long capacity;
+		long highPriPoolCapacity;
+		
+		// Written under mutex, read by totalCharge() without it
+		volatile long usage;
+		long highPriUsage;
+		
+		volatile AtomicReferenceArray<ClockHandle> list = new AtomicReferenceArray<>(kInitialTableLength);
+		volatile int version;	// Odd while list is being resized
+		int elems;
+		
+		/**
+		 * Next entry the hand looks at. New entries are inserted just before it. 
+		 * null if the ring is empty.
+		 */
+		ClockHandle hand;
+		int count;
+		
+		void setCapacity(long capacity, double highPriPoolRatio) {
+			this.capacity = capacity;
+			this.highPriPoolCapacity = (long)(capacity * highPriPoolRatio);
+		}
+		
+		Cache.Handle lookup(Slice key, int hash) {
+			while (true) {
+				int v = version;
+				if ((v & 1) == 0) {
+					AtomicReferenceArray<ClockHandle> l = list;
+					for (ClockHandle e = l.get(hash & (l.length() - 1)); e != null; e = e.nextHash) {
+						if (e.hash == hash && key.equals(e.key)) {
+							if (!tryRef(e))
+								return null;
+							if (!e.inCache) {
+								// Erased after we found it
+								unref(e);
+								return null;
+							}
+							if (e.clock < kHitClock)
+								e.clock = kHitClock;
+							return e;
+						}
+					}
+					if (version == v)
+						return null;
+				}
+				Thread.yield();
+			}
+		}
+		
+		Cache.Handle insert(Slice key, int hash, Object value, int charge, Deleter deleter, Priority priority) {
+			ClockHandle e = new ClockHandle(key, hash, value, charge, deleter, priority == Priority.High);
+			e.refs = 1;
+			if (capacity <= 0)
+				return e; // Don't cache.  (Tests use capacity==0 to turn off caching.)
+			
+			mutex.lock();
+			try {
+				e.refs = 2; // for the cache's reference.
+				e.inCache = true;
+				ClockHandle old = tableRemove(key, hash);
+				tableInsert(e);
+				ringInsert(e);
+				usage += charge;
+				if (e.highPri)
+					highPriUsage += charge;
+				if (old != null)
+					finishErase(old);
+				evict();
+				return e;
+			} finally {
+				mutex.unlock();
+			}
+		}
+		
+		void erase(Slice key, int hash) {
+			mutex.lock();
+			try {
+				ClockHandle e = tableRemove(key, hash);
+				if (e != null)
+					finishErase(e);
+			} finally {
+				mutex.unlock();
+			}
+		}
+		
+		void prune() {
+			mutex.lock();
+			try {
+				for (int i = count; i > 0 && hand != null; i--) {
+					ClockHandle e = hand;
+					hand = e.next;
+					if (e.refs == 1)
+						evict(e);
+				}
+			} finally {
+				mutex.unlock();
+			}
+		}
+		
+		void delete() {
+			mutex.lock();
+			try {
+				while (hand != null)
+					evict(hand);
+			} finally {
+				mutex.unlock();
+			}
+		}
+		
+		/**
+		 * Move the hand until usage fits the capacity again, or every entry was 
+		 * looked at often enough to know that there is nothing left to evict.
+		 * REQUIRES: mutex held
+		 */
+		void evict() {
+			final int limit = (kHitClock + 1) * count + 1;
+			for (int steps = 0; usage > capacity && hand != null && steps < 2 * limit; steps++) {
+				ClockHandle e = hand;
+				hand = e.next;
+				if (e.refs > 1)
+					continue; // In use by clients
+				if (e.highPri && highPriUsage <= highPriPoolCapacity && steps < limit)
+					continue;
+				if (e.clock > 0) {
+					e.clock--;
+					continue;
+				}
+				evict(e);
+			}
+		}
+		
+		void evict(ClockHandle e) {
+			ClockHandle removed = tableRemove(e.key, e.hash);
+			assert(removed == e);
+			finishErase(e);
+		}
+		
+		/**
+		 * Drop the cache's reference on an entry that was removed from the hash table.
+		 * REQUIRES: mutex held
+		 */
+		void finishErase(ClockHandle e) {
+			assert(e.inCache);
+			ringRemove(e);
+			e.inCache = false;
+			usage -= e.charge;
+			if (e.highPri)
+				highPriUsage -= e.charge;
+			unref(e);
+		}
+		
+		void ringInsert(ClockHandle e) {
+			if (hand == null) {
+				e.next = e;
+				e.prev = e;
+				hand = e;
+			} else {
+				e.next = hand;
+				e.prev = hand.prev;
+				e.prev.next = e;
+				hand.prev = e;
+			}
+			count++;
+		}
+		
+		void ringRemove(ClockHandle e) {
+			if (e.next == e) {
+				hand = null;
+			} else {
+				if (hand == e)
+					hand = e.next;
+				e.prev.next = e.next;
+				e.next.prev = e.prev;
+			}
+			e.next = null;
+			e.prev = null;
+			count--;
+		}
+		
+		/**
+		 * Link e in front of its bucket. Readers see either the old or the new chain.
+		 * REQUIRES: mutex held
+		 */
+		void tableInsert(ClockHandle e) {
+			AtomicReferenceArray<ClockHandle> l = list;
+			int i = e.hash & (l.length() - 1);
+			e.nextHash = l.get(i);
+			l.set(i, e);
+			if (++elems > l.length())
+				resize();
+		}
+		
+		/**
+		 * Unlink the entry for key from its bucket. The entry keeps its nextHash, so a 
+		 * reader that is standing on it still reaches the rest of the chain.
+		 * REQUIRES: mutex held
+		 */
+		ClockHandle tableRemove(Slice key, int hash) {
+			AtomicReferenceArray<ClockHandle> l = list;
+			int i = hash & (l.length() - 1);
+			ClockHandle prev = null;
+			for (ClockHandle e = l.get(i); e != null; prev = e, e = e.nextHash) {
+				if (e.hash == hash && key.equals(e.key)) {
+					if (prev == null)
+						l.set(i, e.nextHash);
+					else
+						prev.nextHash = e.nextHash;
+					elems--;
+					return e;
+				}
+			}
+			return null;
+		}
+		
+		void resize() {
+			AtomicReferenceArray<ClockHandle> oldList = list;
+			AtomicReferenceArray<ClockHandle> newList = new AtomicReferenceArray<>(oldList.length() * 2);
+			version++;
+			int count = 0;
+			for (int i = 0; i < oldList.length(); i++) {
+				ClockHandle h = oldList.get(i);
+				while (h != null) {
+					ClockHandle next = h.nextHash;
+					int j = h.hash & (newList.length() - 1);
+					h.nextHash = newList.get(j);
+					newList.set(j, h);
+					h = next;
+					count++;
+				}
+			}
+			assert(elems == count);
+			list = newList;
+			version++;
+		}
+	}
+	
+	final Shard[] shard;
+	final int numShardBits;
+	final AtomicLong lastId = new AtomicLong();
+	
+	public ClockCache(int capacity) {
+		this(capacity, -1, ShardedLRUCache.kDefaultHighPriPoolRatio);
+	}
+	
+	/**
+	 * @param capacity
+	 * @param numShardBits the cache has 2^numShardBits shards, a negative value 
+	 * picks a number that grows with the number of processors
+	 * @param highPriPoolRatio between 0 and 1, the part of every shard in which 
+	 * {@link Cache.Priority#High} entries are protected from eviction
+	 */
+	public ClockCache(int capacity, int numShardBits, double highPriPoolRatio) {
+		assert(highPriPoolRatio >= 0 && highPriPoolRatio <= 1);
+		if (numShardBits < 0)
+			numShardBits = defaultNumShardBits(capacity);
+		assert(numShardBits <= 30);
+		this.numShardBits = numShardBits;
+		shard = new Shard[1 << numShardBits];
+		final long perShard = ((long)capacity + (shard.length - 1)) / shard.length;
+		for (int i = 0; i < shard.length; i++) {
+			shard[i] = new Shard();
+			shard[i].setCapacity(perShard, highPriPoolRatio);
+		}
+	}
+	
+	/**
+	 * Two shards per processor rounded up to a power of two, at most 
+	 * 2^kMaxNumShardBits, as long as a shard keeps at least kMinShardCapacity.
+	 * @param capacity
+	 * @return
+	 */
+	static int defaultNumShardBits(int capacity) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int bits = 0;
+		while (bits < kMaxNumShardBits && (1 << bits) < 2 * processors)
+			bits++;
+		while (bits > 0 && (capacity >> bits) < kMinShardCapacity)
+			bits--;
+		return bits;
+	}
+	
+	public int numShards() {
+		return shard.length;
+	}
+	
+	/**
+	 * Slice.hashCode0() is a 32 bit hash whose high bits are poorly mixed for 
+	 * short keys. Spread it, the high bits select the shard and the low bits the 
+	 * bucket within it.
+	 * @param key
+	 * @return
+	 */
+	static int hash(Slice key) {
+		int h = (int)key.hashCode0() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+	
+	Shard shardOf(int hash) {
+		return numShardBits == 0 ? shard[0] : shard[hash >>> (32 - numShardBits)];
+	}
+	
+	@Override
+	public void delete() {
+		for (int i = 0; i < shard.length; i++)
+			shard[i].delete();
+	}
+	
+	@Override
+	public Handle insert(Slice key, Object value, int charge, Deleter deleter) {
+		return insert(key, value, charge, deleter, Priority.Low);
+	}
+	
+	@Override
+	public Handle insert(Slice key, Object value, int charge, Deleter deleter, Priority priority) {
+		int hash = hash(key);
+		return shardOf(hash).insert(key, hash, value, charge, deleter, priority);
+	}
+	
+	@Override
+	public Handle lookup(Slice key) {
+		int hash = hash(key);
+		return shardOf(hash).lookup(key, hash);
+	}
+	
+	@Override
+	public void release(Handle handle) {
+		unref((ClockHandle)handle);
+	}
+	
+	@Override
+	public Object value(Handle handle) {
+		return ((ClockHandle)handle).value;
+	}
+	
+	@Override
+	public void erase(Slice key) {
+		int hash = hash(key);
+		shardOf(hash).erase(key, hash);
+	}
+	
+	@Override
+	public long newId() {
+		return lastId.incrementAndGet();
+	}
+	
+	@Override
+	public long totalCharge() {
+		long total = 0;
+		for (int i = 0; i < shard.length; i++)
+			total += shard[i].usage;
+		return total;
+	}
+	
+	@Override
+	public void prune() {
+		for (int i = 0; i < shard.length; i++)
+			shard[i].prune();
+	}
+	
+	@Override
+	public void debugPrint() {
+		for (int i = 0; i < shard.length; i++) {
+			System.out.printf("[DEBUG] Cache debug, shard=%d, entries=%d, usage=%d\n", i, shard[i].count, shard[i].usage);
+		}
+	}
+}
@@ -320,6 +320,31 @@ public class Coding {
 		return popVarNat32PtrFallback(ref);
 	}
 	
+	/**
+	 * Decode a varint32 from data[offset, limit) without allocating. The value is 
+	 * returned in the low 32 bits and the offset just past it in the high 32 bits, 
+	 * or -1 if the input is truncated or malformed.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param limit
+	 * @return
+	 */
+	final public static long decodeVarNat32(byte[] data, int offset, int limit) {
+		int result = 0;
+		for (int shift = 0; shift <= 28 && offset < limit; shift += 7) {
+			int b = data[offset++];
+			if ((b & 128) != 0) {
+				// More bytes are present
+				result |= ((b & 127) << shift);
+			} else {
+				result |= (b << shift);
+				return ((long) offset << 32) | (result & 0xffffffffL);
+			}
+		}
+		return -1;
+	}
+	
 	final public static void appendVarNat32(Slice s, int v) {
 		int offset = encodeVarNat32(s.data(), s.offset(), s.limit(), v);
 		s.setOffset(offset);
@@ -89,6 +89,33 @@ public abstract class Comparator0 {
 	 */
 	public abstract void findShortSuccessor(ByteBuf key);
 		
+	/**
+	 * Return the length of the prefix of a key that point lookups match on: a
+	 * lookup for key {@code k} can only be satisfied by keys whose prefix has the
+	 * same bytes as that of {@code k}. Used by the hash index of data blocks.</br>
+	 * The default is the whole key.
+	 * @param data
+	 * @param offset
+	 * @param size
+	 * @return
+	 */
+	public int lookupKeyLength(byte[] data, int offset, int size) {
+		return size;
+	}
+	
+	/**
+	 * Compare the lookup key (see {@link #lookupKeyLength}) of {@code key} with 
+	 * {@code lookupKey}, a key as the user sees it. Used to check keys against the
+	 * iterate bounds of ReadOptions.</br>
+	 * The default compares the whole keys.
+	 * @param key
+	 * @param lookupKey
+	 * @return
+	 */
+	public int compareLookupKey(Slice key, Slice lookupKey) {
+		return compare(key, lookupKey);
+	}
+		
 	public static Comparator0 bytewiseComparator() {
 		return BytewiseComparatorImpl.getInstance();
 	}
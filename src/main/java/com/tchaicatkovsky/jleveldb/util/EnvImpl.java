@@ -31,15 +31,18 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -58,9 +61,6 @@ import com.tchaicatkovsky.jleveldb.SequentialFile;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.WritableFile;
 
-import sun.nio.ch.DirectBuffer;
-
-@SuppressWarnings("restriction")
 public class EnvImpl implements Env {
 	
 	enum FileOpType{
@@ -317,9 +317,14 @@ public class EnvImpl implements Env {
 		}
 	}
 
+	/**
+	 * A RandomAccessFile0 that issues positional reads (pread semantics) on a
+	 * FileChannel. The channel position is never touched, so any number of
+	 * threads may read concurrently without serializing on a lock.
+	 */
 	class RandomAccessFileImpl implements RandomAccessFile0 {
 		String filename;
-		DataInputStream dis;
+		volatile FileChannel channel;
 		Mutex mutex = new Mutex();
 		
 		public RandomAccessFileImpl(String fname) {
@@ -329,12 +334,12 @@ public class EnvImpl implements Env {
 		public Status open() {
 			try {
 				mutex.lock();
-				dis = new DataInputStream(new FileInputStream(new File(filename)));
+				channel = FileChannel.open(FileSystems.getDefault().getPath(filename), StandardOpenOption.READ);
 				
 				fileOpRecord.addFileOp(filename, FileOpType.Open);
 				
 				return Status.ok0();
-			} catch (FileNotFoundException e) {
+			} catch (IOException e) {
 				return Status.ioError(filename + " RandomAccessFileImpl.open failed: " + e);
 			} finally {
 				mutex.unlock();
@@ -344,9 +349,9 @@ public class EnvImpl implements Env {
 		public void close() {
 			try {
 				mutex.lock();
-				if (dis != null) {
-					dis.close();
-					dis = null;
+				if (channel != null) {
+					channel.close();
+					channel = null;
 					
 					fileOpRecord.addFileOp(filename, FileOpType.Close);
 				}
@@ -366,26 +371,45 @@ public class EnvImpl implements Env {
 		}
 
 		public Status read(long offset, int n, Slice result, byte[] scratch) {
+			FileChannel ch = channel;
+			if (ch == null)
+				return Status.ioError(filename + " RandomAccessFileImpl.read failed: file closed");
+			
 			try {
-				dis.reset();
-				dis.skip(offset);
-				int r = dis.read(scratch, 0, n);
-				if (r < n)
-					return Status.ioError(filename + " RandomAccessFileImpl.read failed: partial read");
-				result.init(scratch, 0, r);
+				ByteBuffer dst = ByteBuffer.wrap(scratch, 0, n);
+				long position = offset;
+				while (dst.hasRemaining()) {
+					int r = ch.read(dst, position);
+					if (r < 0)
+						break; // EOF, return what we have read
+					position += r;
+				}
+				result.init(scratch, 0, dst.position());
 				return Status.ok0();
 			} catch (IOException e) {
+				result.init(scratch, 0, 0);
 				return Status.ioError(filename + " RandomAccessFileImpl.read failed: " + e);
 			}
 		}
 	}
 
+	/**
+	 * Maps the whole file once at open time and serves reads from the mapping.
+	 * Files larger than 2GB are mapped as several chunks, since a single
+	 * MappedByteBuffer is limited to Integer.MAX_VALUE bytes.</br>
+	 * </br>
+	 * 
+	 * Each instance holds one unit of mmapLimit, returned in close().
+	 */
 	class MmapReadableFile implements RandomAccessFile0 {
+		static final int kChunkBits = 30;
+		static final long kChunkSize = 1L << kChunkBits;
+		
 		String filename;
-		MappedByteBuffer buffer = null;
-		RandomAccessFile file = null;
+		volatile MappedByteBuffer[] chunks = null;
 		long fileSize = 0;
 		Mutex mutex = new Mutex();
+		
 		public MmapReadableFile(String fname) {
 			filename = fname;
 		}
@@ -394,9 +418,17 @@ public class EnvImpl implements Env {
 			try {
 				mutex.lock();
 				
-				fileSize = (new File(filename)).length();
-				file = new RandomAccessFile(filename, "r");
-				buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+				// The mappings stay valid after the channel is closed.
+				try (FileChannel ch = FileChannel.open(FileSystems.getDefault().getPath(filename), StandardOpenOption.READ)) {
+					fileSize = ch.size();
+					int nchunks = (int) ((fileSize + kChunkSize - 1) >>> kChunkBits);
+					MappedByteBuffer[] mapped = new MappedByteBuffer[nchunks];
+					for (int i = 0; i < nchunks; i++) {
+						long position = (long) i << kChunkBits;
+						mapped[i] = ch.map(FileChannel.MapMode.READ_ONLY, position, Math.min(kChunkSize, fileSize - position));
+					}
+					chunks = mapped;
+				}
 				
 				fileOpRecord.addFileOp(filename, FileOpType.Open);
 				
@@ -415,16 +447,14 @@ public class EnvImpl implements Env {
 		public void close() {
 			try {
 				mutex.lock();
-				if (file != null) {
-					if (buffer != null && ((DirectBuffer) buffer).cleaner() != null)
-						((DirectBuffer) buffer).cleaner().clean();
-					file.close();
-					file = null;
+				if (chunks != null) {
+					for (MappedByteBuffer b : chunks)
+						unmap(b);
+					chunks = null;
+					mmapLimit.release();
 					
 					fileOpRecord.addFileOp(filename, FileOpType.Close);
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			} finally {
 				mutex.unlock();
 			}
@@ -435,23 +465,65 @@ public class EnvImpl implements Env {
 		}
 
 		public Status read(long offset, int n, Slice result, byte[] scratch) {
-			if (offset + n > fileSize)
+			MappedByteBuffer[] mapped = chunks;
+			if (mapped == null)
+				return Status.ioError(filename + " MmapReadableFile.read failed: file closed");
+			if (offset < 0 || offset + n > fileSize) {
+				result.init(scratch, 0, 0);
 				return Status.ioError(filename + " MmapReadableFile.read failed: exceed file size");
+			}
 
-			MappedByteBuffer tmpBuf = null;
-			try {
-				tmpBuf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
-				tmpBuf.position((int) offset);
-				tmpBuf.get(scratch, 0, n);
-				result.init(scratch, 0, n);
-				return Status.ok0();
-			} catch (Exception e) {
-				return Status.otherError("" + e);
-			} finally {
-				if (tmpBuf != null) {
-					((DirectBuffer) tmpBuf).cleaner().clean();
-				}
+			// Copy through duplicates so that concurrent readers do not
+			// share the position of the mapped buffers.
+			int done = 0;
+			while (done < n) {
+				long position = offset + done;
+				ByteBuffer chunk = mapped[(int) (position >>> kChunkBits)].duplicate();
+				chunk.position((int) (position & (kChunkSize - 1)));
+				int len = Math.min(n - done, chunk.remaining());
+				chunk.get(scratch, done, len);
+				done += len;
 			}
+			result.init(scratch, 0, n);
+			return Status.ok0();
+		}
+	}
+	
+	static volatile boolean unmapSupported = true;
+	
+	/**
+	 * Release a mapping eagerly instead of waiting for the buffer to be
+	 * garbage collected. Uses sun.misc.Unsafe.invokeCleaner on Java 9+ and
+	 * DirectBuffer.cleaner() on Java 8, both through reflection. If neither
+	 * is accessible, the mapping is left to the garbage collector.</br>
+	 * </br>
+	 * 
+	 * REQUIRES: no other thread is reading from buffer
+	 * @param buffer
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		if (!unmapSupported)
+			return;
+		
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (Exception e) {
+			// Not Java 9+, try the Java 8 way below
+		}
+		
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (Exception e) {
+			unmapSupported = false;
 		}
 	}
 
@@ -538,31 +610,35 @@ public class EnvImpl implements Env {
 	}
 
 
-	ReentrantLock mu;
-	Condition bgsignal;
-	Thread bgthread;
-	boolean startedBgthread;
-
-	// Limiter mmapLimit = new Limiter();
+	Limiter mmapLimit = new Limiter(maxMmaps());
 	// Limiter fdLimit = new Limiter();
 
 	static int k_open_read_only_file_limit = -1;
 	static int k_mmap_limit = -1;
 
-	// Return the maximum number of concurrent mmaps.
-	// static int MaxMmaps() {
-	// if (k_mmap_limit >= 0) {
-	// return k_mmap_limit;
-	// }
-	// // Up to 1000 mmaps for 64-bit binaries; none for smaller pointer sizes.
-	// k_mmap_limit = 8 >= 8 ? 1000 : 0;
-	// return k_mmap_limit;
-	// }
+	/**
+	 * Return the maximum number of concurrent mmaps.
+	 * @return
+	 */
+	static int maxMmaps() {
+		if (k_mmap_limit >= 0) {
+			return k_mmap_limit;
+		}
+		// Up to 1000 mmaps for 64-bit JVMs; none for smaller address spaces.
+		k_mmap_limit = "32".equals(System.getProperty("sun.arch.data.model")) ? 0 : 1000;
+		return k_mmap_limit;
+	}
+	
+	/**
+	 * Set the maximum number of concurrent mmaps used by EnvImpl instances
+	 * created afterwards. Intended for tests.
+	 * @param limit
+	 */
+	public static void setReadOnlyMMapLimit(int limit) {
+		k_mmap_limit = limit;
+	}
 
 	public EnvImpl() {
-		mu = new ReentrantLock();
-		bgsignal = mu.newCondition();
-		startedBgthread = false;
 	}
 
 	@Override
@@ -578,19 +654,28 @@ public class EnvImpl implements Env {
 
 	@Override
 	public Status newRandomAccessFile(String fname, Object0<RandomAccessFile0> result) {
-		MmapReadableFile f1 = new MmapReadableFile(fname);
-		Status s = f1.open();
-		if (s.ok()) {
-			result.setValue(f1);
-			return s;
-		} else {
-			RandomAccessFileImpl f2 = new RandomAccessFileImpl(fname);
+		return newRandomAccessFile(fname, false, result);
+	}
+
+	@Override
+	public Status newRandomAccessFile(String fname, boolean allowMmap, Object0<RandomAccessFile0> result) {
+		if (allowMmap && mmapLimit.acquire()) {
+			MmapReadableFile f1 = new MmapReadableFile(fname);
+			Status s = f1.open();
 			if (s.ok()) {
-				result.setValue(f2);
+				result.setValue(f1);
 				return s;
-			} else
-				result.setValue(null);
+			}
+			mmapLimit.release();
+			// Fall back to positional reads
 		}
+		
+		RandomAccessFileImpl f2 = new RandomAccessFileImpl(fname);
+		Status s = f2.open();
+		if (s.ok())
+			result.setValue(f2);
+		else
+			result.setValue(null);
 		return s;
 	}
 
@@ -748,57 +833,111 @@ public class EnvImpl implements Env {
 		return Status.ok0();
 	}
 
-	void BGThread() {
-		while (true) {
-			// Wait until there is an item that is ready to run
+	/**
+	 * A fixed set of background threads draining a FIFO queue. The number of
+	 * threads can only grow, see {@link #setBackgroundThreads}.
+	 */
+	static class ThreadPool {
+		final String name;
+		final ReentrantLock mu = new ReentrantLock();
+		final Condition bgsignal = mu.newCondition();
+		final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+		int totalThreads = 1;
+		int startedThreads = 0;
+
+		ThreadPool(String name) {
+			this.name = name;
+		}
+
+		void setBackgroundThreads(int number) {
+			mu.lock();
+			try {
+				if (number > totalThreads)
+					totalThreads = number;
+				if (startedThreads > 0)
+					startThreads();
+			} finally {
+				mu.unlock();
+			}
+		}
+
+		void schedule(Runnable r) {
 			mu.lock();
+			try {
+				// Start background threads if necessary
+				startThreads();
 
-			while (queue.isEmpty()) {
-				try {
-					bgsignal.await();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				// Add to the queue and wake up one idle thread
+				queue.add(r);
+				bgsignal.signal();
+			} finally {
+				mu.unlock();
 			}
+		}
 
-			Runnable item = queue.pollFirst();
+		/**
+		 * REQUIRES: mu is held.
+		 */
+		void startThreads() {
+			while (startedThreads < totalThreads) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						BGThread();
+					}
+				}, name + "-" + startedThreads);
+				startedThreads++;
+				t.start();
+			}
+		}
 
-			mu.unlock();
+		void BGThread() {
+			while (true) {
+				// Wait until there is an item that is ready to run
+				Runnable item;
+				mu.lock();
+				try {
+					while (queue.isEmpty()) {
+						try {
+							bgsignal.await();
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+					item = queue.pollFirst();
+				} finally {
+					mu.unlock();
+				}
 
-			if (item != null)
-				item.run();
+				try {
+					item.run();
+				} catch (Throwable t) {
+					// Keep the worker alive for the remaining items
+					t.printStackTrace();
+				}
+			}
 		}
 	}
 
-	LinkedList<Runnable> queue = new LinkedList<Runnable>();
+	final ThreadPool lowPool = new ThreadPool("jleveldb-bg");
+	final ThreadPool highPool = new ThreadPool("jleveldb-bg-high");
 
-	public class BGThreadRunnable implements Runnable {
-		public void run() {
-			BGThread();
-		}
+	ThreadPool pool(Priority pri) {
+		return pri == Priority.High ? highPool : lowPool;
 	}
 
 	@Override
 	public void schedule(Runnable r) {
-		mu.lock();
-
-		// Start background thread if necessary
-		if (!startedBgthread) {
-			startedBgthread = true;
-			bgthread = new Thread(new BGThreadRunnable());
-			bgthread.start();
-		}
-
-		// If the queue is currently empty, the background thread may currently be
-		// waiting.
-		if (queue.isEmpty()) {
-			bgsignal.signal();
-		}
+		schedule(r, Priority.Low);
+	}
 
-		// Add to priority queue
-		queue.add(r);
+	@Override
+	public void schedule(Runnable r, Priority pri) {
+		pool(pri).schedule(r);
+	}
 
-		mu.unlock();
+	@Override
+	public void setBackgroundThreads(int number, Priority pri) {
+		pool(pri).setBackgroundThreads(number);
 	}
 
 	@Override
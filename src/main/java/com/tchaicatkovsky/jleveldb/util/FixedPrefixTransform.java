@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.util;
+
+import com.tchaicatkovsky.jleveldb.SliceTransform;
+
+public class FixedPrefixTransform extends SliceTransform {
+	
+	final int prefixLength;
+	
+	public FixedPrefixTransform(int prefixLength) {
+		this.prefixLength = prefixLength;
+	}
+	
+	@Override
+	public String name() {
+		return "leveldb.FixedPrefix." + prefixLength;
+	}
+
+	@Override
+	public Slice transform(Slice key) {
+		assert(inDomain(key));
+		return SliceFactory.newUnpooled(key.data(), key.offset(), prefixLength);
+	}
+
+	@Override
+	public boolean inDomain(Slice key) {
+		return key.size() >= prefixLength;
+	}
+}
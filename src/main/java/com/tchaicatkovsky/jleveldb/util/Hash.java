@@ -65,4 +65,52 @@ public class Hash {
 		
 		return h & kUint32Mask;
 	}
+
+	/**
+	 * 64-bit MurmurHash2 (MurmurHash64A). Unlike {@link #hash0}, all 64 bits
+	 * of the result are well mixed, so callers can split it into independent
+	 * parts.
+	 * @param data
+	 * @param offset
+	 * @param n
+	 * @param seed
+	 * @return
+	 */
+	public static long hash64(byte[] data, int offset, int n, long seed) {
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+		int limit = offset + n;
+		long h = seed ^ (n * m);
+		
+		// Pick up eight bytes at a time
+		while (offset + 8 <= limit) {
+			// Raw little-endian load, Coding rejects values above Long.MAX_VALUE
+			long k = ((data[offset] & 0x0ffL)) |
+					((data[offset+1] & 0x0ffL) << 8) |
+					((data[offset+2] & 0x0ffL) << 16) |
+					((data[offset+3] & 0x0ffL) << 24) |
+					((data[offset+4] & 0x0ffL) << 32) |
+					((data[offset+5] & 0x0ffL) << 40) |
+					((data[offset+6] & 0x0ffL) << 48) |
+					((data[offset+7] & 0x0ffL) << 56);
+			offset += 8;
+			k *= m;
+			k ^= (k >>> r);
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+		
+		// Pick up remaining bytes, the same as the fall-through switch of MurmurHash64A
+		if (offset < limit) {
+			for (int i = 0; offset + i < limit; i++)
+				h ^= (data[offset+i] & 0x0ffL) << (8 * i);
+			h *= m;
+		}
+		
+		h ^= (h >>> r);
+		h *= m;
+		h ^= (h >>> r);
+		return h;
+	}
 }
@@ -0,0 +1,373 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * {@link SecondaryCache} that stores its entries in direct buffers.</br></br>
+ * 
+ * Memory is managed by a slab allocator: the capacity is divided into slabs of 
+ * slabSize bytes, which are allocated on demand, and every slab is cut into chunks 
+ * of one size class.  The size classes grow by kSizeClassFactor from kMinChunkSize 
+ * up to slabSize.  An entry takes one chunk of the smallest class it fits in, 
+ * entries larger than a slab are not cached.</br></br>
+ * 
+ * Each size class has its own LRU list.  When a class has no free chunk and no 
+ * more slabs can be allocated, it evicts its least recently used entry, and if 
+ * it does not own a slab yet, it takes the slab of the least recently used entry 
+ * of the class that owns the most slabs, evicting everything in it.  Only the 
+ * small per-entry bookkeeping objects live on the heap.
+ */
+public class OffHeapCache extends SecondaryCache {
+	
+	final static int kDefaultSlabSize = 1 << 20;
+	
+	/**
+	 * Small caches use smaller slabs, so that every size class in use can still 
+	 * get a few of them, but not below kMinSlabSize.
+	 */
+	final static int kMinSlabs = 64;
+	final static int kMinSlabSize = 64 << 10;
+	final static int kMinChunkSize = 256;
+	final static double kSizeClassFactor = 1.25;
+	
+	static class Item {
+		ByteArrayKey key;
+		Slab slab;
+		int chunk;
+		int size;
+		
+		// LRU list of the size class, next is older
+		Item next;
+		Item prev;
+	}
+	
+	static class Slab {
+		final ByteBuffer buffer;
+		SizeClass sizeClass;
+		
+		/**
+		 * The entry stored in each chunk, or null for a free chunk.
+		 */
+		Item[] items;
+		int used;
+		
+		Slab(int slabSize) {
+			buffer = ByteBuffer.allocateDirect(slabSize);
+		}
+	}
+	
+	static class SizeClass {
+		final int chunkSize;
+		final int chunksPerSlab;
+		final ArrayList<Slab> slabs = new ArrayList<>();
+		
+		/**
+		 * Dummy head of LRU list. lru.next is the newest entry, lru.prev the oldest.
+		 */
+		final Item lru = new Item();
+		
+		SizeClass(int chunkSize, int slabSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerSlab = slabSize / chunkSize;
+			lru.next = lru;
+			lru.prev = lru;
+		}
+	}
+	
+	final Mutex mutex = new Mutex();
+	final int slabSize;
+	final int maxSlabs;
+	final SizeClass[] sizeClasses;
+	final HashMap<ByteArrayKey, Item> table = new HashMap<>();
+	int numSlabs;
+	long usage;
+	long lastId;
+	
+	public OffHeapCache(long capacity) {
+		this(capacity, defaultSlabSize(capacity));
+	}
+	
+	static int defaultSlabSize(long capacity) {
+		int slabSize = kDefaultSlabSize;
+		while (slabSize > kMinSlabSize && capacity / slabSize < kMinSlabs)
+			slabSize /= 2;
+		return slabSize;
+	}
+	
+	public OffHeapCache(long capacity, int slabSize) {
+		assert(slabSize >= kMinChunkSize);
+		this.slabSize = slabSize;
+		this.maxSlabs = (int)Math.max(1, Math.min(Integer.MAX_VALUE, capacity / slabSize));
+		
+		ArrayList<SizeClass> l = new ArrayList<>();
+		int chunkSize = kMinChunkSize;
+		while (chunkSize < slabSize) {
+			l.add(new SizeClass(chunkSize, slabSize));
+			chunkSize = (int)Math.min(slabSize, Math.max(chunkSize + 8, (long)(chunkSize * kSizeClassFactor)));
+		}
+		l.add(new SizeClass(slabSize, slabSize));
+		sizeClasses = l.toArray(new SizeClass[l.size()]);
+	}
+	
+	SizeClass sizeClassOf(int size) {
+		int lo = 0;
+		int hi = sizeClasses.length - 1;
+		if (size > sizeClasses[hi].chunkSize)
+			return null;
+		while (lo < hi) {
+			int mid = (lo + hi) / 2;
+			if (sizeClasses[mid].chunkSize < size)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return sizeClasses[lo];
+	}
+	
+	@Override
+	public boolean insert(Slice key, byte[] data, int offset, int size) {
+		SizeClass c = sizeClassOf(size);
+		if (c == null)
+			return false;
+		
+		ByteArrayKey k = new ByteArrayKey(key);
+		mutex.lock();
+		try {
+			Item old = table.remove(k);
+			if (old != null)
+				free(old);
+			
+			Item item = allocate(c);
+			if (item == null)
+				return false;
+			item.key = k;
+			item.size = size;
+			ByteBuffer b = item.slab.buffer;
+			b.clear();
+			b.position(item.chunk * c.chunkSize);
+			b.put(data, offset, size);
+			table.put(k, item);
+			usage += size;
+			return true;
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	@Override
+	public Slice lookup(Slice key) {
+		ByteArrayKey k = new ByteArrayKey(key);
+		mutex.lock();
+		try {
+			Item item = table.get(k);
+			if (item == null)
+				return null;
+			
+			SizeClass c = item.slab.sizeClass;
+			lruRemove(item);
+			lruAppend(c, item);
+			
+			byte[] result = new byte[item.size];
+			ByteBuffer b = item.slab.buffer;
+			b.clear();
+			b.position(item.chunk * c.chunkSize);
+			b.get(result, 0, item.size);
+			return SliceFactory.newUnpooled(result, 0, item.size);
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	@Override
+	public void erase(Slice key) {
+		ByteArrayKey k = new ByteArrayKey(key);
+		mutex.lock();
+		try {
+			Item item = table.remove(k);
+			if (item != null)
+				free(item);
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	@Override
+	public long newId() {
+		mutex.lock();
+		try {
+			return ++lastId;
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	@Override
+	public long totalCharge() {
+		mutex.lock();
+		try {
+			return usage;
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	/**
+	 * Direct buffers are released by the garbage collector once they are no 
+	 * longer referenced.
+	 */
+	@Override
+	public void delete() {
+		mutex.lock();
+		try {
+			table.clear();
+			for (SizeClass c : sizeClasses) {
+				c.slabs.clear();
+				c.lru.next = c.lru;
+				c.lru.prev = c.lru;
+			}
+			numSlabs = 0;
+			usage = 0;
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	/**
+	 * Number of slabs owned by each size class, for testing.
+	 */
+	public int[] slabsPerSizeClass() {
+		mutex.lock();
+		try {
+			int[] ret = new int[sizeClasses.length];
+			for (int i = 0; i < sizeClasses.length; i++)
+				ret[i] = sizeClasses[i].slabs.size();
+			return ret;
+		} finally {
+			mutex.unlock();
+		}
+	}
+	
+	/**
+	 * Find a free chunk of class c, allocating, taking over a slab or evicting 
+	 * entries as needed.
+	 * REQUIRES: mutex held
+	 */
+	Item allocate(SizeClass c) {
+		Slab slab = null;
+		for (int i = c.slabs.size() - 1; i >= 0; i--) {
+			if (c.slabs.get(i).used < c.chunksPerSlab) {
+				slab = c.slabs.get(i);
+				break;
+			}
+		}
+		
+		if (slab == null) {
+			if (numSlabs < maxSlabs) {
+				slab = new Slab(slabSize);
+				numSlabs++;
+			} else if (c.slabs.isEmpty()) {
+				slab = stealSlab();
+				if (slab == null)
+					return null;
+			} else {
+				// Make room in our own slabs
+				Item victim = c.lru.prev;
+				slab = victim.slab;
+				table.remove(victim.key);
+				free(victim);
+			}
+			if (slab.sizeClass != c) {
+				slab.sizeClass = c;
+				slab.items = new Item[c.chunksPerSlab];
+				slab.used = 0;
+				c.slabs.add(slab);
+			}
+		}
+		
+		int chunk = 0;
+		while (slab.items[chunk] != null)
+			chunk++;
+		Item item = new Item();
+		item.slab = slab;
+		item.chunk = chunk;
+		slab.items[chunk] = item;
+		slab.used++;
+		lruAppend(c, item);
+		return item;
+	}
+	
+	/**
+	 * Empty the slab that holds the least recently used entry of the class with 
+	 * the most slabs, and detach it from that class.
+	 * REQUIRES: mutex held
+	 */
+	Slab stealSlab() {
+		SizeClass victimClass = null;
+		for (SizeClass c : sizeClasses) {
+			if (victimClass == null || c.slabs.size() > victimClass.slabs.size())
+				victimClass = c;
+		}
+		if (victimClass == null || victimClass.slabs.isEmpty())
+			return null;
+		
+		Item oldest = victimClass.lru.prev;
+		Slab slab = (oldest != victimClass.lru) ? oldest.slab : victimClass.slabs.get(0);
+		for (Item item : slab.items) {
+			if (item != null) {
+				table.remove(item.key);
+				free(item);
+			}
+		}
+		victimClass.slabs.remove(slab);
+		slab.sizeClass = null;
+		slab.items = null;
+		return slab;
+	}
+	
+	/**
+	 * Free the chunk of an entry that was removed from the table.
+	 * REQUIRES: mutex held
+	 */
+	void free(Item item) {
+		lruRemove(item);
+		item.slab.items[item.chunk] = null;
+		item.slab.used--;
+		usage -= item.size;
+	}
+	
+	void lruRemove(Item item) {
+		item.next.prev = item.prev;
+		item.prev.next = item.next;
+	}
+	
+	void lruAppend(SizeClass c, Item item) {
+		// Make item the newest entry
+		item.prev = c.lru;
+		item.next = c.lru.next;
+		item.next.prev = item;
+		c.lru.next = item;
+	}
+}
@@ -0,0 +1,558 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.tchaicatkovsky.jleveldb.Env;
+import com.tchaicatkovsky.jleveldb.RandomAccessFile0;
+import com.tchaicatkovsky.jleveldb.Status;
+import com.tchaicatkovsky.jleveldb.WritableFile;
+
+/**
+ * {@link SecondaryCache} that keeps its entries in files in a directory, meant to
+ * be on a device that is faster than the one holding the database.</br></br>
+ * 
+ * Entries are appended to segment files of up to segmentSize bytes.  Each record
+ * is</br>
+ * key length: fixed32</br>
+ * data length: fixed32</br>
+ * key: uint8[key length]</br>
+ * data: uint8[data length]</br>
+ * crc: fixed32, masked crc32c of key and data</br>
+ * 
+ * The location of every entry is kept in an in-memory index.  When the segments 
+ * exceed the capacity the oldest one is deleted with all its entries, so space of 
+ * replaced or erased entries is reclaimed when their segment goes away.</br></br>
+ * 
+ * The index is saved to a checkpoint file whenever a segment is full and when the 
+ * cache is deleted.  Opening the cache again loads the checkpoint and scans what 
+ * was appended to the segments after it was written.  Erasures are not recorded,
+ * an entry erased after the last checkpoint may come back after a restart.  
+ * Writes after a restart always go to a new segment.</br></br>
+ * 
+ * Lookups only take a read lock and read the files concurrently.
+ */
+public class PersistentCache extends SecondaryCache {
+	
+	final static long kDefaultSegmentSize = 64 << 20;
+	final static int kRecordHeaderSize = 8;
+	final static int kRecordTrailerSize = 4;
+	final static String kSegmentSuffix = ".cache";
+	final static String kCheckpointName = "CHECKPOINT";
+	
+	static class Segment {
+		final long number;
+		WritableFile writer; // null once the segment is full
+		RandomAccessFile0 reader;
+		long size;
+		
+		/**
+		 * Keys written to this segment, some of them may since be replaced or erased.
+		 */
+		final ArrayList<ByteArrayKey> keys = new ArrayList<>();
+		
+		Segment(long number) {
+			this.number = number;
+		}
+	}
+	
+	static class Location {
+		final Segment segment;
+		final long offset; // of the record
+		final int size;	   // of the data
+		
+		Location(Segment segment, long offset, int size) {
+			this.segment = segment;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+	
+	/**
+	 * An entry of the checkpoint, whose segment is not open yet.
+	 */
+	static class CheckpointEntry {
+		final ByteArrayKey key;
+		final long offset;
+		final int size;
+		
+		CheckpointEntry(ByteArrayKey key, long offset, int size) {
+			this.key = key;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+	
+	final Env env;
+	final String dir;
+	final long capacity;
+	final long segmentSize;
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	// Protected by lock
+	final HashMap<ByteArrayKey, Location> table = new HashMap<>();
+	final ArrayDeque<Segment> segments = new ArrayDeque<>(); // Oldest first
+	Segment current;
+	long nextSegmentNumber = 1;
+	long usage;
+	long lastId;
+	boolean closed;
+	
+	PersistentCache(Env env, String dir, long capacity, long segmentSize) {
+		this.env = env;
+		this.dir = dir;
+		this.capacity = capacity;
+		this.segmentSize = Math.min(segmentSize, Math.max(1, capacity / 2));
+	}
+	
+	/**
+	 * Open the cache stored in directory dir, creating it if it does not exist.
+	 * 
+	 * @param env
+	 * @param dir
+	 * @param capacity
+	 * @param segmentSize
+	 * @param result
+	 * @return
+	 */
+	public static Status open(Env env, String dir, long capacity, long segmentSize, Object0<PersistentCache> result) {
+		result.setValue(null);
+		env.createDir(dir); // Ignore error, the directory may exist
+		
+		PersistentCache cache = new PersistentCache(env, dir, capacity, segmentSize);
+		Status s = cache.recover();
+		if (!s.ok()) {
+			cache.delete();
+			return s;
+		}
+		result.setValue(cache);
+		return s;
+	}
+	
+	public static Status open(Env env, String dir, long capacity, Object0<PersistentCache> result) {
+		return open(env, dir, capacity, kDefaultSegmentSize, result);
+	}
+	
+	String segmentFileName(long number) {
+		return String.format("%s/%06d%s", dir, number, kSegmentSuffix);
+	}
+	
+	/**
+	 * Derived from the file name, size and tail, so that the entries of a table 
+	 * are found again after a restart, but not by a different table that reuses 
+	 * its file number, say after the DB was recreated.
+	 */
+	@Override
+	public long newId(String fileName, long fileSize, Slice tail) {
+		ByteBuf buf = ByteBufFactory.newUnpooled();
+		buf.append(fileName != null ? fileName : "");
+		buf.addFixedNat64(fileSize);
+		buf.append(tail);
+		// Keys store ids as non-negative numbers, the counter of newId() stays below 2^62
+		return (Hash.hash64(buf.data(), buf.offset(), buf.size(), 301) & Long.MAX_VALUE) | (1L << 62);
+	}
+	
+	@Override
+	public long newId() {
+		lock.writeLock().lock();
+		try {
+			return ++lastId;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public boolean insert(Slice key, byte[] data, int offset, int size) {
+		long recordSize = kRecordHeaderSize + key.size() + size + kRecordTrailerSize;
+		if (recordSize > segmentSize)
+			return false;
+		
+		ByteBuf record = ByteBufFactory.newUnpooled();
+		record.addFixedNat32(key.size());
+		record.addFixedNat32(size);
+		record.append(key);
+		record.append(data, offset, size);
+		long crc = Crc32C.value(record.data(), record.offset() + kRecordHeaderSize, key.size() + size);
+		record.addFixedNat32Long(Crc32C.mask(crc));
+		ByteArrayKey k = new ByteArrayKey(key);
+		
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				return false;
+			if (current == null || current.size + recordSize > segmentSize) {
+				if (!newSegment().ok())
+					return false;
+			}
+			
+			Segment seg = current;
+			Status s = seg.writer.append(SliceFactory.newUnpooled(record.data(), record.offset(), record.size()));
+			if (s.ok())
+				s = seg.writer.flush();
+			if (!s.ok()) {
+				// Do not write to a segment whose tail is unknown
+				sealSegment(seg);
+				current = null;
+				return false;
+			}
+			
+			table.put(k, new Location(seg, seg.size, size));
+			seg.keys.add(k);
+			seg.size += recordSize;
+			usage += recordSize;
+			evict();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public Slice lookup(Slice key) {
+		ByteArrayKey k = new ByteArrayKey(key);
+		lock.readLock().lock();
+		try {
+			Location loc = table.get(k);
+			if (loc == null)
+				return null;
+			
+			int keySize = k.data.length;
+			int n = kRecordHeaderSize + keySize + loc.size + kRecordTrailerSize;
+			byte[] buf = new byte[n];
+			Slice record = SliceFactory.newUnpooled();
+			if (!loc.segment.reader.read(loc.offset, n, record, buf).ok() || record.size() != n)
+				return null;
+			
+			byte[] d = record.data();
+			int off = record.offset();
+			int dataOffset = off + kRecordHeaderSize + keySize;
+			long crc = Crc32C.unmask(Coding.decodeFixedNat32Long(d, dataOffset + loc.size));
+			if (Coding.decodeFixedNat32(d, off) != keySize || Coding.decodeFixedNat32(d, off + 4) != loc.size ||
+					Crc32C.value(d, off + kRecordHeaderSize, keySize + loc.size) != crc ||
+					!key.equals(SliceFactory.newUnpooled(d, off + kRecordHeaderSize, keySize)))
+				return null;
+			return SliceFactory.newUnpooled(d, dataOffset, loc.size);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	@Override
+	public void erase(Slice key) {
+		ByteArrayKey k = new ByteArrayKey(key);
+		lock.writeLock().lock();
+		try {
+			table.remove(k);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Size of all segment files, including records that were replaced or erased.
+	 */
+	@Override
+	public long totalCharge() {
+		lock.readLock().lock();
+		try {
+			return usage;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public int numEntries() {
+		lock.readLock().lock();
+		try {
+			return table.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Write a checkpoint and close all files. The segments stay on disk, to be 
+	 * loaded by the next open().
+	 */
+	@Override
+	public void delete() {
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			if (current != null) {
+				sealSegment(current);
+				current = null;
+			}
+			writeCheckpoint();
+			for (Segment seg : segments) {
+				if (seg.reader != null) {
+					seg.reader.delete();
+					seg.reader = null;
+				}
+			}
+			segments.clear();
+			table.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * REQUIRES: write lock held
+	 */
+	Status newSegment() {
+		if (current != null) {
+			sealSegment(current);
+			current = null;
+			writeCheckpoint();
+		}
+		
+		Segment seg = new Segment(nextSegmentNumber++);
+		String fname = segmentFileName(seg.number);
+		Object0<WritableFile> writer0 = new Object0<>();
+		Status s = env.newWritableFile(fname, writer0);
+		if (!s.ok())
+			return s;
+		Object0<RandomAccessFile0> reader0 = new Object0<>();
+		s = env.newRandomAccessFile(fname, reader0);
+		if (!s.ok()) {
+			writer0.getValue().close();
+			writer0.getValue().delete();
+			env.deleteFile(fname);
+			return s;
+		}
+		seg.writer = writer0.getValue();
+		seg.reader = reader0.getValue();
+		segments.addLast(seg);
+		current = seg;
+		return s;
+	}
+	
+	void sealSegment(Segment seg) {
+		if (seg.writer != null) {
+			seg.writer.close();
+			seg.writer.delete();
+			seg.writer = null;
+		}
+	}
+	
+	/**
+	 * Delete the oldest segments until usage fits the capacity, always keeping 
+	 * the segment being written.
+	 * REQUIRES: write lock held
+	 */
+	void evict() {
+		while (usage > capacity && segments.size() > 1) {
+			Segment seg = segments.pollFirst();
+			for (ByteArrayKey k : seg.keys) {
+				Location loc = table.get(k);
+				if (loc != null && loc.segment == seg)
+					table.remove(k);
+			}
+			usage -= seg.size;
+			if (seg.reader != null) {
+				seg.reader.delete();
+				seg.reader = null;
+			}
+			env.deleteFile(segmentFileName(seg.number));
+		}
+	}
+	
+	/**
+	 * Save the index. The checkpoint is</br>
+	 * next segment number: varint64</br>
+	 * segment count: varint32</br>
+	 * segments: (number: varint64, size: varint64)[segment count]</br>
+	 * entry count: varint32</br>
+	 * entries: (key: length prefixed, segment number: varint64, offset: varint64, size: varint32)[entry count]</br>
+	 * crc: fixed32, masked crc32c of the above</br>
+	 * 
+	 * REQUIRES: write lock held
+	 */
+	Status writeCheckpoint() {
+		ByteBuf buf = ByteBufFactory.newUnpooled();
+		buf.addVarNat64(nextSegmentNumber);
+		buf.addVarNat32(segments.size());
+		for (Segment seg : segments) {
+			buf.addVarNat64(seg.number);
+			buf.addVarNat64(seg.size);
+		}
+		buf.addVarNat32(table.size());
+		for (Map.Entry<ByteArrayKey, Location> e : table.entrySet()) {
+			ByteArrayKey k = e.getKey();
+			Location loc = e.getValue();
+			buf.addLengthPrefixedSlice(SliceFactory.newUnpooled(k.data, 0, k.data.length));
+			buf.addVarNat64(loc.segment.number);
+			buf.addVarNat64(loc.offset);
+			buf.addVarNat32(loc.size);
+		}
+		buf.addFixedNat32Long(Crc32C.mask(Crc32C.value(buf.data(), buf.offset(), buf.size())));
+		
+		String fname = dir + "/" + kCheckpointName;
+		String tmp = fname + ".tmp";
+		Status s = env.writeStringToFileSync(SliceFactory.newUnpooled(buf.data(), buf.offset(), buf.size()), tmp);
+		if (s.ok())
+			s = env.renameFile(tmp, fname);
+		if (!s.ok())
+			env.deleteFile(tmp);
+		return s;
+	}
+	
+	/**
+	 * Rebuild the index from the checkpoint and the segment files.
+	 */
+	Status recover() {
+		lock.writeLock().lock();
+		try {
+			ArrayList<String> children = new ArrayList<>();
+			Status s = env.getChildren(dir, children);
+			if (!s.ok())
+				return s;
+			ArrayList<Long> numbers = new ArrayList<>();
+			for (String child : children) {
+				String name = child.substring(child.lastIndexOf('/') + 1);
+				if (name.endsWith(kSegmentSuffix)) {
+					try {
+						numbers.add(Long.parseLong(name.substring(0, name.length() - kSegmentSuffix.length())));
+					} catch (NumberFormatException e) {
+						// Not ours
+					}
+				}
+			}
+			Collections.sort(numbers);
+			
+			HashMap<Long, Long> checkpointedSizes = new HashMap<>();
+			HashMap<Long, ArrayList<CheckpointEntry>> checkpointedEntries = new HashMap<>();
+			readCheckpoint(checkpointedSizes, checkpointedEntries);
+			
+			for (long number : numbers) {
+				nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+				String fname = segmentFileName(number);
+				Long0 fileSize = new Long0();
+				Object0<RandomAccessFile0> reader0 = new Object0<>();
+				if (!env.getFileSize(fname, fileSize).ok() || !env.newRandomAccessFile(fname, reader0).ok()) {
+					env.deleteFile(fname);
+					continue;
+				}
+				Segment seg = new Segment(number);
+				seg.reader = reader0.getValue();
+				seg.size = fileSize.getValue();
+				segments.addLast(seg);
+				usage += seg.size;
+				
+				long scanFrom = 0;
+				Long checkpointed = checkpointedSizes.get(number);
+				if (checkpointed != null && checkpointed <= seg.size) {
+					for (CheckpointEntry e : checkpointedEntries.get(number)) {
+						table.put(e.key, new Location(seg, e.offset, e.size));
+						seg.keys.add(e.key);
+					}
+					scanFrom = checkpointed;
+				}
+				scanSegment(seg, scanFrom);
+			}
+			evict();
+			return Status.ok0();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Load the checkpoint, if there is a valid one, as segment number -> size and
+	 * segment number -> (key, offset, size) entries.
+	 */
+	void readCheckpoint(Map<Long, Long> sizes, Map<Long, ArrayList<CheckpointEntry>> entries) {
+		ByteBuf buf = ByteBufFactory.newUnpooled();
+		if (!env.readFileToString(dir + "/" + kCheckpointName, buf).ok() || buf.size() < 4)
+			return;
+		int n = buf.size() - 4;
+		long crc = Crc32C.unmask(Coding.decodeFixedNat32Long(buf.data(), buf.offset() + n));
+		if (Crc32C.value(buf.data(), buf.offset(), n) != crc)
+			return;
+		
+		Slice input = SliceFactory.newUnpooled(buf.data(), buf.offset(), n);
+		try {
+			nextSegmentNumber = Math.max(nextSegmentNumber, input.readVarNat64());
+			int numSegments = input.readVarNat32();
+			for (int i = 0; i < numSegments; i++) {
+				long number = input.readVarNat64();
+				sizes.put(number, input.readVarNat64());
+				entries.put(number, new ArrayList<CheckpointEntry>());
+			}
+			int numEntries = input.readVarNat32();
+			for (int i = 0; i < numEntries; i++) {
+				Slice key = input.readLengthPrefixedSlice();
+				long number = input.readVarNat64();
+				long offset = input.readVarNat64();
+				int size = input.readVarNat32();
+				ArrayList<CheckpointEntry> l = entries.get(number);
+				if (l != null)
+					l.add(new CheckpointEntry(new ByteArrayKey(key), offset, size));
+			}
+		} catch (CodingException e) {
+			sizes.clear();
+			entries.clear();
+		}
+	}
+	
+	/**
+	 * Add the records of seg from offset on to the index, up to the first one that 
+	 * is truncated or corrupted.
+	 */
+	void scanSegment(Segment seg, long offset) {
+		byte[] header = new byte[kRecordHeaderSize];
+		while (offset + kRecordHeaderSize <= seg.size) {
+			Slice h = SliceFactory.newUnpooled();
+			if (!seg.reader.read(offset, kRecordHeaderSize, h, header).ok() || h.size() != kRecordHeaderSize)
+				return;
+			int keySize = Coding.decodeFixedNat32(h.data(), h.offset());
+			int size = Coding.decodeFixedNat32(h.data(), h.offset() + 4);
+			long recordSize = (long)kRecordHeaderSize + keySize + size + kRecordTrailerSize;
+			if (keySize < 0 || size < 0 || offset + recordSize > seg.size)
+				return;
+			
+			int n = keySize + size + kRecordTrailerSize;
+			byte[] body = new byte[n];
+			Slice b = SliceFactory.newUnpooled();
+			if (!seg.reader.read(offset + kRecordHeaderSize, n, b, body).ok() || b.size() != n)
+				return;
+			long crc = Crc32C.unmask(Coding.decodeFixedNat32Long(b.data(), b.offset() + keySize + size));
+			if (Crc32C.value(b.data(), b.offset(), keySize + size) != crc)
+				return;
+			
+			ByteArrayKey k = new ByteArrayKey(b.data(), b.offset(), keySize);
+			table.put(k, new Location(seg, offset, size));
+			seg.keys.add(k);
+			offset += recordSize;
+		}
+	}
+}
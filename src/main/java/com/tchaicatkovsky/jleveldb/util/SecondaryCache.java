@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.util;
+
+import com.tchaicatkovsky.jleveldb.Env;
+import com.tchaicatkovsky.jleveldb.Status;
+
+/**
+ * A cache tier under the block cache. It holds blocks the way they are stored in
+ * the table file, i.e. still compressed and followed by their trailer, and is 
+ * consulted when a block misses the block cache, before the block is read from 
+ * the file. A block found there is decoded and put into the block cache again.</br></br>
+ * 
+ * Unlike {@link Cache}, entries are copied in and out, so implementations are free
+ * to keep them outside of the Java heap. All methods are thread safe.
+ */
+public abstract class SecondaryCache {
+	
+	/**
+	 * Store a copy of data[offset, offset + size) under key, replacing a previous
+	 * entry for key. An implementation may decline to store the entry, for 
+	 * example if it is too large.
+	 * 
+	 * @param key
+	 * @param data
+	 * @param offset
+	 * @param size
+	 * @return true if the entry was stored
+	 */
+	public abstract boolean insert(Slice key, byte[] data, int offset, int size);
+	
+	/**
+	 * Return a copy of the entry for key on the heap, or null if there is none.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public abstract Slice lookup(Slice key);
+	
+	/**
+	 * If the cache contains an entry for key, erase it.
+	 * 
+	 * @param key
+	 */
+	public abstract void erase(Slice key);
+	
+	/**
+	 * Return a new numeric id, to be prepended to the keys of a client as in 
+	 * {@link Cache#newId()}.
+	 * 
+	 * @return
+	 */
+	public abstract long newId();
+	
+	/**
+	 * Return the id to prepend to the keys of the table stored in fileName, which
+	 * is fileSize bytes long. tail holds the trailers, type and crc, of the 
+	 * table's metaindex and index blocks followed by its footer. Tables record a 
+	 * random id in their metaindex, so tail differs between two tables even if 
+	 * they have the same name, size and layout. The default implementation 
+	 * returns {@link #newId()}; a cache whose entries outlive the process has to 
+	 * return the same id for the same table every time, and a different one for 
+	 * a table that replaced it.
+	 * 
+	 * @param fileName
+	 * @param fileSize
+	 * @param tail
+	 * @return
+	 */
+	public long newId(String fileName, long fileSize, Slice tail) {
+		return newId();
+	}
+	
+	/**
+	 * Return the combined size of all entries stored in the cache.
+	 * 
+	 * @return
+	 */
+	public abstract long totalCharge();
+	
+	/**
+	 * Release all resources. The cache must not be used afterwards.
+	 */
+	public abstract void delete();
+	
+	/**
+	 * Create a secondary cache that keeps up to capacity bytes in direct buffers, 
+	 * outside of the Java heap, so that a large cache does not add to the work of 
+	 * the garbage collector.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public static SecondaryCache newOffHeapCache(long capacity) {
+		return new OffHeapCache(capacity);
+	}
+	
+	/**
+	 * Open a secondary cache that keeps up to capacity bytes in files in directory
+	 * dir, typically on a local SSD, and that keeps its contents across restarts.
+	 * The directory must not be shared with anything else.
+	 * 
+	 * @param env
+	 * @param dir
+	 * @param capacity
+	 * @param result
+	 * @return
+	 */
+	public static Status newPersistentCache(Env env, String dir, long capacity, Object0<SecondaryCache> result) {
+		Object0<PersistentCache> cache0 = new Object0<>();
+		Status s = PersistentCache.open(env, dir, capacity, cache0);
+		result.setValue(cache0.getValue());
+		return s;
+	}
+}
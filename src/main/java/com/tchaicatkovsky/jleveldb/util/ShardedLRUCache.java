@@ -45,7 +45,18 @@ package com.tchaicatkovsky.jleveldb.util;
  * external reference.</br></br>
  * 
  * An entry is a variable length heap-allocated structure.  Entries 
- * are kept in a circular doubly linked list ordered by access time. 
+ * are kept in a circular doubly linked list ordered by access time.</br></br>
+ * 
+ * The LRU list is split in two by lruLowPri.  Low priority entries are inserted 
+ * right after lruLowPri, high priority ones at the newest end, so that eviction, 
+ * which starts at the oldest end, reaches high priority entries last.  When the 
+ * high priority part grows beyond highPriPoolCapacity, lruLowPri moves towards 
+ * the newest end and its oldest high priority entries become low priority.</br></br>
+ * 
+ * An entry that is looked up again after its insertion also goes to the high 
+ * priority part when it is released.  Entries used only once, such as the blocks 
+ * of a long scan, stay on the low priority side and evict each other there, while
+ * the entries that were used repeatedly are protected by the pool (a segmented LRU).
  */
 public class ShardedLRUCache extends Cache {
 	
@@ -58,6 +69,9 @@ public class ShardedLRUCache extends Cache {
 		int charge;			//TODO: Should use long 
 		int keyLength;
 		boolean inCache;    // Whether entry is in the cache.
+		boolean highPri;    // Inserted with Priority.High
+		boolean inHighPriPool; // On the high priority side of lruLowPri
+		boolean hit;        // Looked up since it was inserted
 		int refs;      		// References, including cache reference, if present.
 		long hash;      	// Hash of key(); used for fast sharding and comparisons
 		Slice keyData;
@@ -180,12 +194,14 @@ public class ShardedLRUCache extends Cache {
 		 * Initialized before use.
 		 */
 		int capacity;
+		int highPriPoolCapacity;
 
 		/**
 		 * mutex protects the following state.
 		 */
 		Mutex mutex = new Mutex();
 		int usage;
+		int highPriPoolUsage;
 
 		/**
 		 * Dummy head of LRU list.
@@ -200,10 +216,16 @@ public class ShardedLRUCache extends Cache {
 		 */
 		LRUHandle inUse = new LRUHandle();
 
+		/**
+		 * Newest low priority entry of the LRU list, or lru itself if there is none.
+		 */
+		LRUHandle lruLowPri = lru;
+
 		HandleTable table = new HandleTable();
 		
 		public SingleShardLRUCache() {
 			usage = 0;
+			highPriPoolUsage = 0;
 			// Make empty circular linked lists.
 			lru.next = lru;
 			lru.prev = lru;
@@ -247,8 +269,9 @@ public class ShardedLRUCache extends Cache {
 		 * Separate from constructor so caller can easily make an array of LRUCache
 		 * @param capacity
 		 */
-		void setCapacity(int capacity) { 
+		void setCapacity(int capacity, double highPriPoolRatio) { 
 			this.capacity = capacity; 
+			this.highPriPoolCapacity = (int)(capacity * highPriPoolRatio);
 		}
 		
 		/** 
@@ -260,13 +283,14 @@ public class ShardedLRUCache extends Cache {
 		 * @param deleter
 		 * @return
 		 */
-		Cache.Handle insert(Slice key, long hash, Object value, int charge, Deleter deleter) {
+		Cache.Handle insert(Slice key, long hash, Object value, int charge, Deleter deleter, Priority priority) {
 			mutex.lock();
 			try {
 				LRUHandle e = new LRUHandle();
 				e.value = value;
 				e.deleter = deleter;
 				e.charge = charge;
+				e.highPri = (priority == Priority.High);
 				e.keyLength = key.size();
 				e.hash = hash;
 				e.inCache = false;
@@ -303,6 +327,7 @@ public class ShardedLRUCache extends Cache {
 			try {
 				LRUHandle e = table.lookup(key, hash);
 				if (e != null) {
+					e.hit = true;
 				    ref(e);
 				}
 				return (Cache.Handle)e;
@@ -356,9 +381,45 @@ public class ShardedLRUCache extends Cache {
 		}
 
 		void LRU_Remove(LRUHandle e) {
+			if (lruLowPri == e)
+				lruLowPri = e.prev;
+			if (e.inHighPriPool) {
+				e.inHighPriPool = false;
+				highPriPoolUsage -= e.charge;
+			}
 			e.next.prev = e.prev;
 			e.prev.next = e.next;			
 		}
+		
+		/**
+		 * Put an entry that is no longer referenced by clients on the LRU list.
+		 * @param e
+		 */
+		void LRU_Insert(LRUHandle e) {
+			if ((e.highPri || e.hit) && highPriPoolCapacity > 0) {
+				LRU_Append(lru, e);
+				e.inHighPriPool = true;
+				highPriPoolUsage += e.charge;
+				maintainPoolSize();
+			} else {
+				// Insert just after lruLowPri
+				LRU_Append(lruLowPri.next, e);
+				lruLowPri = e;
+			}
+		}
+		
+		/**
+		 * Move the oldest high priority entries to the low priority side until
+		 * the pool fits its capacity again.
+		 */
+		void maintainPoolSize() {
+			while (highPriPoolUsage > highPriPoolCapacity) {
+				lruLowPri = lruLowPri.next;
+				assert(lruLowPri != lru);
+				lruLowPri.inHighPriPool = false;
+				highPriPoolUsage -= lruLowPri.charge;
+			}
+		}
 		  
 		void LRU_Append(LRUHandle list, LRUHandle e) {			
 			// Make "e" newest entry by inserting just before *list
@@ -385,7 +446,7 @@ public class ShardedLRUCache extends Cache {
 			    e = null; // delete e;
 			} else if (e.inCache && e.refs == 1) {  // No longer in use; move to lru list.
 			    LRU_Remove(e);
-			    LRU_Append(lru, e);
+			    LRU_Insert(e);
 			}
 		}
 		  
@@ -412,13 +473,24 @@ public class ShardedLRUCache extends Cache {
 	SingleShardLRUCache[] shard;
 	Mutex idMutex;
 	long lastId;
+	/**
+	 * Half of the capacity is available to high priority and repeatedly used
+	 * entries by default.
+	 */
+	final static double kDefaultHighPriPoolRatio = 0.5;
+	
 	public ShardedLRUCache(int capacity) {
+		this(capacity, kDefaultHighPriPoolRatio);
+	}
+	
+	public ShardedLRUCache(int capacity, double highPriPoolRatio) {
+		assert(highPriPoolRatio >= 0 && highPriPoolRatio <= 1);
 		shard = new SingleShardLRUCache[kNumShards];
 		idMutex = new Mutex();
 		final int perShard = (capacity + (kNumShards - 1)) / kNumShards;
 		for (int i = 0; i < shard.length; i++) {
 			shard[i] = new SingleShardLRUCache();
-			shard[i].setCapacity(perShard);
+			shard[i].setCapacity(perShard, highPriPoolRatio);
 		}
 	}
 	
@@ -434,11 +506,16 @@ public class ShardedLRUCache extends Cache {
 	
 	@Override
 	public Handle insert(Slice key, Object value, int charge, Deleter deleter) {
+		return insert(key, value, charge, deleter, Priority.Low);
+	}
+	
+	@Override
+	public Handle insert(Slice key, Object value, int charge, Deleter deleter, Priority priority) {
 		long hash = key.hashCode0();
 		if (hash < 0)
 			hash *= -1;
 		
-		return shard[calcShard(hash)].insert(key, hash, value, charge, deleter);
+		return shard[calcShard(hash)].insert(key, hash, value, charge, deleter, priority);
 	}
 
 	@Override
@@ -1,7 +1,7 @@
 /**
  * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
  * All rights reserved.
- * 
+ *
  * Licensed to the Apache Software Foundation (ASF) under one
  * or more contributor license agreements.  See the NOTICE file
  * distributed with this work for additional information
@@ -21,19 +21,342 @@
 
 package com.tchaicatkovsky.jleveldb.util;
 
+import java.util.Arrays;
+
+/**
+ * A pure-java implementation of the Snappy raw block format, bit-compatible with
+ * the C++ library used by LevelDB.</br>
+ * </br>
+ *
+ * A compressed block is a varint32 holding the uncompressed length followed by a
+ * sequence of elements. The low two bits of each element's tag byte select its kind:
+ * <ul>
+ * <li>00: literal, length-1 in the upper six bits (60..63 mean 1..4 extra length bytes)</li>
+ * <li>01: copy with 1-byte offset, length-4 in bits 2..4, offset bits 8..10 in bits 5..7</li>
+ * <li>10: copy with 2-byte little-endian offset, length-1 in the upper six bits</li>
+ * <li>11: copy with 4-byte little-endian offset, length-1 in the upper six bits</li>
+ * </ul>
+ * The compressor processes the input in 64KB fragments and keeps a per-thread hash
+ * table, so compressing a block allocates nothing besides growing the output buffer.
+ */
 public class Snappy {
+	static final int kBlockLog = 16;
+	static final int kBlockSize = 1 << kBlockLog;
+	static final int kMaxHashTableBits = 14;
+	static final int kMaxHashTableSize = 1 << kMaxHashTableBits;
+
+	/**
+	 * Matches are not searched for in the last bytes of a fragment, so that
+	 * 4-byte loads at the match candidates never run past the input.
+	 */
+	static final int kInputMarginBytes = 15;
+
+	static final int kLiteral = 0;
+	static final int kCopy1ByteOffset = 1;
+	static final int kCopy2ByteOffset = 2;
+	static final int kCopy4ByteOffset = 3;
+
+	static final ThreadLocal<int[]> hashTable = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[kMaxHashTableSize];
+		}
+	};
+
+	/**
+	 * Upper bound of the compressed size of n input bytes.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public static int maxCompressedLength(int n) {
+		return 32 + n + n / 6;
+	}
+
+	/**
+	 * Parse the uncompressed length stored in the header of data[offset, offset+n).
+	 *
+	 * @param data
+	 * @param offset
+	 * @param n
+	 * @param length
+	 * @return false if the header is malformed
+	 */
 	public static boolean getUncompressedLength(byte[] data, int offset, int n, Integer0 length) {
-		//TODO:
+		int limit = offset + n;
+		int result = 0;
+		for (int shift = 0, p = offset; shift <= 28 && p < limit; shift += 7) {
+			int b = data[p++] & 0xff;
+			if (shift == 28 && b > 0x0f)
+				return false;
+			result |= (b & 0x7f) << shift;
+			if (b < 128) {
+				length.setValue(result);
+				return true;
+			}
+		}
 		return false;
 	}
-	
+
+	/**
+	 * Uncompress data[offset, offset+n) into ubuf, which must hold at least
+	 * the length returned by {@link #getUncompressedLength}.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param n
+	 * @param ubuf
+	 * @return false if the input is corrupted
+	 */
 	public static boolean uncompress(byte[] data, int offset, int n, byte[] ubuf) {
-		//TODO:
-		return false;
+		int limit = offset + n;
+
+		// Parse the header again to find where the elements start.
+		int ulength = 0;
+		int ip = offset;
+		for (int shift = 0; ; shift += 7) {
+			if (ip >= limit || shift > 28)
+				return false;
+			int b = data[ip++] & 0xff;
+			ulength |= (b & 0x7f) << shift;
+			if (b < 128)
+				break;
+		}
+		if (ulength < 0 || ulength > ubuf.length)
+			return false;
+
+		int op = 0;
+		while (ip < limit) {
+			int tag = data[ip++] & 0xff;
+			int len;
+			int copyOffset;
+			switch (tag & 0x03) {
+			case kLiteral: {
+				len = (tag >>> 2) + 1;
+				if (len > 60) {
+					int extraBytes = len - 60;
+					if (ip + extraBytes > limit)
+						return false;
+					len = 0;
+					for (int i = 0; i < extraBytes; i++)
+						len |= (data[ip + i] & 0xff) << (i * 8);
+					ip += extraBytes;
+					len += 1;
+					if (len <= 0)
+						return false;
+				}
+				if (len > limit - ip || len > ulength - op)
+					return false;
+				System.arraycopy(data, ip, ubuf, op, len);
+				ip += len;
+				op += len;
+				continue;
+			}
+			case kCopy1ByteOffset:
+				if (ip >= limit)
+					return false;
+				len = ((tag >>> 2) & 0x07) + 4;
+				copyOffset = ((tag >>> 5) << 8) | (data[ip++] & 0xff);
+				break;
+			case kCopy2ByteOffset:
+				if (ip + 2 > limit)
+					return false;
+				len = (tag >>> 2) + 1;
+				copyOffset = (data[ip] & 0xff) | ((data[ip + 1] & 0xff) << 8);
+				ip += 2;
+				break;
+			default:
+				if (ip + 4 > limit)
+					return false;
+				len = (tag >>> 2) + 1;
+				copyOffset = (data[ip] & 0xff) | ((data[ip + 1] & 0xff) << 8) |
+						((data[ip + 2] & 0xff) << 16) | ((data[ip + 3] & 0xff) << 24);
+				ip += 4;
+				break;
+			}
+
+			if (copyOffset <= 0 || copyOffset > op || len > ulength - op)
+				return false;
+
+			int src = op - copyOffset;
+			if (copyOffset >= len) {
+				System.arraycopy(ubuf, src, ubuf, op, len);
+				op += len;
+			} else {
+				// Overlapping copy, the pattern repeats every copyOffset bytes.
+				int end = op + len;
+				while (op < end)
+					ubuf[op++] = ubuf[src++];
+			}
+		}
+
+		return op == ulength;
 	}
-	
+
+	/**
+	 * Compress data[offset, offset+n), replacing the contents of output.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param n
+	 * @param output
+	 * @return always true, compression is supported
+	 */
 	public static boolean compress(byte[] data, int offset, int n, ByteBuf output) {
-		//TODO
-		return false;
+		output.clear();
+		output.resize(maxCompressedLength(n));
+		byte[] dst = output.data();
+		int op = output.offset();
+		int opBase = op;
+
+		op = Coding.encodeVarNat32(dst, op, dst.length, n);
+
+		int[] table = hashTable.get();
+		int pos = 0;
+		while (pos < n) {
+			int fragmentSize = Math.min(n - pos, kBlockSize);
+			int tableBits = hashTableBits(fragmentSize);
+			Arrays.fill(table, 0, 1 << tableBits, 0);
+			op = compressFragment(data, offset + pos, fragmentSize, dst, op, table, tableBits);
+			pos += fragmentSize;
+		}
+
+		output.resize(op - opBase);
+		return true;
+	}
+
+	static int hashTableBits(int fragmentSize) {
+		int bits = 8;
+		while (bits < kMaxHashTableBits && (1 << bits) < fragmentSize)
+			bits++;
+		return bits;
+	}
+
+	static int load32(byte[] b, int i) {
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+	}
+
+	static int hash(int bytes, int shift) {
+		return (bytes * 0x1e35a7bd) >>> shift;
+	}
+
+	static int compressFragment(byte[] src, int base, int n, byte[] dst, int op, int[] table, int tableBits) {
+		int shift = 32 - tableBits;
+		int ipEnd = base + n;
+		int ip = base;
+		int nextEmit = base;
+
+		if (n >= kInputMarginBytes) {
+			int ipLimit = ipEnd - kInputMarginBytes;
+			int nextHash = hash(load32(src, ++ip), shift);
+
+			outer:
+			while (true) {
+				// Heuristic match skipping: the longer we go without finding a
+				// match, the larger the steps taken between lookups.
+				int skip = 32;
+				int nextIp = ip;
+				int candidate;
+				do {
+					ip = nextIp;
+					int h = nextHash;
+					int bytesBetweenHashLookups = skip >>> 5;
+					skip++;
+					nextIp = ip + bytesBetweenHashLookups;
+					if (nextIp > ipLimit)
+						break outer;
+					nextHash = hash(load32(src, nextIp), shift);
+					candidate = base + table[h];
+					table[h] = ip - base;
+				} while (load32(src, ip) != load32(src, candidate));
+
+				op = emitLiteral(src, nextEmit, ip - nextEmit, dst, op);
+
+				// Emit copies for as long as the bytes at ip keep matching.
+				do {
+					int matchStart = ip;
+					int matched = 4 + findMatchLength(src, candidate + 4, ip + 4, ipEnd);
+					ip += matched;
+					op = emitCopy(dst, op, matchStart - candidate, matched);
+					nextEmit = ip;
+					if (ip >= ipLimit)
+						break outer;
+
+					table[hash(load32(src, ip - 1), shift)] = ip - 1 - base;
+					int curHash = hash(load32(src, ip), shift);
+					candidate = base + table[curHash];
+					table[curHash] = ip - base;
+				} while (load32(src, ip) == load32(src, candidate));
+
+				nextHash = hash(load32(src, ++ip), shift);
+			}
+		}
+
+		if (nextEmit < ipEnd)
+			op = emitLiteral(src, nextEmit, ipEnd - nextEmit, dst, op);
+
+		return op;
+	}
+
+	static int findMatchLength(byte[] b, int s1, int s2, int s2Limit) {
+		int matched = 0;
+		while (s2 + matched < s2Limit && b[s1 + matched] == b[s2 + matched])
+			matched++;
+		return matched;
+	}
+
+	static int emitLiteral(byte[] src, int ip, int len, byte[] dst, int op) {
+		int n = len - 1;
+		if (n < 60) {
+			dst[op++] = (byte) (kLiteral | (n << 2));
+		} else if (n < (1 << 8)) {
+			dst[op++] = (byte) (kLiteral | (60 << 2));
+			dst[op++] = (byte) n;
+		} else if (n < (1 << 16)) {
+			dst[op++] = (byte) (kLiteral | (61 << 2));
+			dst[op++] = (byte) n;
+			dst[op++] = (byte) (n >>> 8);
+		} else if (n < (1 << 24)) {
+			dst[op++] = (byte) (kLiteral | (62 << 2));
+			dst[op++] = (byte) n;
+			dst[op++] = (byte) (n >>> 8);
+			dst[op++] = (byte) (n >>> 16);
+		} else {
+			dst[op++] = (byte) (kLiteral | (63 << 2));
+			dst[op++] = (byte) n;
+			dst[op++] = (byte) (n >>> 8);
+			dst[op++] = (byte) (n >>> 16);
+			dst[op++] = (byte) (n >>> 24);
+		}
+		System.arraycopy(src, ip, dst, op, len);
+		return op + len;
+	}
+
+	static int emitCopyLessThan64(byte[] dst, int op, int offset, int len) {
+		if (len < 12 && offset < 2048) {
+			dst[op++] = (byte) (kCopy1ByteOffset + ((len - 4) << 2) + ((offset >>> 8) << 5));
+			dst[op++] = (byte) offset;
+		} else {
+			dst[op++] = (byte) (kCopy2ByteOffset + ((len - 1) << 2));
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+		}
+		return op;
+	}
+
+	static int emitCopy(byte[] dst, int op, int offset, int len) {
+		// Emit 64 byte copies but make sure to keep at least four bytes reserved
+		while (len >= 68) {
+			op = emitCopyLessThan64(dst, op, offset, 64);
+			len -= 64;
+		}
+
+		// Emit an extra 60 byte copy if have too much data to fit in one copy
+		if (len > 64) {
+			op = emitCopyLessThan64(dst, op, offset, 60);
+			len -= 60;
+		}
+
+		return emitCopyLessThan64(dst, op, offset, len);
 	}
 }
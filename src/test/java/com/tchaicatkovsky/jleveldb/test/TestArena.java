@@ -21,6 +21,7 @@
 
 package com.tchaicatkovsky.jleveldb.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -74,4 +75,29 @@ public class TestArena {
 		    }
 		}
 	}
+	
+	@Test
+	public void testBlockSize() {
+		final int kHugePage = 2 << 20;
+		MemTableArena arena = new MemTableArena(kHugePage);
+		
+		Slice r = arena.allocate(100);
+		assertEquals(100, r.size());
+		assertEquals(kHugePage, r.data().length);
+		assertTrue(arena.memoryUsage() >= kHugePage);
+		
+		// Small allocations share the block
+		long usage = arena.memoryUsage();
+		for (int i = 0; i < 1000; i++)
+			assertTrue(arena.allocate(1000).data() == r.data());
+		assertEquals(usage, arena.memoryUsage());
+		
+		arena.delete();
+		
+		// More than a quarter of a block gets its own block
+		arena = new MemTableArena(kHugePage);
+		r = arena.allocate(kHugePage / 4 + 1);
+		assertEquals(kHugePage / 4 + 1, r.data().length);
+		arena.delete();
+	}
 }
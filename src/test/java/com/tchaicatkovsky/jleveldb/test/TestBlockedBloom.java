@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.FilterPolicy;
+import com.tchaicatkovsky.jleveldb.test.TestBloom.BloomRun;
+import com.tchaicatkovsky.jleveldb.util.ByteBuf;
+import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.Coding;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+
+public class TestBlockedBloom {
+	
+	static final int kVerbose = 1;
+	
+	static Slice key(int i, byte[] buffer, int offset) {
+		Coding.encodeFixedNat32(buffer, offset, i);
+		return SliceFactory.newUnpooled(buffer, offset, 4);
+	}
+	
+	static BloomRun newRun() {
+		return new BloomRun(FilterPolicy.newBlockedBloomFilterPolicy(10));
+	}
+	
+	@Test
+	public void testEmptyFilter() {
+		BloomRun r = newRun();
+		assertFalse(r.matches(SliceFactory.newUnpooled("hello")));
+		assertFalse(r.matches(SliceFactory.newUnpooled("world")));
+	}
+	
+	@Test
+	public void testSmall() {
+		BloomRun r = newRun();
+		r.add(SliceFactory.newUnpooled("hello"));
+		r.add(SliceFactory.newUnpooled("world"));
+		assertTrue(r.matches(SliceFactory.newUnpooled("hello")));
+		assertTrue(r.matches(SliceFactory.newUnpooled("world")));
+		assertFalse(r.matches(SliceFactory.newUnpooled("x")));
+		assertFalse(r.matches(SliceFactory.newUnpooled("foo")));
+	}
+	
+	@Test
+	public void testVaryingLengths() {
+		byte[] buffer = new byte[4];
+		
+		// Count number of filters that significantly exceed the false positive rate
+		int mediocreFilters = 0;
+		int goodFilters = 0;
+		
+		BloomRun r = newRun();
+		
+		for (int length = 1; length <= 10000; length = TestBloom.nextLength(length)) {
+			r.reset();
+			for (int i = 0; i < length; i++)
+				r.add(key(i, buffer, 0));
+			r.build();
+			
+			// Whole 64-byte blocks plus the probe count
+			assertEquals(1, r.filterSize() % 64);
+			assertTrue(r.filterSize() <= ((length * 10 / 8) + 64 + 1));
+			
+			// All added keys must match
+			for (int i = 0; i < length; i++)
+				assertTrue(r.matches(key(i, buffer, 0)));
+			
+			// Check false positive rate
+			double rate = r.falsePositiveRate();
+			if (kVerbose >= 1) {
+				System.err.printf("False positives: %5.2f%% @ length = %6d ; bytes = %6d\n", 
+						rate*100.0, length, r.filterSize());
+			}
+			
+			if (rate > 0.0125) 
+				mediocreFilters++;  // Allowed, but not too often
+			else 
+				goodFilters++;
+		}
+		if (kVerbose >= 1)
+			System.err.printf("Filters: %d good, %d mediocre\n", goodFilters, mediocreFilters);
+		assertTrue(mediocreFilters <= goodFilters/5);
+	}
+	
+	@Test
+	public void testForeignFilter() {
+		// A filter written by the standard bloom policy must not produce
+		// false negatives when handed to the blocked policy.
+		ArrayList<Slice> keys = new ArrayList<>();
+		keys.add(SliceFactory.newUnpooled("hello"));
+		ByteBuf filter = ByteBufFactory.newUnpooled();
+		FilterPolicy.newBloomFilterPolicy(10).createFilter(keys, filter);
+		FilterPolicy blocked = FilterPolicy.newBlockedBloomFilterPolicy(10);
+		assertTrue(blocked.keyMayMatch(SliceFactory.newUnpooled("hello"), SliceFactory.newUnpooled(filter)));
+		assertFalse(blocked.name().equals(FilterPolicy.newBloomFilterPolicy(10).name()));
+	}
+	
+	static void benchmark(String label, FilterPolicy policy, int numKeys) {
+		byte[] buffer = new byte[4];
+		ArrayList<Slice> keys = new ArrayList<>();
+		for (int i = 0; i < numKeys; i++)
+			keys.add(SliceFactory.newUnpooled(key(i, new byte[4], 0)));
+		ByteBuf filter = ByteBufFactory.newUnpooled();
+		
+		long start = System.nanoTime();
+		policy.createFilter(keys, filter);
+		long buildNanos = System.nanoTime() - start;
+		Slice filterSlice = SliceFactory.newUnpooled(filter);
+		
+		final int kProbes = 2000000;
+		int falsePositives = 0;
+		int hits = 0;
+		Slice probe = SliceFactory.newUnpooled(buffer, 0, 4);
+		// Warm up once, then measure
+		for (int round = 0; round < 2; round++) {
+			falsePositives = 0;
+			hits = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < kProbes; i++) {
+				// Alternate between present and absent keys
+				boolean present = (i & 1) == 0;
+				Coding.encodeFixedNat32(buffer, 0, present ? (i >>> 1) % numKeys : 1000000000 + i);
+				boolean match = policy.keyMayMatch(probe, filterSlice);
+				if (present) {
+					assertTrue(match);
+					hits++;
+				} else if (match) {
+					falsePositives++;
+				}
+			}
+		}
+		long probeNanos = System.nanoTime() - start;
+		
+		System.out.printf("%-8s keys=%8d bytes=%9d fp=%6.3f%% build=%7.1fns/key probe=%6.1fns/op (%5.1fM ops/s)\n", 
+				label, numKeys, filter.size(), falsePositives * 100.0 / (kProbes - hits),
+				buildNanos * 1.0 / numKeys, probeNanos * 1.0 / kProbes, kProbes * 1000.0 / probeNanos);
+	}
+	
+	@Test
+	public void testBenchmark() {
+		for (int numKeys : new int[] {10000, 1000000}) {
+			benchmark("legacy", FilterPolicy.newBloomFilterPolicy(10), numKeys);
+			benchmark("blocked", FilterPolicy.newBlockedBloomFilterPolicy(10), numKeys);
+		}
+	}
+}
@@ -51,7 +51,11 @@ public class TestBloom {
 		ArrayList<ByteBuf> keys = new ArrayList<>();
 		
 		public BloomRun() {
-			this.policy = BloomFilterPolicy.newBloomFilterPolicy(10);
+			this(BloomFilterPolicy.newBloomFilterPolicy(10));
+		}
+		
+		public BloomRun(FilterPolicy policy) {
+			this.policy = policy;
 		}
 		
 		public void reset() {
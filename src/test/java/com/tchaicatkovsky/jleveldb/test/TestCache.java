@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.util.Cache;
+import com.tchaicatkovsky.jleveldb.util.ClockCache;
+import com.tchaicatkovsky.jleveldb.util.Random0;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+
+public class TestCache {
+	
+	static final int kCacheSize = 16 * 100; // 100 per shard
+	
+	/**
+	 * Creates the caches the generic cases run against, both with 16 shards.
+	 */
+	static abstract class CacheFactory {
+		abstract Cache newCache(double highPriPoolRatio);
+		abstract Cache newCache();
+	}
+	
+	static final CacheFactory kLRU = new CacheFactory() {
+		Cache newCache(double highPriPoolRatio) {
+			return Cache.newLRUCache(kCacheSize, highPriPoolRatio);
+		}
+		Cache newCache() {
+			return Cache.newLRUCache(kCacheSize);
+		}
+	};
+	
+	static final CacheFactory kClock = new CacheFactory() {
+		Cache newCache(double highPriPoolRatio) {
+			return new ClockCache(kCacheSize, 4, highPriPoolRatio);
+		}
+		Cache newCache() {
+			return Cache.newClockCache(kCacheSize, 4);
+		}
+	};
+	
+	static final CacheFactory[] kFactories = new CacheFactory[] {kLRU, kClock};
+	
+	static Cache.Deleter deleter = new Cache.Deleter() {
+		public void run(Slice key, Object value) {
+		}
+	};
+	
+	static void insert(Cache cache, String key, int charge, Cache.Priority priority) {
+		cache.release(cache.insert(SliceFactory.newUnpooled(key), key, charge, deleter, priority));
+	}
+	
+	static boolean contains(Cache cache, String key) {
+		Cache.Handle h = cache.lookup(SliceFactory.newUnpooled(key));
+		if (h == null)
+			return false;
+		assertEquals(key, cache.value(h));
+		cache.release(h);
+		return true;
+	}
+	
+	@Test
+	public void testHitAndMiss() {
+		for (CacheFactory factory : kFactories) {
+			Cache cache = factory.newCache();
+			assertNull(cache.lookup(SliceFactory.newUnpooled("a")));
+			insert(cache, "a", 1, Cache.Priority.Low);
+			insert(cache, "b", 1, Cache.Priority.High);
+			assertTrue(contains(cache, "a"));
+			assertTrue(contains(cache, "b"));
+			assertEquals(2, cache.totalCharge());
+			cache.erase(SliceFactory.newUnpooled("b"));
+			assertTrue(!contains(cache, "b"));
+			cache.delete();
+		}
+	}
+	
+	@Test
+	public void testHighPriorityEvictedLast() {
+		for (CacheFactory factory : kFactories) {
+			Cache cache = factory.newCache();
+			insert(cache, "meta", 40, Cache.Priority.High);
+			for (int i = 0; i < 2000; i++)
+				insert(cache, "data" + i, 10, Cache.Priority.Low);
+			assertTrue(contains(cache, "meta"));
+			assertTrue(cache.totalCharge() <= kCacheSize);
+			cache.delete();
+			
+			// Without a high priority pool it is evicted like any other entry
+			cache = factory.newCache(0);
+			insert(cache, "meta", 40, Cache.Priority.High);
+			for (int i = 0; i < 2000; i++)
+				insert(cache, "data" + i, 10, Cache.Priority.Low);
+			assertTrue(!contains(cache, "meta"));
+			cache.delete();
+		}
+	}
+	
+	@Test
+	public void testHighPriorityPoolLimit() {
+		for (CacheFactory factory : kFactories) {
+			Cache cache = factory.newCache(0.5);
+			for (int i = 0; i < 2000; i++)
+				insert(cache, "meta" + i, 10, Cache.Priority.High);
+			for (int i = 0; i < 2000; i++)
+				insert(cache, "data" + i, 10, Cache.Priority.Low);
+			
+			// High priority entries beyond the pool are evicted like any other, so
+			// both kinds share the cache.
+			int meta = 0;
+			int data = 0;
+			for (int i = 0; i < 2000; i++) {
+				if (contains(cache, "meta" + i))
+					meta++;
+				if (contains(cache, "data" + i))
+					data++;
+			}
+			assertTrue(meta > 0);
+			assertTrue(data > 0);
+			assertTrue(meta * 10 <= kCacheSize * 0.5 + 16 * 10);
+			cache.delete();
+		}
+	}
+	
+	@Test
+	public void testScanResistance() {
+		for (double ratio : new double[] {0.5, 0}) {
+			Cache cache = Cache.newLRUCache(kCacheSize, ratio);
+			for (int i = 0; i < 20; i++)
+				insert(cache, "hot" + i, 10, Cache.Priority.Low);
+			// Used again after insertion, so they are promoted out of probation
+			for (int i = 0; i < 20; i++)
+				assertTrue(contains(cache, "hot" + i));
+			
+			// A scan touches every entry once
+			for (int i = 0; i < 2000; i++)
+				insert(cache, "scan" + i, 10, Cache.Priority.Low);
+			
+			int hot = 0;
+			for (int i = 0; i < 20; i++) {
+				if (contains(cache, "hot" + i))
+					hot++;
+			}
+			if (ratio > 0)
+				assertEquals(20, hot);
+			else
+				assertEquals(0, hot);
+			assertTrue(cache.totalCharge() <= kCacheSize);
+			cache.delete();
+		}
+	}
+	
+	@Test
+	public void testPinnedEntriesSurvive() {
+		for (CacheFactory factory : kFactories) {
+			Cache cache = factory.newCache();
+			Cache.Handle pinned = cache.insert(SliceFactory.newUnpooled("pinned"), "pinned", 10, deleter, Cache.Priority.Low);
+			for (int i = 0; i < 2000; i++)
+				insert(cache, "data" + i, 10, Cache.Priority.Low);
+			Cache.Handle h = cache.lookup(SliceFactory.newUnpooled("pinned"));
+			assertNotNull(h);
+			cache.release(h);
+			cache.release(pinned);
+			assertTrue(cache.totalCharge() <= kCacheSize);
+			cache.delete();
+		}
+	}
+	
+	@Test
+	public void testClockHitAndMiss() {
+		final int[] deleted = new int[1];
+		Cache.Deleter countingDeleter = new Cache.Deleter() {
+			public void run(Slice key, Object value) {
+				deleted[0]++;
+			}
+		};
+		Cache cache = Cache.newClockCache(kCacheSize, 4);
+		assertNull(cache.lookup(SliceFactory.newUnpooled("a")));
+		cache.release(cache.insert(SliceFactory.newUnpooled("a"), "a", 1, countingDeleter));
+		insert(cache, "b", 1, Cache.Priority.High);
+		assertTrue(contains(cache, "a"));
+		assertTrue(contains(cache, "b"));
+		assertEquals(2, cache.totalCharge());
+		
+		// Replacing an entry deletes the old value once it is no longer used
+		Cache.Handle h = cache.lookup(SliceFactory.newUnpooled("a"));
+		cache.release(cache.insert(SliceFactory.newUnpooled("a"), "a", 3, countingDeleter));
+		assertEquals("a", cache.value(h));
+		assertEquals(0, deleted[0]);
+		cache.release(h);
+		assertEquals(1, deleted[0]);
+		assertEquals(4, cache.totalCharge());
+		
+		cache.erase(SliceFactory.newUnpooled("b"));
+		assertTrue(!contains(cache, "b"));
+		cache.prune();
+		assertEquals(0, cache.totalCharge());
+		assertEquals(2, deleted[0]);
+		cache.delete();
+	}
+	
+	@Test
+	public void testClockEviction() {
+		Cache cache = Cache.newClockCache(kCacheSize, 4);
+		Cache.Handle pinned = cache.insert(SliceFactory.newUnpooled("pinned"), "pinned", 10, deleter, Cache.Priority.Low);
+		insert(cache, "meta", 40, Cache.Priority.High);
+		for (int i = 0; i < 20; i++)
+			insert(cache, "hot" + i, 10, Cache.Priority.Low);
+		
+		// A scan during which the hot entries keep being used
+		for (int i = 0; i < 2000; i++) {
+			insert(cache, "scan" + i, 10, Cache.Priority.Low);
+			if (i % 50 == 0) {
+				for (int j = 0; j < 20; j++)
+					assertTrue(contains(cache, "hot" + j));
+			}
+		}
+		assertTrue(contains(cache, "meta"));
+		assertTrue(contains(cache, "pinned"));
+		assertTrue(cache.totalCharge() <= kCacheSize);
+		
+		int scan = 0;
+		for (int i = 0; i < 2000; i++) {
+			if (contains(cache, "scan" + i))
+				scan++;
+		}
+		assertTrue(scan > 0);
+		assertTrue(scan < 2000);
+		cache.release(pinned);
+		cache.delete();
+	}
+	
+	@Test
+	public void testClockShards() {
+		// Two shards per processor rounded up to a power of two, at most 64
+		int expected = 1;
+		while (expected < 64 && expected < 2 * Runtime.getRuntime().availableProcessors())
+			expected <<= 1;
+		ClockCache cache = new ClockCache(1 << 20);
+		assertEquals(expected, cache.numShards());
+		cache.delete();
+		
+		// Too small to be split
+		cache = new ClockCache(40);
+		assertEquals(1, cache.numShards());
+		cache.delete();
+	}
+	
+	@Test
+	public void testClockConcurrent() throws Exception {
+		final AtomicInteger inserted = new AtomicInteger();
+		final AtomicInteger deleted = new AtomicInteger();
+		final Cache.Deleter countingDeleter = new Cache.Deleter() {
+			public void run(Slice key, Object value) {
+				assertEquals(key.encodeToString(), value);
+				deleted.incrementAndGet();
+			}
+		};
+		final Cache cache = Cache.newClockCache(kCacheSize);
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = 301 + t;
+			threads[t] = new Thread() {
+				public void run() {
+					Random0 rnd = new Random0(seed);
+					for (int i = 0; i < 50000; i++) {
+						String key = "k" + rnd.uniform(500);
+						int op = (int)rnd.uniform(10);
+						if (op == 0) {
+							cache.erase(SliceFactory.newUnpooled(key));
+						} else if (op < 3) {
+							inserted.incrementAndGet();
+							cache.release(cache.insert(SliceFactory.newUnpooled(key), key, 1 + (int)rnd.uniform(10), countingDeleter));
+						} else {
+							Cache.Handle h = cache.lookup(SliceFactory.newUnpooled(key));
+							if (h != null) {
+								if (!key.equals(cache.value(h)))
+									errors.incrementAndGet();
+								cache.release(h);
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+			threads[t].join();
+		
+		assertEquals(0, errors.get());
+		assertTrue(cache.totalCharge() <= kCacheSize);
+		cache.delete();
+		assertEquals(inserted.get(), deleted.get());
+		assertEquals(0, cache.totalCharge());
+	}
+}
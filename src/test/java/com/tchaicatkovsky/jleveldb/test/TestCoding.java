@@ -201,4 +201,36 @@ public class TestCoding {
 		assertEquals(Utils.makeString(200, 'x'), v.encodeToString());
 		assertEquals("", input.encodeToString());
 	}
+	
+	@Test
+	public void testDecodeVarint32() {
+		ByteBuf s = ByteBufFactory.newUnpooled();
+		for (int i = 0; i < (32 * 32); i++) {
+			int v = (i / 32) << (i % 32);
+			while (v < 0)
+				v = v + Integer.MAX_VALUE;
+			s.addVarNat32(v);
+		}
+
+		byte[] data = s.data();
+		int offset = s.offset();
+		int limit = s.offset() + s.size();
+		for (int i = 0; i < (32 * 32); i++) {
+			int v = (i / 32) << (i % 32);
+			while (v < 0)
+				v = v + Integer.MAX_VALUE;
+			long r = Coding.decodeVarNat32(data, offset, limit);
+			assertTrue(r >= 0);
+			assertEquals(v, (int) r);
+			assertEquals(offset + Coding.varNatLength(v), (int) (r >>> 32));
+			offset = (int) (r >>> 32);
+		}
+		assertEquals(limit, offset);
+		
+		// Truncated
+		s.clear();
+		s.addVarNat32(1 << 30);
+		for (int len = 0; len < s.size(); len++)
+			assertEquals(-1, Coding.decodeVarNat32(s.data(), s.offset(), s.offset() + len));
+	}
 }
@@ -27,6 +27,9 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
@@ -48,6 +51,7 @@ import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.RandomAccessFile0;
 import com.tchaicatkovsky.jleveldb.Range;
 import com.tchaicatkovsky.jleveldb.ReadOptions;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
 import com.tchaicatkovsky.jleveldb.Snapshot;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.WritableFile;
@@ -304,7 +308,7 @@ public class TestDB {
 
 		// Sequence of option configurations to try
 		enum OptionConfig {
-			kDefault, kReuse, kFilter, kUncompressed, kEnd
+			kDefault, kReuse, kFilter, kUncompressed, kArenaMemTable, kParallelCompactions, kPipelinedWrite, kPartitionedFilter, kCacheMetadata, kDataBlockHashIndex, kPrefixFilter, kEnd
 		};
 
 		public int optionConfig;
@@ -360,6 +364,25 @@ public class TestDB {
 				options.filterPolicy = filterPolicy;
 			} else if (optionConfig == OptionConfig.kUncompressed.ordinal()) {
 				options.compression = CompressionType.kNoCompression;
+			} else if (optionConfig == OptionConfig.kArenaMemTable.ordinal()) {
+				options.arenaMemTable = true;
+			} else if (optionConfig == OptionConfig.kParallelCompactions.ordinal()) {
+				options.maxBackgroundCompactions = 4;
+			} else if (optionConfig == OptionConfig.kPipelinedWrite.ordinal()) {
+				options.enablePipelinedWrite = true;
+			} else if (optionConfig == OptionConfig.kPartitionedFilter.ordinal()) {
+				options.filterPolicy = filterPolicy;
+				options.partitionIndexAndFilters = true;
+				options.metadataBlockSize = 256;
+			} else if (optionConfig == OptionConfig.kCacheMetadata.ordinal()) {
+				options.filterPolicy = filterPolicy;
+				options.cacheIndexAndFilterBlocks = true;
+				options.pinL0FilterAndIndexBlocksInCache = true;
+			} else if (optionConfig == OptionConfig.kDataBlockHashIndex.ordinal()) {
+				options.dataBlockHashIndex = true;
+			} else if (optionConfig == OptionConfig.kPrefixFilter.ordinal()) {
+				options.filterPolicy = filterPolicy;
+				options.prefixExtractor = SliceTransform.newCappedPrefixTransform(3);
 			}
 			return options;
 		}
@@ -414,6 +437,20 @@ public class TestDB {
 				return OptionConfig.kFilter.name();
 			else if (i == OptionConfig.kUncompressed.ordinal())
 				return OptionConfig.kUncompressed.name();
+			else if (i == OptionConfig.kArenaMemTable.ordinal())
+				return OptionConfig.kArenaMemTable.name();
+			else if (i == OptionConfig.kParallelCompactions.ordinal())
+				return OptionConfig.kParallelCompactions.name();
+			else if (i == OptionConfig.kPipelinedWrite.ordinal())
+				return OptionConfig.kPipelinedWrite.name();
+			else if (i == OptionConfig.kPartitionedFilter.ordinal())
+				return OptionConfig.kPartitionedFilter.name();
+			else if (i == OptionConfig.kCacheMetadata.ordinal())
+				return OptionConfig.kCacheMetadata.name();
+			else if (i == OptionConfig.kDataBlockHashIndex.ordinal())
+				return OptionConfig.kDataBlockHashIndex.name();
+			else if (i == OptionConfig.kPrefixFilter.ordinal())
+				return OptionConfig.kPrefixFilter.name();
 			else
 				return "<null>";
 		}
@@ -859,6 +896,205 @@ public class TestDB {
 		}
 	}
 
+	@Test
+	public void testMultiGet() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		try {
+			do {
+				// Spread the versions of the keys over level 1, level 0 and the memtable
+				for (int i = 0; i < 200; i++)
+					assertTrue(r.put(String.format("k%03d", i), "v1-" + i).ok());
+				r.dbfull().TEST_CompactMemTable();
+				r.dbfull().TEST_CompactRange(0, null, null);
+				for (int i = 0; i < 200; i += 2)
+					assertTrue(r.put(String.format("k%03d", i), "v2-" + i).ok());
+				for (int i = 0; i < 200; i += 5)
+					assertTrue(r.delete(String.format("k%03d", i)).ok());
+				r.dbfull().TEST_CompactMemTable();
+				Snapshot snapshot = r.db.getSnapshot();
+				for (int i = 0; i < 200; i += 3)
+					assertTrue(r.put(String.format("k%03d", i), "v3-" + i).ok());
+				
+				// Unsorted keys, with duplicates and keys outside of the data
+				ArrayList<Slice> keys = new ArrayList<>();
+				for (int i = 199; i >= 0; i -= 7)
+					keys.add(SliceFactory.newUnpooled(String.format("k%03d", i)));
+				for (int i = 0; i < 200; i += 11)
+					keys.add(SliceFactory.newUnpooled(String.format("k%03d", i)));
+				keys.add(SliceFactory.newUnpooled("a"));
+				keys.add(SliceFactory.newUnpooled("k0505"));
+				keys.add(SliceFactory.newUnpooled("z"));
+				
+				for (Snapshot snap : new Snapshot[] {null, snapshot}) {
+					ReadOptions ropts = new ReadOptions();
+					ropts.snapshot = snap;
+					ArrayList<ByteBuf> values = new ArrayList<>();
+					ArrayList<Status> statuses = new ArrayList<>();
+					r.db.multiGet(ropts, keys, values, statuses);
+					assertEquals(keys.size(), values.size());
+					assertEquals(keys.size(), statuses.size());
+					for (int i = 0; i < keys.size(); i++) {
+						String expected = r.get(keys.get(i), snap);
+						String actual = statuses.get(i).isNotFound() ? "NOT_FOUND" : 
+							(statuses.get(i).ok() ? values.get(i).escapeString() : "" + statuses.get(i));
+						assertEquals(expected, actual);
+					}
+				}
+				r.db.releaseSnapshot(snapshot);
+			} while (r.changeOptions());
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+		}
+	}
+
+	@Test
+	public void testScanMode() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		try {
+			Options options = r.currentOptions().cloneOptions();
+			options.createIfMissing = true;
+			options.blockSize = 256;
+			options.blockCache = Cache.newLRUCache(1 << 20);
+			r.destroyAndReopen(options);
+			
+			for (int i = 0; i < 1000; i++)
+				assertTrue(r.put(String.format("k%04d", i), "v1-" + i).ok());
+			r.dbfull().TEST_CompactMemTable();
+			r.dbfull().TEST_CompactRange(0, null, null);
+			for (int i = 0; i < 1000; i += 3)
+				assertTrue(r.put(String.format("k%04d", i), "v2-" + i).ok());
+			r.dbfull().TEST_CompactMemTable();
+			long charge = options.blockCache.totalCharge();
+			
+			ReadOptions ropts = new ReadOptions();
+			ropts.scanMode = true;
+			Iterator0 iter = r.db.newIterator(ropts);
+			int n = 0;
+			for (iter.seekToFirst(); iter.valid(); iter.next(), n++) {
+				assertEquals(String.format("k%04d", n), iter.key().encodeToString());
+				assertEquals((n % 3 == 0 ? "v2-" : "v1-") + n, iter.value().encodeToString());
+			}
+			assertEquals(1000, n);
+			for (iter.seekToLast(); iter.valid(); iter.prev())
+				n--;
+			assertEquals(0, n);
+			iter.delete();
+			assertEquals(charge, options.blockCache.totalCharge());
+			
+			r.close();
+			options.blockCache.delete();
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+		}
+	}
+
+	@Test
+	public void testAsyncReads() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (boolean ownPool : new boolean[] {true, false}) {
+				Options options = r.currentOptions().cloneOptions();
+				options.createIfMissing = true;
+				options.asyncReadThreads = 3;
+				if (!ownPool)
+					options.readExecutor = executor;
+				r.destroyAndReopen(options);
+				
+				for (int i = 0; i < 500; i++)
+					assertTrue(r.put(String.format("k%03d", i), "v1-" + i).ok());
+				r.dbfull().TEST_CompactMemTable();
+				r.dbfull().TEST_CompactRange(0, null, null);
+				for (int i = 0; i < 500; i += 3)
+					assertTrue(r.put(String.format("k%03d", i), "v2-" + i).ok());
+				r.dbfull().TEST_CompactMemTable();
+				Snapshot snapshot = r.db.getSnapshot();
+				for (int i = 0; i < 500; i += 7)
+					assertTrue(r.delete(String.format("k%03d", i)).ok());
+				
+				// Large enough to be split across all read threads
+				ArrayList<Slice> keys = new ArrayList<>();
+				for (int i = 549; i >= 0; i -= 2)
+					keys.add(SliceFactory.newUnpooled(String.format("k%03d", i)));
+				
+				for (Snapshot snap : new Snapshot[] {null, snapshot}) {
+					ReadOptions ropts = new ReadOptions();
+					ropts.snapshot = snap;
+					
+					ArrayList<ByteBuf> values = new ArrayList<>();
+					ArrayList<Status> statuses = new ArrayList<>();
+					r.db.multiGetAsync(ropts, keys, values, statuses).get();
+					
+					ArrayList<ByteBuf> asyncValues = new ArrayList<>();
+					ArrayList<CompletableFuture<Status>> futures = new ArrayList<>();
+					for (Slice k : keys) {
+						ByteBuf value = ByteBufFactory.newUnpooled();
+						asyncValues.add(value);
+						futures.add(r.db.getAsync(ropts, k, value));
+					}
+					
+					for (int i = 0; i < keys.size(); i++) {
+						String expected = r.get(keys.get(i), snap);
+						Status s = futures.get(i).get();
+						assertEquals(expected, s.isNotFound() ? "NOT_FOUND" : asyncValues.get(i).escapeString());
+						s = statuses.get(i);
+						assertEquals(expected, s.isNotFound() ? "NOT_FOUND" : values.get(i).escapeString());
+					}
+				}
+				r.db.releaseSnapshot(snapshot);
+			}
+
+			// A read executor that rejects work fails the table lookups, keys found
+			// in the memtable are still answered.
+			ExecutorService stopped = Executors.newSingleThreadExecutor();
+			stopped.shutdown();
+			Options options = r.currentOptions().cloneOptions();
+			options.createIfMissing = true;
+			options.readExecutor = stopped;
+			r.destroyAndReopen(options);
+			assertTrue(r.put("a", "va").ok());
+			r.dbfull().TEST_CompactMemTable();
+			assertTrue(r.put("b", "vb").ok());
+
+			ByteBuf value = ByteBufFactory.newUnpooled();
+			assertTrue(!r.db.getAsync(new ReadOptions(), SliceFactory.newUnpooled("a"), value).get().ok());
+			assertTrue(r.db.getAsync(new ReadOptions(), SliceFactory.newUnpooled("b"), value).get().ok());
+			assertEquals("vb", value.escapeString());
+
+			ArrayList<Slice> keys = new ArrayList<>();
+			keys.add(SliceFactory.newUnpooled("a"));
+			keys.add(SliceFactory.newUnpooled("b"));
+			ArrayList<ByteBuf> values = new ArrayList<>();
+			ArrayList<Status> statuses = new ArrayList<>();
+			r.db.multiGetAsync(new ReadOptions(), keys, values, statuses).get();
+			assertTrue(!statuses.get(0).ok());
+			assertTrue(statuses.get(1).ok());
+			assertEquals("vb", values.get(1).escapeString());
+
+			// Closing must not wait for, or leak, the rejected reads
+			r.reopen(options);
+			assertEquals("va", r.get("a"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+			executor.shutdown();
+		}
+	}
+	
 	@Test
 	public void testGetLevel0Ordering() throws Exception {
 		System.err.println("Start "+getMethodName()+":");
@@ -1439,6 +1675,61 @@ public class TestDB {
 		}
 	}
 
+	@Test
+	public void testSubcompactions() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		try {
+			Options options = r.currentOptions().cloneOptions();
+			options.writeBufferSize = 100000;
+			options.maxSubcompactions = 4;
+			r.reopen(options);
+
+			// Overwrite and delete keys across many overlapping tables
+			Random0 rnd = new Random0(301);
+			TreeMap<String, String> model = new TreeMap<String, String>();
+			String padding = Utils.makeString(500, 'x');
+			for (int round = 0; round < 3; round++) {
+				for (int i = 0; i < 2000; i++) {
+					String k = Key(i);
+					if (rnd.oneIn(5)) {
+						assertTrue(r.delete(k).ok());
+						model.remove(k);
+					} else {
+						String v = "v" + round + "." + i + padding;
+						assertTrue(r.put(k, v).ok());
+						model.put(k, v);
+					}
+				}
+			}
+
+			r.dbfull().TEST_CompactMemTable();
+			r.dbfull().TEST_CompactRange(0, null, null);
+			r.dbfull().TEST_CompactRange(1, null, null);
+			assertEquals(0, r.numTableFilesAtLevel(0));
+			assertEquals(0, r.numTableFilesAtLevel(1));
+			assertTrue(r.numTableFilesAtLevel(2) > 1);
+
+			StringBuilder expected = new StringBuilder();
+			for (Map.Entry<String, String> e : model.entrySet())
+				expected.append("(" + e.getKey() + "->" + e.getValue() + ")");
+			assertEquals(expected.toString(), r.contents());
+
+			// The split outputs survive a reopen
+			r.reopen(options);
+			for (int i = 0; i < 2000; i += 7) {
+				String v = model.get(Key(i));
+				assertEquals(v == null ? "NOT_FOUND" : v, r.get(Key(i)));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+		}
+	}
+
 	@Test
 	public void testRepeatedWritesToSameKey() throws Exception {
 		System.err.println("Start "+getMethodName()+":");
@@ -1469,6 +1760,41 @@ public class TestDB {
 		}
 	}
 
+	@Test
+	public void testDisableAutoCompactions() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		try {
+			Options options = r.currentOptions().cloneOptions();
+			options.createIfMissing = true;
+			options.disableAutoCompactions = true;
+			r.destroyAndReopen(options);
+			
+			// Every flush overlaps the files before it, so all of them stay in level-0,
+			// past the point where writes would otherwise stop
+			final int kFlushes = DBFormat.kL0_StopWritesTrigger + 8;
+			for (int i = 0; i < kFlushes; i++) {
+				assertTrue(r.put("a", "va" + i).ok());
+				assertTrue(r.put("z", "vz" + i).ok());
+				r.dbfull().TEST_CompactMemTable();
+			}
+			assertTrue(r.numTableFilesAtLevel(0) > DBFormat.kL0_StopWritesTrigger);
+			assertEquals("va" + (kFlushes - 1), r.get("a"));
+			assertEquals("vz" + (kFlushes - 1), r.get("z"));
+			
+			// Manual compactions still run
+			r.compact("a", "z");
+			assertEquals(0, r.numTableFilesAtLevel(0));
+			assertEquals("va" + (kFlushes - 1), r.get("a"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+		}
+	}
+	
 	@Test
 	public void testSparseMerge() throws Exception {
 		System.err.println("Start "+getMethodName()+":");
@@ -2555,6 +2881,213 @@ public class TestDB {
 		}
 	}
 
+	@Test
+	public void testPrefixSameAsStart() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		try {
+			r.destroyAndReopen();
+
+			r.env.countRandomReads = true;
+			Options options = r.currentOptions().cloneOptions();
+			options.env = r.env;
+			options.blockCache = Cache.newLRUCache(0); // Prevent cache hits
+			options.filterPolicy = BloomFilterPolicy.newBloomFilterPolicy(10);
+			options.prefixExtractor = SliceTransform.newFixedPrefixTransform(7); // "key0012" of key001234
+
+			r.reopen(options);
+
+			// Only the even prefixes have keys, spread over a compacted and a new table
+			final int N = 10000;
+			for (int i = 0; i < N; i++) {
+				if ((i / 100) % 2 == 0)
+					assertTrue(r.put(Key(i), Key(i)).ok());
+			}
+			r.compact("a", "z");
+			for (int i = 0; i < N; i += 100) {
+				if ((i / 100) % 2 == 0) {
+					assertTrue(r.put(Key(i + 1), "new").ok());
+					assertTrue(r.delete(Key(i + 2)).ok());
+				}
+			}
+			r.dbfull().TEST_CompactMemTable();
+			assertTrue(r.put(Key(4), "mem").ok());
+
+			// Prevent auto compactions triggered by seeks
+			r.env.delayDataSync.set(r.env);
+
+			ReadOptions ropts = new ReadOptions();
+			ropts.prefixSameAsStart = true;
+			for (int p = 0; p < N / 100; p++) {
+				String prefix = Key(p * 100).substring(0, 7);
+				Iterator0 iter = r.db.newIterator(ropts);
+				ArrayList<String> keys = new ArrayList<>();
+				for (iter.seek(SliceFactory.newUnpooled(prefix)); iter.valid(); iter.next())
+					keys.add(iter.key().encodeToString());
+				assertTrue(iter.status().ok());
+				if (p % 2 == 1) {
+					assertEquals(0, keys.size());
+				} else {
+					assertEquals(99, keys.size());
+					for (String k : keys)
+						assertTrue(k.startsWith(prefix));
+					assertTrue(!keys.contains(Key(p * 100 + 2)));
+				}
+				
+				// The bound follows the last seek
+				iter.seek(SliceFactory.newUnpooled(Key(p * 100 + 50)));
+				if (p % 2 == 0) {
+					assertEquals(Key(p * 100 + 50), iter.key().encodeToString());
+					int n = 0;
+					for (; iter.valid(); iter.next())
+						n++;
+					assertEquals(50, n);
+				} else {
+					assertTrue(!iter.valid());
+				}
+				iter.delete();
+			}
+			
+			// Seeks into the missing prefixes are answered by the filters
+			r.env.randomReadCounter.set(0);
+			for (int p = 1; p < N / 100; p += 2) {
+				Iterator0 iter = r.db.newIterator(ropts);
+				iter.seek(SliceFactory.newUnpooled(Key(p * 100)));
+				assertTrue(!iter.valid());
+				iter.delete();
+			}
+			int reads = (int) r.env.randomReadCounter.get();
+			
+			r.env.randomReadCounter.set(0);
+			for (int p = 1; p < N / 100; p += 2) {
+				Iterator0 iter = r.db.newIterator(new ReadOptions());
+				iter.seek(SliceFactory.newUnpooled(Key(p * 100)));
+				iter.delete();
+			}
+			int unboundedReads = (int) r.env.randomReadCounter.get();
+			System.err.printf("%d missing prefixes => %d reads, %d without prefix bound\n", N / 200, reads, unboundedReads);
+			assertTrue(reads <= 3 * N / 200 / 10);
+			assertTrue(unboundedReads >= N / 200);
+			
+			// A bounded iterator only moves forward
+			Iterator0 iter = r.db.newIterator(ropts);
+			iter.seek(SliceFactory.newUnpooled(Key(250)));
+			assertTrue(iter.valid());
+			iter.prev();
+			assertTrue(!iter.valid());
+			assertEquals(Status.Code.NotSupported, iter.status().code());
+			iter.delete();
+			iter = r.db.newIterator(ropts);
+			iter.seekToFirst();
+			assertTrue(!iter.valid());
+			assertEquals(Status.Code.NotSupported, iter.status().code());
+			iter.delete();
+
+			r.env.delayDataSync.set(null);
+			r.close();
+			options.blockCache.delete();
+			options.filterPolicy.delete();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+		}
+	}
+
+	@Test
+	public void testIterateBounds() throws Exception {
+		System.err.println("Start "+getMethodName()+":");
+		
+		DBTestRunner r = new DBTestRunner();
+		Cache cache = Cache.newLRUCache(0); // Prevent cache hits
+		try {
+			do {
+				r.env.countRandomReads = true;
+				Options options = r.currentOptions().cloneOptions();
+				options.createIfMissing = true;
+				options.env = r.env;
+				options.blockCache = cache;
+				options.maxFileSize = 16 * 1024; // Several files per level
+				options.compression = CompressionType.kNoCompression;
+				r.destroyAndReopen(options);
+
+				final int N = 2000;
+				String value = Utils.makeString(100, 'v');
+				for (int i = 0; i < N; i++)
+					assertTrue(r.put(Key(i), value).ok());
+				r.compact("a", "z");
+				// A long run of deleted keys after the upper half of the bounds
+				for (int i = N / 2; i < N; i++)
+					assertTrue(r.delete(Key(i)).ok());
+				r.dbfull().TEST_CompactMemTable();
+				
+				// Prevent auto compactions triggered by seeks
+				r.env.delayDataSync.set(r.env);
+				
+				ReadOptions ropts = new ReadOptions();
+				ropts.iterateLowerBound = SliceFactory.newUnpooled(Key(100));
+				ropts.iterateUpperBound = SliceFactory.newUnpooled(Key(200));
+				Iterator0 iter = r.db.newIterator(ropts);
+				int n = 0;
+				for (iter.seekToFirst(); iter.valid(); iter.next())
+					assertEquals(Key(100 + n++), iter.key().encodeToString());
+				assertEquals(100, n);
+				n = 0;
+				for (iter.seekToLast(); iter.valid(); iter.prev())
+					assertEquals(Key(199 - n++), iter.key().encodeToString());
+				assertEquals(100, n);
+				iter.seek(SliceFactory.newUnpooled(Key(50)));
+				assertEquals(Key(100), iter.key().encodeToString());
+				iter.seek(SliceFactory.newUnpooled(Key(150)));
+				assertEquals(Key(150), iter.key().encodeToString());
+				iter.prev();
+				assertEquals(Key(149), iter.key().encodeToString());
+				iter.seek(SliceFactory.newUnpooled(Key(200)));
+				assertTrue(!iter.valid());
+				assertTrue(iter.status().ok());
+				iter.delete();
+				
+				// Iteration ends at the upper bound without reading the deleted keys
+				// and the files that follow
+				ropts.iterateLowerBound = null;
+				ropts.iterateUpperBound = SliceFactory.newUnpooled(Key(N / 2));
+				ropts.readaheadSize = -1; // Count every block read
+				ReadOptions unbounded = new ReadOptions();
+				unbounded.readaheadSize = -1;
+				r.env.randomReadCounter.set(0);
+				iter = r.db.newIterator(ropts);
+				n = 0;
+				for (iter.seek(SliceFactory.newUnpooled(Key(N / 2 - 50))); iter.valid(); iter.next())
+					n++;
+				assertEquals(50, n);
+				iter.delete();
+				int reads = (int) r.env.randomReadCounter.get();
+				
+				r.env.randomReadCounter.set(0);
+				iter = r.db.newIterator(unbounded);
+				n = 0;
+				for (iter.seek(SliceFactory.newUnpooled(Key(N / 2 - 50))); iter.valid(); iter.next())
+					n++;
+				assertEquals(50, n);
+				iter.delete();
+				int unboundedReads = (int) r.env.randomReadCounter.get();
+				System.err.printf("%s: %d reads with an upper bound, %d without\n", r.getOptionConfig(r.optionConfig), reads, unboundedReads);
+				assertTrue(reads * 4 < unboundedReads);
+				
+				r.env.delayDataSync.set(null);
+			} while (r.changeOptions());
+		} catch (Exception e) {
+			e.printStackTrace();
+			assertTrue(false);
+		} finally {
+			r.delete();
+			cache.delete();
+		}
+	}
+
 	static final int kNumThreads = 4;
 	static final int kTestSeconds = 10;
 	static final int kNumKeys = 1000;
@@ -2942,6 +3475,23 @@ public class TestDB {
 			assert (false);
 			return Status.notFound();
 		}
+		
+		@Override
+		public void multiGet(ReadOptions options, List<Slice> keys, List<ByteBuf> values, List<Status> statuses) {
+			assert (false);
+		}
+		
+		@Override
+		public CompletableFuture<Status> getAsync(ReadOptions options, Slice key, ByteBuf value) {
+			assert (false);
+			return null;
+		}
+		
+		@Override
+		public CompletableFuture<Void> multiGetAsync(ReadOptions options, List<Slice> keys, List<ByteBuf> values, List<Status> statuses) {
+			assert (false);
+			return null;
+		}
 
 		@Override
 		public Iterator0 newIterator(ReadOptions options) {
@@ -23,6 +23,7 @@ package com.tchaicatkovsky.jleveldb.test;
 
 import org.junit.Test;
 
+import com.tchaicatkovsky.jleveldb.Env;
 import com.tchaicatkovsky.jleveldb.RandomAccessFile0;
 import com.tchaicatkovsky.jleveldb.SequentialFile;
 import com.tchaicatkovsky.jleveldb.Status;
@@ -33,13 +34,19 @@ import com.tchaicatkovsky.jleveldb.util.EnvImpl;
 import com.tchaicatkovsky.jleveldb.util.FileUtils;
 import com.tchaicatkovsky.jleveldb.util.Long0;
 import com.tchaicatkovsky.jleveldb.util.Object0;
+import com.tchaicatkovsky.jleveldb.util.Random0;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 import com.tchaicatkovsky.jleveldb.util.Utils;
 
-//import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class TestEnvImpl {
 	@Test
 	public void testWritableFile() {
@@ -132,6 +139,110 @@ public class TestEnvImpl {
 		file2.setValue(null);
 	}
 
+	@Test
+	public void testConcurrentRandomRead() throws Exception {
+		final EnvImpl env = new EnvImpl();
+		String newDir = Utils.tmpDir()+"/test_env";
+		env.createDir(newDir);
+		
+		final int kFileSize = 1 << 20;
+		ByteBuf content = ByteBufFactory.newUnpooled();
+		for (int i = 0; i < kFileSize; i++)
+			content.addByte((byte)(i * 31 + 7));
+		final byte[] expected = content.data();
+		String newFile = newDir + "/test_pread";
+		env.writeStringToFile(SliceFactory.newUnpooled(content), newFile);
+		try {
+			for (final boolean allowMmap : new boolean[]{false, true}) {
+				Object0<RandomAccessFile0> file0 = new Object0<RandomAccessFile0>();
+				assertTrue(env.newRandomAccessFile(newFile, allowMmap, file0).ok());
+				final RandomAccessFile0 file = file0.getValue();
+				final AtomicInteger errors = new AtomicInteger();
+				Thread[] threads = new Thread[4];
+				for (int t = 0; t < threads.length; t++) {
+					final Random0 rnd = new Random0(301 + t);
+					threads[t] = new Thread(new Runnable() {
+						public void run() {
+							byte[] scratch = new byte[4096];
+							Slice result = SliceFactory.newUnpooled();
+							for (int i = 0; i < 2000; i++) {
+								int offset = (int)rnd.uniform(kFileSize - scratch.length);
+								int n = 1 + (int)rnd.uniform(scratch.length);
+								Status s = file.read(offset, n, result, scratch);
+								if (!s.ok() || result.size() != n) {
+									errors.incrementAndGet();
+									continue;
+								}
+								for (int j = 0; j < n; j++) {
+									if (result.getByte(j) != expected[offset + j]) {
+										errors.incrementAndGet();
+										break;
+									}
+								}
+							}
+						}
+					});
+					threads[t].start();
+				}
+				for (Thread t : threads)
+					t.join();
+				assertEquals(0, errors.get());
+			
+				// Positional reads past the end of file return the available bytes,
+				// mmap reads reject them
+				Slice result = SliceFactory.newUnpooled();
+				Status s = file.read(kFileSize - 10, 100, result, new byte[100]);
+				if (allowMmap) {
+					assertFalse(s.ok());
+				} else {
+					assertTrue(s.ok());
+					assertEquals(10, result.size());
+				}
+			
+				file.delete();
+			}
+		} finally {
+			env.deleteFile(newFile);
+		}
+	}
+
+	@Test
+	public void testMmapLimit() throws Exception {
+		EnvImpl.setReadOnlyMMapLimit(1);
+		EnvImpl env = new EnvImpl();
+		EnvImpl.setReadOnlyMMapLimit(-1);
+		
+		String newDir = Utils.tmpDir()+"/test_env";
+		env.createDir(newDir);
+		String newFile = newDir + "/test_mmap_limit";
+		env.writeStringToFile(SliceFactory.newUnpooled(Utils.makeString(10000, 'm')), newFile);
+		try {
+			Object0<RandomAccessFile0> file1 = new Object0<RandomAccessFile0>();
+			Object0<RandomAccessFile0> file2 = new Object0<RandomAccessFile0>();
+			assertTrue(env.newRandomAccessFile(newFile, true, file1).ok());
+			assertTrue(env.newRandomAccessFile(newFile, true, file2).ok());
+			assertEquals("MmapReadableFile", file1.getValue().getClass().getSimpleName());
+			// Over the limit, falls back to positional reads
+			assertEquals("RandomAccessFileImpl", file2.getValue().getClass().getSimpleName());
+		
+			Slice result = SliceFactory.newUnpooled();
+			byte[] scratch = new byte[100];
+			assertTrue(file1.getValue().read(5000, 100, result, scratch).ok());
+			assertEquals(Utils.makeString(100, 'm'), result.encodeToString());
+			assertTrue(file2.getValue().read(5000, 100, result, scratch).ok());
+			assertEquals(Utils.makeString(100, 'm'), result.encodeToString());
+		
+			// Closing the mapped file makes its slot available again
+			file1.getValue().delete();
+			file2.getValue().delete();
+			assertTrue(env.newRandomAccessFile(newFile, true, file1).ok());
+			assertEquals("MmapReadableFile", file1.getValue().getClass().getSimpleName());
+			file1.getValue().delete();
+		} finally {
+			env.deleteFile(newFile);
+		}
+	}
+
 	public void testSchedule() throws Exception {
 		EnvImpl env = new EnvImpl();
 		for (int i = 1; i < 10; i++) {
@@ -145,6 +256,59 @@ public class TestEnvImpl {
 		}
 	}
 	
+	@Test
+	public void testBackgroundThreads() throws Exception {
+		EnvImpl env = new EnvImpl();
+		env.setBackgroundThreads(2, Env.Priority.Low);
+		
+		// Two low priority jobs that can only finish if they run at the same time
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger finished = new AtomicInteger(0);
+		for (int i = 0; i < 2; i++) {
+			env.schedule(new Runnable() {
+				public void run() {
+					bothStarted.countDown();
+					try {
+						if (bothStarted.await(10, TimeUnit.SECONDS) && release.await(10, TimeUnit.SECONDS))
+							finished.incrementAndGet();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			}, Env.Priority.Low);
+		}
+		assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+		
+		// A high priority job is not queued behind the busy low priority pool
+		final CountDownLatch highDone = new CountDownLatch(1);
+		env.schedule(new Runnable() {
+			public void run() {
+				highDone.countDown();
+			}
+		}, Env.Priority.High);
+		assertTrue(highDone.await(10, TimeUnit.SECONDS));
+		
+		// A throwing job does not kill its worker
+		env.schedule(new Runnable() {
+			public void run() {
+				throw new RuntimeException("expected by testBackgroundThreads");
+			}
+		}, Env.Priority.High);
+		final CountDownLatch afterThrow = new CountDownLatch(1);
+		env.schedule(new Runnable() {
+			public void run() {
+				afterThrow.countDown();
+			}
+		}, Env.Priority.High);
+		assertTrue(afterThrow.await(10, TimeUnit.SECONDS));
+		
+		release.countDown();
+		for (int i = 0; i < 1000 && finished.get() < 2; i++)
+			Thread.sleep(10);
+		assertEquals(2, finished.get());
+	}
+	
 	@Test
 	public void test02() throws Exception {
 		EnvImpl env = new EnvImpl();
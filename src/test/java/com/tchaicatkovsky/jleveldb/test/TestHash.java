@@ -22,6 +22,7 @@
 package com.tchaicatkovsky.jleveldb.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -57,4 +58,25 @@ public class TestHash {
 		assertEquals(Hash.hash0(data4, 0, data4.length, 0xbc9f1d34L), 0xed21633aL);
 		assertEquals(Hash.hash0(data5, 0, data5.length, 0x12345678L), 0xf333dabbL);
 	}
+	
+	@Test
+	public void testHash64() {
+		assertEquals(0L, Hash.hash64(null, 0, 0, 0));
+		
+		// Result only depends on the bytes in range, not on where they sit
+		byte[] a = "0123456789abcdefg".getBytes();
+		byte[] b = ("xx" + new String(a) + "yy").getBytes();
+		for (int n = 0; n <= a.length; n++)
+			assertEquals(Hash.hash64(a, 0, n, 0x1234L), Hash.hash64(b, 2, n, 0x1234L));
+		
+		// Single bit changes flip about half of the upper and lower halves
+		long h = Hash.hash64(a, 0, a.length, 0);
+		for (int i = 0; i < a.length * 8; i++) {
+			byte[] c = a.clone();
+			c[i / 8] ^= (byte)(1 << (i % 8));
+			long d = h ^ Hash.hash64(c, 0, c.length, 0);
+			assertTrue(Long.bitCount(d >>> 32) >= 4);
+			assertTrue(Long.bitCount(d & 0xffffffffL) >= 4);
+		}
+	}
 }
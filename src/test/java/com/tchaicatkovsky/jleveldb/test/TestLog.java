@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.LogFlushPolicy;
+import com.tchaicatkovsky.jleveldb.SequentialFile;
+import com.tchaicatkovsky.jleveldb.Status;
+import com.tchaicatkovsky.jleveldb.WritableFile;
+import com.tchaicatkovsky.jleveldb.db.LogFormat;
+import com.tchaicatkovsky.jleveldb.db.LogReader;
+import com.tchaicatkovsky.jleveldb.db.LogWriter;
+import com.tchaicatkovsky.jleveldb.util.ByteBuf;
+import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.Random0;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+import com.tchaicatkovsky.jleveldb.util.Utils;
+
+public class TestLog {
+
+	static class StringDest implements WritableFile {
+		ByteBuf contents = ByteBufFactory.newUnpooled();
+		int appends;
+		int flushes;
+		int syncs;
+
+		public void delete() {
+		}
+
+		public Status close() {
+			return Status.ok0();
+		}
+
+		public Status flush() {
+			flushes++;
+			return Status.ok0();
+		}
+
+		public Status sync() {
+			syncs++;
+			return Status.ok0();
+		}
+
+		public Status append(Slice data) {
+			appends++;
+			contents.append(data.data(), data.offset(), data.size());
+			return Status.ok0();
+		}
+	}
+
+	static class StringSource implements SequentialFile {
+		final byte[] data;
+		int pos;
+
+		StringSource(ByteBuf b) {
+			data = new byte[b.size()];
+			System.arraycopy(b.data(), b.offset(), data, 0, b.size());
+		}
+
+		public void delete() {
+		}
+
+		public Status read(int n, Slice result, byte[] scratch) {
+			n = Math.min(n, data.length - pos);
+			System.arraycopy(data, pos, scratch, 0, n);
+			result.init(scratch, 0, n);
+			pos += n;
+			return Status.ok0();
+		}
+
+		public Status skip(long n) {
+			pos = (int) Math.min(data.length, pos + n);
+			return Status.ok0();
+		}
+	}
+
+	static ArrayList<String> makeRecords() {
+		Random0 rnd = new Random0(301);
+		ArrayList<String> records = new ArrayList<String>();
+		records.add("");
+		records.add("small");
+		records.add(Utils.makeString(LogFormat.kBlockSize - LogFormat.kHeaderSize, 'a'));
+		records.add(Utils.makeString(3 * LogFormat.kBlockSize + 17, 'b'));
+		for (int i = 0; i < 200; i++)
+			records.add(Utils.makeString((int) rnd.skewed(17), (char) ('c' + i % 20)));
+		return records;
+	}
+
+	static ArrayList<String> readAll(ByteBuf contents) {
+		LogReader reader = new LogReader(new StringSource(contents), null, true, 0);
+		ArrayList<String> result = new ArrayList<String>();
+		Slice record = SliceFactory.newUnpooled();
+		ByteBuf scratch = ByteBufFactory.newUnpooled();
+		while (reader.readRecord(record, scratch))
+			result.add(record.encodeToString());
+		return result;
+	}
+
+	void checkRoundTrip(LogFlushPolicy policy) {
+		ArrayList<String> records = makeRecords();
+		StringDest dest = new StringDest();
+		LogWriter writer = new LogWriter(dest, 0, policy);
+		for (String r : records)
+			assertTrue(writer.addRecord(SliceFactory.newUnpooled(r)).ok());
+		assertTrue(writer.flush().ok());
+		assertEquals(records, readAll(dest.contents));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (LogFlushPolicy policy : LogFlushPolicy.values())
+			checkRoundTrip(policy);
+	}
+
+	@Test
+	public void testOneWritePerRecord() {
+		StringDest dest = new StringDest();
+		LogWriter writer = new LogWriter(dest);
+		for (int i = 0; i < 100; i++)
+			assertTrue(writer.addRecord(SliceFactory.newUnpooled("record" + i)).ok());
+		assertEquals(100, dest.appends);
+		assertEquals(100, dest.flushes);
+	}
+
+	@Test
+	public void testFlushOnSync() {
+		StringDest dest = new StringDest();
+		LogWriter writer = new LogWriter(dest, 0, LogFlushPolicy.kFlushOnSync);
+		for (int i = 0; i < 100; i++)
+			assertTrue(writer.addRecord(SliceFactory.newUnpooled("record" + i)).ok());
+		assertEquals(0, dest.appends);
+
+		assertTrue(writer.sync().ok());
+		assertEquals(1, dest.appends);
+		assertEquals(1, dest.syncs);
+		assertEquals(100, readAll(dest.contents).size());
+
+		// Records larger than the buffer are written out a block at a time
+		String big = Utils.makeString(3 * LogFormat.kBlockSize, 'x');
+		assertTrue(writer.addRecord(SliceFactory.newUnpooled(big)).ok());
+		assertTrue(dest.appends > 1);
+		assertEquals(100, readAll(dest.contents).size());
+
+		writer.delete();
+		ArrayList<String> all = readAll(dest.contents);
+		assertEquals(101, all.size());
+		assertEquals(big, all.get(100));
+	}
+
+	@Test
+	public void testReopenedWriter() {
+		StringDest dest = new StringDest();
+		LogWriter writer = new LogWriter(dest, 0, LogFlushPolicy.kFlushOnSync);
+		String first = Utils.makeString(LogFormat.kBlockSize - 100, 'a');
+		assertTrue(writer.addRecord(SliceFactory.newUnpooled(first)).ok());
+		writer.delete();
+
+		// Continue in the middle of a block, the trailer must be padded correctly
+		writer = new LogWriter(dest, dest.contents.size(), LogFlushPolicy.kFlushOnSync);
+		assertTrue(writer.addRecord(SliceFactory.newUnpooled("bar")).ok());
+		assertTrue(writer.addRecord(SliceFactory.newUnpooled(Utils.makeString(200, 'c'))).ok());
+		writer.delete();
+
+		ArrayList<String> all = readAll(dest.contents);
+		assertEquals(3, all.size());
+		assertEquals(first, all.get(0));
+		assertEquals("bar", all.get(1));
+	}
+}
@@ -25,6 +25,7 @@ package com.tchaicatkovsky.jleveldb.test;
 import org.junit.Test;
 
 import com.tchaicatkovsky.jleveldb.Iterator0;
+import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.db.MemTable;
 import com.tchaicatkovsky.jleveldb.db.format.DBFormat;
@@ -37,6 +38,7 @@ import com.tchaicatkovsky.jleveldb.util.BytewiseComparatorImpl;
 import com.tchaicatkovsky.jleveldb.util.Object0;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+import com.tchaicatkovsky.jleveldb.util.Utils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -90,4 +92,78 @@ public class TestMemTable {
 		ret = memtable.get(new LookupKey(SliceFactory.newUnpooled("0"), 1), buf, s);
 		assertFalse(ret);
 	}
+	
+	@Test
+	public void testArenaMemTable() {
+		InternalKeyComparator ikcmp = new InternalKeyComparator(BytewiseComparatorImpl.getInstance());
+		Options options = new Options();
+		options.arenaMemTable = true;
+		MemTable memtable = new MemTable(ikcmp, options);
+		memtable.ref();
+		
+		// Insert in a scattered order, with values large enough to span several arena blocks
+		final int N = 5000;
+		for (int i = 0; i < N; i++) {
+			int k = (int) ((i * 7919L) % N);
+			String key = String.format("%06d", k);
+			memtable.add(k + 1, ValueType.Value, SliceFactory.newUnpooled(key), SliceFactory.newUnpooled(key + Utils.makeString(k % 2000, 'v')));
+		}
+		memtable.add(N + 1, ValueType.Deletion, SliceFactory.newUnpooled(String.format("%06d", 7)), SliceFactory.newUnpooled(""));
+		assertEquals(N + 1, memtable.entrySize());
+		assertTrue(memtable.approximateMemoryUsage() > 0);
+		
+		Iterator0 it = memtable.newIterator();
+		int count = 0;
+		for (it.seekToFirst(); it.valid(); it.next())
+			count++;
+		assertEquals(N + 1, count);
+		
+		// Backward iteration visits the same keys in reverse order
+		String last = null;
+		count = 0;
+		for (it.seekToLast(); it.valid(); it.prev()) {
+			String ukey = DBFormat.extractUserKey(it.key()).encodeToString();
+			assertTrue(last == null || ukey.compareTo(last) <= 0);
+			last = ukey;
+			count++;
+		}
+		assertEquals(N + 1, count);
+		it.delete();
+		
+		Object0<Status> s = new Object0<Status>();
+		ByteBuf buf = ByteBufFactory.newUnpooled();
+		assertTrue(memtable.get(new LookupKey(SliceFactory.newUnpooled("001234"), N + 1), buf, s));
+		assertEquals("001234" + Utils.makeString(1234, 'v'), buf.encodeToString());
+		
+		// Not visible at an older sequence
+		assertFalse(memtable.get(new LookupKey(SliceFactory.newUnpooled("001234"), 1234), buf, s));
+		
+		// Deletion marker
+		s.setValue(Status.ok0());
+		assertTrue(memtable.get(new LookupKey(SliceFactory.newUnpooled("000007"), N + 1), buf, s));
+		assertTrue(s.getValue().isNotFound());
+		
+		assertFalse(memtable.get(new LookupKey(SliceFactory.newUnpooled("999999"), N + 1), buf, s));
+		memtable.unref();
+	}
+	
+	@Test
+	public void testMemoryUsageIncludesIndex() {
+		InternalKeyComparator ikcmp = new InternalKeyComparator(BytewiseComparatorImpl.getInstance());
+		for (boolean arenaMemTable : new boolean[]{false, true}) {
+			Options options = new Options();
+			options.arenaMemTable = arenaMemTable;
+			MemTable memtable = new MemTable(ikcmp, options);
+			memtable.ref();
+			
+			// Entries of 8 + 8 + 8 + 2 bytes, so the index dominates the footprint
+			final int N = 10000;
+			for (int i = 0; i < N; i++) {
+				String key = String.format("%08d", i);
+				memtable.add(i + 1, ValueType.Value, SliceFactory.newUnpooled(key), SliceFactory.newUnpooled(key));
+			}
+			assertTrue(memtable.approximateMemoryUsage() > N * (26 + 16));
+			memtable.unref();
+		}
+	}
 }
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.Iterator0;
+import com.tchaicatkovsky.jleveldb.Options;
+import com.tchaicatkovsky.jleveldb.table.Block;
+import com.tchaicatkovsky.jleveldb.table.BlockBuilder;
+import com.tchaicatkovsky.jleveldb.table.MergingIterator;
+import com.tchaicatkovsky.jleveldb.table.TableFormat.BlockContents;
+import com.tchaicatkovsky.jleveldb.util.BytewiseComparatorImpl;
+import com.tchaicatkovsky.jleveldb.util.Comparator0;
+import com.tchaicatkovsky.jleveldb.util.Random0;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+
+public class TestMergingIterator {
+	
+	Comparator0 cmp = BytewiseComparatorImpl.getInstance();
+	
+	/**
+	 * Build one block per child. entries.get(i) holds the sorted keys of child i,
+	 * the value of an entry is "key@child", so that values sort like the merged sequence.
+	 */
+	Iterator0 newMergingIterator(List<List<String>> entries, List<Block> blocks) {
+		ArrayList<Iterator0> children = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i++) {
+			BlockBuilder builder = new BlockBuilder(new Options());
+			for (String key : entries.get(i))
+				builder.add(SliceFactory.newUnpooled(key), SliceFactory.newUnpooled(String.format("%s@%03d", key, i)));
+			Slice s = builder.finish();
+			BlockContents contents = new BlockContents();
+			contents.data = SliceFactory.newUnpooled(Arrays.copyOfRange(s.data(), s.offset(), s.offset() + s.size()), 0, s.size());
+			Block block = new Block(contents);
+			blocks.add(block);
+			children.add(block.newIterator(cmp));
+		}
+		return MergingIterator.newMergingIterator(cmp, children);
+	}
+	
+	static List<List<String>> randomEntries(Random0 rnd, int numChildren, int numKeys, boolean unique) {
+		List<List<String>> entries = new ArrayList<>();
+		for (int i = 0; i < numChildren; i++)
+			entries.add(new ArrayList<String>());
+		for (int k = 0; k < numKeys; k++) {
+			String key = String.format("k%05d", k * 2);
+			int copies = unique ? 1 : 1 + (int)rnd.uniform(3);
+			for (int c = 0; c < copies; c++) {
+				List<String> child = entries.get((int)rnd.uniform(numChildren));
+				if (child.isEmpty() || !child.get(child.size() - 1).equals(key))
+					child.add(key);
+			}
+		}
+		return entries;
+	}
+	
+	/**
+	 * The merged sequence, equal keys ordered by child.
+	 */
+	static List<String> expected(List<List<String>> entries) {
+		List<String> l = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i++) {
+			for (String key : entries.get(i))
+				l.add(String.format("%s@%03d", key, i));
+		}
+		Collections.sort(l);
+		return l;
+	}
+	
+	static String current(Iterator0 iter) {
+		return iter.valid() ? iter.value().encodeToString() : "END";
+	}
+	
+	@Test
+	public void testScanWithDuplicates() {
+		Random0 rnd = new Random0(301);
+		for (int numChildren : new int[] {2, 3, 8, 33}) {
+			List<List<String>> entries = randomEntries(rnd, numChildren, 500, false);
+			List<String> expected = expected(entries);
+			List<Block> blocks = new ArrayList<>();
+			Iterator0 iter = newMergingIterator(entries, blocks);
+			
+			int i = 0;
+			for (iter.seekToFirst(); iter.valid(); iter.next(), i++)
+				assertEquals(expected.get(i), current(iter));
+			assertEquals(expected.size(), i);
+			
+			for (iter.seekToLast(); iter.valid(); iter.prev())
+				assertEquals(expected.get(--i), current(iter));
+			assertEquals(0, i);
+			assertTrue(iter.status().ok());
+			iter.delete();
+		}
+	}
+	
+	@Test
+	public void testRandomAccess() {
+		Random0 rnd = new Random0(302);
+		for (int numChildren : new int[] {2, 5, 16, 64}) {
+			List<List<String>> entries = randomEntries(rnd, numChildren, 1000, true);
+			entries.add(new ArrayList<String>()); // An empty child
+			List<String> expected = expected(entries);
+			List<Block> blocks = new ArrayList<>();
+			Iterator0 iter = newMergingIterator(entries, blocks);
+			
+			int pos = -1; // -1 or expected.size() when not valid
+			for (int step = 0; step < 5000; step++) {
+				int op = (int)rnd.uniform(5);
+				if (op == 0) {
+					int k = (int)rnd.uniform(2100);
+					iter.seek(SliceFactory.newUnpooled(String.format("k%05d", k)));
+					pos = 0;
+					while (pos < expected.size() && expected.get(pos).compareTo(String.format("k%05d", k)) < 0)
+						pos++;
+				} else if (op == 1 && rnd.oneIn(20)) {
+					iter.seekToFirst();
+					pos = 0;
+				} else if (op == 1 && rnd.oneIn(20)) {
+					iter.seekToLast();
+					pos = expected.size() - 1;
+				} else if (op <= 2) {
+					if (!iter.valid())
+						continue;
+					iter.next();
+					pos++;
+				} else {
+					if (!iter.valid())
+						continue;
+					iter.prev();
+					pos--;
+				}
+				String e = (pos >= 0 && pos < expected.size()) ? expected.get(pos) : "END";
+				assertEquals(e, current(iter));
+			}
+			iter.delete();
+		}
+	}
+}
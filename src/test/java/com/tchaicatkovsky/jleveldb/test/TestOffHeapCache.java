@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.util.OffHeapCache;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+import com.tchaicatkovsky.jleveldb.util.Utils;
+
+public class TestOffHeapCache {
+	
+	static final int kSlabSize = 4096;
+	
+	static boolean insert(OffHeapCache cache, String key, String value) {
+		byte[] b = value.getBytes();
+		return cache.insert(SliceFactory.newUnpooled(key), b, 0, b.length);
+	}
+	
+	static String lookup(OffHeapCache cache, String key) {
+		Slice s = cache.lookup(SliceFactory.newUnpooled(key));
+		return s == null ? null : s.encodeToString();
+	}
+	
+	@Test
+	public void testHitAndMiss() {
+		OffHeapCache cache = new OffHeapCache(4 * kSlabSize, kSlabSize);
+		assertNull(lookup(cache, "a"));
+		assertTrue(insert(cache, "a", "va"));
+		assertTrue(insert(cache, "b", Utils.makeString(1000, 'b')));
+		assertEquals("va", lookup(cache, "a"));
+		assertEquals(Utils.makeString(1000, 'b'), lookup(cache, "b"));
+		assertEquals(1002, cache.totalCharge());
+		
+		assertTrue(insert(cache, "a", "va2"));
+		assertEquals("va2", lookup(cache, "a"));
+		assertEquals(1003, cache.totalCharge());
+		
+		cache.erase(SliceFactory.newUnpooled("b"));
+		assertNull(lookup(cache, "b"));
+		assertEquals(3, cache.totalCharge());
+		
+		// Does not fit in a slab
+		assertTrue(!insert(cache, "c", Utils.makeString(kSlabSize + 1, 'c')));
+		assertNull(lookup(cache, "c"));
+		cache.delete();
+	}
+	
+	@Test
+	public void testEviction() {
+		OffHeapCache cache = new OffHeapCache(4 * kSlabSize, kSlabSize);
+		for (int i = 0; i < 1000; i++)
+			assertTrue(insert(cache, "k" + i, Utils.makeString(200, (char)('a' + i % 26))));
+		assertTrue(cache.totalCharge() <= 4 * kSlabSize);
+		
+		// The most recent entries are still there, the oldest are gone
+		for (int i = 990; i < 1000; i++)
+			assertEquals(Utils.makeString(200, (char)('a' + i % 26)), lookup(cache, "k" + i));
+		assertNull(lookup(cache, "k0"));
+		
+		// Recently used entries survive
+		for (int i = 0; i < 200; i++) {
+			assertTrue(insert(cache, "x" + i, Utils.makeString(200, 'x')));
+			assertEquals(Utils.makeString(200, (char)('a' + 999 % 26)), lookup(cache, "k999"));
+		}
+		cache.delete();
+	}
+	
+	@Test
+	public void testSlabsMoveBetweenSizeClasses() {
+		OffHeapCache cache = new OffHeapCache(4 * kSlabSize, kSlabSize);
+		for (int i = 0; i < 1000; i++)
+			assertTrue(insert(cache, "small" + i, Utils.makeString(100, 's')));
+		
+		// All slabs are taken by small entries, large ones still get one
+		for (int i = 0; i < 10; i++)
+			assertTrue(insert(cache, "large" + i, Utils.makeString(3000, 'l')));
+		assertEquals(Utils.makeString(3000, 'l'), lookup(cache, "large9"));
+		int small = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (lookup(cache, "small" + i) != null)
+				small++;
+		}
+		assertTrue(small > 0);
+		
+		int slabs = 0;
+		for (int n : cache.slabsPerSizeClass())
+			slabs += n;
+		assertEquals(4, slabs);
+		assertTrue(cache.totalCharge() <= 4 * kSlabSize);
+		cache.delete();
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.CompressionType;
+import com.tchaicatkovsky.jleveldb.Env;
+import com.tchaicatkovsky.jleveldb.Iterator0;
+import com.tchaicatkovsky.jleveldb.LevelDB;
+import com.tchaicatkovsky.jleveldb.Options;
+import com.tchaicatkovsky.jleveldb.ReadOptions;
+import com.tchaicatkovsky.jleveldb.table.Table;
+import com.tchaicatkovsky.jleveldb.table.TableBuilder;
+import com.tchaicatkovsky.jleveldb.util.FileUtils;
+import com.tchaicatkovsky.jleveldb.util.Object0;
+import com.tchaicatkovsky.jleveldb.util.PersistentCache;
+import com.tchaicatkovsky.jleveldb.util.Slice;
+import com.tchaicatkovsky.jleveldb.util.SliceFactory;
+import com.tchaicatkovsky.jleveldb.util.Utils;
+
+public class TestPersistentCache {
+	
+	static final String kDir = "./data2/persistent_cache";
+	
+	Env env = LevelDB.defaultEnv();
+	
+	PersistentCache open(long capacity, long segmentSize) {
+		Object0<PersistentCache> cache0 = new Object0<>();
+		assertTrue(PersistentCache.open(env, kDir, capacity, segmentSize, cache0).ok());
+		return cache0.getValue();
+	}
+	
+	static boolean insert(PersistentCache cache, String key, String value) {
+		byte[] b = value.getBytes();
+		return cache.insert(SliceFactory.newUnpooled(key), b, 0, b.length);
+	}
+	
+	static String lookup(PersistentCache cache, String key) {
+		Slice s = cache.lookup(SliceFactory.newUnpooled(key));
+		return s == null ? null : s.encodeToString();
+	}
+	
+	static String value(int i) {
+		return Utils.makeString(100 + i % 100, (char)('a' + i % 26));
+	}
+	
+	void reset() {
+		FileUtils.deletePath(kDir);
+		env.createDir("./data2");
+	}
+	
+	@Test
+	public void testHitAndMiss() {
+		reset();
+		PersistentCache cache = open(1 << 20, 64 << 10);
+		assertNull(lookup(cache, "a"));
+		assertTrue(insert(cache, "a", "va"));
+		assertTrue(insert(cache, "b", value(1)));
+		assertEquals("va", lookup(cache, "a"));
+		assertEquals(value(1), lookup(cache, "b"));
+		
+		assertTrue(insert(cache, "a", "va2"));
+		assertEquals("va2", lookup(cache, "a"));
+		cache.erase(SliceFactory.newUnpooled("b"));
+		assertNull(lookup(cache, "b"));
+		assertEquals(1, cache.numEntries());
+		
+		// Does not fit in a segment
+		assertTrue(!insert(cache, "c", Utils.makeString(64 << 10, 'c')));
+		cache.delete();
+	}
+	
+	@Test
+	public void testEviction() {
+		reset();
+		PersistentCache cache = open(64 << 10, 16 << 10);
+		for (int i = 0; i < 2000; i++)
+			assertTrue(insert(cache, "k" + i, value(i)));
+		assertTrue(cache.totalCharge() <= (64 << 10) + (16 << 10));
+		assertNull(lookup(cache, "k0"));
+		for (int i = 1990; i < 2000; i++)
+			assertEquals(value(i), lookup(cache, "k" + i));
+		cache.delete();
+	}
+	
+	@Test
+	public void testRestart() {
+		reset();
+		PersistentCache cache = open(1 << 20, 16 << 10);
+		for (int i = 0; i < 500; i++)
+			assertTrue(insert(cache, "k" + i, value(i)));
+		assertTrue(insert(cache, "k7", "replaced"));
+		cache.delete();
+		
+		cache = open(1 << 20, 16 << 10);
+		assertEquals(500, cache.numEntries());
+		for (int i = 0; i < 500; i++)
+			assertEquals(i == 7 ? "replaced" : value(i), lookup(cache, "k" + i));
+		
+		// Restart without a final checkpoint, the records written after the last 
+		// one are found by scanning the segments
+		for (int i = 500; i < 700; i++)
+			assertTrue(insert(cache, "k" + i, value(i)));
+		PersistentCache cache2 = open(1 << 20, 16 << 10);
+		assertEquals(700, cache2.numEntries());
+		for (int i = 0; i < 700; i += 7)
+			assertEquals(i == 7 ? "replaced" : value(i), lookup(cache2, "k" + i));
+		cache2.delete();
+		cache.delete();
+	}
+	
+	@Test
+	public void testCorruption() throws Exception {
+		reset();
+		PersistentCache cache = open(1 << 20, 1 << 20);
+		for (int i = 0; i < 10; i++)
+			assertTrue(insert(cache, "k" + i, value(i)));
+		cache.delete();
+		
+		// Flip a byte in the data of the last record
+		RandomAccessFile f = new RandomAccessFile(kDir + "/000001.cache", "rw");
+		long pos = f.length() - 10;
+		f.seek(pos);
+		int b = f.read();
+		f.seek(pos);
+		f.write(b ^ 0xff);
+		f.close();
+		
+		cache = open(1 << 20, 1 << 20);
+		assertNull(lookup(cache, "k9"));
+		assertEquals(value(8), lookup(cache, "k8"));
+		cache.delete();
+	}
+	
+	@Test
+	public void testTableBlocksSurviveRestart() {
+		reset();
+		Options options = new Options();
+		options.blockSize = 256;
+		TestTable.StringSink sink = new TestTable.StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		for (int i = 0; i < 1000; i++)
+			builder.add(SliceFactory.newUnpooled(String.format("k%06d", i)), SliceFactory.newUnpooled(value(i)));
+		assertTrue(builder.finish().ok());
+		
+		for (int pass = 0; pass < 2; pass++) {
+			Options tableOptions = new Options();
+			tableOptions.secondaryBlockCache = open(1 << 20, 64 << 10);
+			TestTable.StringSource source = new TestTable.StringSource(SliceFactory.newUnpooled(sink.contents()));
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+			int readsBefore = source.reads;
+			
+			Iterator0 iter = table0.getValue().newIterator(new ReadOptions());
+			int n = 0;
+			for (iter.seekToFirst(); iter.valid(); iter.next(), n++)
+				assertEquals(value(n), iter.value().encodeToString());
+			assertEquals(1000, n);
+			iter.delete();
+			
+			if (pass == 0)
+				assertTrue(source.reads > readsBefore);
+			else
+				assertEquals(readsBefore, source.reads);
+			table0.getValue().delete();
+			tableOptions.secondaryBlockCache.delete();
+		}
+	}
+	
+	@Test
+	public void testReplacedTableNotServed() {
+		reset();
+		PersistentCache cache = open(1 << 20, 64 << 10);
+		Options tableOptions = new Options();
+		tableOptions.secondaryBlockCache = cache;
+		
+		// Same keys, value lengths and layout, as if a recreated DB reused the file 
+		// number, only the values differ.
+		long size = -1;
+		for (int pass = 0; pass < 2; pass++) {
+			Options options = new Options();
+			options.blockSize = 256;
+			options.compression = CompressionType.kNoCompression;
+			TestTable.StringSink sink = new TestTable.StringSink();
+			TableBuilder builder = new TableBuilder(options, sink);
+			for (int i = 0; i < 1000; i++)
+				builder.add(SliceFactory.newUnpooled(String.format("k%06d", i)), SliceFactory.newUnpooled(pass + value(i)));
+			assertTrue(builder.finish().ok());
+			if (pass == 1)
+				assertEquals(size, sink.contents().size());
+			size = sink.contents().size();
+			
+			TestTable.StringSource source = new TestTable.StringSource(SliceFactory.newUnpooled(sink.contents()));
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+			Iterator0 iter = table0.getValue().newIterator(new ReadOptions());
+			int n = 0;
+			for (iter.seekToFirst(); iter.valid(); iter.next(), n++)
+				assertEquals(pass + value(n), iter.value().encodeToString());
+			assertEquals(1000, n);
+			iter.delete();
+			table0.getValue().delete();
+		}
+		cache.delete();
+	}
+}
@@ -21,12 +21,15 @@
 
 package com.tchaicatkovsky.jleveldb.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -317,4 +320,53 @@ public class TestSkipListMap {
 		assertNull(map.firstEntry());
 		assertNull(map.lastEntry());
 	}
+	
+	@Test
+	public void testConcurrentReadWrite() throws Exception {
+		final SkipListMap<Integer, Integer> map = new SkipListMap<>(12, 4, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return a.compareTo(b);
+			}
+		});
+		final int N = 20000;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicInteger errors = new AtomicInteger();
+		
+		Thread[] readers = new Thread[2];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(new Runnable() {
+				public void run() {
+					while (!done.get()) {
+						// Keys must come out in order with their own values, and a
+						// size observed before the scan is a lower bound for it.
+						int expected = map.size();
+						int count = 0;
+						int last = -1;
+						SkipListMap<Integer, Integer>.Iterator1 it = map.iterator1();
+						for (it.seekToFirst(); it.valid(); it.next()) {
+							if (it.key() <= last || !it.key().equals(it.value()))
+								errors.incrementAndGet();
+							last = it.key();
+							count++;
+						}
+						if (count < expected)
+							errors.incrementAndGet();
+					}
+				}
+			});
+			readers[t].start();
+		}
+		
+		// Single writer, inserting in a scattered order
+		for (int i = 0; i < N; i++) {
+			int k = (int) ((i * 7919L) % N);
+			map.put(k, k);
+		}
+		done.set(true);
+		for (Thread t : readers)
+			t.join();
+		
+		assertEquals(0, errors.get());
+		assertEquals(N, map.size());
+	}
 }
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2017-2018 Teng Huang <ht201509 at 163 dot com>
+ * All rights reserved.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tchaicatkovsky.jleveldb.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.tchaicatkovsky.jleveldb.util.ByteBuf;
+import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
+import com.tchaicatkovsky.jleveldb.util.Integer0;
+import com.tchaicatkovsky.jleveldb.util.Random0;
+import com.tchaicatkovsky.jleveldb.util.Snappy;
+import com.tchaicatkovsky.jleveldb.util.Utils;
+
+public class TestSnappy {
+
+	static byte[] roundTrip(byte[] input, int offset, int n) {
+		ByteBuf compressed = ByteBufFactory.newUnpooled();
+		assertTrue(Snappy.compress(input, offset, n, compressed));
+		assertTrue(compressed.size() <= Snappy.maxCompressedLength(n));
+
+		Integer0 ulength = new Integer0();
+		assertTrue(Snappy.getUncompressedLength(compressed.data(), compressed.offset(), compressed.size(), ulength));
+		assertEquals(n, ulength.getValue());
+
+		byte[] output = new byte[ulength.getValue()];
+		assertTrue(Snappy.uncompress(compressed.data(), compressed.offset(), compressed.size(), output));
+		assertArrayEquals(Arrays.copyOfRange(input, offset, offset + n), output);
+		return output;
+	}
+
+	@Test
+	public void testEmpty() {
+		roundTrip(new byte[0], 0, 0);
+	}
+
+	@Test
+	public void testSmall() {
+		byte[] b = "hello".getBytes();
+		roundTrip(b, 0, b.length);
+		roundTrip(b, 1, 3);
+	}
+
+	@Test
+	public void testCompressible() {
+		byte[] b = Utils.makeString(10000, 'y').getBytes();
+		ByteBuf compressed = ByteBufFactory.newUnpooled();
+		Snappy.compress(b, 0, b.length, compressed);
+		assertTrue(compressed.size() < b.length / 10);
+		roundTrip(b, 0, b.length);
+	}
+
+	@Test
+	public void testRandom() {
+		Random0 rnd = new Random0(301);
+		for (int i = 0; i < 200; i++) {
+			int n = (int) rnd.skewed(18);
+			ByteBuf piece = ByteBufFactory.newUnpooled();
+			ByteBuf data = ByteBufFactory.newUnpooled();
+			while (data.size() < n) {
+				Utils.compressibleString(rnd, (rnd.next() % 10) / 10.0, 100, piece);
+				data.append(piece);
+			}
+			// Compress from a non-zero offset
+			byte[] b = new byte[n + 7];
+			if (n > 0)
+				System.arraycopy(data.data(), data.offset(), b, 7, n);
+			roundTrip(b, 7, n);
+		}
+	}
+
+	@Test
+	public void testAcrossFragments() {
+		// Longer than one 64KB compression fragment
+		Random0 rnd = new Random0(17);
+		byte[] b = new byte[200 * 1024];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) ('a' + (i % 64 < 32 ? (int) rnd.uniform(4) : i % 13));
+		roundTrip(b, 0, b.length);
+	}
+
+	@Test
+	public void testDecodeReference() {
+		// varint(10), literal "abcd", copy-1 (len 6, offset 4)
+		byte[] c = new byte[] { 0x0a, 0x0c, 'a', 'b', 'c', 'd', 0x09, 0x04 };
+		byte[] out = new byte[10];
+		assertTrue(Snappy.uncompress(c, 0, c.length, out));
+		assertArrayEquals("abcdabcdab".getBytes(), out);
+
+		// varint(9), literal "xyz", copy-2 (len 6, offset 3)
+		c = new byte[] { 0x09, 0x08, 'x', 'y', 'z', 0x16, 0x03, 0x00 };
+		out = new byte[9];
+		assertTrue(Snappy.uncompress(c, 0, c.length, out));
+		assertArrayEquals("xyzxyzxyz".getBytes(), out);
+	}
+
+	@Test
+	public void testCorrupted() {
+		byte[] b = Utils.makeString(1000, 'z').getBytes();
+		ByteBuf compressed = ByteBufFactory.newUnpooled();
+		Snappy.compress(b, 0, b.length, compressed);
+		byte[] c = Arrays.copyOfRange(compressed.data(), compressed.offset(), compressed.offset() + compressed.size());
+		byte[] out = new byte[b.length];
+
+		// Truncated input
+		assertFalse(Snappy.uncompress(c, 0, c.length - 1, out));
+
+		// Copy offset pointing before the start of the output
+		byte[] bad = new byte[] { 0x0a, 0x00, 'a', 0x09, 0x04 };
+		assertFalse(Snappy.uncompress(bad, 0, bad.length, new byte[10]));
+
+		// Bad length header
+		bad = new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+		assertFalse(Snappy.getUncompressedLength(bad, 0, bad.length, new Integer0()));
+	}
+}
@@ -21,6 +21,7 @@
 
 package com.tchaicatkovsky.jleveldb.test;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -31,12 +32,14 @@ import org.junit.Test;
 
 import com.tchaicatkovsky.jleveldb.CompressionType;
 import com.tchaicatkovsky.jleveldb.DB;
+import com.tchaicatkovsky.jleveldb.FilterPolicy;
 import com.tchaicatkovsky.jleveldb.Iterator0;
 import com.tchaicatkovsky.jleveldb.LevelDB;
 import com.tchaicatkovsky.jleveldb.Logger0;
 import com.tchaicatkovsky.jleveldb.Options;
 import com.tchaicatkovsky.jleveldb.RandomAccessFile0;
 import com.tchaicatkovsky.jleveldb.ReadOptions;
+import com.tchaicatkovsky.jleveldb.SliceTransform;
 import com.tchaicatkovsky.jleveldb.Status;
 import com.tchaicatkovsky.jleveldb.WritableFile;
 import com.tchaicatkovsky.jleveldb.WriteBatch;
@@ -44,6 +47,7 @@ import com.tchaicatkovsky.jleveldb.WriteOptions;
 import com.tchaicatkovsky.jleveldb.db.MemTable;
 import com.tchaicatkovsky.jleveldb.db.WriteBatchInternal;
 import com.tchaicatkovsky.jleveldb.db.format.DBFormat;
+import com.tchaicatkovsky.jleveldb.db.format.InternalKey;
 import com.tchaicatkovsky.jleveldb.db.format.InternalKeyComparator;
 import com.tchaicatkovsky.jleveldb.db.format.ParsedInternalKey;
 import com.tchaicatkovsky.jleveldb.db.format.ValueType;
@@ -55,11 +59,13 @@ import com.tchaicatkovsky.jleveldb.table.TableFormat.BlockContents;
 import com.tchaicatkovsky.jleveldb.util.ByteBuf;
 import com.tchaicatkovsky.jleveldb.util.ByteBufFactory;
 import com.tchaicatkovsky.jleveldb.util.BytewiseComparatorImpl;
+import com.tchaicatkovsky.jleveldb.util.Cache;
 import com.tchaicatkovsky.jleveldb.util.Comparator0;
 import com.tchaicatkovsky.jleveldb.util.Integer0;
 import com.tchaicatkovsky.jleveldb.util.ListUtils;
 import com.tchaicatkovsky.jleveldb.util.Object0;
 import com.tchaicatkovsky.jleveldb.util.Random0;
+import com.tchaicatkovsky.jleveldb.util.SecondaryCache;
 import com.tchaicatkovsky.jleveldb.util.Slice;
 import com.tchaicatkovsky.jleveldb.util.SliceFactory;
 import com.tchaicatkovsky.jleveldb.util.Snappy;
@@ -203,6 +209,7 @@ public class TestTable {
 		}
 
 		public Status read(long offset, int n, Slice result, byte[] scratch) {
+			reads++;
 		    if (offset > contents.size()) {
 		      return Status.invalidArgument("invalid Read offset");
 		    }
@@ -217,6 +224,7 @@ public class TestTable {
 		  }
 
 		  ByteBuf contents = ByteBufFactory.newUnpooled();
+		  int reads;
 	};
 	
 	static class ByteBufComparator implements Comparator<ByteBuf> {
@@ -612,17 +620,23 @@ public class TestTable {
 		  TestType type;
 		  boolean reverse_compare;
 		  int restart_interval;
+		  boolean partitioned;
 		  
 		  public TestArgs(TestType type, boolean reverse_compare, int restart_interval) {
+			  this(type, reverse_compare, restart_interval, false);
+		  }
+		  
+		  public TestArgs(TestType type, boolean reverse_compare, int restart_interval, boolean partitioned) {
 			  this.type = type;
 			  this.reverse_compare = reverse_compare;
 			  this.restart_interval = restart_interval;
+			  this.partitioned = partitioned;
 		  }
 		  
 		  @Override
 		  public String toString() {
-			  return String.format("{type:%s,reverse_compare:%s,restart_interval:%d", 
-					  type.name(), reverse_compare, restart_interval);
+			  return String.format("{type:%s,reverse_compare:%s,restart_interval:%d,partitioned:%s", 
+					  type.name(), reverse_compare, restart_interval, partitioned);
 		  }
 	};
 	
@@ -651,6 +665,10 @@ public class TestTable {
 		l.add(new TestArgs(TestType.DB_TEST, false, 16));		//14
 		l.add(new TestArgs(TestType.DB_TEST, true, 16));		//15
 		
+		// Tiny index partitions so that most tables have several
+		l.add(new TestArgs(TestType.TABLE_TEST, false, 16, true));	//16
+		l.add(new TestArgs(TestType.TABLE_TEST, true, 16, true));	//17
+		
 		kTestArgList = new TestArgs[l.size()];
 		for (int i = 0; i < kTestArgList.length; i++) {
 			kTestArgList[i] = l.get(i);
@@ -681,6 +699,8 @@ public class TestTable {
 		    // Use shorter block size for tests to exercise block boundary
 		    // conditions more.
 		    options.blockSize = 256;
+		    options.partitionIndexAndFilters = args.partitioned;
+		    options.metadataBlockSize = 64;
 		    if (args.reverse_compare) {
 		    	options.comparator = reverse_key_comparator;
 		    }
@@ -1144,6 +1164,396 @@ public class TestTable {
 		h.delete();
 	}
 	
+	@Test
+	public void testPartitionedIndexAndFilter() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		Options options = new Options();
+		options.blockSize = 256;
+		options.compression = CompressionType.kNoCompression;
+		options.partitionIndexAndFilters = true;
+		options.metadataBlockSize = 256;
+		options.filterPolicy = FilterPolicy.newBloomFilterPolicy(10);
+		
+		StringSink sink = new StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		final int kNumKeys = 5000;
+		for (int i = 0; i < kNumKeys; i++)
+			builder.add(SliceFactory.newUnpooled(String.format("k%06d", i * 2)), SliceFactory.newUnpooled("v" + i));
+		assertTrue(builder.finish().ok());
+		
+		StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+		Options tableOptions = new Options();
+		tableOptions.filterPolicy = options.filterPolicy;
+		tableOptions.blockCache = Cache.newLRUCache(1 << 20);
+		Object0<Table> table0 = new Object0<Table>();
+		assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+		Table table = table0.getValue();
+		
+		// Only the footer, the metaindex and the two top-level indexes are read
+		assertEquals(4, source.reads);
+		
+		final Object0<String> found = new Object0<>();
+		Table.HandleResult saver = new Table.HandleResult() {
+			public void run(Object arg, Slice k, Slice v) {
+				if (k.equals((Slice) arg))
+					found.setValue(v.encodeToString());
+			}
+		};
+		
+		for (int i = 0; i < kNumKeys; i++) {
+			Slice k = SliceFactory.newUnpooled(String.format("k%06d", i * 2));
+			found.setValue(null);
+			assertTrue(table.internalGet(new ReadOptions(), k, k, saver).ok());
+			assertEquals("v" + i, found.getValue());
+		}
+		
+		// Every partition is cached now
+		int readsBefore = source.reads;
+		for (int i = 0; i < kNumKeys; i++) {
+			Slice k = SliceFactory.newUnpooled(String.format("k%06d", i * 2 + 1));
+			found.setValue(null);
+			assertTrue(table.internalGet(new ReadOptions(), k, k, saver).ok());
+			assertEquals(null, found.getValue());
+		}
+		assertEquals(readsBefore, source.reads);
+		
+		// Without a cache every lookup reads its filter partition, but the
+		// index partition and data block are only read on false positives.
+		tableOptions.blockCache.delete();
+		tableOptions.blockCache = null;
+		table.delete();
+		assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+		table = table0.getValue();
+		readsBefore = source.reads;
+		for (int i = 0; i < kNumKeys; i++) {
+			Slice k = SliceFactory.newUnpooled(String.format("k%06d", i * 2 + 1));
+			assertTrue(table.internalGet(new ReadOptions(), k, k, saver).ok());
+		}
+		assertTrue(source.reads - readsBefore < kNumKeys + kNumKeys / 10);
+
+		// Iteration crosses index partitions
+		Iterator0 iter = table.newIterator(new ReadOptions());
+		int n = 0;
+		for (iter.seekToFirst(); iter.valid(); iter.next()) {
+			assertEquals(String.format("k%06d", n * 2), iter.key().encodeToString());
+			n++;
+		}
+		assertEquals(kNumKeys, n);
+		iter.seek(SliceFactory.newUnpooled("k004001"));
+		assertTrue(iter.valid());
+		assertEquals("k004002", iter.key().encodeToString());
+		iter.delete();
+		
+		table.delete();
+	}
+	
+	@Test
+	public void testCacheIndexAndFilterBlocks() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		for (boolean partitioned : new boolean[] {false, true}) {
+			Options options = new Options();
+			options.blockSize = 256;
+			options.compression = CompressionType.kNoCompression;
+			options.partitionIndexAndFilters = partitioned;
+			options.metadataBlockSize = 256;
+			options.filterPolicy = FilterPolicy.newBloomFilterPolicy(10);
+			
+			StringSink sink = new StringSink();
+			TableBuilder builder = new TableBuilder(options, sink);
+			final int kNumKeys = 2000;
+			for (int i = 0; i < kNumKeys; i++)
+				builder.add(SliceFactory.newUnpooled(String.format("k%06d", i * 2)), SliceFactory.newUnpooled("v" + i));
+			assertTrue(builder.finish().ok());
+			
+			StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+			Options tableOptions = new Options();
+			tableOptions.filterPolicy = options.filterPolicy;
+			tableOptions.blockCache = Cache.newLRUCache(1 << 20);
+			tableOptions.cacheIndexAndFilterBlocks = true;
+			Cache cache = tableOptions.blockCache;
+			
+			final Object0<String> found = new Object0<>();
+			Table.HandleResult saver = new Table.HandleResult() {
+				public void run(Object arg, Slice k, Slice v) {
+					if (k.equals((Slice) arg))
+						found.setValue(v.encodeToString());
+				}
+			};
+			
+			for (boolean pin : new boolean[] {false, true}) {
+				Object0<Table> table0 = new Object0<Table>();
+				assertTrue(Table.open(tableOptions, source, sink.contents().size(), pin, table0).ok());
+				Table table = table0.getValue();
+				
+				// Opening the table charges its index and filter to the cache
+				long metadataCharge = cache.totalCharge();
+				assertTrue(metadataCharge > 0);
+				
+				// Unpinned metadata can be dropped and is read again when needed
+				cache.prune();
+				assertEquals(pin ? metadataCharge : 0, cache.totalCharge());
+				for (int i = 0; i < kNumKeys; i++) {
+					Slice k = SliceFactory.newUnpooled(String.format("k%06d", i * 2));
+					found.setValue(null);
+					assertTrue(table.internalGet(new ReadOptions(), k, k, saver).ok());
+					assertEquals("v" + i, found.getValue());
+				}
+				
+				// Pinned metadata answers absent keys without any read
+				cache.prune();
+				int readsBefore = source.reads;
+				int absent = 0;
+				for (int i = 0; i < 100; i++) {
+					Slice k = SliceFactory.newUnpooled(String.format("k%06d", i * 2 + 1));
+					assertTrue(table.internalGet(new ReadOptions(), k, k, saver).ok());
+					absent++;
+				}
+				if (pin && !partitioned)
+					assertTrue(source.reads - readsBefore < absent / 10);
+				else
+					assertTrue(source.reads - readsBefore >= 1);
+				
+				table.delete();
+				cache.prune();
+				assertEquals(0, cache.totalCharge());
+			}
+			cache.delete();
+		}
+	}
+	
+	@Test
+	public void testMultiGet() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		for (boolean partitioned : new boolean[] {false, true}) {
+			Options options = new Options();
+			options.blockSize = 256;
+			options.compression = CompressionType.kNoCompression;
+			options.partitionIndexAndFilters = partitioned;
+			options.metadataBlockSize = 256;
+			options.filterPolicy = FilterPolicy.newBloomFilterPolicy(10);
+			
+			StringSink sink = new StringSink();
+			TableBuilder builder = new TableBuilder(options, sink);
+			final int kNumKeys = 1000;
+			for (int i = 0; i < kNumKeys; i++)
+				builder.add(SliceFactory.newUnpooled(String.format("k%06d", i * 2)), SliceFactory.newUnpooled("v" + i));
+			assertTrue(builder.finish().ok());
+			
+			StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+			Options tableOptions = new Options();
+			tableOptions.filterPolicy = options.filterPolicy;
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+			Table table = table0.getValue();
+			
+			// Every present key, each followed by an absent one
+			ArrayList<Slice> keys = new ArrayList<>();
+			ArrayList<Object> args = new ArrayList<>();
+			for (int i = 0; i < kNumKeys * 2; i++) {
+				keys.add(SliceFactory.newUnpooled(String.format("k%06d", i)));
+				args.add(i);
+			}
+			keys.add(SliceFactory.newUnpooled("z"));
+			args.add(-1);
+			
+			final String[] found = new String[kNumKeys * 2];
+			Table.HandleResult saver = new Table.HandleResult() {
+				public void run(Object arg, Slice k, Slice v) {
+					int i = (Integer) arg;
+					if (i >= 0 && k.encodeToString().equals(String.format("k%06d", i)))
+						found[i] = v.encodeToString();
+				}
+			};
+			
+			int readsBefore = source.reads;
+			assertTrue(table.multiGet(new ReadOptions(), keys, args, saver).ok());
+			int batchReads = source.reads - readsBefore;
+			for (int i = 0; i < kNumKeys * 2; i++)
+				assertEquals(i % 2 == 0 ? "v" + (i / 2) : null, found[i]);
+			
+			// Point lookups of the same keys read each block once per key
+			readsBefore = source.reads;
+			for (int i = 0; i < keys.size(); i++)
+				assertTrue(table.internalGet(new ReadOptions(), keys.get(i), args.get(i), saver).ok());
+			int pointReads = source.reads - readsBefore;
+			assertTrue("batch " + batchReads + ", point " + pointReads, batchReads * 4 < pointReads);
+			
+			table.delete();
+		}
+	}
+	
+	@Test
+	public void testIteratorReadahead() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		Options options = new Options();
+		options.blockSize = 256;
+		options.compression = CompressionType.kNoCompression;
+		StringSink sink = new StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		final int kNumKeys = 5000;
+		for (int i = 0; i < kNumKeys; i++)
+			builder.add(SliceFactory.newUnpooled(String.format("k%06d", i)), SliceFactory.newUnpooled("v" + i));
+		assertTrue(builder.finish().ok());
+		int numBlocks = (int) (sink.contents().size() / 300);
+		
+		StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+		Object0<Table> table0 = new Object0<Table>();
+		assertTrue(Table.open(new Options(), source, sink.contents().size(), table0).ok());
+		Table table = table0.getValue();
+		
+		int[] readaheadSizes = new int[] {-1, 0, 64 * 1024};
+		int[] scanReads = new int[readaheadSizes.length];
+		for (int r = 0; r < readaheadSizes.length; r++) {
+			ReadOptions ropts = new ReadOptions();
+			ropts.readaheadSize = readaheadSizes[r];
+			
+			int readsBefore = source.reads;
+			Iterator0 iter = table.newIterator(ropts);
+			int n = 0;
+			for (iter.seekToFirst(); iter.valid(); iter.next(), n++) {
+				assertEquals(String.format("k%06d", n), iter.key().encodeToString());
+				assertEquals("v" + n, iter.value().encodeToString());
+			}
+			assertTrue(iter.status().ok());
+			assertEquals(kNumKeys, n);
+			scanReads[r] = source.reads - readsBefore;
+			
+			// Seeks around the file mixed with short scans still see the right data
+			Random0 rnd = new Random0(301);
+			for (int i = 0; i < 200; i++) {
+				int k = (int) rnd.uniform(kNumKeys);
+				iter.seek(SliceFactory.newUnpooled(String.format("k%06d", k)));
+				for (int j = k; j < Math.min(k + 30, kNumKeys); j++, iter.next()) {
+					assertTrue(iter.valid());
+					assertEquals("v" + j, iter.value().encodeToString());
+				}
+			}
+			iter.delete();
+		}
+		
+		// Without readahead every block is one read
+		assertTrue(scanReads[0] > numBlocks / 2);
+		assertTrue(scanReads[1] < scanReads[0] / 10);
+		assertTrue(scanReads[2] <= sink.contents().size() / (64 * 1024) + 2);
+		table.delete();
+	}
+	
+	@Test
+	public void testScanMode() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		for (CompressionType compression : new CompressionType[] {CompressionType.kNoCompression, CompressionType.kSnappyCompression}) {
+			Options options = new Options();
+			options.blockSize = 256;
+			options.compression = compression;
+			StringSink sink = new StringSink();
+			TableBuilder builder = new TableBuilder(options, sink);
+			final int kNumKeys = 3000;
+			for (int i = 0; i < kNumKeys; i++)
+				builder.add(SliceFactory.newUnpooled(String.format("k%06d", i)), SliceFactory.newUnpooled(Utils.makeString(i % 50, 'v')));
+			assertTrue(builder.finish().ok());
+			
+			StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+			Options tableOptions = new Options();
+			tableOptions.blockCache = Cache.newLRUCache(1 << 20);
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+			Table table = table0.getValue();
+			
+			ReadOptions ropts = new ReadOptions();
+			ropts.scanMode = true;
+			Iterator0 iter = table.newIterator(ropts);
+			int n = 0;
+			for (iter.seekToFirst(); iter.valid(); iter.next(), n++) {
+				assertEquals(String.format("k%06d", n), iter.key().encodeToString());
+				assertEquals(Utils.makeString(n % 50, 'v'), iter.value().encodeToString());
+			}
+			assertEquals(kNumKeys, n);
+			for (iter.seekToLast(), n = kNumKeys - 1; iter.valid(); iter.prev(), n--)
+				assertEquals(String.format("k%06d", n), iter.key().encodeToString());
+			assertEquals(-1, n);
+			assertTrue(iter.status().ok());
+			iter.delete();
+			
+			// The scan did not fill the block cache
+			assertEquals(0, tableOptions.blockCache.totalCharge());
+			
+			// Blocks that are cached are still used
+			iter = table.newIterator(new ReadOptions());
+			for (iter.seekToFirst(); iter.valid(); iter.next());
+			iter.delete();
+			int readsBefore = source.reads;
+			iter = table.newIterator(ropts);
+			for (iter.seekToFirst(), n = 0; iter.valid(); iter.next(), n++);
+			assertEquals(kNumKeys, n);
+			assertEquals(readsBefore, source.reads);
+			iter.delete();
+			
+			table.delete();
+			tableOptions.blockCache.delete();
+		}
+	}
+	
+	@Test
+	public void testSecondaryCache() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		for (CompressionType compression : new CompressionType[] {CompressionType.kNoCompression, CompressionType.kSnappyCompression}) {
+			Options options = new Options();
+			options.blockSize = 256;
+			options.compression = compression;
+			StringSink sink = new StringSink();
+			TableBuilder builder = new TableBuilder(options, sink);
+			final int kNumKeys = 3000;
+			for (int i = 0; i < kNumKeys; i++)
+				builder.add(SliceFactory.newUnpooled(String.format("k%06d", i)), SliceFactory.newUnpooled(Utils.makeString(i % 50, 'v')));
+			assertTrue(builder.finish().ok());
+			
+			StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+			Options tableOptions = new Options();
+			tableOptions.secondaryBlockCache = SecondaryCache.newOffHeapCache(1 << 20);
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(tableOptions, source, sink.contents().size(), table0).ok());
+			Table table = table0.getValue();
+			
+			for (int pass = 0; pass < 2; pass++) {
+				int readsBefore = source.reads;
+				Iterator0 iter = table.newIterator(new ReadOptions());
+				int n = 0;
+				for (iter.seekToFirst(); iter.valid(); iter.next(), n++) {
+					assertEquals(String.format("k%06d", n), iter.key().encodeToString());
+					assertEquals(Utils.makeString(n % 50, 'v'), iter.value().encodeToString());
+				}
+				assertEquals(kNumKeys, n);
+				assertTrue(iter.status().ok());
+				iter.delete();
+				
+				iter = table.newIterator(new ReadOptions());
+				for (int i = kNumKeys - 1; i >= 0; i -= 97) {
+					iter.seek(SliceFactory.newUnpooled(String.format("k%06d", i)));
+					assertTrue(iter.valid());
+					assertEquals(Utils.makeString(i % 50, 'v'), iter.value().encodeToString());
+				}
+				iter.delete();
+				
+				if (pass == 0) {
+					assertTrue(source.reads > readsBefore);
+					assertTrue(tableOptions.secondaryBlockCache.totalCharge() > 0);
+				} else {
+					// Every block comes from the secondary cache
+					assertEquals(readsBefore, source.reads);
+				}
+			}
+			
+			table.delete();
+			tableOptions.secondaryBlockCache.delete();
+		}
+	}
+	
 	@Test
 	public void testMemTableTestSimple() {
 		System.err.println("Start "+getMethodName()+":");
@@ -1261,6 +1671,161 @@ public class TestTable {
 		assertTrue(between(c.approximateOffsetOf(SliceFactory.newUnpooled("xyz")), 2 * min_z, 2 * max_z));
 	}
 
+	@Test
+	public void testIterateBounds() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		Options options = new Options();
+		options.blockSize = 256;
+		options.compression = CompressionType.kNoCompression;
+		StringSink sink = new StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		final int kNumKeys = 3000;
+		for (int i = 0; i < kNumKeys; i++)
+			builder.add(SliceFactory.newUnpooled(String.format("k%06d", i)), SliceFactory.newUnpooled("v" + i));
+		assertTrue(builder.finish().ok());
+		
+		StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+		Object0<Table> table0 = new Object0<Table>();
+		assertTrue(Table.open(options, source, sink.contents().size(), table0).ok());
+		Table table = table0.getValue();
+		
+		// Blocks past the upper bound are not loaded, the keys out of the bounds
+		// that share a block with keys in them are still returned
+		ReadOptions ropts = new ReadOptions();
+		ropts.readaheadSize = -1;
+		ropts.iterateLowerBound = SliceFactory.newUnpooled("k001000");
+		ropts.iterateUpperBound = SliceFactory.newUnpooled("k002000");
+		Iterator0 iter = table.newIterator(ropts);
+		int readsBefore = source.reads;
+		int n = 0;
+		for (iter.seek(SliceFactory.newUnpooled("k001500")); iter.valid(); iter.next()) {
+			assertEquals(String.format("k%06d", 1500 + n), iter.key().encodeToString());
+			n++;
+		}
+		assertTrue(iter.status().ok());
+		assertTrue(n >= 500 && n < 600);
+		int forwardReads = source.reads - readsBefore;
+		
+		readsBefore = source.reads;
+		n = 0;
+		for (iter.seek(SliceFactory.newUnpooled("k001499")); iter.valid(); iter.prev()) {
+			assertEquals(String.format("k%06d", 1499 - n), iter.key().encodeToString());
+			n++;
+		}
+		assertTrue(n >= 500 && n < 600);
+		int backwardReads = source.reads - readsBefore;
+		iter.delete();
+		
+		ReadOptions unbounded = new ReadOptions();
+		unbounded.readaheadSize = -1;
+		iter = table.newIterator(unbounded);
+		readsBefore = source.reads;
+		for (iter.seek(SliceFactory.newUnpooled("k001500")); iter.valid(); iter.next())
+			;
+		int unboundedReads = source.reads - readsBefore;
+		iter.delete();
+		System.err.printf("%d reads forward and %d backward with bounds, %d forward without\n", 
+				forwardReads, backwardReads, unboundedReads);
+		assertTrue(forwardReads * 2 < unboundedReads);
+		assertTrue(backwardReads * 2 < unboundedReads);
+		
+		table.delete();
+	}
+	
+	@Test
+	public void testPrefixFilter() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		for (boolean partitioned : new boolean[] {false, true}) {
+			Options options = new Options();
+			options.blockSize = 256;
+			options.compression = CompressionType.kNoCompression;
+			options.partitionIndexAndFilters = partitioned;
+			options.metadataBlockSize = 256;
+			options.filterPolicy = FilterPolicy.newBloomFilterPolicy(10);
+			options.prefixExtractor = SliceTransform.newFixedPrefixTransform(4);
+			
+			// 20 keys for each even prefix p000, p002, ..., p198
+			StringSink sink = new StringSink();
+			TableBuilder builder = new TableBuilder(options, sink);
+			for (int p = 0; p < 200; p += 2) {
+				for (int i = 0; i < 20; i++)
+					builder.add(SliceFactory.newUnpooled(String.format("p%03d-%03d", p, i)), SliceFactory.newUnpooled("v" + i));
+			}
+			assertTrue(builder.finish().ok());
+			
+			StringSource source = new StringSource(SliceFactory.newUnpooled(sink.contents()));
+			options.blockCache = Cache.newLRUCache(1 << 20);
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(options, source, sink.contents().size(), table0).ok());
+			Table table = table0.getValue();
+			
+			ReadOptions ropts = new ReadOptions();
+			ropts.prefixSameAsStart = true;
+			for (int p = 0; p < 200; p++) {
+				String prefix = String.format("p%03d", p);
+				Iterator0 iter = table.newIterator(ropts);
+				int n = 0;
+				for (iter.seek(SliceFactory.newUnpooled(prefix)); iter.valid() && iter.key().encodeToString().startsWith(prefix); iter.next()) {
+					assertEquals(String.format("%s-%03d", prefix, n), iter.key().encodeToString());
+					n++;
+				}
+				assertEquals(p % 2 == 0 ? 20 : 0, n);
+				assertTrue(iter.status().ok());
+				iter.delete();
+			}
+			
+			// The data blocks of the missing prefixes are not read. The first round 
+			// loads the index and filter partitions into a new cache.
+			table.delete();
+			options.blockCache.delete();
+			options.blockCache = Cache.newLRUCache(1 << 20);
+			assertTrue(Table.open(options, source, sink.contents().size(), table0).ok());
+			table = table0.getValue();
+			for (int round = 0; round < 2; round++) {
+				int readsBefore = source.reads;
+				for (int p = 1; p < 200; p += 2) {
+					Iterator0 iter = table.newIterator(ropts);
+					iter.seek(SliceFactory.newUnpooled(String.format("p%03d", p)));
+					assertTrue(!iter.valid() || !iter.key().encodeToString().startsWith(String.format("p%03d", p)));
+					iter.delete();
+				}
+				if (round == 0)
+					continue;
+				int reads = source.reads - readsBefore;
+				
+				readsBefore = source.reads;
+				for (int p = 1; p < 200; p += 2) {
+					Iterator0 iter = table.newIterator(new ReadOptions());
+					iter.seek(SliceFactory.newUnpooled(String.format("p%03d", p)));
+					iter.delete();
+				}
+				int unboundedReads = source.reads - readsBefore;
+				System.err.printf("partitioned=%b: %d reads for 100 missing prefixes, %d without prefix bound\n", 
+						partitioned, reads, unboundedReads);
+				assertTrue(reads <= 5);
+				assertTrue(unboundedReads >= 50);
+			}
+			
+			// Tables built with another extractor are read without prefix filtering
+			Options otherOptions = options.cloneOptions();
+			otherOptions.prefixExtractor = SliceTransform.newCappedPrefixTransform(4);
+			assertTrue(Table.open(otherOptions, source, sink.contents().size(), table0).ok());
+			Table other = table0.getValue();
+			int readsBefore = source.reads;
+			Iterator0 iter = other.newIterator(ropts);
+			iter.seek(SliceFactory.newUnpooled("p001"));
+			assertTrue(iter.valid());
+			assertEquals("p002-000", iter.key().encodeToString());
+			assertTrue(source.reads > readsBefore);
+			iter.delete();
+			other.delete();
+			table.delete();
+			options.blockCache.delete();
+		}
+	}
+	
 	@Test
 	public void testReverseKeyComparator() {
 		System.err.println("Start "+getMethodName()+":");
@@ -1275,6 +1840,244 @@ public class TestTable {
 		}
 	}
 	
+	static class CountingComparator extends InternalKeyComparator {
+		long count;
+		
+		CountingComparator() {
+			super(BytewiseComparatorImpl.getInstance());
+		}
+		
+		@Override
+		public int compare(byte[] a, int aoff, int asize, byte[] b, int boff, int bsize) {
+			count++;
+			return super.compare(a, aoff, asize, b, boff, bsize);
+		}
+	}
+	
+	/**
+	 * Internal keys k%05d of even numbers, with 1 to 3 versions each.
+	 */
+	static Table newVersionedTable(Options options, int numKeys) {
+		StringSink sink = new StringSink();
+		TableBuilder builder = new TableBuilder(options, sink);
+		for (int i = 0; i < numKeys; i++) {
+			Slice userKey = SliceFactory.newUnpooled(String.format("k%05d", i * 2));
+			for (int seq = 10; seq > 10 - (1 + i % 3); seq--)
+				builder.add(new InternalKey(userKey, seq, ValueType.Value).encode(), SliceFactory.newUnpooled("v" + i + "@" + seq));
+		}
+		assertTrue(builder.finish().ok());
+		Object0<Table> table0 = new Object0<Table>();
+		assertTrue(Table.open(options, new StringSource(SliceFactory.newUnpooled(sink.contents())), sink.contents().size(), table0).ok());
+		return table0.getValue();
+	}
+	
+	@Test
+	public void testDataBlockHashIndex() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		final int kNumKeys = 3000;
+		for (double ratio : new double[] {0.75, 4.0}) {
+			CountingComparator plainCmp = new CountingComparator();
+			CountingComparator hashCmp = new CountingComparator();
+			Options plainOptions = new Options(plainCmp);
+			Options hashOptions = new Options(hashCmp);
+			hashOptions.dataBlockHashIndex = true;
+			hashOptions.dataBlockHashTableUtilRatio = ratio;
+			Table plain = newVersionedTable(plainOptions, kNumKeys);
+			Table hashed = newVersionedTable(hashOptions, kNumKeys);
+			
+			// Iteration is not affected by the hash index
+			Iterator0 plainIter = plain.newIterator(new ReadOptions());
+			Iterator0 hashIter = hashed.newIterator(new ReadOptions());
+			int n = 0;
+			for (plainIter.seekToFirst(), hashIter.seekToFirst(); plainIter.valid(); plainIter.next(), hashIter.next(), n++) {
+				assertTrue(hashIter.valid());
+				assertEquals(plainIter.key().encodeToString(), hashIter.key().encodeToString());
+				assertEquals(plainIter.value().encodeToString(), hashIter.value().encodeToString());
+			}
+			assertTrue(!hashIter.valid());
+			assertEquals(2 * kNumKeys, n);
+			plainIter.delete();
+			hashIter.delete();
+			
+			// A lookup finds the newest version at or below the snapshot, as with a plain table
+			final Object0<String> found = new Object0<>();
+			Table.HandleResult saver = new Table.HandleResult() {
+				public void run(Object arg, Slice k, Slice v) {
+					if (DBFormat.extractUserKey(k).equals((Slice) arg))
+						found.setValue(v.encodeToString());
+				}
+			};
+			plainCmp.count = 0;
+			hashCmp.count = 0;
+			for (int i = 0; i < kNumKeys * 2; i++) {
+				Slice userKey = SliceFactory.newUnpooled(String.format("k%05d", i));
+				for (long snapshot : new long[] {11, 9, 7}) {
+					Slice ikey = new InternalKey(userKey, snapshot, DBFormat.kValueTypeForSeek).encode();
+					found.setValue(null);
+					assertTrue(plain.internalGet(new ReadOptions(), ikey, userKey, saver).ok());
+					String expected = found.getValue();
+					found.setValue(null);
+					assertTrue(hashed.internalGet(new ReadOptions(), ikey, userKey, saver).ok());
+					assertEquals(expected, found.getValue());
+					
+					int versions = 1 + (i / 2) % 3;
+					boolean present = i % 2 == 0 && snapshot > 10 - versions;
+					assertEquals(present ? "v" + (i / 2) + "@" + Math.min(snapshot, 10) : null, expected);
+				}
+			}
+			System.err.printf("ratio %.2f: %d comparisons with the hash index, %d without\n", ratio, hashCmp.count, plainCmp.count);
+			if (ratio < 1)
+				assertTrue(hashCmp.count * 10 < plainCmp.count * 9);
+			
+			plain.delete();
+			hashed.delete();
+		}
+	}
+	
+	@Test
+	public void testDataBlockHashIndexFormat() {
+		System.err.println("Start "+getMethodName()+":");
+		
+		Options options = new Options();
+		options.dataBlockHashIndex = true;
+		for (int numKeys : new int[] {1, 100, 253 * 16, 253 * 16 + 1}) {
+			for (boolean dataBlock : new boolean[] {false, true}) {
+				BlockBuilder builder = new BlockBuilder(options, dataBlock);
+				for (int i = 0; i < numKeys; i++)
+					builder.add(SliceFactory.newUnpooled(String.format("k%05d", i)), SliceFactory.newUnpooled("v" + i));
+				int estimate = builder.currentSizeEstimate();
+				Slice raw = builder.finish();
+				assertTrue(raw.size() <= estimate);
+				BlockContents contents = new BlockContents();
+				contents.data = SliceFactory.newUnpooled(java.util.Arrays.copyOfRange(raw.data(), raw.offset(), raw.offset() + raw.size()), 0, raw.size());
+				Block block = new Block(contents);
+				
+				// Only data blocks with at most 253 restart points carry the index
+				assertEquals(dataBlock && numKeys <= 253 * 16, block.hasHashIndex());
+				
+				Iterator0 iter = block.newIterator(options.comparator);
+				int n = 0;
+				for (iter.seekToFirst(); iter.valid(); iter.next(), n++)
+					assertEquals(String.format("k%05d", n), iter.key().encodeToString());
+				assertEquals(numKeys, n);
+				iter.seek(SliceFactory.newUnpooled("k00000x"));
+				assertEquals(numKeys > 1 ? "k00001" : "END", iter.valid() ? iter.key().encodeToString() : "END");
+				assertTrue(iter.status().ok());
+				iter.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Bytes allocated so far by the calling thread, or -1 if the JVM does not count them.
+	 */
+	static long threadAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+		if (!b.isThreadAllocatedMemorySupported() || !b.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return b.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	static long blockIterOps(Iterator0 iter, Slice[] targets, int rounds) {
+		long sum = 0;
+		for (int r = 0; r < rounds; r++) {
+			for (Slice target : targets) {
+				iter.seek(target);
+				for (int i = 0; i < 4 && iter.valid(); i++) {
+					sum += iter.key().size() + iter.value().size();
+					iter.next();
+				}
+				if (iter.valid())
+					iter.prev();
+			}
+		}
+		return sum;
+	}
+	
+	@Test
+	public void testBlockIterAllocationFree() {
+		System.err.println("Start "+getMethodName()+":");
+		if (threadAllocatedBytes() < 0) {
+			System.err.println("thread allocation counting is not supported, skipped");
+			return;
+		}
+		
+		Comparator0 cmp = BytewiseComparatorImpl.getInstance();
+		BlockBuilder builder = new BlockBuilder(new Options());
+		final int kNumKeys = 2000;
+		for (int i = 0; i < kNumKeys; i++)
+			builder.add(SliceFactory.newUnpooled(String.format("key%06d", i * 2)), SliceFactory.newUnpooled(Utils.makeString(i % 20, 'v')));
+		Slice raw = builder.finish();
+		BlockContents contents = new BlockContents();
+		contents.data = SliceFactory.newUnpooled(java.util.Arrays.copyOfRange(raw.data(), raw.offset(), raw.offset() + raw.size()), 0, raw.size());
+		Block block = new Block(contents);
+		
+		Random0 rnd = new Random0(301);
+		Slice[] targets = new Slice[1024];
+		for (int i = 0; i < targets.length; i++)
+			targets[i] = SliceFactory.newUnpooled(String.format("key%06d", rnd.uniform(kNumKeys * 2)));
+		
+		Iterator0 iter = block.newIterator(cmp);
+		final int kRounds = 50;
+		long expected = blockIterOps(iter, targets, kRounds); // Also warms up the JIT
+		
+		long overhead = threadAllocatedBytes();
+		overhead = threadAllocatedBytes() - overhead;
+		long before = threadAllocatedBytes();
+		long sum = blockIterOps(iter, targets, kRounds);
+		long bytes = threadAllocatedBytes() - before - overhead;
+		assertEquals(expected, sum);
+		assertTrue(iter.status().ok());
+		iter.delete();
+		
+		long ops = (long) kRounds * targets.length;
+		System.err.printf("Block.Iter: %.4f bytes allocated per seek+next+prev\n", (double) bytes / ops);
+		assertTrue("allocated "+bytes+" bytes for "+ops+" seeks", bytes < ops);
+		
+		// Table.internalGet reuses a per-thread lookup context, once the blocks are 
+		// cached it allocates nothing, also with the index and filter in the cache
+		for (boolean cacheMetadata : new boolean[] {false, true}) {
+			Options options = new Options();
+			options.filterPolicy = FilterPolicy.newBloomFilterPolicy(10);
+			StringSink sink = new StringSink();
+			TableBuilder tableBuilder = new TableBuilder(options, sink);
+			for (int i = 0; i < kNumKeys; i++)
+				tableBuilder.add(SliceFactory.newUnpooled(String.format("key%06d", i * 2)), SliceFactory.newUnpooled(Utils.makeString(i % 20, 'v')));
+			assertTrue(tableBuilder.finish().ok());
+			Options tableOptions = new Options();
+			tableOptions.filterPolicy = options.filterPolicy;
+			tableOptions.blockCache = Cache.newClockCache(1 << 20);
+			tableOptions.cacheIndexAndFilterBlocks = cacheMetadata;
+			Object0<Table> table0 = new Object0<Table>();
+			assertTrue(Table.open(tableOptions, new StringSource(SliceFactory.newUnpooled(sink.contents())), sink.contents().size(), table0).ok());
+			Table table = table0.getValue();
+			ReadOptions readOptions = new ReadOptions();
+			final long[] found = new long[1];
+			Table.HandleResult saver = new Table.HandleResult() {
+				public void run(Object arg, Slice k, Slice v) {
+					found[0] += v.size();
+				}
+			};
+			for (int r = 0; r < kRounds; r++) {
+				for (Slice target : targets)
+					assertTrue(table.internalGet(readOptions, target, null, saver).ok());
+			}
+			before = threadAllocatedBytes();
+			for (Slice target : targets)
+				table.internalGet(readOptions, target, null, saver);
+			bytes = threadAllocatedBytes() - before - overhead;
+			System.err.printf("Table.internalGet (cacheIndexAndFilterBlocks=%b): %.1f bytes allocated per lookup\n", 
+					cacheMetadata, (double) bytes / targets.length);
+			assertTrue("allocated "+bytes+" bytes for "+targets.length+" lookups", bytes < targets.length);
+			table.delete();
+			tableOptions.blockCache.delete();
+		}
+	}
+	
 	private String getMethodName() {  
         StackTraceElement[] stacktrace = Thread.currentThread().getStackTrace();  
         StackTraceElement e = stacktrace[2];  